@@ -0,0 +1,26 @@
+plugins {
+    id("java")
+}
+
+repositories {
+    mavenCentral()
+}
+
+// The agent is loaded into every program traced by it, so it only depends on ASM.
+dependencies {
+    implementation("org.ow2.asm:asm:9.8")
+    implementation("org.ow2.asm:asm-tree:9.8")
+}
+
+java {
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(17))
+    }
+}
+
+tasks.jar {
+    archiveBaseName.set("prorunvis-agent")
+    manifest {
+        attributes["Premain-Class"] = "prorunvis.agent.TraceAgent"
+    }
+}
@@ -0,0 +1,167 @@
+package prorunvis.agent;
+
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Label;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The CharacterRangeTable attribute written by javac with the option {@code -Xjcov}, which
+ * maps the ranges of the bytecode of a method to the ranges of the statements, blocks and
+ * expressions of the source they have been compiled from. Every instruction range of an
+ * entry is read as labels, so it stays attached to its instructions when the code is changed.
+ * The attribute is only read, it has to be removed before the method is written.
+ */
+final class CharacterRangeTable extends Attribute {
+
+    /**
+     * The name of the attribute.
+     */
+    static final String NAME = "CharacterRangeTable";
+
+    /**
+     * The flag of an entry of a statement.
+     */
+    static final int STATEMENT = 0x0001;
+
+    /**
+     * The flag of an entry of a block.
+     */
+    static final int BLOCK = 0x0002;
+
+    /**
+     * The number of bits of a position used for the column, the line is stored above them.
+     */
+    private static final int COLUMN_BITS = 10;
+
+    /**
+     * The entries of the table.
+     */
+    private final List<Entry> entries;
+
+    /**
+     * Constructs the prototype passed to the {@link ClassReader}.
+     */
+    CharacterRangeTable() {
+        this(Collections.emptyList());
+    }
+
+    /**
+     * Constructs a table read from a class file.
+     *
+     * @param entries the entries of the table.
+     */
+    private CharacterRangeTable(final List<Entry> entries) {
+        super(NAME);
+        this.entries = entries;
+    }
+
+    /**
+     * @return the entries of the table.
+     */
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    @Override
+    public boolean isCodeAttribute() {
+        return true;
+    }
+
+    @Override
+    protected Attribute read(final ClassReader reader, final int offset, final int length,
+                             final char[] buffer, final int codeOffset, final Label[] labels) {
+        int count = reader.readUnsignedShort(offset);
+        List<Entry> read = new ArrayList<>(count);
+        int entry = offset + 2;
+        for (int i = 0; i < count; i++, entry += 14) {
+            Label start = readLabel(reader, reader.readUnsignedShort(entry), labels);
+            //the range ends with the offset of its last byte, which may be within an instruction
+            Label end = readLabel(reader, reader.readUnsignedShort(entry + 2) + 1, labels);
+            int position = reader.readInt(entry + 4);
+            int flags = reader.readUnsignedShort(entry + 12);
+            read.add(new Entry(start, end, position >>> COLUMN_BITS,
+                    position & ((1 << COLUMN_BITS) - 1), flags));
+        }
+        return new CharacterRangeTable(read);
+    }
+
+    /**
+     * An entry of the table, mapping a range of instructions to the source code starting at a position.
+     */
+    static final class Entry {
+
+        /**
+         * The label of the first instruction of the range.
+         */
+        private final Label start;
+
+        /**
+         * The label following the last instruction of the range.
+         */
+        private final Label end;
+
+        /**
+         * The line at which the source code starts.
+         */
+        private final int line;
+
+        /**
+         * The column at which the source code starts, tabs count as one column.
+         */
+        private final int column;
+
+        /**
+         * The kind of source code, as combination of flags like {@link #STATEMENT}.
+         */
+        private final int flags;
+
+        /**
+         * Constructs an entry.
+         *
+         * @param start  the label of the first instruction of the range.
+         * @param end    the label following the last instruction of the range.
+         * @param line   the line at which the source code starts.
+         * @param column the column at which the source code starts.
+         * @param flags  the kind of source code.
+         */
+        Entry(final Label start, final Label end, final int line, final int column, final int flags) {
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.column = column;
+            this.flags = flags;
+        }
+
+        /**
+         * @return the label of the first instruction of the range.
+         */
+        Label getStart() {
+            return start;
+        }
+
+        /**
+         * @return the label following the last instruction of the range.
+         */
+        Label getEnd() {
+            return end;
+        }
+
+        /**
+         * @return the key of the position at which the source code starts, see {@link SiteLocations#position}.
+         */
+        long getPosition() {
+            return SiteLocations.position(line, column);
+        }
+
+        /**
+         * @return whether the entry belongs to a statement or block, not an expression.
+         */
+        boolean isStatement() {
+            return (flags & (STATEMENT | BLOCK)) != 0;
+        }
+    }
+}
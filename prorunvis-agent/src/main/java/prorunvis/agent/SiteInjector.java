@@ -0,0 +1,363 @@
+package prorunvis.agent;
+
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Injects the trace calls into a compiled class. The code block of a site is found by the
+ * entries of the {@link CharacterRangeTable} starting at the position of the site, every
+ * range of instructions of such an entry gets the trace call inserted before its first
+ * instruction. A code block compiled more than once, like a finally block, gets a trace
+ * call in every copy. The trace call of a catch clause is inserted at the start of its
+ * exception handler, which is the k-th handler of the try statement for the k-th clause.
+ * Several code blocks may start at the same instruction, e.g. a method body starting with
+ * a do loop. Their trace calls are inserted outermost first, and every jump to the shared
+ * instruction is redirected to the trace call of the outermost code block not containing
+ * the jump, so the back jump of the loop only records the loop body again.
+ */
+final class SiteInjector {
+
+    /**
+     * The internal name of the trace recorder.
+     */
+    private static final String TRACE = "prorunvis/Trace";
+
+    private SiteInjector() {
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Injects the trace calls of the given sites into a class.
+     *
+     * @param buffer the class file.
+     * @param sites  the sites of the program.
+     * @return the changed class file, null if the class contains no site.
+     * @throws IllegalStateException if the class contains sites, but has no character range table.
+     */
+    static byte[] inject(final byte[] buffer, final SiteLocations sites) {
+        ClassNode node = new ClassNode();
+        new ClassReader(buffer).accept(node, new Attribute[] {new CharacterRangeTable()}, ClassReader.EXPAND_FRAMES);
+        if (node.sourceFile == null) {
+            return null;
+        }
+        int separator = node.name.lastIndexOf('/');
+        String source = separator < 0 ? node.sourceFile : node.name.substring(0, separator + 1) + node.sourceFile;
+        Map<Long, List<Integer>> positions = sites.get(source);
+        Map<Long, List<Integer>> catches = sites.getCatches(source);
+        if (positions.isEmpty() && catches.isEmpty()) {
+            return null;
+        }
+        //javac writes a table for every method compiled from source, at least for the constructor
+        boolean ranges = node.methods.stream().anyMatch(method -> method.attrs != null
+                && method.attrs.stream().anyMatch(attribute -> attribute instanceof CharacterRangeTable));
+        if (!ranges && node.methods.stream().anyMatch(method -> method.instructions.size() > 0)) {
+            throw new IllegalStateException(node.name.replace('/', '.')
+                    + " has been compiled without javac -Xjcov, which the agent needs to locate its code blocks.");
+        }
+
+        boolean changed = false;
+        for (MethodNode method : node.methods) {
+            changed |= inject(method, positions, catches, sites.isCounting());
+        }
+        if (!changed) {
+            return null;
+        }
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        node.accept(writer);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Injects the trace calls into a method and removes its character range table,
+     * which can not be written again.
+     *
+     * @param method    the method.
+     * @param positions the ids of the sites of the source file by their position.
+     * @param catches   the ids of the catch clauses of the source file by the position of their try statement.
+     * @param counting  true to increment the counter of a site instead of recording it.
+     * @return true if a trace call has been injected.
+     */
+    private static boolean inject(final MethodNode method, final Map<Long, List<Integer>> positions,
+                                  final Map<Long, List<Integer>> catches, final boolean counting) {
+        if (method.attrs == null) {
+            return false;
+        }
+        CharacterRangeTable table = null;
+        for (Attribute attribute : method.attrs) {
+            if (attribute instanceof CharacterRangeTable crt) {
+                table = crt;
+            }
+        }
+        method.attrs.removeIf(attribute -> attribute instanceof CharacterRangeTable);
+        if (table == null) {
+            return false;
+        }
+
+        InsnList instructions = method.instructions;
+        Map<AbstractInsnNode, Integer> index = new IdentityHashMap<>();
+        int i = 0;
+        for (AbstractInsnNode instruction : instructions) {
+            index.put(instruction, i++);
+        }
+
+        //the ids of the sites starting at an instruction, with the index of the end of their range
+        Map<LabelNode, Map<Integer, Integer>> starts = new LinkedHashMap<>();
+        for (CharacterRangeTable.Entry entry : table.getEntries()) {
+            if (!entry.isStatement()) {
+                continue;
+            }
+            int end = index.get((LabelNode) entry.getEnd().info);
+            List<Integer> ids = positions.get(entry.getPosition());
+            if (ids != null) {
+                Map<Integer, Integer> sites = starts.computeIfAbsent((LabelNode) entry.getStart().info,
+                        start -> new LinkedHashMap<>());
+                ids.forEach(id -> sites.merge(id, end, Math::max));
+            }
+            List<Integer> clauses = catches.get(entry.getPosition());
+            if (clauses != null) {
+                List<LabelNode> handlers = handlers(method, table, index, entry);
+                for (int k = 0; k < Math.min(clauses.size(), handlers.size()); k++) {
+                    Integer id = clauses.get(k);
+                    if (id != null) {
+                        starts.computeIfAbsent(handlers.get(k), start -> new LinkedHashMap<>())
+                                .merge(id, end, Math::max);
+                    }
+                }
+            }
+        }
+        if (starts.isEmpty()) {
+            return false;
+        }
+
+        Map<LabelNode, List<AbstractInsnNode>> jumps = new IdentityHashMap<>();
+        for (AbstractInsnNode instruction : instructions) {
+            for (LabelNode target : targets(instruction)) {
+                if (starts.containsKey(target)) {
+                    jumps.computeIfAbsent(target, key -> new ArrayList<>()).add(instruction);
+                }
+            }
+        }
+
+        for (Map.Entry<LabelNode, Map<Integer, Integer>> start : starts.entrySet()) {
+            LabelNode label = start.getKey();
+            List<Map.Entry<Integer, Integer>> sites = new ArrayList<>(start.getValue().entrySet());
+            sites.sort(Map.Entry.<Integer, Integer>comparingByValue(Comparator.reverseOrder())
+                    .thenComparing(Map.Entry.comparingByKey()));
+            LabelNode[] heads = new LabelNode[sites.size()];
+            boolean[] targeted = new boolean[sites.size()];
+            for (int k = 0; k < heads.length; k++) {
+                heads[k] = new LabelNode();
+            }
+
+            int first = index.get(label);
+            for (AbstractInsnNode jump : jumps.getOrDefault(label, List.of())) {
+                int at = index.get(jump);
+                for (int k = 0; k < heads.length; k++) {
+                    if (at < first || at >= sites.get(k).getValue()) {
+                        redirect(jump, label, heads[k]);
+                        targeted[k] = true;
+                        break;
+                    }
+                }
+            }
+            for (TryCatchBlockNode block : method.tryCatchBlocks) {
+                if (block.handler == label) {
+                    block.handler = heads[0];
+                    targeted[0] = true;
+                }
+                if (block.end == label) {
+                    block.end = heads[0];
+                }
+            }
+            targeted[0] |= !fallsThrough(label);
+
+            FrameNode frame = frameOf(label);
+            InsnList code = new InsnList();
+            for (int k = 0; k < heads.length; k++) {
+                code.add(heads[k]);
+                if (targeted[k] && frame != null) {
+                    code.add(new FrameNode(Opcodes.F_NEW, frame.local.size(), frame.local.toArray(),
+                            frame.stack.size(), frame.stack.toArray()));
+                }
+                addTraceCall(code, sites.get(k).getKey(), counting);
+            }
+            instructions.insertBefore(label, code);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the handlers of the catch clauses of a try statement in the order of the clauses.
+     * These are the handlers of a specific exception type within the range of the statement,
+     * which are not within the range of a nested statement, like a nested try statement.
+     *
+     * @param method the method.
+     * @param table  the character range table of the method.
+     * @param index  the index of every instruction of the method.
+     * @param stmt   the entry of the try statement.
+     * @return the labels of the handlers.
+     */
+    private static List<LabelNode> handlers(final MethodNode method, final CharacterRangeTable table,
+                                            final Map<AbstractInsnNode, Integer> index,
+                                            final CharacterRangeTable.Entry stmt) {
+        int first = index.get((LabelNode) stmt.getStart().info);
+        int end = index.get((LabelNode) stmt.getEnd().info);
+        List<LabelNode> handlers = new ArrayList<>();
+        for (TryCatchBlockNode block : method.tryCatchBlocks) {
+            int handler = index.get(block.handler);
+            if (block.type == null || handler < first || handler >= end || handlers.contains(block.handler)) {
+                continue;
+            }
+            boolean nested = false;
+            for (CharacterRangeTable.Entry entry : table.getEntries()) {
+                int start = index.get((LabelNode) entry.getStart().info);
+                int stop = index.get((LabelNode) entry.getEnd().info);
+                nested |= entry.isStatement() && first <= start && stop <= end
+                        && (start != first || stop != end) && start <= handler && handler < stop;
+            }
+            if (!nested) {
+                handlers.add(block.handler);
+            }
+        }
+        handlers.sort(Comparator.comparing(index::get));
+        return handlers;
+    }
+
+    /**
+     * Appends the call recording a site, or incrementing its counter.
+     *
+     * @param code     the instructions to append to.
+     * @param id       the id of the site.
+     * @param counting true to increment the counter of the site instead of recording it.
+     */
+    private static void addTraceCall(final InsnList code, final int id, final boolean counting) {
+        if (counting) {
+            code.add(new FieldInsnNode(Opcodes.GETSTATIC, TRACE, "counts", "[J"));
+            code.add(push(id));
+            code.add(new InsnNode(Opcodes.DUP2));
+            code.add(new InsnNode(Opcodes.LALOAD));
+            code.add(new InsnNode(Opcodes.LCONST_1));
+            code.add(new InsnNode(Opcodes.LADD));
+            code.add(new InsnNode(Opcodes.LASTORE));
+        } else {
+            code.add(push(id));
+            code.add(new MethodInsnNode(Opcodes.INVOKESTATIC, TRACE, "next_elem", "(I)V", false));
+        }
+    }
+
+    /**
+     * Creates the instruction pushing a constant.
+     *
+     * @param value the constant, not negative.
+     * @return the instruction.
+     */
+    private static AbstractInsnNode push(final int value) {
+        if (value <= 5) {
+            return new InsnNode(Opcodes.ICONST_0 + value);
+        } else if (value <= Byte.MAX_VALUE) {
+            return new IntInsnNode(Opcodes.BIPUSH, value);
+        } else if (value <= Short.MAX_VALUE) {
+            return new IntInsnNode(Opcodes.SIPUSH, value);
+        }
+        return new LdcInsnNode(value);
+    }
+
+    /**
+     * Gets the labels an instruction jumps to.
+     *
+     * @param instruction the instruction.
+     * @return the targets, empty if the instruction does not jump.
+     */
+    private static List<LabelNode> targets(final AbstractInsnNode instruction) {
+        if (instruction instanceof JumpInsnNode jump) {
+            return List.of(jump.label);
+        } else if (instruction instanceof TableSwitchInsnNode table) {
+            List<LabelNode> targets = new ArrayList<>(table.labels);
+            targets.add(table.dflt);
+            return targets;
+        } else if (instruction instanceof LookupSwitchInsnNode lookup) {
+            List<LabelNode> targets = new ArrayList<>(lookup.labels);
+            targets.add(lookup.dflt);
+            return targets;
+        }
+        return List.of();
+    }
+
+    /**
+     * Replaces a target of a jump or switch instruction.
+     *
+     * @param instruction the instruction.
+     * @param from        the replaced target.
+     * @param to          the new target.
+     */
+    private static void redirect(final AbstractInsnNode instruction, final LabelNode from, final LabelNode to) {
+        if (instruction instanceof JumpInsnNode jump) {
+            jump.label = to;
+        } else if (instruction instanceof TableSwitchInsnNode table) {
+            table.labels.replaceAll(label -> label == from ? to : label);
+            table.dflt = table.dflt == from ? to : table.dflt;
+        } else if (instruction instanceof LookupSwitchInsnNode lookup) {
+            lookup.labels.replaceAll(label -> label == from ? to : label);
+            lookup.dflt = lookup.dflt == from ? to : lookup.dflt;
+        }
+    }
+
+    /**
+     * Gets the frame of the instruction at a label.
+     *
+     * @param label the label.
+     * @return the frame, null if the instruction has none.
+     */
+    private static FrameNode frameOf(final LabelNode label) {
+        for (AbstractInsnNode node = label; node != null && node.getOpcode() < 0; node = node.getNext()) {
+            if (node instanceof FrameNode frame) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether the code before a label can continue at it, which is the
+     * case at the start of a method as well.
+     *
+     * @param label the label.
+     * @return false if the label can only be reached by jumps.
+     */
+    private static boolean fallsThrough(final LabelNode label) {
+        AbstractInsnNode node = label.getPrevious();
+        while (node != null && node.getOpcode() < 0) {
+            node = node.getPrevious();
+        }
+        if (node == null) {
+            return true;
+        }
+        int opcode = node.getOpcode();
+        return opcode != Opcodes.GOTO && opcode != Opcodes.ATHROW && opcode != Opcodes.TABLESWITCH
+                && opcode != Opcodes.LOOKUPSWITCH && (opcode < Opcodes.IRETURN || opcode > Opcodes.RETURN);
+    }
+}
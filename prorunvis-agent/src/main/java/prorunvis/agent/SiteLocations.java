@@ -0,0 +1,252 @@
+package prorunvis.agent;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The source positions of the trace sites of a program, which tell the {@link TraceAgent}
+ * where to inject the trace calls into its compiled classes. Every site is identified by
+ * the id it has been given by the instrumentation of the source code, so the trace recorded
+ * by the agent can be processed with the same ids as a trace of the instrumented code.
+ * The position of a site is the begin of the statement or block starting the code block,
+ * which is located in the compiled code by the character range table written by javac.
+ * A catch clause is located by the position of its try statement and its index instead,
+ * as the compiled code of an empty catch clause has no range of its own.
+ * The table is saved as text, with a line for every site of the form
+ * {@code id<TAB>line<TAB>column<TAB>clause<TAB>source}, where clause is the index of the
+ * catch clause or -1 for any other site, and source is the path of the source file relative
+ * to the source root.
+ */
+public final class SiteLocations {
+
+    /**
+     * The name of the file the sites are saved to, next to the compiled classes
+     * in the directory {@code prorunvis}.
+     */
+    public static final String FILE_NAME = "trace.sites";
+
+    /**
+     * The prefix of the line stating whether the code blocks are only counted.
+     */
+    private static final String COUNTING = "counting=";
+
+    /**
+     * Whether the injected code only counts the executions of the code blocks.
+     */
+    private final boolean counting;
+
+    /**
+     * The ids of the sites by their position, by the path of their source file.
+     */
+    private final Map<String, Map<Long, List<Integer>>> sources = new HashMap<>();
+
+    /**
+     * The ids of the catch clauses by their index, by the position of their try statement,
+     * by the path of their source file.
+     */
+    private final Map<String, Map<Long, List<Integer>>> catches = new HashMap<>();
+
+    /**
+     * The packages containing at least one site, with '/' as separator.
+     */
+    private final Set<String> packages = new HashSet<>();
+
+    /**
+     * Constructs an empty table.
+     *
+     * @param counting true if the injected code only counts the executions of the code blocks.
+     */
+    public SiteLocations(final boolean counting) {
+        this.counting = counting;
+    }
+
+    /**
+     * @return whether the injected code only counts the executions of the code blocks.
+     */
+    public boolean isCounting() {
+        return counting;
+    }
+
+    /**
+     * Adds a site.
+     *
+     * @param id     the id of the site.
+     * @param source the path of the source file relative to the source root, with '/' as separator.
+     * @param line   the line at which the code block starts.
+     * @param column the column at which the code block starts, as counted by javac with tabs as one column.
+     */
+    public void add(final int id, final String source, final int line, final int column) {
+        List<Integer> ids = sources.computeIfAbsent(source, key -> new HashMap<>())
+                .computeIfAbsent(position(line, column), key -> new ArrayList<>());
+        ids.add(id);
+        Collections.sort(ids);
+        addPackage(source);
+    }
+
+    /**
+     * Adds the site of a catch clause.
+     *
+     * @param id     the id of the site.
+     * @param source the path of the source file relative to the source root, with '/' as separator.
+     * @param line   the line at which the try statement starts.
+     * @param column the column at which the try statement starts, as counted by javac with tabs as one column.
+     * @param clause the index of the catch clause within the try statement.
+     */
+    public void addCatch(final int id, final String source, final int line, final int column, final int clause) {
+        List<Integer> ids = catches.computeIfAbsent(source, key -> new HashMap<>())
+                .computeIfAbsent(position(line, column), key -> new ArrayList<>());
+        while (ids.size() <= clause) {
+            ids.add(null);
+        }
+        ids.set(clause, id);
+        addPackage(source);
+    }
+
+    /**
+     * Adds the package of a source file to the packages containing sites.
+     *
+     * @param source the path of the source file relative to the source root.
+     */
+    private void addPackage(final String source) {
+        int separator = source.lastIndexOf('/');
+        packages.add(separator < 0 ? "" : source.substring(0, separator));
+    }
+
+    /**
+     * Gets the sites of a source file.
+     *
+     * @param source the path of the source file relative to the source root.
+     * @return the ids of the sites by their position, empty if the file has none.
+     */
+    public Map<Long, List<Integer>> get(final String source) {
+        return sources.getOrDefault(source, Map.of());
+    }
+
+    /**
+     * Gets the sites of the catch clauses of a source file.
+     *
+     * @param source the path of the source file relative to the source root.
+     * @return the ids of the catch clauses by their index, null for a clause without site,
+     *         by the position of their try statement, empty if the file has none.
+     */
+    public Map<Long, List<Integer>> getCatches(final String source) {
+        return catches.getOrDefault(source, Map.of());
+    }
+
+    /**
+     * Checks whether any source file of the given package contains a site, so classes
+     * of other packages, e.g. of libraries, can be skipped without reading them.
+     *
+     * @param packageName the name of the package with '/' as separator, empty for the default package.
+     * @return true if the package contains a site.
+     */
+    public boolean hasPackage(final String packageName) {
+        return packages.contains(packageName);
+    }
+
+    /**
+     * Combines a line and a column to the key of a position.
+     *
+     * @param line   the line.
+     * @param column the column.
+     * @return the key of the position.
+     */
+    public static long position(final int line, final int column) {
+        return (long) line << 32 | column;
+    }
+
+    /**
+     * Saves the table to a file.
+     *
+     * @param file the file to write.
+     * @throws IOException If the file could not be written.
+     */
+    public void save(final Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(COUNTING + counting);
+            writer.newLine();
+            for (Map.Entry<String, Map<Long, List<Integer>>> source : sources.entrySet()) {
+                for (Map.Entry<Long, List<Integer>> position : source.getValue().entrySet()) {
+                    for (int id : position.getValue()) {
+                        write(writer, id, position.getKey(), -1, source.getKey());
+                    }
+                }
+            }
+            for (Map.Entry<String, Map<Long, List<Integer>>> source : catches.entrySet()) {
+                for (Map.Entry<Long, List<Integer>> position : source.getValue().entrySet()) {
+                    List<Integer> ids = position.getValue();
+                    for (int clause = 0; clause < ids.size(); clause++) {
+                        if (ids.get(clause) != null) {
+                            write(writer, ids.get(clause), position.getKey(), clause, source.getKey());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the line of a site.
+     *
+     * @param writer   the writer of the file.
+     * @param id       the id of the site.
+     * @param position the key of the position of the site.
+     * @param clause   the index of the catch clause, -1 if the site is no catch clause.
+     * @param source   the path of the source file.
+     * @throws IOException If the line could not be written.
+     */
+    private static void write(final BufferedWriter writer, final int id, final long position,
+                              final int clause, final String source) throws IOException {
+        writer.write(id + "\t" + (position >>> 32) + "\t" + (int) position + "\t" + clause + "\t" + source);
+        writer.newLine();
+    }
+
+    /**
+     * Loads a table saved by {@link #save(Path)}.
+     *
+     * @param file the file to read.
+     * @return the loaded table.
+     * @throws IOException If the file could not be read or is malformed.
+     */
+    public static SiteLocations load(final Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null || !header.startsWith(COUNTING)) {
+                throw new IOException("Not a table of trace sites: " + file);
+            }
+            SiteLocations sites = new SiteLocations(Boolean.parseBoolean(header.substring(COUNTING.length())));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 5);
+                if (fields.length != 5) {
+                    throw new IOException("Malformed trace site: " + line);
+                }
+                try {
+                    int id = Integer.parseInt(fields[0]);
+                    int row = Integer.parseInt(fields[1]);
+                    int column = Integer.parseInt(fields[2]);
+                    int clause = Integer.parseInt(fields[3]);
+                    if (clause < 0) {
+                        sites.add(id, fields[4], row, column);
+                    } else {
+                        sites.addCatch(id, fields[4], row, column, clause);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed trace site: " + line, e);
+                }
+            }
+            return sites;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package prorunvis.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.ProtectionDomain;
+
+/**
+ * A java agent injecting the trace calls into the classes of a program while they are
+ * loaded, instead of instrumenting its source code. The program is compiled once from its
+ * unchanged sources with {@code javac -g -Xjcov}, which is required to locate the code blocks,
+ * and can be traced any number of times.
+ * The ids of the sites are the same as the ones of the instrumented source code, so the
+ * recorded trace is processed in the same way.
+ * The agent is started with {@code -javaagent:<jar>=<sites>}, where sites is the path of
+ * the {@link SiteLocations} of the program. The jar has to contain the agent and ASM, the
+ * trace recorder has to be on the classpath of the program.
+ */
+public final class TraceAgent implements ClassFileTransformer {
+
+    /**
+     * The sites of the traced program.
+     */
+    private final SiteLocations sites;
+
+    /**
+     * Constructs an agent injecting the given sites.
+     *
+     * @param sites the sites of the traced program.
+     */
+    private TraceAgent(final SiteLocations sites) {
+        this.sites = sites;
+    }
+
+    /**
+     * Starts the agent before the main method of the program.
+     *
+     * @param arguments       the path of the sites of the program.
+     * @param instrumentation the instrumentation of the JVM.
+     * @throws Exception If the sites could not be loaded, which stops the JVM.
+     */
+    public static void premain(final String arguments, final Instrumentation instrumentation) throws Exception {
+        if (arguments == null || arguments.isEmpty()) {
+            throw new IllegalArgumentException("The path of the trace sites has to be passed to the agent.");
+        }
+        Path file = Paths.get(arguments);
+        instrumentation.addTransformer(new TraceAgent(SiteLocations.load(file)));
+    }
+
+    /**
+     * Injects the trace calls into a class of the program. Classes of the JVM, the recorder,
+     * the agent and packages without sites are left unchanged.
+     * Errors are printed, as the JVM ignores exceptions thrown by a transformer. A class with
+     * sites compiled without {@code -Xjcov} stops the program, as it can not be traced.
+     */
+    @Override
+    public byte[] transform(final ClassLoader loader, final String className, final Class<?> redefined,
+                            final ProtectionDomain domain, final byte[] buffer) {
+        if (loader == null || className == null || className.startsWith("prorunvis/Trace")
+                || className.startsWith("prorunvis/agent/") || className.startsWith("org/objectweb/asm/")) {
+            return null;
+        }
+        int separator = className.lastIndexOf('/');
+        if (!sites.hasPackage(separator < 0 ? "" : className.substring(0, separator))) {
+            return null;
+        }
+        try {
+            return SiteInjector.inject(buffer, sites);
+        } catch (IllegalStateException e) {
+            //the trace would silently miss the code blocks of the class, System.exit might block the loading thread
+            System.err.println("prorunvis: " + e.getMessage());
+            Runtime.getRuntime().halt(1);
+            return null;
+        } catch (RuntimeException e) {
+            System.err.println("Could not inject the trace calls into " + className + ": " + e);
+            return null;
+        }
+    }
+}
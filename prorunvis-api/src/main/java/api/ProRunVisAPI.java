@@ -5,8 +5,10 @@ import api.upload.storage.StorageService;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
+import prorunvis.WorkerPool;
 
 @SpringBootApplication
 @EnableConfigurationProperties(StorageProperties.class)
@@ -35,4 +37,20 @@ public class ProRunVisAPI {
             storageService.init();
         };
     }
+
+    /**
+     * The {@link WorkerPool} running the traced programs of all services.
+     * Its worker JVMs are started when the first program is run, and
+     * ended when this {@link SpringApplication} is closed. There is no
+     * pool if storage.worker-pool-size is 0.
+     * @param properties the {@link StorageProperties} configuring the
+     *                   size of the pool and its workers.
+     * @return the pool, which has not started any worker yet
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnExpression("${storage.worker-pool-size:1} > 0")
+    WorkerPool workerPool(final StorageProperties properties) {
+        return new WorkerPool(properties.getWorkerPoolSize(), properties.getWorkerMaxRuns(),
+                properties.getWorkerMaxMemory());
+    }
 }
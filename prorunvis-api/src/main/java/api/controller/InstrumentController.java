@@ -6,7 +6,10 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import prorunvis.Reachability;
+import prorunvis.trace.InstrumentationFilter;
 
+import java.util.Locale;
 import java.util.UUID;
 
 @RestController
@@ -20,13 +23,21 @@ public class InstrumentController {
 
     /**
      * POST /api/instrument?projectName=<name>&inputDir=[optional]&projectId=<projectId>
-     * Instruments a project using project-based file storage.
+     *      &include=[optional]&exclude=[optional]&excludeKinds=[optional]&prune=[optional]
+     * Instruments a project using project-based file storage. Only the code selected by the
+     * comma separated patterns and kinds is instrumented, see {@link InstrumentationFilter}.
+     * With prune set to compile or skip, only the code reachable from the main class is parsed
+     * and instrumented, the rest is compiled unchanged or skipped, see {@link Reachability}.
      */
     @PostMapping
     public String instrumentProject(
             @RequestParam String projectName,
             @RequestParam(required = false) String inputDir,
-            @RequestParam String projectId
+            @RequestParam String projectId,
+            @RequestParam(required = false) String include,
+            @RequestParam(required = false) String exclude,
+            @RequestParam(required = false) String excludeKinds,
+            @RequestParam(required = false) String prune
     ) {
         if (projectId == null || projectId.isEmpty()) {
             throw new RuntimeException("No project ID provided. Please specify a project ID.");
@@ -34,8 +45,22 @@ public class InstrumentController {
         if (inputDir == null || inputDir.isEmpty()) {
             inputDir = "resources/in/project-" + projectId;
         }
+        InstrumentationFilter filter;
+        try {
+            filter = InstrumentationFilter.parse(include, exclude, excludeKinds);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid instrumentation filter: " + e.getMessage(), e);
+        }
+        Reachability.Unreachable unreachable = null;
+        if (prune != null && !prune.isEmpty()) {
+            try {
+                unreachable = Reachability.Unreachable.valueOf(prune.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException("Invalid pruning: " + prune + ", expected compile or skip.", e);
+            }
+        }
         String localId = UUID.randomUUID().toString();
-        service.instrumentProject(projectName, inputDir, localId, projectId);
+        service.instrumentProject(projectName, inputDir, localId, projectId, filter, unreachable);
         return localId;
     }
 }
\ No newline at end of file
@@ -19,7 +19,7 @@ public class ProcessController {
     /**
      * POST /api/process?traceId=<shortId>&projectId=<projectId>
      *
-     * We'll read local_storage/project-<projectId>/<shortId>/Trace.tr,
+     * We'll read local_storage/project-<projectId>/<shortId>/Trace.trb,
      * produce processedTrace.json, store it in the same folder,
      * and return the shortId (or path) for the next step.
      */
@@ -27,6 +27,14 @@ public interface ProcessingService {
      */
     void process();
 
+    /**
+     * Checks if the program has been stopped because its trace
+     * exceeded its budget, so only the start of the run is processed.
+     *
+     * @return true if the processed trace is truncated, false otherwise.
+     */
+    boolean isTruncated();
+
     /**
      * Converts a processed trace to a JSON representation.
      *
@@ -3,23 +3,28 @@ package api.functionality.process;
 import api.upload.storage.StorageProperties;
 import com.github.javaparser.StaticJavaParser;
 import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.ast.Node;
 import com.github.javaparser.symbolsolver.JavaSymbolSolver;
 import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
 import com.github.javaparser.symbolsolver.utils.SymbolSolverCollectionStrategy;
 import com.github.javaparser.utils.ProjectRoot;
 import com.google.gson.Gson;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Service;
 import prorunvis.CompileAndRun;
+import prorunvis.WorkerPool;
 import prorunvis.instrument.Instrumenter;
-import prorunvis.preprocess.Preprocessor;
+import prorunvis.instrument.RecorderOptions;
+import prorunvis.trace.SiteTable;
 import prorunvis.trace.TraceNode;
+import prorunvis.trace.process.TraceFormat;
 import prorunvis.trace.process.TraceProcessor;
+import prorunvis.trace.process.TraceReceiver;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
 
 @Service
@@ -40,16 +45,31 @@ public final class SingleRunProcessingService implements ProcessingService {
      */
     private List<CompilationUnit> cus;
 
+    /**
+     * The instrumented source code, compiled without saving it.
+     */
+    private Map<String, String> sources;
+
     /**
      * A File containing the trace of a program run.
      */
     private File traceFile;
 
     /**
-     * A HashMap containing {@link Node} objects mapped to
-     * their trace IDs.
+     * The receiver of the trace streamed by the running program.
+     */
+    private TraceReceiver receiver;
+
+    /**
+     * The running program, which streams its trace to {@link #receiver}.
      */
-    private HashMap<Integer, Node> traceMap;
+    private Process program;
+
+    /**
+     * The table of the trace sites, containing the
+     * AST node of every trace ID.
+     */
+    private SiteTable sites;
 
     /**
      * A List of {@link TraceNode} objects as provided by the
@@ -57,20 +77,46 @@ public final class SingleRunProcessingService implements ProcessingService {
      */
     private List<TraceNode> nodes;
 
+    /**
+     * Whether the program has been stopped because its trace exceeded its budget.
+     */
+    private boolean truncated;
+
+    /**
+     * The budget of the trace recorder, protecting the disk from runaway programs.
+     */
+    private final RecorderOptions recorderOptions = new RecorderOptions();
+
+    /**
+     * The time after which a program run by a worker is interrupted, null if unlimited.
+     */
+    private final Duration runTimeout;
+
+    /**
+     * The worker JVMs running the programs, shared with the other services,
+     * null if a new JVM is started for every program.
+     */
+    private final WorkerPool workers;
+
     /**
      * Constructs a ProcessingService for processing a single program
      * run.
      *
      * @param properties The StorageProperties for input and output
      *                   locations.
+     * @param workers    The pool of worker JVMs, if there is one.
      */
-    public SingleRunProcessingService(final StorageProperties properties) {
+    public SingleRunProcessingService(final StorageProperties properties,
+                                      final ObjectProvider<WorkerPool> workers) {
         if (properties.getLocation().trim().isEmpty()) {
             throw new ProcessingException("Cannot process empty directory.");
         }
 
         inLocation = Paths.get(properties.getLocation());
         outLocation = Paths.get(properties.getOutLocation());
+        recorderOptions.setBudget(properties.getMaxTraceEvents(), properties.getMaxTraceBytes());
+        runTimeout = properties.getRunTimeout() > 0 ? Duration.ofSeconds(properties.getRunTimeout()) : null;
+        this.workers = workers.getIfAvailable();
     }
     @Override
     public boolean isReady() {
@@ -86,7 +132,7 @@ public final class SingleRunProcessingService implements ProcessingService {
         ProjectRoot projectRoot =
                 new SymbolSolverCollectionStrategy().collect(inLocation);
 
-        traceFile = new File(outLocation.toString() + "/Trace.tr");
+        traceFile = new File(outLocation.toString() + "/compiled/" + TraceFormat.FILE_NAME);
         Instrumenter.setupTrace(traceFile);
 
         //run parser and collect compilation units
@@ -99,33 +145,78 @@ public final class SingleRunProcessingService implements ProcessingService {
             }
         });
 
-        traceMap = new HashMap<>();
-        cus.forEach(cu -> {
-            Preprocessor.run(cu);
-            Instrumenter.run(cu, traceMap);
-        });
-        Instrumenter.saveInstrumented(projectRoot, outLocation.toString() + "/instrumented");
+        sites = new SiteTable();
+        Instrumenter.runAll(cus, sites);
+        recorderOptions.setSiteCount(sites.size());
+        //the instrumented code is compiled in memory, only the recorder options are saved
+        sources = Instrumenter.getInstrumentedSources(projectRoot);
+        Instrumenter.saveOptions(outLocation.toString() + "/compiled", recorderOptions);
     }
 
+    /**
+     * Starts the program, which streams its trace to be processed while it runs
+     * by {@link #process()}. The program is run by an idle worker JVM, or by a new JVM if there
+     * are no workers or it calls System.exit. It is never run within this JVM.
+     */
     @Override
     public void trace() {
         try {
-            CompileAndRun.run(cus, outLocation.toString() + "/instrumented",
-                    outLocation.toString() + "/compiled");
-        } catch (IOException | InterruptedException | ArrayIndexOutOfBoundsException e) {
+            receiver = new TraceReceiver(traceFile.toPath());
+            String compiledOutPath = outLocation.toString() + "/compiled";
+            if (workers != null && CompileAndRun.canRunInProcess(cus)) {
+                program = CompileAndRun.startFromSourcesInPool(cus, sources, compiledOutPath,
+                        receiver.getJvmArguments(), runTimeout, workers);
+            } else {
+                program = CompileAndRun.startFromSources(cus, sources, compiledOutPath, receiver.getJvmArguments());
+            }
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            closeReceiver();
+            throw new ProcessingException(e.getMessage());
+        } catch (InterruptedException e) {
+            closeReceiver();
+            Thread.currentThread().interrupt();
             throw new ProcessingException(e.getMessage());
         }
     }
 
+    /**
+     * Processes the trace while it is received from the program started by
+     * {@link #trace()} and waits for the program to exit.
+     */
     @Override
     public void process() {
-        TraceProcessor processor = new TraceProcessor(traceMap, traceFile.getPath(), inLocation);
         try {
+            TraceProcessor processor = new TraceProcessor(sites, receiver.accept(program), inLocation);
             processor.start();
+            truncated = CompileAndRun.finish(program, traceFile.toPath()) || processor.isTruncated();
+            nodes = processor.getNodeList();
         } catch (IOException e) {
             throw new ProcessingException("An error occurred during processing of the trace.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException(e.getMessage());
+        } finally {
+            closeReceiver();
         }
-        nodes = processor.getNodeList();
+    }
+
+    /**
+     * Closes the receiver of the trace, if it has been opened.
+     */
+    private void closeReceiver() {
+        if (receiver == null) {
+            return;
+        }
+        try {
+            receiver.close();
+        } catch (IOException ignored) {
+        }
+        receiver = null;
+    }
+
+    @Override
+    public boolean isTruncated() {
+        return truncated;
     }
 
     @Override
@@ -1,19 +1,22 @@
 package api.service;
 
+import api.upload.storage.StorageProperties;
 import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.ast.Node;
 import com.github.javaparser.utils.ProjectRoot;
 import org.springframework.stereotype.Service;
+import prorunvis.Reachability;
+import prorunvis.instrument.InstrumentationCache;
 import prorunvis.instrument.Instrumenter;
-import prorunvis.preprocess.Preprocessor;
+import prorunvis.instrument.RecorderOptions;
+import prorunvis.trace.InstrumentationFilter;
+import prorunvis.trace.SiteTable;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.util.HashMap;
+import java.nio.file.Paths;
 import java.util.List;
-import java.util.Map;
 
 /**
  * A reworked InstrumentationService that stores instrumented code in project-specific locations
@@ -27,8 +30,25 @@ public class InstrumentationService {
      */
     private static final String LOCAL_STORAGE_DIR = "resources/local_storage";
 
-    public InstrumentationService() {
-        // No repository injection needed
+    /**
+     * The instrumentation of the files of all projects, kept outside the cleaned output directories,
+     * so only the files changed since a project has last been instrumented are instrumented again.
+     */
+    private final InstrumentationCache cache = new InstrumentationCache(Paths.get("resources/cache/instrumentation"));
+
+    /**
+     * The maximum number of code blocks recorded by a traced program, protecting the disk from runaway programs.
+     */
+    private final long maxTraceEvents;
+
+    /**
+     * The maximum size of a trace in bytes.
+     */
+    private final long maxTraceBytes;
+
+    public InstrumentationService(StorageProperties properties) {
+        this.maxTraceEvents = properties.getMaxTraceEvents();
+        this.maxTraceBytes = properties.getMaxTraceBytes();
     }
 
     /**
@@ -64,12 +84,17 @@ public class InstrumentationService {
      * @param inputDirPath  the folder containing the source code to be instrumented
      * @param randomId      a unique ID for this instrumentation job
      * @param projectId     the project identifier
+     * @param filter        the selection of the instrumented code
+     * @param prune         what happens to the code not reachable from the main class,
+     *                      or null to instrument all code
      * @return Some success message (or path)
      */
     public String instrumentProject(String projectName,
                                     String inputDirPath,
                                     String randomId,
-                                    String projectId) {
+                                    String projectId,
+                                    InstrumentationFilter filter,
+                                    Reachability.Unreachable prune) {
 
         // 1) Verify input directory is valid
         File inputDir = new File(inputDirPath);
@@ -83,21 +108,42 @@ public class InstrumentationService {
         // 3) Parse & instrument code
         System.out.println("Parsing project at: " + inputDirPath + " for project: " + projectId);
         ProjectRoot projectRoot = Util.parseProject(inputDir);
-        List<CompilationUnit> cus = Util.getCUs(projectRoot);
+        Reachability reachability = null;
+        List<CompilationUnit> cus;
+        if (prune != null) {
+            try {
+                reachability = new Reachability(projectRoot);
+                cus = reachability.parse();
+            } catch (IOException e) {
+                throw new RuntimeException("Error parsing the reachable code of project: " + projectId, e);
+            }
+            System.out.println("Skipping " + reachability.getUnreachable().size()
+                    + " unreachable source files for project: " + projectId);
+        } else {
+            cus = Util.getCUs(projectRoot);
+        }
         if (cus.isEmpty()) {
             throw new RuntimeException("No Java files found in: " + inputDirPath);
         }
         System.out.println("Found " + cus.size() + " compilation units for project: " + projectId);
 
-        Map<Integer, Node> map = new HashMap<>();
-        for (CompilationUnit cu : cus) {
-            Preprocessor.run(cu);
-            Instrumenter.run(cu, map);
-        }
+        SiteTable sites = new SiteTable();
+        RecorderOptions recorderOptions = new RecorderOptions();
+        recorderOptions.setFilter(filter);
+        Instrumenter.runAll(cus, sites, recorderOptions, cache);
 
         // 4) Save instrumented code to the project directory
         String projectInstrDir = "resources/out/project-" + projectId + "/instrumented";
-        Instrumenter.saveInstrumented(projectRoot, projectInstrDir);
+        recorderOptions.setSiteCount(sites.size());
+        recorderOptions.setBudget(maxTraceEvents, maxTraceBytes);
+        Instrumenter.saveInstrumented(projectRoot, sites, projectInstrDir, recorderOptions);
+        if (reachability != null) {
+            try {
+                reachability.saveUnreachable(Paths.get(projectInstrDir), prune);
+            } catch (IOException e) {
+                throw new RuntimeException("Error saving unreachable code for project: " + projectId, e);
+            }
+        }
 
         // 5) Check that something was indeed saved
         File instrDir = new File(projectInstrDir);
@@ -1,11 +1,12 @@
 package api.service;
 
 import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.ast.Node;
 import com.github.javaparser.utils.ProjectRoot;
 import com.google.gson.Gson;
 import org.springframework.stereotype.Service;
+import prorunvis.trace.SiteTable;
 import prorunvis.trace.TraceNode;
+import prorunvis.trace.process.TraceFormat;
 import prorunvis.trace.process.TraceProcessor;
 
 import java.io.File;
@@ -33,35 +34,28 @@ public class ProcessingService {
             throw new RuntimeException("Local ID folder does not exist: " + localIdFolder.getAbsolutePath() + " for project: " + projectId);
         }
 
-        // 2) local_storage/project-<projectId>/<traceId>/Trace.tr must exist
-        File traceFile = new File(localIdFolder, "Trace.tr");
+        // 2) local_storage/project-<projectId>/<traceId>/Trace.trb (or a legacy Trace.tr) must exist
+        File traceFile = new File(localIdFolder, TraceFormat.FILE_NAME);
+        if (!traceFile.exists()) {
+            traceFile = new File(localIdFolder, TraceFormat.LEGACY_FILE_NAME);
+        }
         if (!traceFile.exists()) {
             throw new RuntimeException("Trace file not found: " + traceFile.getAbsolutePath() + " for project: " + projectId);
         }
 
-        // 3) Re-parse code from project-specific input directory
+        // 3) Load the table of trace sites saved during the instrumentation
         Path codeRoot = Paths.get("resources/in/project-" + projectId);
-        System.out.println("[processTrace] Parsing project from: " + codeRoot.toAbsolutePath() + " for project: " + projectId);
-        ProjectRoot projectRoot = Util.parseProject(codeRoot.toFile());
-        List<CompilationUnit> cus = Util.getCUs(projectRoot);
+        SiteTable sites = loadSites(codeRoot, projectId);
 
-        // 4) Build the map of AST nodes
-        Map<Integer, Node> map = new HashMap<>();
-        for (CompilationUnit cu : cus) {
-            // Preprocess & Instrument
-            prorunvis.preprocess.Preprocessor.run(cu);
-            prorunvis.instrument.Instrumenter.run(cu, map);
-        }
-
-        // 5) Construct the TraceProcessor
-        TraceProcessor processor = new TraceProcessor(map, traceFile.getAbsolutePath(), codeRoot);
+        // 4) Construct the TraceProcessor
+        TraceProcessor processor = new TraceProcessor(sites, traceFile.getAbsolutePath(), codeRoot);
         try {
             processor.start();
         } catch (Exception e) {
             throw new RuntimeException("Processing failed for project: " + projectId + ", error: " + e.getMessage(), e);
         }
 
-        // 6) Get trace nodes
+        // 5) Get trace nodes
         List<TraceNode> nodeList = processor.getNodeList();
 
         // Store in project-specific memory
@@ -69,10 +63,10 @@ public class ProcessingService {
 
         System.out.println("[processTrace] Found " + nodeList.size() + " trace nodes for project: " + projectId);
 
-        // 7) Merge JBMC data (including bridging variable names)
+        // 6) Merge JBMC data (including bridging variable names)
         mergeJBMCValues(traceId, nodeList, projectId);
 
-        // 8) Write processedTrace.json to project-specific folder
+        // 7) Write processedTrace.json to project-specific folder
         File outputJson = new File(localIdFolder, "processedTrace.json");
         String json = new Gson().toJson(nodeList);
         try (FileOutputStream fos = new FileOutputStream(outputJson)) {
@@ -84,6 +78,33 @@ public class ProcessingService {
         System.out.println("[processTrace] Completed. JSON at: " + outputJson.getAbsolutePath() + " for project: " + projectId);
     }
 
+    /**
+     * Loads the table of trace sites saved by the instrumentation of a project. Projects
+     * instrumented without saving the table are parsed and instrumented again to rebuild it.
+     *
+     * @param codeRoot  the project-specific input directory
+     * @param projectId the project identifier
+     * @return the table of the trace sites of the project
+     */
+    private SiteTable loadSites(Path codeRoot, String projectId) {
+        String instrumentedDir = "resources/out/project-" + projectId + "/instrumented";
+        try {
+            return prorunvis.instrument.Instrumenter.loadSites(instrumentedDir, codeRoot);
+        } catch (IOException e) {
+            System.out.println("[processTrace] No saved trace sites (" + e.getMessage() + "), re-instrumenting project: " + projectId);
+        }
+
+        // Re-parse code from project-specific input directory
+        System.out.println("[processTrace] Parsing project from: " + codeRoot.toAbsolutePath() + " for project: " + projectId);
+        ProjectRoot projectRoot = Util.parseProject(codeRoot.toFile());
+        List<CompilationUnit> cus = Util.getCUs(projectRoot);
+
+        SiteTable sites = new SiteTable();
+        // Preprocess & Instrument
+        prorunvis.instrument.Instrumenter.runAll(cus, sites);
+        return sites;
+    }
+
     /**
      * Returns the in-memory list of TraceNodes from the last processing step for a specific project.
      */
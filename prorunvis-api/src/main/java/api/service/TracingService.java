@@ -1,30 +1,54 @@
 package api.service;
 
+import api.upload.storage.StorageProperties;
 import com.github.javaparser.ast.CompilationUnit;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Service;
 import prorunvis.CompileAndRun;
+import prorunvis.WorkerPool;
+import prorunvis.trace.process.TraceFormat;
+import prorunvis.trace.process.TraceReceiver;
+import prorunvis.trace.process.TraceWriter;
 
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.io.Reader;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
 
 /**
  * This service:
  *  1) Reads base64-encoded instrumented code from
  *     resources/local_storage/project-<projectId>/<instrumentId>/instrumented_base64.txt
  *  2) Decodes/unzips into resources/out/project-<projectId>/downloaded_instrumented
- *  3) Compiles and runs the code => Trace.tr
- *  4) Copies Trace.tr into local_storage/project-<projectId>/<instrumentId>/Trace.tr
+ *  3) Compiles and runs the code by a worker JVM of the pool, or by a new JVM if there is no pool
+ *     or the code may call System.exit, and streams its trace gzip compressed directly into
+ *     local_storage/project-<projectId>/<instrumentId>/Trace.trb
+ *  4) For code instrumented for counting, which writes a table instead of a trace, stores
+ *     the Trace.trb written by the run into the same location
  */
 @Service
 public class TracingService {
 
     private static final String LOCAL_STORAGE_DIR = "resources/local_storage";
 
-    public TracingService() {
+    /**
+     * The time after which a program run by a worker is interrupted, null if unlimited.
+     */
+    private final Duration runTimeout;
+
+    /**
+     * The worker JVMs running the programs, null if a new JVM is started for every program.
+     */
+    private final WorkerPool workers;
+
+    public TracingService(StorageProperties properties, ObjectProvider<WorkerPool> workers) {
         // no DB repos needed
+        runTimeout = properties.getRunTimeout() > 0 ? Duration.ofSeconds(properties.getRunTimeout()) : null;
+        this.workers = workers.getIfAvailable();
     }
 
     /**
@@ -45,7 +69,7 @@ public class TracingService {
     }
 
     /**
-     * Decode, compile, run, produce Trace.tr inside local_storage/project-<projectId>/<instrumentId>.
+     * Decode, compile, run, produce Trace.trb inside local_storage/project-<projectId>/<instrumentId>.
      */
     public void runTrace(String instrumentId, String projectId) {
         // local_storage/project-<projectId>/<instrumentId>
@@ -68,41 +92,84 @@ public class TracingService {
         String projectOutDir = "resources/out/project-" + projectId;
         File instrumentedDir = Util.unzipAndDecode(base64, projectOutDir);
 
-        // 3) compile + run
+        // 3) compile + run, a recorded trace is streamed gzip compressed directly into local storage
         List<CompilationUnit> cus = Util.loadCUs(instrumentedDir);
+        File localTrace = new File(localIdFolder, TraceFormat.FILE_NAME);
+        File compiledFolder = new File(instrumentedDir, "compiled");
+        if (!isCounting(instrumentedDir)) {
+            try (TraceReceiver receiver = new TraceReceiver(localTrace.toPath())) {
+                List<String> jvmArguments = new ArrayList<>(receiver.getJvmArguments());
+                jvmArguments.add("-Dprorunvis.trace.compress=true");
+                Process program = start(cus, instrumentedDir, compiledFolder, jvmArguments);
+                receiver.save(program);
+                if (CompileAndRun.finish(program, localTrace.toPath())) {
+                    System.out.println("Trace exceeded its budget, only the start of the run is recorded for project: "
+                            + projectId);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException("Trace run failed for project: " + projectId, e);
+            }
+            System.out.println("Trace received at: " + localTrace.getAbsolutePath() + " for project: " + projectId);
+            return;
+        }
+        File traceFile = new File(compiledFolder, TraceFormat.FILE_NAME);
         try {
-            CompileAndRun.run(
-                    cus,
-                    instrumentedDir.getAbsolutePath(),
-                    instrumentedDir.getAbsolutePath() + "/compiled"
-            );
+            Process program = start(cus, instrumentedDir, compiledFolder, List.of());
+            if (CompileAndRun.finish(program, traceFile.toPath())) {
+                System.out.println("Trace exceeded its budget, only the start of the run is recorded for project: "
+                        + projectId);
+            }
         } catch (Exception e) {
             throw new RuntimeException("Trace run failed for project: " + projectId, e);
         }
 
-        // 4) check for Trace.tr INSIDE THE "compiled" SUBFOLDER
-        File compiledFolder = new File(instrumentedDir, "compiled");
-        File traceFile = new File(compiledFolder, "Trace.tr");
-
+        // 4) check for the trace file INSIDE THE "compiled" SUBFOLDER
         if (!traceFile.exists()) {
             throw new RuntimeException(
-                    "No Trace.tr found in: " + compiledFolder.getAbsolutePath());
+                    "No " + TraceFormat.FILE_NAME + " found in: " + compiledFolder.getAbsolutePath());
         }
         System.out.println("Trace file generated at: " + traceFile.getAbsolutePath() + " for project: " + projectId);
 
-        // 5) copy Trace.tr → local_storage/project-<projectId>/<instrumentId>/Trace.tr
-        File localTrace = new File(localIdFolder, "Trace.tr");
+        // 5) store the table → local_storage/project-<projectId>/<instrumentId>/Trace.trb
         try {
-            Files.copy(
-                    traceFile.toPath(),
-                    localTrace.toPath(),
-                    StandardCopyOption.REPLACE_EXISTING
-            );
+            TraceWriter.compress(traceFile.toPath(), localTrace.toPath());
         } catch (IOException e) {
             throw new RuntimeException(
-                    "Failed copying Trace.tr to: " + localTrace.getAbsolutePath() + " for project: " + projectId,
+                    "Failed storing " + TraceFormat.FILE_NAME + " to: " + localTrace.getAbsolutePath()
+                            + " for project: " + projectId,
                     e
             );
         }
     }
+
+    /**
+     * Compiles and starts the code without waiting for it to exit, by an idle worker JVM if there is
+     * a pool and the code can not end its worker by System.exit, otherwise by a new JVM.
+     */
+    private Process start(List<CompilationUnit> cus, File instrumentedDir, File compiledFolder,
+                          List<String> jvmArguments) throws IOException, InterruptedException {
+        if (workers != null && CompileAndRun.canRunInProcess(cus)) {
+            return CompileAndRun.startInPool(cus, instrumentedDir.getAbsolutePath(),
+                    compiledFolder.getAbsolutePath(), jvmArguments, runTimeout, workers);
+        }
+        return CompileAndRun.start(cus, instrumentedDir.getAbsolutePath(), compiledFolder.getAbsolutePath(),
+                jvmArguments);
+    }
+
+    /**
+     * Checks whether the code has been instrumented for counting, according to the
+     * recorder options saved next to it. Such code can not stream a trace.
+     */
+    private boolean isCounting(File instrumentedDir) {
+        File configuration = new File(instrumentedDir, "prorunvis/trace.properties");
+        Properties properties = new Properties();
+        if (configuration.exists()) {
+            try (Reader reader = new FileReader(configuration)) {
+                properties.load(reader);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed reading " + configuration.getAbsolutePath(), e);
+            }
+        }
+        return "counts".equals(properties.getProperty("mode"));
+    }
 }
\ No newline at end of file
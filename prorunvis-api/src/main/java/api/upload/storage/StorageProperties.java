@@ -18,6 +18,37 @@ public class StorageProperties {
      */
     private String outLocation = "resources/out";
 
+    /**
+     * The maximum number of code blocks recorded by a traced program before it is stopped.
+     */
+    private long maxTraceEvents = 50_000_000L;
+
+    /**
+     * The maximum size of a trace in bytes before the traced program is stopped.
+     */
+    private long maxTraceBytes = 256L * 1024 * 1024;
+
+    /**
+     * The time in seconds after which a program traced by a worker JVM is interrupted.
+     */
+    private long runTimeout = 60;
+
+    /**
+     * The maximum number of worker JVMs running traced programs at the same time,
+     * 0 to start a new JVM for every program.
+     */
+    private int workerPoolSize = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The number of programs run by a worker JVM before it is replaced by a new one.
+     */
+    private int workerMaxRuns = 50;
+
+    /**
+     * The maximum heap size of a worker JVM, as passed to -Xmx.
+     */
+    private String workerMaxMemory = "512m";
+
     /**
      * Gets the {@code inLocation} field of this property object.
      *
@@ -55,4 +86,112 @@ public class StorageProperties {
     public void setOutLocation(final String location) {
         this.outLocation = location;
     }
+
+    /**
+     * Gets the {@code maxTraceEvents} field of this property object.
+     *
+     * @return The maximum number of code blocks recorded by a traced program.
+     */
+    public long getMaxTraceEvents() {
+        return this.maxTraceEvents;
+    }
+
+    /**
+     * Sets the {@code maxTraceEvents} field of this property element.
+     *
+     * @param maxTraceEvents The maximum number of recorded code blocks, 0 if unlimited.
+     */
+    public void setMaxTraceEvents(final long maxTraceEvents) {
+        this.maxTraceEvents = maxTraceEvents;
+    }
+
+    /**
+     * Gets the {@code maxTraceBytes} field of this property object.
+     *
+     * @return The maximum size of a trace in bytes.
+     */
+    public long getMaxTraceBytes() {
+        return this.maxTraceBytes;
+    }
+
+    /**
+     * Sets the {@code maxTraceBytes} field of this property element.
+     *
+     * @param maxTraceBytes The maximum size of a trace in bytes, 0 if unlimited.
+     */
+    public void setMaxTraceBytes(final long maxTraceBytes) {
+        this.maxTraceBytes = maxTraceBytes;
+    }
+
+    /**
+     * Gets the {@code runTimeout} field of this property object.
+     *
+     * @return The time in seconds after which a traced program is interrupted.
+     */
+    public long getRunTimeout() {
+        return this.runTimeout;
+    }
+
+    /**
+     * Sets the {@code runTimeout} field of this property element.
+     *
+     * @param runTimeout The time in seconds after which a traced program is interrupted, 0 if unlimited.
+     */
+    public void setRunTimeout(final long runTimeout) {
+        this.runTimeout = runTimeout;
+    }
+
+    /**
+     * Gets the {@code workerPoolSize} field of this property object.
+     *
+     * @return The maximum number of worker JVMs running traced programs.
+     */
+    public int getWorkerPoolSize() {
+        return this.workerPoolSize;
+    }
+
+    /**
+     * Sets the {@code workerPoolSize} field of this property element.
+     *
+     * @param workerPoolSize The maximum number of worker JVMs, 0 to start a new JVM for every program.
+     */
+    public void setWorkerPoolSize(final int workerPoolSize) {
+        this.workerPoolSize = workerPoolSize;
+    }
+
+    /**
+     * Gets the {@code workerMaxRuns} field of this property object.
+     *
+     * @return The number of programs run by a worker JVM before it is replaced.
+     */
+    public int getWorkerMaxRuns() {
+        return this.workerMaxRuns;
+    }
+
+    /**
+     * Sets the {@code workerMaxRuns} field of this property element.
+     *
+     * @param workerMaxRuns The number of programs run by a worker JVM before it is replaced.
+     */
+    public void setWorkerMaxRuns(final int workerMaxRuns) {
+        this.workerMaxRuns = workerMaxRuns;
+    }
+
+    /**
+     * Gets the {@code workerMaxMemory} field of this property object.
+     *
+     * @return The maximum heap size of a worker JVM.
+     */
+    public String getWorkerMaxMemory() {
+        return this.workerMaxMemory;
+    }
+
+    /**
+     * Sets the {@code workerMaxMemory} field of this property element.
+     *
+     * @param workerMaxMemory The maximum heap size of a worker JVM, e.g. 512m.
+     */
+    public void setWorkerMaxMemory(final String workerMaxMemory) {
+        this.workerMaxMemory = workerMaxMemory;
+    }
 }
@@ -0,0 +1,14 @@
+plugins {
+    id("java")
+}
+
+// The recorder is loaded into every traced program, so it must not have any dependencies.
+java {
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(17))
+    }
+}
+
+tasks.jar {
+    archiveBaseName.set("prorunvis-runtime")
+}
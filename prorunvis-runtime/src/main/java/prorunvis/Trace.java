@@ -0,0 +1,1537 @@
+package prorunvis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Recorder for the ids emitted by instrumented code. Every thread collects its
+ * ids in its own buffer, full buffers are handed off through a lock-free queue
+ * to a single writer thread, which writes them as blocks of varint encoded
+ * deltas tagged with the index of the recording thread, optionally gzip
+ * compressed. The remaining tails are written by a shutdown hook.
+ * In mapped mode every thread stores its ids directly into its own
+ * memory-mapped segment files next to the trace file, which keeps them even
+ * if the JVM crashes.
+ * In stream mode the blocks are written to a connection to a receiver on the
+ * loopback interface instead, which processes them while the program runs.
+ * In counting mode the instrumented code only increments the entries of
+ * {@link #counts}, which are written as table at exit instead of a trace.
+ * If loop sampling is enabled, every execution of a loop records only its
+ * first and last iterations in full, the iterations in between are replaced
+ * by a record containing their number.
+ * With exits enabled, the instrumented code also reports leaving every code
+ * block, which is recorded as {@link #EXIT} and makes the nesting of the code
+ * blocks explicit in the trace.
+ * Method calls record the id of their site before they are evaluated, which
+ * links them to the code block of the method entered by them.
+ * With timing enabled in file or stream mode, every id is followed by the System.nanoTime
+ * delta to the previous id of its block, the first one of a block relative to
+ * the start of the recorder, and the trace ends with the time the program exited.
+ * The number of recorded ids and the size of the trace can be limited by a
+ * budget. Once it is exhausted, the program is stopped and the trace ends with
+ * a record stating the reason of the truncation.
+ * Every thread records into a recorder of its own, guarded by the lock of the
+ * recorder, which is only contended while the recorder is closed. The recorders
+ * of ended threads are flushed and released by the writer thread and by threads
+ * recording their first id.
+ * A program run within the JVM of prorunvis loads its own copy of the recorder,
+ * which writes to the trace file given by its options and is closed by
+ * {@link #shutdown()} instead of a shutdown hook. Once its budget is exhausted,
+ * every recording thread is stopped by {@link Stopped} instead of System.exit.
+ * The options are read from the resource prorunvis/trace.properties, which is
+ * saved next to the instrumented code, and can be overridden by system
+ * properties prefixed with prorunvis.trace, e.g. prorunvis.trace.mode.
+ * The format constants have to match the ones in prorunvis.trace.process.TraceFormat.
+ */
+public final class Trace {
+
+    /**
+     * A trace which replaces the recorded ids, allows manual forcing of a trace.
+     */
+    public static int[] trace = null;
+
+    /**
+     * The index of the next id to take from {@link #trace}.
+     */
+    public static int index = 0;
+
+    /**
+     * Marker at the start of every trace file ("PRVT").
+     */
+    private static final int MAGIC = 0x50525654;
+
+    /**
+     * Version of a trace written in mapped mode.
+     */
+    private static final int VERSION_SEGMENTED = 2;
+
+    /**
+     * Version of a trace written in the compact format.
+     */
+    private static final int VERSION_COMPACT = 3;
+
+    /**
+     * Version of a trace only containing the number of executions of every code block.
+     */
+    private static final int VERSION_COUNTS = 4;
+
+    /**
+     * Header flag of a gzip compressed compact trace.
+     */
+    private static final int FLAG_GZIP = 1;
+
+    /**
+     * Header flag of a compact trace with blocks tagged by thread.
+     */
+    private static final int FLAG_THREADS = 2;
+
+    /**
+     * Header flag of a compact trace storing the time of every id.
+     */
+    private static final int FLAG_TIMES = 4;
+
+    /**
+     * Header flag of a trace containing the exits of the code blocks. In the blocks
+     * of a compact trace the varint 0 then stands for an exit and every delta is
+     * stored incremented by one.
+     */
+    private static final int FLAG_EXITS = 8;
+
+    /**
+     * The value recorded for the exit of a code block.
+     */
+    private static final int EXIT = Integer.MIN_VALUE;
+
+    /**
+     * The largest number of skipped iterations stored in a single record, small
+     * enough for the delta between the marker and the number to fit into an int.
+     */
+    private static final int MAX_SKIP_RECORD = 1 << 30;
+
+    /**
+     * Tag written in place of the thread of a block, marking the truncation record.
+     */
+    private static final int TRUNCATION_TAG = -1;
+
+    /**
+     * Tag written in place of the thread of a block, marking the record of the end time.
+     */
+    private static final int END_TAG = -2;
+
+    /**
+     * Reason of a truncation because the number of recorded ids exceeded the budget.
+     */
+    private static final int TRUNCATED_EVENTS = 1;
+
+    /**
+     * Reason of a truncation because the size of the trace exceeded the budget.
+     */
+    private static final int TRUNCATED_BYTES = 2;
+
+    /**
+     * The exit code of a program stopped because its trace exceeded its budget.
+     */
+    private static final int TRUNCATED_EXIT_CODE = 86;
+
+    /**
+     * The number of ids buffered by every thread before they are handed off.
+     */
+    private static final int BLOCK_SIZE = 8192;
+
+    /**
+     * The number of threads recording their first id after which the recorders of ended threads are released.
+     */
+    private static final int REAP_INTERVAL = 64;
+
+    /**
+     * The size of the header of a segment file.
+     */
+    private static final int SEGMENT_HEADER_SIZE = 4 * Integer.BYTES;
+
+    /**
+     * The offset of the number of ids in the header of a segment file.
+     */
+    private static final int SEGMENT_COUNT_OFFSET = 2 * Integer.BYTES;
+
+    /**
+     * The name of the trace file, created in the working directory.
+     */
+    private static final String FILE_NAME = "Trace.trb";
+
+    /**
+     * The options saved next to the instrumented code.
+     */
+    private static final Properties CONFIGURATION = loadConfiguration();
+
+    /**
+     * Whether the instrumented code only counts the executions of the code blocks.
+     */
+    private static final boolean COUNTING = "counts".equals(option("mode", "file"));
+
+    /**
+     * The trace file, by default created in the working directory.
+     */
+    private static final String TRACE_FILE = option("file", FILE_NAME);
+
+    /**
+     * Whether the program runs within the JVM of prorunvis, which must not be exited.
+     */
+    private static final boolean IN_PROCESS = Boolean.parseBoolean(option("inProcess", "false"));
+
+    /**
+     * Whether the ids are stored in memory-mapped segment files.
+     */
+    private static final boolean MAPPED = "mapped".equals(option("mode", "file"));
+
+    /**
+     * Whether the trace is streamed to a receiver listening on {@link #PORT} of the
+     * loopback interface instead of being written to the trace file.
+     */
+    private static final boolean STREAMED = "stream".equals(option("mode", "file"));
+
+    /**
+     * The port of the receiver of a streamed trace.
+     */
+    private static final int PORT = Integer.parseInt(option("port", "0"));
+
+    /**
+     * The size of a segment file in bytes, excluding its header.
+     */
+    private static final int SEGMENT_SIZE = Integer.parseInt(option("segmentSize", "67108864"));
+
+    /**
+     * Whether the blocks of the trace are gzip compressed.
+     */
+    private static final boolean COMPRESS = Boolean.parseBoolean(option("compress", "false"));
+
+    /**
+     * The number of trace sites of the instrumented program, stored in the header.
+     */
+    private static final int SITES = Integer.parseInt(option("sites", "0"));
+
+    /**
+     * The number of executions of every code block, incremented directly by code
+     * instrumented for counting and written to the trace file when the program exits.
+     * Concurrent increments of the same code block are not synchronized, so the counts
+     * of multithreaded programs are a close lower bound.
+     */
+    public static final long[] counts = new long[COUNTING ? SITES : 0];
+
+    /**
+     * The number of iterations recorded in full at the start of every loop
+     * execution, loop sampling is disabled if negative.
+     */
+    private static final int LOOP_HEAD = Integer.parseInt(option("loopHead", "-1"));
+
+    /**
+     * The number of iterations recorded in full at the end of every loop execution.
+     */
+    private static final int LOOP_TAIL = Math.max(0, Integer.parseInt(option("loopTail", "0")));
+
+    /**
+     * Whether loops are sampled.
+     */
+    private static final boolean SAMPLING = LOOP_HEAD >= 0;
+
+    /**
+     * Whether the time of every id is recorded, not supported in mapped or counting mode.
+     */
+    private static final boolean TIMING = !MAPPED && !COUNTING && Boolean.parseBoolean(option("timing", "false"));
+
+    /**
+     * Whether the instrumented code reports the exits of the code blocks, which never happens in counting mode.
+     */
+    private static final boolean EXITS = !COUNTING && Boolean.parseBoolean(option("exits", "false"));
+
+    /**
+     * The time at which the recorder has been started, the origin of all recorded times.
+     */
+    private static final long START = System.nanoTime();
+
+    /**
+     * The maximum number of ids written to the trace, unlimited if not positive.
+     */
+    private static final long MAX_EVENTS = Long.parseLong(option("maxEvents", "0"));
+
+    /**
+     * The maximum number of bytes of the trace, before compression, unlimited if not positive.
+     */
+    private static final long MAX_BYTES = Long.parseLong(option("maxBytes", "0"));
+
+    /**
+     * The number of ids which may be written in total. In mapped mode this
+     * also covers the byte budget, as every id takes up the same space.
+     */
+    private static final long EVENT_BUDGET = eventBudget();
+
+    /**
+     * Whether the number of written ids is limited.
+     */
+    private static final boolean BUDGETED = EVENT_BUDGET < Long.MAX_VALUE;
+
+    /**
+     * The index assigned to the next thread recording its first id.
+     */
+    private static final AtomicInteger threads = new AtomicInteger();
+
+    /**
+     * The index of the next segment file.
+     */
+    private static final AtomicInteger segments = new AtomicInteger();
+
+    /**
+     * The recorders of all threads which have not ended, used to write their remaining ids at shutdown.
+     */
+    private static final Queue<Recorder> recorders = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The full blocks handed off to the writer thread.
+     */
+    private static final Queue<Block> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Buffers of written blocks which can be reused by the recording threads.
+     */
+    private static final Queue<int[]> free = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Buffers for the times of written blocks which can be reused by the recording threads.
+     */
+    private static final Queue<long[]> freeTimes = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of ids which have not yet been reserved by any thread.
+     */
+    private static final AtomicLong budget = new AtomicLong(EVENT_BUDGET);
+
+    /**
+     * The reason why the trace has been truncated, 0 as long as it is complete.
+     */
+    private static final AtomicInteger truncation = new AtomicInteger();
+
+    /**
+     * Whether the program is being stopped, either by the recorder or because it exits.
+     */
+    private static final AtomicBoolean stopping = new AtomicBoolean();
+
+    /**
+     * The recorder of the current thread.
+     */
+    private static final ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(Trace::register);
+
+    /**
+     * The encoded bytes of a block, large enough for the maximum size of a
+     * varint for every id and time, the thread and the block size.
+     */
+    private static final byte[] block = new byte[(BLOCK_SIZE + 2) * 5 + (TIMING ? BLOCK_SIZE * 10 : 0)];
+
+    /**
+     * Whether the recorder is still accepting ids, false once the shutdown hook ran.
+     */
+    private static volatile boolean running = true;
+
+    /**
+     * The number of bytes written to the trace file in file mode, before compression.
+     */
+    private static long written;
+
+    /**
+     * Whether the byte budget is exhausted in file mode.
+     */
+    private static boolean exhausted;
+
+    /**
+     * The stream of the trace file in file mode, or the connection to the receiver in stream mode.
+     */
+    private static OutputStream out;
+
+    /**
+     * The thread writing the handed off blocks in file mode.
+     */
+    private static Thread writer;
+
+    static {
+        if (!COUNTING) {
+            try {
+                ByteBuffer header = ByteBuffer.allocate(4 * Integer.BYTES).putInt(MAGIC);
+                if (MAPPED) {
+                    header.putInt(VERSION_SEGMENTED).putInt(EXITS ? FLAG_EXITS : 0).putInt(SITES).flip();
+                } else {
+                    int flags = FLAG_THREADS | (COMPRESS ? FLAG_GZIP : 0) | (TIMING ? FLAG_TIMES : 0)
+                            | (EXITS ? FLAG_EXITS : 0);
+                    header.putInt(VERSION_COMPACT).putInt(flags).putInt(SITES).flip();
+                }
+                if (STREAMED) {
+                    Socket socket = new Socket(InetAddress.getLoopbackAddress(), PORT);
+                    socket.setTcpNoDelay(true);
+                    out = socket.getOutputStream();
+                    out.write(header.array());
+                } else {
+                    FileChannel channel = FileChannel.open(Paths.get(TRACE_FILE), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    while (header.hasRemaining()) {
+                        channel.write(header);
+                    }
+                    if (MAPPED) {
+                        channel.close();
+                    } else {
+                        out = Channels.newOutputStream(channel);
+                    }
+                }
+                if (!MAPPED) {
+                    if (COMPRESS) {
+                        out = new GZIPOutputStream(out, block.length);
+                    }
+                    writer = new Thread(Trace::drain, "prorunvis-trace-writer");
+                    writer.setDaemon(true);
+                    writer.start();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage());
+            }
+        }
+        if (!IN_PROCESS) {
+            Runtime.getRuntime().addShutdownHook(new Thread(Trace::shutdown));
+        }
+    }
+
+    /**
+     * This class should not be instantiated.
+     */
+    private Trace() {
+    }
+
+    /**
+     * Writes the recorded trace, or the counts in counting mode, and closes it. This is done by a
+     * shutdown hook, unless the program runs within the JVM of prorunvis, which calls it once the
+     * program finished instead.
+     */
+    public static void shutdown() {
+        if (COUNTING) {
+            dumpCounts();
+        } else {
+            close();
+        }
+    }
+
+    /**
+     * Records the id of an executed code block for the current thread.
+     *
+     * @param num the id of the code block.
+     */
+    public static void next_elem(int num) {
+        if (trace != null) {
+            num = forced(num);
+        }
+        long time = TIMING ? System.nanoTime() : 0L;
+        Recorder current = recorder.get();
+        synchronized (current) {
+            if (current.closed) {
+                return;
+            }
+            if (SAMPLING) {
+                Loop top = current.top();
+                if (top != null && top.site == num) {
+                    top.nextIteration(current, time);
+                }
+                if (current.sink != null) {
+                    current.sink.append(num, time);
+                    return;
+                }
+            }
+            record(current, num, time);
+        }
+        stopIfTruncated();
+    }
+
+    /**
+     * Records the exit of the code block entered last by the current thread,
+     * called in a finally block by code instrumented with exits.
+     */
+    public static void exit_elem() {
+        event(EXIT);
+    }
+
+    /**
+     * Records the site of a method call before its scope and arguments are evaluated,
+     * which links the call to the method entered by it.
+     *
+     * @param site the id of the method call.
+     * @return the id of the method call, to be passed on to {@link #call_value(int, Object)}
+     * if the call is part of an expression.
+     */
+    public static int call_site(final int site) {
+        event(site);
+        return site;
+    }
+
+    /**
+     * Passes on the value of a method call within an expression, evaluated after
+     * {@link #call_site(int)} recorded its site.
+     *
+     * @param site  the id of the method call.
+     * @param value the value of the method call.
+     * @param <T>   the type of the value.
+     * @return the value.
+     */
+    public static <T> T call_value(final int site, final T value) {
+        return value;
+    }
+
+    /**
+     * Same as {@link #call_value(int, Object)} for a method call returning a boolean.
+     *
+     * @param site  the id of the method call.
+     * @param value the value of the method call.
+     * @return the value.
+     */
+    public static boolean call_value(final int site, final boolean value) {
+        return value;
+    }
+
+    /**
+     * Same as {@link #call_value(int, Object)} for a method call returning a byte.
+     *
+     * @param site  the id of the method call.
+     * @param value the value of the method call.
+     * @return the value.
+     */
+    public static byte call_value(final int site, final byte value) {
+        return value;
+    }
+
+    /**
+     * Same as {@link #call_value(int, Object)} for a method call returning a char.
+     *
+     * @param site  the id of the method call.
+     * @param value the value of the method call.
+     * @return the value.
+     */
+    public static char call_value(final int site, final char value) {
+        return value;
+    }
+
+    /**
+     * Same as {@link #call_value(int, Object)} for a method call returning a short.
+     *
+     * @param site  the id of the method call.
+     * @param value the value of the method call.
+     * @return the value.
+     */
+    public static short call_value(final int site, final short value) {
+        return value;
+    }
+
+    /**
+     * Same as {@link #call_value(int, Object)} for a method call returning an int.
+     *
+     * @param site  the id of the method call.
+     * @param value the value of the method call.
+     * @return the value.
+     */
+    public static int call_value(final int site, final int value) {
+        return value;
+    }
+
+    /**
+     * Same as {@link #call_value(int, Object)} for a method call returning a long.
+     *
+     * @param site  the id of the method call.
+     * @param value the value of the method call.
+     * @return the value.
+     */
+    public static long call_value(final int site, final long value) {
+        return value;
+    }
+
+    /**
+     * Same as {@link #call_value(int, Object)} for a method call returning a float.
+     *
+     * @param site  the id of the method call.
+     * @param value the value of the method call.
+     * @return the value.
+     */
+    public static float call_value(final int site, final float value) {
+        return value;
+    }
+
+    /**
+     * Same as {@link #call_value(int, Object)} for a method call returning a double.
+     *
+     * @param site  the id of the method call.
+     * @param value the value of the method call.
+     * @return the value.
+     */
+    public static double call_value(final int site, final double value) {
+        return value;
+    }
+
+    /**
+     * Records an event which is not the entry of a code block, i.e. an exit or
+     * the site of a method call. Within the skipped iterations of a sampled loop
+     * it is only buffered like the ids of the code blocks.
+     *
+     * @param num the value of the event.
+     */
+    private static void event(final int num) {
+        long time = TIMING ? System.nanoTime() : 0L;
+        Recorder current = recorder.get();
+        synchronized (current) {
+            if (current.closed) {
+                return;
+            }
+            if (SAMPLING && current.sink != null) {
+                current.sink.append(num, time);
+                return;
+            }
+            record(current, num, time);
+        }
+        stopIfTruncated();
+    }
+
+    /**
+     * Marks the start of the execution of a loop.
+     *
+     * @param site the id of the loop.
+     */
+    public static void loop_begin(final int site) {
+        if (SAMPLING) {
+            Recorder current = recorder.get();
+            synchronized (current) {
+                if (!current.closed) {
+                    current.push(site);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the end of the execution of a loop, writing the number of skipped
+     * iterations and the buffered last iterations if the loop has been sampled.
+     *
+     * @param site the id of the loop.
+     */
+    public static void loop_end(final int site) {
+        if (SAMPLING) {
+            Recorder current = recorder.get();
+            synchronized (current) {
+                if (!current.closed) {
+                    current.pop();
+                }
+            }
+            stopIfTruncated();
+        }
+    }
+
+    /**
+     * Writes an id to the trace of a thread, called while holding the lock of its recorder.
+     *
+     * @param current the recorder of the thread.
+     * @param num     the id to write.
+     * @param time    the time at which the id has been recorded, only used with timing.
+     */
+    private static void record(final Recorder current, final int num, final long time) {
+        if (BUDGETED && --current.allowance < 0 && !reserve(current)) {
+            truncate(TRUNCATED_EVENTS);
+            return;
+        }
+        if (MAPPED) {
+            if (!current.segment.hasRemaining()) {
+                nextSegment(current);
+            }
+            current.segment.putInt(num);
+            current.segment.putInt(SEGMENT_COUNT_OFFSET, ++current.segmentCount);
+            return;
+        }
+        if (TIMING) {
+            current.times[current.size] = time;
+        }
+        current.ids[current.size++] = num;
+        if (current.size == BLOCK_SIZE) {
+            handOff(current);
+        }
+    }
+
+    /**
+     * Reserves a part of the remaining budget for a thread, so the shared
+     * budget is only updated once per block of ids.
+     *
+     * @param current the recorder of the thread, whose allowance is exhausted.
+     * @return true if the allowance has been refilled and includes the current id,
+     * false if the budget is exhausted.
+     */
+    private static boolean reserve(final Recorder current) {
+        current.allowance = 0;
+        while (true) {
+            long left = budget.get();
+            if (left <= 0) {
+                return false;
+            }
+            long taken = Math.min(left, BLOCK_SIZE);
+            if (budget.compareAndSet(left, left - taken)) {
+                current.allowance = taken - 1;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Marks the trace as truncated. The program is stopped by {@link #stopIfTruncated()}
+     * once the lock of the recorder is released, as the shutdown hook waits for it.
+     *
+     * @param reason the reason of the truncation, only the first one is kept.
+     */
+    private static void truncate(final int reason) {
+        truncation.compareAndSet(0, reason);
+    }
+
+    /**
+     * Stops the program if the trace has been truncated, called after recording
+     * without holding the lock of a recorder.
+     */
+    private static void stopIfTruncated() {
+        if (truncation.get() != 0) {
+            stop();
+        }
+    }
+
+    /**
+     * Stops the program after the trace has been truncated, with an exit code telling
+     * the caller about the truncation. The shutdown hook then writes the recorded ids
+     * and the truncation record as usual. Nothing
+     * happens if called by the writer thread, which the shutdown hook waits for,
+     * or if the program is already exiting. Within the JVM of prorunvis, the
+     * calling thread is stopped by {@link Stopped} instead.
+     */
+    private static void stop() {
+        if (Thread.currentThread() == writer) {
+            return;
+        }
+        if (IN_PROCESS) {
+            //the JVM keeps running, so every thread trying to record more is stopped
+            if (stopping.compareAndSet(false, true)) {
+                System.err.println("prorunvis: the trace exceeded its budget, the program has been stopped.");
+            }
+            throw new Stopped();
+        }
+        if (!stopping.compareAndSet(false, true)) {
+            return;
+        }
+        System.err.println("prorunvis: the trace exceeded its budget, the program has been stopped.");
+        System.exit(TRUNCATED_EXIT_CODE);
+    }
+
+    /**
+     * Computes the total number of ids which may be written to the trace.
+     *
+     * @return the number of ids, {@link Long#MAX_VALUE} if unlimited.
+     */
+    private static long eventBudget() {
+        long events = MAX_EVENTS > 0 ? MAX_EVENTS : Long.MAX_VALUE;
+        if (MAPPED && MAX_BYTES > 0) {
+            events = Math.min(events, MAX_BYTES / Integer.BYTES);
+        }
+        return events;
+    }
+
+    /**
+     * Takes the next id of a forced trace.
+     *
+     * @param num the recorded id.
+     * @return the forced id, or the recorded one if the forced trace is exhausted.
+     */
+    private static synchronized int forced(final int num) {
+        if (index < trace.length) {
+            return trace[index++];
+        }
+        return num;
+    }
+
+    /**
+     * Gets an option of the recorder.
+     *
+     * @param key          the name of the option.
+     * @param defaultValue the value used if the option is not set.
+     * @return the value of the option.
+     */
+    private static String option(final String key, final String defaultValue) {
+        return System.getProperty("prorunvis.trace." + key, CONFIGURATION.getProperty(key, defaultValue));
+    }
+
+    /**
+     * Loads the options saved next to the instrumented code.
+     *
+     * @return the options, empty if none were saved.
+     */
+    private static Properties loadConfiguration() {
+        Properties properties = new Properties();
+        try (InputStream in = Trace.class.getResourceAsStream("trace.properties")) {
+            if (in != null) {
+                properties.load(in);
+            }
+        } catch (IOException ignored) {
+        }
+        return properties;
+    }
+
+    /**
+     * Creates the recorder for a thread recording its first id.
+     *
+     * @return the new recorder.
+     */
+    private static Recorder register() {
+        Recorder created = new Recorder(threads.getAndIncrement());
+        if (MAPPED) {
+            nextSegment(created);
+        } else {
+            //the buffers of ended threads are reused
+            int[] reused = free.poll();
+            created.ids = reused != null ? reused : new int[BLOCK_SIZE];
+            if (TIMING) {
+                long[] reusedTimes = freeTimes.poll();
+                created.times = reusedTimes != null ? reusedTimes : new long[BLOCK_SIZE];
+            }
+        }
+        recorders.add(created);
+        if (stopping.get()) {
+            //the recorder is closed, a thread starting to record now might have been missed by close
+            synchronized (created) {
+                created.closed = true;
+            }
+        }
+        if (created.thread % REAP_INTERVAL == 0) {
+            reap();
+        }
+        return created;
+    }
+
+    /**
+     * Flushes and releases the recorders of threads which ended, so their buffers
+     * can be reused. The remaining ids are handed off to the writer thread, in mapped
+     * mode they are already part of the segment of the recorder.
+     */
+    private static void reap() {
+        for (Iterator<Recorder> iterator = recorders.iterator(); iterator.hasNext();) {
+            Recorder source = iterator.next();
+            if (source.owner.isAlive()) {
+                continue;
+            }
+            synchronized (source) {
+                if (source.closed) {
+                    //closed by close, which writes its remaining ids
+                    continue;
+                }
+                //loops left by an exception still write their last iterations
+                while (source.depth > 0) {
+                    source.pop();
+                }
+                if (MAPPED) {
+                    source.segment.force();
+                } else if (source.size > 0) {
+                    pending.add(new Block(source.thread, source.ids, source.times, source.size));
+                    LockSupport.unpark(writer);
+                } else {
+                    free.offer(source.ids);
+                    if (TIMING) {
+                        freeTimes.offer(source.times);
+                    }
+                }
+                source.closed = true;
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Maps the next segment file for a recorder in mapped mode.
+     *
+     * @param target the recorder to which the segment belongs.
+     */
+    private static void nextSegment(final Recorder target) {
+        Path path = Paths.get(TRACE_FILE + "." + segments.getAndIncrement());
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long capacity = SEGMENT_SIZE - SEGMENT_SIZE % Integer.BYTES;
+            if (BUDGETED) {
+                //segments are never larger than needed for the whole budget
+                capacity = Math.min(capacity, EVENT_BUDGET * Integer.BYTES);
+            }
+            target.segment = file.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_HEADER_SIZE + capacity);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        target.segment.putInt(MAGIC).putInt(VERSION_SEGMENTED).putInt(0).putInt(target.thread);
+        target.segmentCount = 0;
+    }
+
+    /**
+     * Hands the full buffer of a recorder off to the writer thread and
+     * replaces it with an empty one, called while holding the lock of the recorder.
+     *
+     * @param source the recorder with a full buffer.
+     */
+    private static void handOff(final Recorder source) {
+        if (!running) {
+            source.size = 0;
+            return;
+        }
+        pending.add(new Block(source.thread, source.ids, source.times, source.size));
+        int[] next = free.poll();
+        source.ids = next != null ? next : new int[BLOCK_SIZE];
+        if (TIMING) {
+            long[] nextTimes = freeTimes.poll();
+            source.times = nextTimes != null ? nextTimes : new long[BLOCK_SIZE];
+        }
+        source.size = 0;
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Writes the handed off blocks until the recorder is closed. Once all
+     * handed off blocks are written, the recorders of ended threads are released.
+     */
+    private static void drain() {
+        while (running || !pending.isEmpty()) {
+            Block next = pending.poll();
+            if (next == null) {
+                if (running) {
+                    reap();
+                }
+                if (pending.isEmpty()) {
+                    LockSupport.park();
+                }
+                continue;
+            }
+            write(next.thread, next.ids, next.times, next.size);
+            free.offer(next.ids);
+            if (TIMING) {
+                freeTimes.offer(next.times);
+            }
+        }
+    }
+
+    /**
+     * Encodes and writes a block of ids. If the block exceeds the byte budget,
+     * only the ids which still fit are written, the trace is truncated and no
+     * further blocks are written.
+     *
+     * @param thread the index of the thread which recorded the ids.
+     * @param ids    the ids to write.
+     * @param times  the times at which the ids have been recorded, only used with timing.
+     * @param size   the number of ids to write.
+     */
+    private static void write(final int thread, final int[] ids, final long[] times, final int size) {
+        int count = MAX_BYTES > 0 ? fitting(thread, ids, times, size) : size;
+        if (count < size) {
+            //later blocks are dropped as well, so the trace has no gaps
+            exhausted = true;
+            truncation.compareAndSet(0, TRUNCATED_BYTES);
+            if (count == 0) {
+                return;
+            }
+        }
+        int length = putVarint(block, 0, thread);
+        length = putVarint(block, length, count);
+        int previous = 0;
+        long previousTime = START;
+        for (int i = 0; i < count; i++) {
+            length = putVarint(block, length, encode(ids[i], previous));
+            if (ids[i] != EXIT || !EXITS) {
+                previous = ids[i];
+            }
+            if (TIMING) {
+                long timeDelta = times[i] - previousTime;
+                length = putVarlong(block, length, (timeDelta << 1) ^ (timeDelta >> 63));
+                previousTime = times[i];
+            }
+        }
+        written += length;
+        try {
+            out.write(block, 0, length);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Counts the ids at the start of a block which can be written without
+     * exceeding the byte budget.
+     *
+     * @param thread the index of the thread which recorded the ids.
+     * @param ids    the ids to write.
+     * @param times  the times at which the ids have been recorded, only used with timing.
+     * @param size   the number of ids to write.
+     * @return the number of ids which fit into the budget.
+     */
+    private static int fitting(final int thread, final int[] ids, final long[] times, final int size) {
+        if (exhausted) {
+            return 0;
+        }
+        long left = MAX_BYTES - written - varintSize(thread) - varintSize(size);
+        int previous = 0;
+        long previousTime = START;
+        for (int i = 0; i < size; i++) {
+            left -= varintSize(encode(ids[i], previous) & 0xFFFFFFFFL);
+            if (TIMING) {
+                long timeDelta = times[i] - previousTime;
+                left -= varintSize((timeDelta << 1) ^ (timeDelta >> 63));
+                previousTime = times[i];
+            }
+            if (left < 0) {
+                return i;
+            }
+            if (ids[i] != EXIT || !EXITS) {
+                previous = ids[i];
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Encodes an id as the zigzag encoded delta to the previous id of its block.
+     * With exits, 0 stands for an exit and every delta is incremented by one.
+     *
+     * @param id       the id to encode.
+     * @param previous the previous id of the block, 0 for the first one.
+     * @return the value to store as unsigned varint.
+     */
+    private static int encode(final int id, final int previous) {
+        if (!EXITS) {
+            int delta = id - previous;
+            return (delta << 1) ^ (delta >> 31);
+        }
+        if (id == EXIT) {
+            return 0;
+        }
+        int delta = id - previous;
+        return ((delta << 1) ^ (delta >> 31)) + 1;
+    }
+
+    /**
+     * Gets the number of bytes of a value stored as unsigned varint.
+     *
+     * @param value the value to store.
+     * @return the number of bytes, between 1 and 10.
+     */
+    private static int varintSize(final long value) {
+        return value == 0 ? 1 : (Long.SIZE - Long.numberOfLeadingZeros(value) + 6) / 7;
+    }
+
+    /**
+     * Stores a value as unsigned varint.
+     *
+     * @param target   the array to store the value in.
+     * @param position the position to store the value at.
+     * @param value    the value to store.
+     * @return the position after the stored value.
+     */
+    private static int putVarint(final byte[] target, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            target[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Stores a value as unsigned varint of up to 64 bits.
+     *
+     * @param target   the array to store the value in.
+     * @param position the position to store the value at.
+     * @param value    the value to store.
+     * @return the position after the stored value.
+     */
+    private static int putVarlong(final byte[] target, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            target[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Writes all remaining ids and closes the trace, called by {@link #shutdown()}.
+     */
+    private static synchronized void close() {
+        if (!running) {
+            return;
+        }
+        stopping.set(true);
+        //threads still running, e.g. after System.exit, stop recording once their recorder is closed
+        for (Recorder source : recorders) {
+            synchronized (source) {
+                //loops left without reaching their end still write their last iterations
+                while (source.depth > 0) {
+                    source.pop();
+                }
+                source.closed = true;
+            }
+        }
+        running = false;
+        if (MAPPED) {
+            for (Recorder source : recorders) {
+                source.segment.force();
+            }
+            writeTruncation();
+            return;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Block next = pending.poll(); next != null; next = pending.poll()) {
+            write(next.thread, next.ids, next.times, next.size);
+        }
+        for (Recorder source : recorders) {
+            if (source.size > 0) {
+                write(source.thread, source.ids, source.times, source.size);
+                source.size = 0;
+            }
+        }
+        if (TIMING) {
+            int length = putVarint(block, 0, END_TAG);
+            length = putVarlong(block, length, System.nanoTime() - START);
+            try {
+                out.write(block, 0, length);
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage());
+            }
+        }
+        writeTruncation();
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Writes the number of executions of every code block to the trace file,
+     * called by {@link #shutdown()} in counting mode.
+     */
+    private static void dumpCounts() {
+        ByteBuffer table = ByteBuffer.allocate(4 * Integer.BYTES + counts.length * Long.BYTES);
+        table.putInt(MAGIC).putInt(VERSION_COUNTS).putInt(0).putInt(counts.length);
+        table.asLongBuffer().put(counts);
+        table.rewind();
+        try (FileChannel channel = FileChannel.open(Paths.get(TRACE_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (table.hasRemaining()) {
+                channel.write(table);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the truncation record at the end of the trace if the trace has been
+     * truncated. In file mode the record takes the place of the next block, in
+     * mapped mode it is appended to the header in the trace file.
+     */
+    private static void writeTruncation() {
+        int reason = truncation.get();
+        if (reason == 0) {
+            return;
+        }
+        try {
+            if (MAPPED) {
+                try (FileChannel channel = FileChannel.open(Paths.get(TRACE_FILE), StandardOpenOption.APPEND)) {
+                    ByteBuffer record = ByteBuffer.allocate(2 * Integer.BYTES).putInt(TRUNCATION_TAG).putInt(reason);
+                    record.flip();
+                    while (record.hasRemaining()) {
+                        channel.write(record);
+                    }
+                }
+            } else {
+                int length = putVarint(block, 0, TRUNCATION_TAG);
+                length = putVarint(block, length, reason);
+                out.write(block, 0, length);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Thrown into a thread of a program running within the JVM of prorunvis which tries to
+     * record more than the budget of its trace allows, stopping the thread like System.exit
+     * would stop a program of its own.
+     */
+    public static final class Stopped extends Error {
+
+        /**
+         * The version of the serialized form.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructs the error, without a stack trace.
+         */
+        private Stopped() {
+            super("The trace exceeded its budget.", null, false, false);
+        }
+    }
+
+    /**
+     * The state of a single recording thread.
+     */
+    private static final class Recorder {
+
+        /**
+         * The index of the thread.
+         */
+        private final int thread;
+
+        /**
+         * The thread recording into this recorder.
+         */
+        private final Thread owner = Thread.currentThread();
+
+        /**
+         * Whether the recorder has been closed, after which the thread records nothing.
+         */
+        private boolean closed;
+
+        /**
+         * The buffered ids in file mode.
+         */
+        private int[] ids;
+
+        /**
+         * The times of the buffered ids, only used with timing.
+         */
+        private long[] times;
+
+        /**
+         * The number of buffered ids.
+         */
+        private int size;
+
+        /**
+         * The number of ids the thread may still write before reserving more of the budget.
+         */
+        private long allowance;
+
+        /**
+         * The current segment in mapped mode.
+         */
+        private MappedByteBuffer segment;
+
+        /**
+         * The number of ids in the current segment.
+         */
+        private int segmentCount;
+
+        /**
+         * The loops currently executed by the thread, reused for later loops.
+         */
+        private Loop[] loops = new Loop[16];
+
+        /**
+         * The number of loops currently executed by the thread.
+         */
+        private int depth;
+
+        /**
+         * The innermost loop buffering its iterations, which receives all ids
+         * recorded by the thread, null if the ids are written to the trace.
+         */
+        private Loop sink;
+
+        /**
+         * Constructs the recorder of a thread.
+         *
+         * @param thread the index of the thread.
+         */
+        private Recorder(final int thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Gets the innermost loop currently executed by the thread.
+         *
+         * @return the innermost loop, null if no loop is executed.
+         */
+        private Loop top() {
+            return depth > 0 ? loops[depth - 1] : null;
+        }
+
+        /**
+         * Enters the execution of a loop.
+         *
+         * @param site the id of the loop.
+         */
+        private void push(final int site) {
+            if (depth == loops.length) {
+                loops = Arrays.copyOf(loops, depth * 2);
+            }
+            Loop loop = loops[depth];
+            if (loop == null) {
+                loop = new Loop();
+                loops[depth] = loop;
+            }
+            loop.reset(site, sink);
+            depth++;
+        }
+
+        /**
+         * Leaves the execution of the innermost loop and emits its
+         * skipped and buffered iterations.
+         */
+        private void pop() {
+            if (depth == 0) {
+                return;
+            }
+            Loop loop = loops[--depth];
+            sink = loop.outer;
+            if (loop.buffering) {
+                loop.flush(this);
+            }
+        }
+
+        /**
+         * Emits an id to the innermost buffering loop or to the trace.
+         *
+         * @param num  the id to emit.
+         * @param time the time at which the id has been recorded.
+         */
+        private void emit(final int num, final long time) {
+            if (sink != null) {
+                sink.append(num, time);
+            } else {
+                record(this, num, time);
+            }
+        }
+    }
+
+    /**
+     * The state of a sampled loop execution. The first iterations are passed
+     * through, later ones are buffered in a ring of the last iterations and
+     * counted when they are dropped from it.
+     */
+    private static final class Loop {
+
+        /**
+         * The id of the loop.
+         */
+        private int site;
+
+        /**
+         * The number of iterations started so far.
+         */
+        private long iterations;
+
+        /**
+         * The number of iterations which have been dropped.
+         */
+        private long skipped;
+
+        /**
+         * Whether the iterations are buffered, i.e. the head has been recorded.
+         */
+        private boolean buffering;
+
+        /**
+         * The buffering loop which received the ids before this loop started.
+         */
+        private Loop outer;
+
+        /**
+         * The ids of the buffered iterations, one slot per iteration.
+         */
+        private final int[][] slots = new int[LOOP_TAIL][];
+
+        /**
+         * The times of the ids of the buffered iterations, only used with timing.
+         */
+        private final long[][] slotTimes = new long[TIMING ? LOOP_TAIL : 0][];
+
+        /**
+         * The number of ids in every slot.
+         */
+        private final int[] sizes = new int[LOOP_TAIL];
+
+        /**
+         * The time at which the first skipped iteration started, only used with timing.
+         */
+        private long skipStart;
+
+        /**
+         * The slot of the oldest buffered iteration.
+         */
+        private int start;
+
+        /**
+         * The number of buffered iterations.
+         */
+        private int filled;
+
+        /**
+         * The slot of the current iteration.
+         */
+        private int slot;
+
+        /**
+         * Prepares this loop for a new execution.
+         *
+         * @param loopSite  the id of the loop.
+         * @param outerSink the buffering loop which receives the ids so far.
+         */
+        private void reset(final int loopSite, final Loop outerSink) {
+            site = loopSite;
+            outer = outerSink;
+            iterations = 0;
+            skipped = 0;
+            buffering = false;
+            start = 0;
+            filled = 0;
+        }
+
+        /**
+         * Starts the next iteration, which is buffered once the head is complete.
+         *
+         * @param owner the recorder of the thread executing the loop.
+         * @param time  the time at which the iteration started.
+         */
+        private void nextIteration(final Recorder owner, final long time) {
+            if (++iterations <= LOOP_HEAD) {
+                return;
+            }
+            if (!buffering) {
+                buffering = true;
+                owner.sink = this;
+            }
+            if (LOOP_TAIL == 0) {
+                if (skipped++ == 0) {
+                    skipStart = time;
+                }
+                return;
+            }
+            if (filled < LOOP_TAIL) {
+                slot = (start + filled++) % LOOP_TAIL;
+            } else {
+                slot = start;
+                start = (start + 1) % LOOP_TAIL;
+                //the dropped iteration started with the id of the loop
+                if (skipped++ == 0 && TIMING) {
+                    skipStart = slotTimes[slot][0];
+                }
+            }
+            sizes[slot] = 0;
+        }
+
+        /**
+         * Buffers an id of the current iteration.
+         *
+         * @param num  the id to buffer.
+         * @param time the time at which the id has been recorded.
+         */
+        private void append(final int num, final long time) {
+            if (LOOP_TAIL == 0) {
+                return;
+            }
+            int[] ids = slots[slot];
+            if (ids == null) {
+                ids = new int[16];
+                slots[slot] = ids;
+                if (TIMING) {
+                    slotTimes[slot] = new long[16];
+                }
+            } else if (sizes[slot] == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+                slots[slot] = ids;
+                if (TIMING) {
+                    slotTimes[slot] = Arrays.copyOf(slotTimes[slot], ids.length);
+                }
+            }
+            if (TIMING) {
+                slotTimes[slot][sizes[slot]] = time;
+            }
+            ids[sizes[slot]++] = num;
+        }
+
+        /**
+         * Emits the number of skipped iterations followed by the buffered iterations.
+         *
+         * @param owner the recorder of the thread executing the loop.
+         */
+        private void flush(final Recorder owner) {
+            //the records of skipped iterations carry the time the first of them started
+            for (long remaining = skipped; remaining > 0; remaining -= MAX_SKIP_RECORD) {
+                owner.emit(-1 - site, skipStart);
+                owner.emit((int) Math.min(remaining, MAX_SKIP_RECORD), skipStart);
+            }
+            for (int i = 0; i < filled; i++) {
+                int index = (start + i) % LOOP_TAIL;
+                for (int j = 0; j < sizes[index]; j++) {
+                    owner.emit(slots[index][j], TIMING ? slotTimes[index][j] : 0L);
+                }
+            }
+        }
+    }
+
+    /**
+     * A full block of ids handed off to the writer thread.
+     */
+    private static final class Block {
+
+        /**
+         * The index of the thread which recorded the ids.
+         */
+        private final int thread;
+
+        /**
+         * The recorded ids.
+         */
+        private final int[] ids;
+
+        /**
+         * The times of the recorded ids, null without timing.
+         */
+        private final long[] times;
+
+        /**
+         * The number of recorded ids.
+         */
+        private final int size;
+
+        /**
+         * Constructs a block.
+         *
+         * @param thread the index of the thread which recorded the ids.
+         * @param ids    the recorded ids.
+         * @param times  the times of the recorded ids, null without timing.
+         * @param size   the number of recorded ids.
+         */
+        private Block(final int thread, final int[] ids, final long[] times, final int size) {
+            this.thread = thread;
+            this.ids = ids;
+            this.times = times;
+            this.size = size;
+        }
+    }
+}
@@ -26,6 +26,17 @@ dependencies {
     implementation("com.google.guava:guava:32.1.1-jre")
     implementation("commons-cli:commons-cli:1.4")
 
+    // The precompiled trace recorder, put on the classpath of the traced programs
+    implementation(project(":prorunvis-runtime"))
+
+    // The agent instrumenting compiled classes while they are loaded, put on the classpath of the traced programs
+    implementation(project(":prorunvis-agent"))
+
+    // ASM relocated into the jar of the agent, which is written before the first program is traced by it
+    implementation("org.ow2.asm:asm:9.8")
+    implementation("org.ow2.asm:asm-tree:9.8")
+    implementation("org.ow2.asm:asm-commons:9.8")
+
     // Dependency for the java parser used in this project
     implementation ("com.github.javaparser:javaparser-symbol-solver-core:3.25.6")
 }
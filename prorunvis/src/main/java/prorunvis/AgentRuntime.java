@@ -0,0 +1,146 @@
+package prorunvis;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.tree.ClassNode;
+import prorunvis.agent.TraceAgent;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+/**
+ * This utility class builds the jar of the {@link TraceAgent} of the prorunvis-agent module,
+ * which is passed to {@code -javaagent} of a program traced by the agent, like {@link TraceRuntime}
+ * locates the recorder. The jar contains the agent and the parts of ASM used by it, with ASM
+ * relocated to the package {@code prorunvis.agent.asm}, so it does not clash with a version of
+ * ASM brought along by the traced program.
+ */
+public final class AgentRuntime {
+
+    /**
+     * The prefix of the file name of the agent jar.
+     */
+    private static final String AGENT_JAR = "prorunvis-agent";
+
+    /**
+     * The internal name of the package of ASM.
+     */
+    private static final String ASM = "org/objectweb/asm/";
+
+    /**
+     * The internal name of the package ASM is relocated to within the agent jar.
+     */
+    private static final String RELOCATED_ASM = "prorunvis/agent/asm/";
+
+    /**
+     * Relocates the references to ASM.
+     */
+    private static final Remapper RELOCATION = new Remapper() {
+        @Override
+        public String map(final String internalName) {
+            return internalName.startsWith(ASM) ? RELOCATED_ASM + internalName.substring(ASM.length()) : internalName;
+        }
+    };
+
+    /**
+     * The jar passed to {@code -javaagent}, created on first use.
+     */
+    private static Path agentJar;
+
+    private AgentRuntime() {
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Gets the jar to pass to {@code -javaagent}. Its manifest names the agent class, and it
+     * contains the classes of the agent and of ASM, read from the class directories or jars
+     * they have been loaded from, even if they have been bundled into another jar. As the JVM
+     * puts the jar on the classpath of the program, nothing else has to be added to it.
+     *
+     * @return the path of the jar.
+     * @throws IOException if the classes of the agent could not be located or the jar could not be written.
+     */
+    public static synchronized Path getAgentJar() throws IOException {
+        if (agentJar == null) {
+            Path jar = Files.createTempFile(AGENT_JAR, ".jar");
+            jar.toFile().deleteOnExit();
+            Manifest manifest = new Manifest();
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            manifest.getMainAttributes().putValue("Premain-Class", TraceAgent.class.getName());
+            try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+                for (Class<?> type : List.of(TraceAgent.class, ClassReader.class, ClassNode.class)) {
+                    Path location = locate(type);
+                    if (location == null) {
+                        throw new IOException("Could not locate the classes of " + type.getName());
+                    }
+                    relocate(location, type.getPackageName().replace('.', '/'), out);
+                }
+            }
+            agentJar = jar;
+        }
+        return agentJar;
+    }
+
+    /**
+     * Gets the location from which a class has been loaded.
+     *
+     * @param type the class.
+     * @return the location as local path, null if it is not a local file.
+     */
+    private static Path locate(final Class<?> type) {
+        CodeSource source = type.getProtectionDomain().getCodeSource();
+        if (source == null) {
+            return null;
+        }
+        URL location = source.getLocation();
+        try {
+            return Paths.get(location.toURI());
+        } catch (URISyntaxException | FileSystemNotFoundException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Copies the class files of a package, without its subpackages, into the agent jar
+     * and relocates their references to ASM.
+     *
+     * @param location    the class directory or jar containing the package.
+     * @param packagePath the path of the package within the location.
+     * @param out         the agent jar.
+     * @throws IOException if a class file could not be read or written.
+     */
+    private static void relocate(final Path location, final String packagePath, final JarOutputStream out)
+            throws IOException {
+        try (FileSystem fileSystem = Files.isDirectory(location) ? null : FileSystems.newFileSystem(location);
+             Stream<Path> files = Files.list(fileSystem == null
+                     ? location.resolve(packagePath) : fileSystem.getPath(packagePath))) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(".class")) {
+                    continue;
+                }
+                ClassWriter writer = new ClassWriter(0);
+                new ClassReader(Files.readAllBytes(file)).accept(new ClassRemapper(writer, RELOCATION), 0);
+                out.putNextEntry(new JarEntry(RELOCATION.map(packagePath + "/" + name)));
+                out.write(writer.toByteArray());
+                out.closeEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package prorunvis;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Thrown by the {@link SourceCompiler} if the sources could not be compiled,
+ * holding the diagnostics reported by the compiler.
+ */
+public class CompilationException extends IOException {
+
+    /**
+     * The version of the serialized form.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The diagnostics reported by the compiler, including warnings.
+     */
+    private final transient List<Diagnostic<? extends JavaFileObject>> diagnostics;
+
+    /**
+     * Creates an exception with the errors of the diagnostics as message.
+     *
+     * @param diagnostics the diagnostics reported by the compiler.
+     */
+    public CompilationException(final List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+        super("An error occurred during compilation.\n" + diagnostics.stream()
+                .filter(diagnostic -> diagnostic.getKind() == Diagnostic.Kind.ERROR)
+                .map(Object::toString)
+                .collect(Collectors.joining("\n")));
+        this.diagnostics = List.copyOf(diagnostics);
+    }
+
+    /**
+     * Returns the diagnostics reported by the compiler, each with its kind, source file,
+     * position and message.
+     *
+     * @return the diagnostics, including warnings.
+     */
+    public List<Diagnostic<? extends JavaFileObject>> getDiagnostics() {
+        return diagnostics;
+    }
+}
@@ -1,14 +1,21 @@
 package prorunvis;
 
 import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.ImportDeclaration;
 import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import prorunvis.agent.SiteLocations;
+import prorunvis.trace.process.Scanner;
+import prorunvis.trace.process.TraceFormat;
 
 import java.io.*;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -16,6 +23,17 @@ import java.util.stream.Collectors;
  */
 public final class CompileAndRun {
 
+    /**
+     * The names of the methods ending the JVM.
+     */
+    private static final Set<String> ENDING_CALLS = Set.of("exit", "halt");
+
+    /**
+     * The names of the methods calling other methods by reflection, which may end the JVM.
+     */
+    private static final Set<String> REFLECTIVE_CALLS = Set.of("getMethod", "getDeclaredMethod",
+            "getMethods", "getDeclaredMethods", "findStatic", "findVirtual");
+
     private CompileAndRun() {
         throw new IllegalStateException();
     }
@@ -25,18 +43,304 @@ public final class CompileAndRun {
      * @param cus a List of CompilationUnit with possibly one having a main method
      * @param instrumentedInPath path to instrumented source
      * @param compiledOutPath where compiled classes go
+     * @return true if the program has been stopped because its trace exceeded its budget
      * @throws IOException if compilation fails due to I/O
      * @throws InterruptedException if process is interrupted
      */
-    public static void run(final List<CompilationUnit> cus,
-                           final String instrumentedInPath, final String compiledOutPath)
+    public static boolean run(final List<CompilationUnit> cus,
+                              final String instrumentedInPath, final String compiledOutPath)
             throws IOException, InterruptedException {
-        File compiled = new File(compiledOutPath);
-        if (!compiled.exists() && !compiled.mkdirs()) {
-            throw new IOException("Failed to create compiled output directory: " + compiledOutPath);
+        return run(cus, instrumentedInPath, compiledOutPath, List.of());
+    }
+
+    /**
+     * Same as {@link #run(List, String, String)}, passing additional arguments to the JVM
+     * running the program, e.g. to override the options of the recorder.
+     * @param cus a List of CompilationUnit with possibly one having a main method
+     * @param instrumentedInPath path to instrumented source
+     * @param compiledOutPath where compiled classes go
+     * @param jvmArguments the arguments passed to the JVM before the main class
+     * @return true if the program has been stopped because its trace exceeded its budget
+     * @throws IOException if compilation fails due to I/O
+     * @throws InterruptedException if process is interrupted
+     */
+    public static boolean run(final List<CompilationUnit> cus,
+                              final String instrumentedInPath, final String compiledOutPath,
+                              final List<String> jvmArguments)
+            throws IOException, InterruptedException {
+        return finish(start(cus, instrumentedInPath, compiledOutPath, jvmArguments),
+                Paths.get(compiledOutPath, TraceFormat.FILE_NAME));
+    }
+
+    /**
+     * Compile the provided compilation units and start their main class without waiting
+     * for it to exit, so its trace can be processed while it runs.
+     * @param cus a List of CompilationUnit with possibly one having a main method
+     * @param instrumentedInPath path to instrumented source
+     * @param compiledOutPath where compiled classes go
+     * @param jvmArguments the arguments passed to the JVM before the main class
+     * @return the running program, to be passed to {@link #finish(Process)}
+     * @throws IOException if compilation fails due to I/O
+     * @throws InterruptedException if process is interrupted
+     */
+    public static Process start(final List<CompilationUnit> cus,
+                                final String instrumentedInPath, final String compiledOutPath,
+                                final List<String> jvmArguments)
+            throws IOException, InterruptedException {
+        String mainClass = findMainClass(cus);
+
+        //the trace recorder is precompiled, so it is only put on the classpath
+        String runtime = TraceRuntime.getClasspath().toAbsolutePath().toString();
+        compile(List.of("-g", "-cp", runtime), instrumentedInPath, compiledOutPath);
+
+        // Run
+        //the process is started inside the output directory, so the classpath has to be absolute,
+        //the instrumented sources are included for the recorder options saved next to them
+        String classpath = new File(compiledOutPath).getAbsolutePath() + File.pathSeparator
+                + new File(instrumentedInPath).getAbsolutePath() + File.pathSeparator + runtime;
+        return launch(jvmArguments, classpath, mainClass, compiledOutPath);
+    }
+
+    /**
+     * Compile instrumented source code which has not been saved, see
+     * {@link prorunvis.instrument.Instrumenter#getInstrumentedSources}, and start the main class
+     * without waiting for it to exit. The options of the recorder have to be saved to the output
+     * directory by {@link prorunvis.instrument.Instrumenter#saveOptions(String,
+     * prorunvis.instrument.RecorderOptions)} before.
+     * @param cus a List of CompilationUnit with possibly one having a main method
+     * @param sources the instrumented source code by the path of its file relative to the source root
+     * @param compiledOutPath where compiled classes go
+     * @param jvmArguments the arguments passed to the JVM before the main class
+     * @return the running program, to be passed to {@link #finish(Process)}
+     * @throws CompilationException if the sources could not be compiled
+     * @throws IOException if compilation fails due to I/O or the program could not be started
+     */
+    public static Process startFromSources(final List<CompilationUnit> cus, final Map<String, String> sources,
+                                           final String compiledOutPath, final List<String> jvmArguments)
+            throws IOException {
+        String mainClass = findMainClass(cus);
+        String runtime = TraceRuntime.getClasspath().toAbsolutePath().toString();
+        SourceCompiler.compile(List.of("-g", "-cp", runtime), sources, Paths.get(compiledOutPath));
+        System.out.println("Compilation succeeded with all .java files!");
+
+        //the recorder options are saved next to the compiled classes
+        String classpath = new File(compiledOutPath).getAbsolutePath() + File.pathSeparator + runtime;
+        return launch(jvmArguments, classpath, mainClass, compiledOutPath);
+    }
+
+    /**
+     * Compile the provided compilation units and start their main class within this JVM,
+     * see {@link InProcessProgram}, without waiting for it to exit.
+     * @param cus a List of CompilationUnit with possibly one having a main method
+     * @param instrumentedInPath path to instrumented source
+     * @param compiledOutPath where compiled classes go, and the trace is written to
+     * @param jvmArguments system properties overriding the options of the recorder
+     * @param timeout the time after which the program is interrupted, null for no limit
+     * @return the running program, to be passed to {@link #finish(Process)}
+     * @throws IOException if compilation fails due to I/O
+     */
+    public static Process startInProcess(final List<CompilationUnit> cus,
+                                         final String instrumentedInPath, final String compiledOutPath,
+                                         final List<String> jvmArguments, final Duration timeout)
+            throws IOException {
+        String mainClass = findMainClass(cus);
+        Path runtime = TraceRuntime.getClasspath().toAbsolutePath();
+        compile(List.of("-g", "-cp", runtime.toString()), instrumentedInPath, compiledOutPath);
+
+        Path compiled = Paths.get(compiledOutPath);
+        return InProcessProgram.start(List.of(compiled, Paths.get(instrumentedInPath), runtime), Map.of(),
+                mainClass, jvmArguments, compiled, timeout);
+    }
+
+    /**
+     * Compile the provided compilation units and run their main class by a worker JVM of a
+     * {@link WorkerPool}, without starting a new JVM.
+     * @param cus a List of CompilationUnit with possibly one having a main method
+     * @param instrumentedInPath path to instrumented source
+     * @param compiledOutPath where compiled classes go, and the trace is written to
+     * @param jvmArguments system properties overriding the options of the recorder
+     * @param timeout the time after which the program is interrupted, null for no limit
+     * @param pool the pool of the worker running the program
+     * @return the running program, to be passed to {@link #finish(Process)}
+     * @throws IOException if compilation fails due to I/O or the pool has been closed
+     * @throws InterruptedException if interrupted while waiting for an idle worker
+     */
+    public static Process startInPool(final List<CompilationUnit> cus,
+                                      final String instrumentedInPath, final String compiledOutPath,
+                                      final List<String> jvmArguments, final Duration timeout,
+                                      final WorkerPool pool)
+            throws IOException, InterruptedException {
+        String mainClass = findMainClass(cus);
+        Path runtime = TraceRuntime.getClasspath().toAbsolutePath();
+        compile(List.of("-g", "-cp", runtime.toString()), instrumentedInPath, compiledOutPath);
+
+        Path compiled = Paths.get(compiledOutPath);
+        return pool.start(List.of(compiled, Paths.get(instrumentedInPath), runtime), Map.of(),
+                mainClass, jvmArguments, compiled, timeout);
+    }
+
+    /**
+     * Compile instrumented source code which has not been saved in memory, and start the main class
+     * within this JVM like {@link #startInProcess}. The options of the recorder have to be saved to
+     * the output directory as for {@link #startFromSources}.
+     * @param cus a List of CompilationUnit with possibly one having a main method
+     * @param sources the instrumented source code by the path of its file relative to the source root
+     * @param compiledOutPath where the options of the recorder are saved, and the trace is written to
+     * @param jvmArguments system properties overriding the options of the recorder
+     * @param timeout the time after which the program is interrupted, null for no limit
+     * @return the running program, to be passed to {@link #finish(Process)}
+     * @throws CompilationException if the sources could not be compiled
+     * @throws IOException if compilation fails due to I/O
+     */
+    public static Process startFromSourcesInProcess(final List<CompilationUnit> cus,
+                                                    final Map<String, String> sources,
+                                                    final String compiledOutPath,
+                                                    final List<String> jvmArguments, final Duration timeout)
+            throws IOException {
+        String mainClass = findMainClass(cus);
+        Path runtime = TraceRuntime.getClasspath().toAbsolutePath();
+        Map<String, byte[]> classes = SourceCompiler.compile(List.of("-g", "-cp", runtime.toString()),
+                sources, null);
+        System.out.println("Compilation succeeded with all .java files!");
+
+        Path compiled = Paths.get(compiledOutPath);
+        return InProcessProgram.start(List.of(compiled, runtime), classes, mainClass, jvmArguments,
+                compiled, timeout);
+    }
+
+    /**
+     * Compile instrumented source code which has not been saved in memory, and run the main class
+     * by a worker JVM of a {@link WorkerPool}, without starting a new JVM. The options of the
+     * recorder have to be saved to the output directory as for {@link #startFromSources}.
+     * @param cus a List of CompilationUnit with possibly one having a main method
+     * @param sources the instrumented source code by the path of its file relative to the source root
+     * @param compiledOutPath where the options of the recorder are saved, and the trace is written to
+     * @param jvmArguments system properties overriding the options of the recorder
+     * @param timeout the time after which the program is interrupted, null for no limit
+     * @param pool the pool of the worker running the program
+     * @return the running program, to be passed to {@link #finish(Process)}
+     * @throws CompilationException if the sources could not be compiled
+     * @throws IOException if compilation fails due to I/O or the pool has been closed
+     * @throws InterruptedException if interrupted while waiting for an idle worker
+     */
+    public static Process startFromSourcesInPool(final List<CompilationUnit> cus,
+                                                 final Map<String, String> sources,
+                                                 final String compiledOutPath, final List<String> jvmArguments,
+                                                 final Duration timeout, final WorkerPool pool)
+            throws IOException, InterruptedException {
+        String mainClass = findMainClass(cus);
+        Path runtime = TraceRuntime.getClasspath().toAbsolutePath();
+        Map<String, byte[]> classes = SourceCompiler.compile(List.of("-g", "-cp", runtime.toString()),
+                sources, null);
+        System.out.println("Compilation succeeded with all .java files!");
+
+        Path compiled = Paths.get(compiledOutPath);
+        return pool.start(List.of(compiled, runtime), classes, mainClass, jvmArguments, compiled, timeout);
+    }
+
+    /**
+     * Checks whether the provided compilation units can be run within this JVM or a worker of a
+     * {@link WorkerPool}. This is not the case if they may call System.exit or Runtime.halt, which
+     * would end prorunvis or the worker as well. As the calls can not be resolved without a symbol
+     * solver, every call of a method named exit or halt on any object counts, as well as calls by a
+     * static import of System and the use of reflection. This only protects against mistakes,
+     * in-process runs are meant for trusted code.
+     * @param cus the compilation units of the program
+     * @return false if the code may call a method ending the JVM
+     */
+    public static boolean canRunInProcess(final List<CompilationUnit> cus) {
+        for (CompilationUnit cu : cus) {
+            boolean importsExit = false;
+            for (ImportDeclaration declaration : cu.getImports()) {
+                String name = declaration.getNameAsString();
+                if (name.startsWith("java.lang.reflect") || name.startsWith("java.lang.invoke")) {
+                    return false;
+                }
+                importsExit |= declaration.isStatic() && (name.equals("java.lang.System.exit")
+                        || declaration.isAsterisk() && name.equals("java.lang.System"));
+            }
+            boolean unscoped = importsExit;
+            if (cu.findFirst(MethodCallExpr.class, call -> ENDING_CALLS.contains(call.getNameAsString())
+                    && (call.getScope().isPresent() || unscoped)
+                    || REFLECTIVE_CALLS.contains(call.getNameAsString())).isPresent()) {
+                return false;
+            }
         }
+        return true;
+    }
+
+    /**
+     * Compile the unchanged sources of the provided compilation units for the
+     * {@link prorunvis.agent.TraceAgent} and start their main class with the agent, which
+     * injects the trace calls while the classes are loaded. The sites have to be saved to
+     * the output directory by {@link prorunvis.instrument.Instrumenter#saveSites} before.
+     * @param cus a List of CompilationUnit with possibly one having a main method
+     * @param sourceInPath path to the unchanged source
+     * @param compiledOutPath where compiled classes go
+     * @param jvmArguments the arguments passed to the JVM before the main class
+     * @return the running program, to be passed to {@link #finish(Process)}
+     * @throws IOException if compilation fails due to I/O
+     * @throws InterruptedException if process is interrupted
+     */
+    public static Process startWithAgent(final List<CompilationUnit> cus,
+                                         final String sourceInPath, final String compiledOutPath,
+                                         final List<String> jvmArguments)
+            throws IOException, InterruptedException {
+        //the character range table locates the code blocks of the sites in the compiled code
+        compile(List.of("-g", "-Xjcov"), sourceInPath, compiledOutPath);
+        return restartWithAgent(cus, sourceInPath, compiledOutPath, jvmArguments);
+    }
+
+    /**
+     * Start the main class of the provided compilation units, compiled by
+     * {@link #startWithAgent} before, with the agent again without compiling it.
+     * @param cus a List of CompilationUnit with possibly one having a main method
+     * @param sourceInPath path to the unchanged source
+     * @param compiledOutPath where the compiled classes are
+     * @param jvmArguments the arguments passed to the JVM before the main class
+     * @return the running program, to be passed to {@link #finish(Process)}
+     * @throws IOException if the program could not be started
+     */
+    public static Process restartWithAgent(final List<CompilationUnit> cus,
+                                           final String sourceInPath, final String compiledOutPath,
+                                           final List<String> jvmArguments)
+            throws IOException {
+        File compiled = new File(compiledOutPath);
+        File sites = new File(compiled, "prorunvis/" + SiteLocations.FILE_NAME);
+        List<String> arguments = new ArrayList<>(jvmArguments);
+        arguments.add("-javaagent:" + AgentRuntime.getAgentJar().toAbsolutePath() + "=" + sites.getAbsolutePath());
+
+        //the recorder options are saved next to the compiled classes, the agent jar is added by the JVM
+        String classpath = compiled.getAbsolutePath() + File.pathSeparator
+                + TraceRuntime.getClasspath().toAbsolutePath();
+        return launch(arguments, classpath, findMainClass(cus), compiledOutPath);
+    }
+
+    /**
+     * Compile all java files below the given directory with the {@link SourceCompiler}.
+     * @param javacOptions the options passed to javac
+     * @param sourceInPath path to the source
+     * @param compiledOutPath where compiled classes go
+     * @throws CompilationException if the sources could not be compiled
+     * @throws IOException if compilation fails due to I/O
+     */
+    private static void compile(final List<String> javacOptions,
+                                final String sourceInPath, final String compiledOutPath)
+            throws IOException {
+        List<String> options = new ArrayList<>(javacOptions);
+        options.add("-sourcepath");
+        options.add(sourceInPath);
+        SourceCompiler.compile(options, Paths.get(sourceInPath), Paths.get(compiledOutPath));
+
+        System.out.println("Compilation succeeded with all .java files!");
+    }
 
-        // Find main class
+    /**
+     * Find the main class among the provided compilation units.
+     * @param cus a List of CompilationUnit with possibly one having a main method
+     * @return the fully qualified name of the main class
+     */
+    private static String findMainClass(final List<CompilationUnit> cus) {
         List<CompilationUnit> mains = cus.stream()
                 .filter(cu -> cu.findFirst(MethodDeclaration.class,
                         m -> m.getNameAsString().equals("main")).isPresent())
@@ -45,62 +349,96 @@ public final class CompileAndRun {
             throw new RuntimeException("No main method found in the instrumented code. Cannot run.");
         }
 
+        // Derive the main class name from its file and package
         CompilationUnit mainUnit = mains.get(0);
-        String fileName = mainUnit.getStorage().get().getFileName();
-        Path sourcePath = mainUnit.getStorage().get().getDirectory();
-
-        // Compile
-        File instrDir = new File(instrumentedInPath);
-        List<String> allJavaFiles = new ArrayList<>();
-
-        Files.walk(instrDir.toPath())
-                .filter(p -> p.toString().endsWith(".java"))
-                .forEach(p -> allJavaFiles.add(p.toAbsolutePath().toString()));
-
-        List<String> command = new ArrayList<>();
-        command.add("javac");
-        command.add("-g");  // Add this flag to preserve debug symbols (variable names, etc.)
-        command.add("-sourcepath");
-        command.add(instrumentedInPath);
-        command.add("-d");
-        command.add(compiledOutPath);
-        command.addAll(allJavaFiles);
-        ProcessBuilder compilePb = new ProcessBuilder(command);
-        Process compileProc = compilePb.start();
-        int compileExit = compileProc.waitFor();
-        if (compileExit != 0) {
-            String compileError = new BufferedReader(new InputStreamReader(compileProc.getErrorStream()))
-                    .lines().collect(Collectors.joining("\n"));
-            throw new InterruptedException("An error occurred during compilation.\n" + compileError);
-        }
-
-        System.out.println("Compilation succeeded with all .java files!");
-        // Derive the main class name
-        // Convert the path difference to a package name
-        String prefix = Paths.get(instrumentedInPath).toAbsolutePath().toString();
-        String fullPath = sourcePath.toAbsolutePath().toString();
-        String packageName = "";
-        if (fullPath.length() > prefix.length()) {
-            packageName = fullPath.substring(prefix.length())
-                    .replace(File.separatorChar, '.');
-            if (packageName.startsWith(".")) {
-                packageName = packageName.substring(1);
-            }
-        }
-        String mainClass = packageName.isEmpty() ? fileName.replace(".java", "") : packageName + "." + fileName.replace(".java", "");
+        String className = mainUnit.getStorage().get().getFileName().replace(".java", "");
+        return mainUnit.getPackageDeclaration()
+                .map(declaration -> declaration.getNameAsString() + "." + className)
+                .orElse(className);
+    }
 
-        // Run
-        ProcessBuilder runPb = new ProcessBuilder("java", "-cp", compiledOutPath, mainClass);
+    /**
+     * Start a compiled main class inside the output directory.
+     * @param jvmArguments the arguments passed to the JVM before the main class
+     * @param classpath the absolute classpath of the program
+     * @param mainClass the fully qualified name of the main class
+     * @param compiledOutPath where the compiled classes are
+     * @return the running program
+     * @throws IOException if the program could not be started
+     */
+    private static Process launch(final List<String> jvmArguments, final String classpath,
+                                  final String mainClass, final String compiledOutPath)
+            throws IOException {
+        List<String> runCommand = new ArrayList<>();
+        runCommand.add("java");
+        runCommand.addAll(jvmArguments);
+        runCommand.add("-cp");
+        runCommand.add(classpath);
+        runCommand.add(mainClass);
+        ProcessBuilder runPb = new ProcessBuilder(runCommand);
         runPb.directory(new File(compiledOutPath));// Run from the instrumented directory
         Process runProc = runPb.start();
-        System.out.println("Running: java -cp " + compiledOutPath + " " + mainClass);
+        System.out.println("Running: " + String.join(" ", runCommand));
+        return runProc;
+    }
+
+    /**
+     * Wait for a program started by {@link #start} to exit and print its errors. The truncation of
+     * the trace can only be confirmed for a program run within this JVM or by a worker of a
+     * {@link WorkerPool}, which know their trace file, see {@link #finish(Process, Path)}.
+     * @param runProc the running program
+     * @return true if the program has been stopped because its trace exceeded its budget,
+     * so only the start of the run has been recorded
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public static boolean finish(final Process runProc) throws InterruptedException {
+        Path traceFile = null;
+        if (runProc instanceof InProcessProgram program) {
+            traceFile = program.getTraceFile();
+        } else if (runProc instanceof WorkerPool.Program program) {
+            traceFile = program.getTraceFile();
+        }
+        return finish(runProc, traceFile);
+    }
+
+    /**
+     * Wait for a program to exit and print its errors. A program stopped by the recorder exits
+     * with {@link TraceFormat#TRUNCATED_EXIT_CODE}, but as the program may exit with this code by
+     * itself, the truncation is only reported if the trace contains the truncation record.
+     * @param runProc the running program
+     * @param traceFile the complete trace file written or received from the program,
+     *                  null if it is unknown
+     * @return true if the program has been stopped because its trace exceeded its budget,
+     * so only the start of the run has been recorded
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public static boolean finish(final Process runProc, final Path traceFile) throws InterruptedException {
         int runExit = runProc.waitFor();
-        if (runExit != 0) {
+        boolean truncated = runExit == TraceFormat.TRUNCATED_EXIT_CODE && traceFile != null
+                && isTruncated(traceFile);
+        if (runExit != 0 && !truncated) {
             String runError = new BufferedReader(new InputStreamReader(runProc.getErrorStream()))
                     .lines().collect(Collectors.joining("\n"));
             if (!runError.isEmpty()) {
                 System.out.println("There was an error running the input code.\n" + runError);
             }
         }
+        return truncated;
+    }
+
+    /**
+     * Checks whether the recorder truncated a trace, by reading its truncation record.
+     * @param traceFile the trace file
+     * @return true if the trace has been truncated, false if it is complete or could not be read
+     */
+    private static boolean isTruncated(final Path traceFile) {
+        Scanner scanner = new Scanner(traceFile.toString());
+        try {
+            scanner.readThreads();
+            scanner.finish();
+        } catch (IOException e) {
+            return false;
+        }
+        return scanner.isTruncated();
     }
-}
\ No newline at end of file
+}
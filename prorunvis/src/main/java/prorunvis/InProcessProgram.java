@@ -0,0 +1,679 @@
+package prorunvis;
+
+import prorunvis.trace.process.TraceFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A traced program running within the JVM of prorunvis instead of a process of its own, which
+ * saves the startup and warm-up of a JVM for every run. The classes of the program and of the
+ * trace recorder are loaded by a class loader of their own, which is discarded after the run, so
+ * every run starts with a new recorder writing to its own trace file. The program runs in a thread
+ * group of its own, whose output to System.out and System.err is captured, and whose threads are
+ * interrupted once the program exceeds its time limit.
+ * As it behaves like a {@link Process}, the program can be waited for by
+ * {@link CompileAndRun#finish(Process)} and stream its trace to a
+ * {@link prorunvis.trace.process.TraceReceiver}. Programs calling System.exit can not be run
+ * this way, see {@link CompileAndRun#canRunInProcess}.
+ * As the program shares the JVM with prorunvis, this is only meant for trusted code. If threads
+ * of a program are still running after they have been interrupted, its class loader can not be
+ * discarded, and no further program is run within this JVM.
+ */
+public final class InProcessProgram extends Process {
+
+    /**
+     * The resource the recorder reads its options from.
+     */
+    private static final String TRACE_CONFIGURATION = "prorunvis/trace.properties";
+
+    /**
+     * The prefix of the system properties overriding the options of the recorder.
+     */
+    private static final String OPTION_PREFIX = "-Dprorunvis.trace.";
+
+    /**
+     * The name of the error stopping the threads of a program which exceeded the budget of its trace.
+     */
+    private static final String STOPPED = "prorunvis.Trace$Stopped";
+
+    /**
+     * The name of the thread writing the trace, which is not interrupted, as that would close the trace file.
+     */
+    private static final String WRITER = "prorunvis-trace-writer";
+
+    /**
+     * The maximum number of bytes captured from each of the output streams of a program,
+     * further output is dropped.
+     */
+    private static final int MAX_OUTPUT = 1 << 20;
+
+    /**
+     * The time the threads of a program are given to end after they have been interrupted.
+     */
+    private static final Duration GRACE = Duration.ofSeconds(1);
+
+    /**
+     * The running programs, by their thread group.
+     */
+    private static final Map<ThreadGroup, InProcessProgram> RUNNING = new ConcurrentHashMap<>();
+
+    /**
+     * The number of programs started so far, naming their threads.
+     */
+    private static final AtomicInteger STARTED = new AtomicInteger();
+
+    /**
+     * The original System.out while it is replaced by a stream routing the output of the
+     * running programs to their captures, null otherwise.
+     */
+    private static PrintStream originalOut;
+
+    /**
+     * The original System.err while it is replaced, null otherwise.
+     */
+    private static PrintStream originalErr;
+
+    /**
+     * The stream replacing System.out while programs are running.
+     */
+    private static PrintStream routedOut;
+
+    /**
+     * The stream replacing System.err while programs are running.
+     */
+    private static PrintStream routedErr;
+
+    /**
+     * The name of the thread group of a program whose threads did not end, null if there is none.
+     */
+    private static volatile String leaked;
+
+    /**
+     * The thread group of the program, containing all of its threads.
+     */
+    private final ThreadGroup group;
+
+    /**
+     * The class loader of the program and its recorder.
+     */
+    private final ProgramClassLoader loader;
+
+    /**
+     * The file the recorder of the program writes the trace to.
+     */
+    private final Path traceFile;
+
+    /**
+     * The captured output of the program to System.out.
+     */
+    private final Capture out = new Capture();
+
+    /**
+     * The captured output of the program to System.err.
+     */
+    private final Capture err = new Capture();
+
+    /**
+     * Counted down once the program finished and its trace has been written.
+     */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * The exit code of the program, 1 if a thread ended with an exception, or
+     * {@link TraceFormat#TRUNCATED_EXIT_CODE} if it has been stopped by the recorder.
+     */
+    private volatile int exitCode;
+
+    /**
+     * Creates a program.
+     *
+     * @param loader    the class loader of the program.
+     * @param traceFile the file the recorder of the program writes the trace to.
+     */
+    private InProcessProgram(final ProgramClassLoader loader, final Path traceFile) {
+        this.loader = loader;
+        this.traceFile = traceFile;
+        this.group = new ThreadGroup("prorunvis-program-" + STARTED.incrementAndGet()) {
+            @Override
+            public void uncaughtException(final Thread thread, final Throwable e) {
+                //a thread stopped by the recorder ends like the program called System.exit
+                if (e.getClass().getName().equals(STOPPED)) {
+                    exitCode = TraceFormat.TRUNCATED_EXIT_CODE;
+                } else {
+                    exitCode = 1;
+                    super.uncaughtException(thread, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts the main class of a program within the JVM of prorunvis.
+     *
+     * @param classpath    the classpath of the program, including the trace recorder.
+     * @param classes      classes of the program which have been compiled in memory, by their binary name.
+     * @param mainClass    the fully qualified name of the main class.
+     * @param jvmArguments the arguments which would be passed to the JVM running the program, only
+     *                     system properties overriding the options of the recorder are supported.
+     * @param directory    the directory the trace file is written to, like the working directory of a process.
+     * @param timeout      the time after which the threads of the program are interrupted, null for no limit.
+     * @return the running program.
+     * @throws IOException if the classpath is invalid.
+     * @throws IllegalArgumentException if an argument for the JVM is not supported.
+     * @throws IllegalStateException if threads of an earlier program are still running.
+     */
+    public static InProcessProgram start(final List<Path> classpath, final Map<String, byte[]> classes,
+                                         final String mainClass, final List<String> jvmArguments,
+                                         final Path directory, final Duration timeout) throws IOException {
+        if (leaked != null) {
+            throw new IllegalStateException("The threads of the program " + leaked + " did not end, "
+                    + "no further program can be run within this JVM until it is restarted.");
+        }
+        Properties overrides = new Properties();
+        for (String argument : jvmArguments) {
+            int separator = argument.indexOf('=');
+            if (!argument.startsWith(OPTION_PREFIX) || separator < 0) {
+                throw new IllegalArgumentException("Unsupported argument for a program run in process: " + argument);
+            }
+            overrides.setProperty(argument.substring(OPTION_PREFIX.length(), separator),
+                    argument.substring(separator + 1));
+        }
+        Path traceFile = directory.resolve(TraceFormat.FILE_NAME).toAbsolutePath();
+        overrides.setProperty("file", traceFile.toString());
+        overrides.setProperty("inProcess", "true");
+
+        URL[] urls = new URL[classpath.size()];
+        for (int i = 0; i < urls.length; i++) {
+            try {
+                urls[i] = classpath.get(i).toUri().toURL();
+            } catch (MalformedURLException e) {
+                throw new IOException("Invalid classpath entry " + classpath.get(i), e);
+            }
+        }
+
+        InProcessProgram program = new InProcessProgram(new ProgramClassLoader(urls, classes, overrides), traceFile);
+        routeOutput(program);
+        Thread supervisor = new Thread(() -> program.supervise(mainClass, timeout),
+                program.group.getName() + "-supervisor");
+        supervisor.setDaemon(true);
+        supervisor.start();
+        return program;
+    }
+
+    /**
+     * Runs the main method of the program and waits for its threads to end, like the JVM waits
+     * for all threads which are not daemons. Then the trace is written, the remaining daemon threads
+     * are interrupted and the class loader is closed, unless some of its threads did not end.
+     *
+     * @param mainClass the fully qualified name of the main class.
+     * @param timeout   the time after which the threads of the program are interrupted, null for no limit.
+     */
+    private void supervise(final String mainClass, final Duration timeout) {
+        try {
+            Thread main = new Thread(group, () -> runMain(mainClass), "main");
+            //threads inherit being a daemon from the supervisor, but the JVM waits for its main thread
+            main.setDaemon(false);
+            main.setContextClassLoader(loader);
+            main.start();
+
+            long deadline = timeout == null ? Long.MAX_VALUE : System.nanoTime() + timeout.toNanos();
+            if (!awaitThreads(deadline, false)) {
+                err.println("prorunvis: the program exceeded its time limit of " + timeout.toMillis()
+                        + " ms and has been interrupted.");
+                exitCode = 1;
+                interrupt();
+                awaitThreads(System.nanoTime() + GRACE.toNanos(), false);
+            }
+            shutdownRecorder();
+            //daemon threads would keep the class loader alive as well
+            if (!awaitThreads(System.nanoTime(), true)) {
+                interrupt();
+                if (!awaitThreads(System.nanoTime() + GRACE.toNanos(), true)) {
+                    leaked = group.getName();
+                    exitCode = 1;
+                    err.println("prorunvis: " + group.activeCount() + " threads of the program did not end, "
+                            + "no further program can be run within this JVM.");
+                }
+            }
+        } finally {
+            if (!isLeaked()) {
+                unrouteOutput(this);
+                try {
+                    loader.close();
+                } catch (IOException ignored) {
+                }
+            }
+            done.countDown();
+        }
+    }
+
+    /**
+     * Loads the main class and runs its main method, within the thread group of the program.
+     *
+     * @param mainClass the fully qualified name of the main class.
+     */
+    private void runMain(final String mainClass) {
+        try {
+            Method main = Class.forName(mainClass, true, loader).getMethod("main", String[].class);
+            //like the java launcher, the main class does not have to be public
+            main.setAccessible(true);
+            main.invoke(null, (Object) new String[0]);
+        } catch (InvocationTargetException e) {
+            group.uncaughtException(Thread.currentThread(), e.getCause());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            err.println("Error: Could not find or load main class " + mainClass + "\n" + e);
+            exitCode = 1;
+        }
+    }
+
+    /**
+     * Waits for the threads of the program to end.
+     *
+     * @param deadline the {@link System#nanoTime()} until which to wait.
+     * @param daemons  whether to wait for daemon threads as well.
+     * @return true if the threads ended, false if the deadline passed.
+     */
+    private boolean awaitThreads(final long deadline, final boolean daemons) {
+        while (true) {
+            Thread[] threads = new Thread[group.activeCount() + 1];
+            int count = group.enumerate(threads);
+            Thread running = null;
+            for (int i = 0; i < count && running == null; i++) {
+                if ((daemons || !threads[i].isDaemon()) && threads[i].isAlive()) {
+                    running = threads[i];
+                }
+            }
+            if (running == null) {
+                return true;
+            }
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+            try {
+                running.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Writes the trace of the program by shutting down its recorder, if the program loaded it.
+     */
+    private void shutdownRecorder() {
+        if (!loader.isLoaded("prorunvis.Trace")) {
+            return;
+        }
+        try {
+            Class.forName("prorunvis.Trace", true, loader).getMethod("shutdown").invoke(null);
+        } catch (InvocationTargetException e) {
+            err.println("prorunvis: the trace could not be written: " + e.getCause());
+            exitCode = 1;
+        } catch (ReflectiveOperationException e) {
+            err.println("prorunvis: the recorder could not be shut down: " + e);
+            exitCode = 1;
+        }
+    }
+
+    /**
+     * Registers a running program. While programs are running, System.out and System.err are
+     * replaced by streams writing the output of their threads to their captures, and all other
+     * output to the original streams.
+     *
+     * @param program the program.
+     */
+    private static synchronized void routeOutput(final InProcessProgram program) {
+        if (originalOut == null) {
+            originalOut = System.out;
+            originalErr = System.err;
+            routedOut = new PrintStream(new Router(originalOut, false), true);
+            routedErr = new PrintStream(new Router(originalErr, true), true);
+            System.setOut(routedOut);
+            System.setErr(routedErr);
+        }
+        RUNNING.put(program.group, program);
+    }
+
+    /**
+     * Deregisters a finished program, and restores System.out and System.err once no program is
+     * running, unless they have been replaced again in the meantime.
+     *
+     * @param program the program.
+     */
+    private static synchronized void unrouteOutput(final InProcessProgram program) {
+        RUNNING.remove(program.group);
+        if (RUNNING.isEmpty() && originalOut != null) {
+            if (System.out == routedOut) {
+                System.setOut(originalOut);
+            }
+            if (System.err == routedErr) {
+                System.setErr(originalErr);
+            }
+            originalOut = null;
+            originalErr = null;
+        }
+    }
+
+    /**
+     * Finds the program the current thread belongs to.
+     *
+     * @return the program, null if the thread does not belong to a running program.
+     */
+    private static InProcessProgram current() {
+        for (ThreadGroup g = Thread.currentThread().getThreadGroup(); g != null; g = g.getParent()) {
+            InProcessProgram program = RUNNING.get(g);
+            if (program != null) {
+                return program;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the file the recorder of the program writes the trace to.
+     */
+    public Path getTraceFile() {
+        return traceFile;
+    }
+
+    /**
+     * Checks whether threads of the program are still running after it finished, because they
+     * ignored being interrupted, so no further program can be run within this JVM.
+     *
+     * @return true if the class loader of the program could not be discarded.
+     */
+    public boolean isLeaked() {
+        return group.getName().equals(leaked);
+    }
+
+    /**
+     * @return an empty stream, the program can not read any input.
+     */
+    @Override
+    public OutputStream getOutputStream() {
+        return OutputStream.nullOutputStream();
+    }
+
+    /**
+     * @return the output of the program to System.out, which is available once it finished.
+     */
+    @Override
+    public InputStream getInputStream() {
+        return new FinishedStream(out);
+    }
+
+    /**
+     * @return the output of the program to System.err, which is available once it finished.
+     */
+    @Override
+    public InputStream getErrorStream() {
+        return new FinishedStream(err);
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        done.await();
+        return exitCode;
+    }
+
+    @Override
+    public boolean waitFor(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    @Override
+    public int exitValue() {
+        if (done.getCount() > 0) {
+            throw new IllegalThreadStateException("The program has not finished.");
+        }
+        return exitCode;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return done.getCount() > 0;
+    }
+
+    /**
+     * Interrupts all threads of the program.
+     */
+    @Override
+    public void destroy() {
+        exitCode = 1;
+        interrupt();
+    }
+
+    /**
+     * Interrupts all threads of the program, except the one writing the trace.
+     */
+    private void interrupt() {
+        Thread[] threads = new Thread[group.activeCount() + 1];
+        int count = group.enumerate(threads);
+        for (int i = 0; i < count; i++) {
+            if (!threads[i].getName().equals(WRITER)) {
+                threads[i].interrupt();
+            }
+        }
+    }
+
+    /**
+     * The class loader of a program and its recorder. It does not delegate to the class loader
+     * of prorunvis, so the program gets its own recorder, and it serves the options of the
+     * recorder with the ones of the run applied.
+     */
+    private static final class ProgramClassLoader extends URLClassLoader {
+
+        /**
+         * The classes compiled in memory, by their binary name.
+         */
+        private final Map<String, byte[]> classes;
+
+        /**
+         * The options of the recorder overriding the saved ones.
+         */
+        private final Properties overrides;
+
+        /**
+         * Creates a class loader.
+         *
+         * @param urls      the classpath of the program.
+         * @param classes   the classes compiled in memory, by their binary name.
+         * @param overrides the options of the recorder overriding the saved ones.
+         */
+        ProgramClassLoader(final URL[] urls, final Map<String, byte[]> classes, final Properties overrides) {
+            super(urls, ClassLoader.getPlatformClassLoader());
+            this.classes = classes;
+            this.overrides = overrides;
+        }
+
+        @Override
+        protected Class<?> findClass(final String name) throws ClassNotFoundException {
+            byte[] bytes = classes.get(name);
+            if (bytes != null) {
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+            return super.findClass(name);
+        }
+
+        @Override
+        public InputStream getResourceAsStream(final String name) {
+            if (!name.equals(TRACE_CONFIGURATION)) {
+                return super.getResourceAsStream(name);
+            }
+            Properties options = new Properties();
+            try (InputStream saved = super.getResourceAsStream(name)) {
+                if (saved != null) {
+                    options.load(saved);
+                }
+                options.putAll(overrides);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                options.store(bytes, null);
+                return new ByteArrayInputStream(bytes.toByteArray());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @param name the binary name of a class.
+         * @return whether the class has been loaded by this class loader.
+         */
+        boolean isLoaded(final String name) {
+            return findLoadedClass(name) != null;
+        }
+    }
+
+    /**
+     * The captured output of a program, limited to {@link #MAX_OUTPUT} bytes.
+     */
+    private static final class Capture extends ByteArrayOutputStream {
+
+        @Override
+        public synchronized void write(final int b) {
+            if (count < MAX_OUTPUT) {
+                super.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(final byte[] b, final int off, final int len) {
+            super.write(b, off, Math.min(len, MAX_OUTPUT - count));
+        }
+
+        /**
+         * Appends a line of prorunvis to the output.
+         *
+         * @param line the line.
+         */
+        void println(final String line) {
+            writeBytes((line + System.lineSeparator()).getBytes());
+        }
+    }
+
+    /**
+     * A stream reading the captured output of a program once it finished.
+     */
+    private final class FinishedStream extends InputStream {
+
+        /**
+         * The captured output.
+         */
+        private final Capture capture;
+
+        /**
+         * The stream reading the output, once the program finished.
+         */
+        private InputStream in;
+
+        /**
+         * Creates a stream.
+         *
+         * @param capture the captured output.
+         */
+        FinishedStream(final Capture capture) {
+            this.capture = capture;
+        }
+
+        /**
+         * @return the stream reading the output, after waiting for the program to finish.
+         * @throws IOException if the waiting thread is interrupted.
+         */
+        private InputStream in() throws IOException {
+            if (in == null) {
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the program.", e);
+                }
+                in = new ByteArrayInputStream(capture.toByteArray());
+            }
+            return in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in().read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            return in().read(b, off, len);
+        }
+    }
+
+    /**
+     * A stream writing the output of the threads of a running program to its capture,
+     * and any other output to an original stream of the JVM.
+     */
+    private static final class Router extends OutputStream {
+
+        /**
+         * The original stream.
+         */
+        private final PrintStream original;
+
+        /**
+         * Whether this stream replaces System.err instead of System.out.
+         */
+        private final boolean error;
+
+        /**
+         * Creates a stream.
+         *
+         * @param original the original stream.
+         * @param error    whether this stream replaces System.err instead of System.out.
+         */
+        Router(final PrintStream original, final boolean error) {
+            this.original = original;
+            this.error = error;
+        }
+
+        /**
+         * @return the stream the current thread writes to.
+         */
+        private OutputStream target() {
+            InProcessProgram program = current();
+            if (program == null) {
+                return original;
+            }
+            return error ? program.err : program.out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            original.flush();
+        }
+    }
+}
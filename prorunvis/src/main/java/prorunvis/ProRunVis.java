@@ -2,7 +2,6 @@ package prorunvis;
 
 import com.github.javaparser.StaticJavaParser;
 import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.ast.Node;
 import com.github.javaparser.symbolsolver.JavaSymbolSolver;
 import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
 import com.github.javaparser.symbolsolver.utils.SymbolSolverCollectionStrategy;
@@ -10,15 +9,21 @@ import com.github.javaparser.utils.ProjectRoot;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.apache.commons.cli.*;
+import prorunvis.instrument.InstrumentationCache;
 import prorunvis.instrument.Instrumenter;
-import prorunvis.preprocess.Preprocessor;
+import prorunvis.instrument.RecorderOptions;
+import prorunvis.trace.InstrumentationFilter;
+import prorunvis.trace.SiteTable;
+import prorunvis.trace.process.TraceFormat;
 import prorunvis.trace.process.TraceProcessor;
+import prorunvis.trace.process.TraceReceiver;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
 
 public final class ProRunVis {
@@ -34,6 +39,12 @@ public final class ProRunVis {
     public static void main(final String[] args) {
 
         boolean instrumentOnly = false;
+        boolean stream = false;
+        boolean cached = true;
+        boolean inProcess = false;
+        Duration timeout = null;
+        Reachability.Unreachable prune = null;
+        RecorderOptions recorderOptions = new RecorderOptions();
         String inputPath;
         String outputPath = "resources/out";
 
@@ -46,6 +57,94 @@ public final class ProRunVis {
                 .longOpt("instrument")
                 .desc("If the input should only be instrumented")
                 .build());
+        options.addOption(Option.builder("m")
+                .longOpt("mapped")
+                .desc("Record the trace into memory-mapped segment files")
+                .build());
+        options.addOption(Option.builder("r")
+                .longOpt("stream")
+                .desc("Process the trace while the program runs, streamed to prorunvis instead of a file")
+                .build());
+        options.addOption(Option.builder("a")
+                .longOpt("agent")
+                .desc("Inject the trace calls into the compiled classes with an agent instead of the source code")
+                .build());
+        options.addOption(Option.builder("c")
+                .longOpt("count")
+                .desc("Only count how often every code block is executed instead of recording the trace")
+                .build());
+        options.addOption(Option.builder("z")
+                .longOpt("compress")
+                .desc("Compress the recorded trace file with gzip")
+                .build());
+        options.addOption(Option.builder("t")
+                .longOpt("timing")
+                .desc("Record the time spent in every code block")
+                .build());
+        options.addOption(Option.builder("x")
+                .longOpt("exits")
+                .desc("Record the exit of every code block as well, which speeds up processing the trace")
+                .build());
+        options.addOption(Option.builder("l")
+                .longOpt("call-sites")
+                .desc("Record the site of every method call, which links calls to the called methods exactly")
+                .build());
+        options.addOption(Option.builder("s")
+                .longOpt("sample-loops")
+                .hasArg()
+                .argName("head:tail")
+                .desc("Record only the first head and last tail iterations of every loop execution in full")
+                .build());
+        options.addOption(Option.builder("e")
+                .longOpt("max-events")
+                .hasArg()
+                .argName("count")
+                .desc("Stop the program once it recorded more than count code blocks")
+                .build());
+        options.addOption(Option.builder("b")
+                .longOpt("max-bytes")
+                .hasArg()
+                .argName("size")
+                .desc("Stop the program once its trace grows beyond size bytes")
+                .build());
+        options.addOption(Option.builder("n")
+                .longOpt("no-cache")
+                .desc("Instrument every file again instead of reusing the instrumentation of unchanged files")
+                .build());
+        options.addOption(Option.builder("p")
+                .longOpt("prune")
+                .hasArg()
+                .argName("compile|skip")
+                .desc("Only parse and instrument the code reachable from the main class, "
+                        + "and compile the rest unchanged or skip it")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("in-process")
+                .optionalArg(true)
+                .argName("timeout")
+                .desc("Run the program within the JVM of prorunvis, interrupted after timeout seconds if given")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("include")
+                .hasArg()
+                .argName("patterns")
+                .desc("Only instrument the packages, classes or methods matching one of the comma separated "
+                        + "patterns, e.g. com.example.core,com.example.util.Strings#trim")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("exclude")
+                .hasArg()
+                .argName("patterns")
+                .desc("Do not instrument the packages, classes or methods matching one of the comma separated "
+                        + "patterns, e.g. com.example.util,*#toString")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("exclude-kinds")
+                .hasArg()
+                .argName("kinds")
+                .desc("Do not instrument the comma separated kinds of code blocks: "
+                        + "block, try, catch, for, while, do, case or call")
+                .build());
         options.addOption(Option.builder("o")
                 .longOpt("output")
                 .hasArg()
@@ -74,6 +173,85 @@ public final class ProRunVis {
             if (cmd.hasOption("i")) {
                 instrumentOnly = true;
             }
+            if (cmd.hasOption("n")) {
+                cached = false;
+            }
+            if (cmd.hasOption("p")) {
+                try {
+                    prune = Reachability.Unreachable.valueOf(cmd.getOptionValue("p").toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Invalid pruning " + cmd.getOptionValue("p") + ".");
+                }
+            }
+            if (cmd.hasOption("m")) {
+                recorderOptions.setOutputMode(RecorderOptions.OutputMode.MAPPED);
+            }
+            if (cmd.hasOption("c")) {
+                recorderOptions.setOutputMode(RecorderOptions.OutputMode.COUNTS);
+            }
+            if (cmd.hasOption("r")) {
+                if (cmd.hasOption("m") || cmd.hasOption("c")) {
+                    throw new ParseException("Streaming can not be combined with --mapped or --count.");
+                }
+                stream = true;
+            }
+            if (cmd.hasOption("a")) {
+                if (cmd.hasOption("i") || cmd.hasOption("x") || cmd.hasOption("l") || cmd.hasOption("s")) {
+                    throw new ParseException("The agent can not be combined with --instrument, --exits, "
+                            + "--call-sites or --sample-loops.");
+                }
+                recorderOptions.setAgent(true);
+            }
+            if (cmd.hasOption("in-process")) {
+                if (cmd.hasOption("a")) {
+                    throw new ParseException("The agent can not be combined with --in-process.");
+                }
+                inProcess = true;
+                if (cmd.getOptionValue("in-process") != null) {
+                    try {
+                        timeout = Duration.ofSeconds(Long.parseLong(cmd.getOptionValue("in-process")));
+                    } catch (NumberFormatException e) {
+                        throw new ParseException("Invalid timeout " + cmd.getOptionValue("in-process") + ".");
+                    }
+                }
+            }
+            if (cmd.hasOption("z")) {
+                recorderOptions.setCompressed(true);
+            }
+            if (cmd.hasOption("t")) {
+                recorderOptions.setTiming(true);
+            }
+            if (cmd.hasOption("x")) {
+                recorderOptions.setExits(true);
+            }
+            if (cmd.hasOption("l")) {
+                recorderOptions.setCallSites(true);
+            }
+            if (cmd.hasOption("s")) {
+                String[] sample = cmd.getOptionValue("s").split(":");
+                try {
+                    recorderOptions.setLoopSampling(Integer.parseInt(sample[0]),
+                            sample.length > 1 ? Integer.parseInt(sample[1]) : 0);
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Invalid loop sampling " + cmd.getOptionValue("s") + ".");
+                }
+            }
+            if (cmd.hasOption("include") || cmd.hasOption("exclude") || cmd.hasOption("exclude-kinds")) {
+                try {
+                    recorderOptions.setFilter(InstrumentationFilter.parse(cmd.getOptionValue("include"),
+                            cmd.getOptionValue("exclude"), cmd.getOptionValue("exclude-kinds")));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException(e.getMessage());
+                }
+            }
+            if (cmd.hasOption("e") || cmd.hasOption("b")) {
+                try {
+                    recorderOptions.setBudget(Long.parseLong(cmd.getOptionValue("e", "0")),
+                            Long.parseLong(cmd.getOptionValue("b", "0")));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Invalid trace budget.");
+                }
+            }
             if (!Paths.get(inputPath).toFile().exists()
                     || !Paths.get(inputPath).toFile().isDirectory()) {
                 throw new ParseException(inputPath + " is not an existing directory.");
@@ -94,37 +272,86 @@ public final class ProRunVis {
         ProjectRoot projectRoot = new SymbolSolverCollectionStrategy()
                 .collect(Paths.get(inputPath).toAbsolutePath());
 
-        File traceFile = new File(outputPath + "/Trace.tr");
+        //the recorder writes the trace into the directory the program is run from
+        File traceFile = new File(outputPath + "/compiled/" + TraceFormat.FILE_NAME);
 
         List<CompilationUnit> cus = new ArrayList<>();
-        projectRoot.getSourceRoots().forEach(sr -> {
+        Reachability reachability = null;
+        if (prune != null) {
+            //only the files reachable from the main class are parsed, starting with the main class
             try {
-                sr.tryToParse().forEach(cu -> cus.add(cu.getResult().orElseThrow()));
-            } catch (IOException | NoSuchElementException e) {
+                reachability = new Reachability(projectRoot);
+                cus.addAll(reachability.parse());
+            } catch (IOException e) {
                 throw new RuntimeException("Error parsing compilation units: " + e.getMessage(), e);
             }
-        });
+            System.out.println("Found " + cus.size() + " reachable compilation units, "
+                    + reachability.getUnreachable().size() + " unreachable.");
+        } else {
+            projectRoot.getSourceRoots().forEach(sr -> {
+                try {
+                    sr.tryToParse().forEach(cu -> cus.add(cu.getResult().orElseThrow()));
+                } catch (IOException | NoSuchElementException e) {
+                    throw new RuntimeException("Error parsing compilation units: " + e.getMessage(), e);
+                }
+            });
+        }
 
-        Map<Integer, Node> map = new HashMap<>();
+        SiteTable sites = new SiteTable();
         Instrumenter.setupTrace(traceFile);
-        cus.forEach(cu -> {
-            Preprocessor.run(cu);
-            Instrumenter.run(cu, map);
-        });
-        Instrumenter.saveInstrumented(projectRoot, outputPath + "/instrumented");
+        //the instrumentation of the files which did not change since the last run is reused
+        Instrumenter.runAll(cus, sites, recorderOptions,
+                cached ? new InstrumentationCache(Paths.get(outputPath, "cache")) : null);
+        recorderOptions.setSiteCount(sites.size());
+        if (recorderOptions.isAgent()) {
+            //the sources are compiled unchanged, the agent injects the trace calls into the classes
+            Instrumenter.saveSites(sites, outputPath + "/compiled", recorderOptions);
+        } else {
+            Instrumenter.saveInstrumented(projectRoot, sites, outputPath + "/instrumented", recorderOptions);
+            if (reachability != null) {
+                try {
+                    reachability.saveUnreachable(Paths.get(outputPath, "instrumented"), prune);
+                } catch (IOException e) {
+                    throw new RuntimeException("Error saving unreachable sources: " + e.getMessage(), e);
+                }
+            }
+        }
 
         // If not instrument-only, compile, run and process trace
         if (!instrumentOnly) {
+            if (inProcess && !CompileAndRun.canRunInProcess(cus)) {
+                //System.exit would end prorunvis as well
+                System.out.println("The program calls System.exit, it is run in a separate process.");
+                inProcess = false;
+            }
             try {
-                CompileAndRun.run(cus, outputPath + "/instrumented", outputPath + "/compiled");
-                TraceProcessor processor = new TraceProcessor(map, traceFile.getPath(), Paths.get(inputPath));
-                processor.start();
+                TraceProcessor processor;
+                boolean truncated;
+                if (stream) {
+                    //the trace is processed while it is received, the receiver saves it as trace file as well
+                    try (TraceReceiver receiver = new TraceReceiver(traceFile.toPath())) {
+                        Process program = start(cus, inputPath, outputPath, recorderOptions,
+                                receiver.getJvmArguments(), inProcess, timeout);
+                        processor = new TraceProcessor(sites, receiver.accept(program), Paths.get(inputPath));
+                        processor.start();
+                        truncated = CompileAndRun.finish(program, traceFile.toPath());
+                    }
+                } else {
+                    truncated = CompileAndRun.finish(start(cus, inputPath, outputPath, recorderOptions, List.of(),
+                            inProcess, timeout), traceFile.toPath());
+                    processor = new TraceProcessor(sites, traceFile.getPath(), Paths.get(inputPath));
+                    processor.start();
+                }
+                if (truncated || processor.isTruncated()) {
+                    System.out.println("The trace exceeded its budget, only the start of the program run is shown.");
+                }
 
-                //save json trace to file
-                File jsonTrace = new File(outputPath + "/Trace.json");
+                //save json trace to file, or the coverage in counting mode
+                boolean counting = recorderOptions.getOutputMode() == RecorderOptions.OutputMode.COUNTS;
+                File jsonTrace = new File(outputPath + (counting ? "/Coverage.json" : "/Trace.json"));
                 try (BufferedWriter writer = new BufferedWriter(new FileWriter(jsonTrace))) {
                     Gson gson = new GsonBuilder().serializeNulls().setPrettyPrinting().create();
-                    writer.write(gson.toJson(processor.getNodeList()));
+                    writer.write(gson.toJson(counting ? processor.getCoverage() : processor.getNodeList()));
                 }
             } catch (IOException | InterruptedException e) {
                 System.err.println("Error during run or process: " + e.getMessage());
@@ -132,4 +359,35 @@ public final class ProRunVis {
         }
 
     }
-}
\ No newline at end of file
+
+    /**
+     * Compiles and starts the program, either from its instrumented sources or
+     * from its unchanged sources with the agent injecting the trace calls.
+     *
+     * @param cus          the compilation units of the program.
+     * @param inputPath    the directory of the unchanged sources.
+     * @param outputPath   the output directory.
+     * @param options      the options for the trace recorder.
+     * @param jvmArguments the arguments passed to the JVM running the program.
+     * @param inProcess    whether the program is run within this JVM.
+     * @param timeout      the time after which a program run within this JVM is interrupted, null for no limit.
+     * @return the running program.
+     * @throws IOException          if the program could not be compiled or started.
+     * @throws InterruptedException if the compilation failed or was interrupted.
+     */
+    private static Process start(final List<CompilationUnit> cus, final String inputPath,
+                                 final String outputPath, final RecorderOptions options,
+                                 final List<String> jvmArguments, final boolean inProcess,
+                                 final Duration timeout)
+            throws IOException, InterruptedException {
+        if (inProcess) {
+            return CompileAndRun.startInProcess(cus, outputPath + "/instrumented", outputPath + "/compiled",
+                    jvmArguments, timeout);
+        }
+        if (options.isAgent()) {
+            return CompileAndRun.startWithAgent(cus, Paths.get(inputPath).toAbsolutePath().toString(),
+                    outputPath + "/compiled", jvmArguments);
+        }
+        return CompileAndRun.start(cus, outputPath + "/instrumented", outputPath + "/compiled", jvmArguments);
+    }
+}
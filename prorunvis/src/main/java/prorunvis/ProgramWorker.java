@@ -0,0 +1,165 @@
+package prorunvis;
+
+import prorunvis.trace.process.TraceFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The main class of a worker JVM started by a {@link WorkerPool}. The worker connects to the pool
+ * on the loopback interface, authenticated by the token the pool writes to its standard input.
+ * It reads the programs to run from the connection, runs each of them as {@link InProcessProgram}
+ * with an empty System.in and writes the result back, until the connection is closed. A worker
+ * whose program left threads running, or which failed to run a program, exits after reporting the
+ * result, so it is replaced by a new one. A program ending the worker, e.g. by System.exit, ends it without a result, which
+ * the {@link WorkerPool} reports as failed run.
+ * <p>
+ * A request consists of the classpath of the program, its classes compiled in memory, its main
+ * class, the arguments for the JVM overriding the options of the recorder, the directory the trace
+ * is written to and the time limit in milliseconds, 0 for none. Lists and maps are preceded by the
+ * number of their entries, byte arrays by their length. A result consists of the exit code, the
+ * captured output to System.out and System.err, the path of the trace file and whether the worker
+ * exits.
+ */
+public final class ProgramWorker {
+
+    private ProgramWorker() {
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Connects to the pool and runs the programs it requests.
+     *
+     * @param args the port the pool listens on for the connection of the worker.
+     * @throws IOException if the connection failed, a request could not be read or a result could
+     *                     not be written.
+     */
+    public static void main(final String[] args) throws IOException {
+        String token = new DataInputStream(System.in).readUTF();
+        //the programs get no input, the pool closes the standard input of the worker after the token
+        System.setIn(new ByteArrayInputStream(new byte[0]));
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]))) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(token);
+            out.flush();
+            serve(in, out);
+        }
+    }
+
+    /**
+     * Runs the programs requested over a connection, until it is closed.
+     *
+     * @param in  the requests.
+     * @param out the results.
+     * @throws IOException if a request could not be read or a result could not be written.
+     */
+    private static void serve(final DataInputStream in, final DataOutputStream out) throws IOException {
+        while (true) {
+            int entries;
+            try {
+                entries = in.readInt();
+            } catch (EOFException e) {
+                //the pool has been closed
+                return;
+            }
+            List<Path> classpath = new ArrayList<>();
+            for (int i = 0; i < entries; i++) {
+                classpath.add(Paths.get(in.readUTF()));
+            }
+            Map<String, byte[]> classes = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                classes.put(in.readUTF(), readBytes(in));
+            }
+            String mainClass = in.readUTF();
+            List<String> jvmArguments = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                jvmArguments.add(in.readUTF());
+            }
+            Path directory = Paths.get(in.readUTF());
+            long timeout = in.readLong();
+
+            int exitCode;
+            byte[] output;
+            byte[] errors;
+            Path traceFile = directory.resolve(TraceFormat.FILE_NAME);
+            boolean exiting = false;
+            try {
+                InProcessProgram program = InProcessProgram.start(classpath, classes, mainClass, jvmArguments,
+                        directory, timeout > 0 ? Duration.ofMillis(timeout) : null);
+                exitCode = program.waitFor();
+                output = program.getInputStream().readAllBytes();
+                errors = program.getErrorStream().readAllBytes();
+                traceFile = program.getTraceFile();
+                exiting = program.isLeaked();
+            } catch (IOException | IllegalArgumentException e) {
+                exitCode = 1;
+                output = new byte[0];
+                errors = e.toString().getBytes(StandardCharsets.UTF_8);
+            } catch (Throwable e) {
+                //the state of the worker is unknown, so it is replaced after reporting the failure
+                StringWriter stackTrace = new StringWriter();
+                e.printStackTrace(new PrintWriter(stackTrace));
+                exitCode = 1;
+                output = new byte[0];
+                errors = ("prorunvis: the worker failed to run the program: " + stackTrace)
+                        .getBytes(StandardCharsets.UTF_8);
+                exiting = true;
+            }
+
+            out.writeInt(exitCode);
+            writeBytes(out, output);
+            writeBytes(out, errors);
+            out.writeUTF(traceFile.toString());
+            out.writeBoolean(exiting);
+            out.flush();
+            if (exiting) {
+                //the remaining threads would keep the worker running
+                System.exit(0);
+            }
+        }
+    }
+
+    /**
+     * Reads a byte array preceded by its length.
+     *
+     * @param in the stream to read from.
+     * @return the bytes.
+     * @throws IOException if the bytes could not be read.
+     */
+    static byte[] readBytes(final DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes a byte array preceded by its length.
+     *
+     * @param out   the stream to write to.
+     * @param bytes the bytes.
+     * @throws IOException if the bytes could not be written.
+     */
+    static void writeBytes(final DataOutputStream out, final byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
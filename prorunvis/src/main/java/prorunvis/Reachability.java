@@ -0,0 +1,257 @@
+package prorunvis;
+
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.ImportDeclaration;
+import com.github.javaparser.ast.expr.AnnotationExpr;
+import com.github.javaparser.ast.expr.FieldAccessExpr;
+import com.github.javaparser.ast.expr.NameExpr;
+import com.github.javaparser.ast.type.ClassOrInterfaceType;
+import com.github.javaparser.utils.ProjectRoot;
+import com.github.javaparser.utils.SourceRoot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Finds the compilation units of a project which are reachable from its main class,
+ * so only the code a program can use is parsed and instrumented.
+ * The source files are indexed by the types they declare with a plain text search,
+ * which is much cheaper than parsing them. Starting from the file declaring the main
+ * method, every parsed unit is searched for the names of the types it imports, uses
+ * or calls methods of, and the files declaring these types are parsed next.
+ * The search rather finds too many files than too few, but a class which is only
+ * loaded by reflection is not found.
+ */
+public final class Reachability {
+
+    /**
+     * What happens to the source files not reachable from the main class.
+     */
+    public enum Unreachable {
+        /**
+         * They are compiled unchanged, so classes only loaded by reflection are still found.
+         */
+        COMPILE,
+        /**
+         * They are neither instrumented nor compiled.
+         */
+        SKIP
+    }
+
+    /**
+     * The package declaration of a source file.
+     */
+    private static final Pattern PACKAGE = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+
+    /**
+     * The declaration of a type, including nested and local types.
+     */
+    private static final Pattern TYPE = Pattern.compile("\\b(?:class|interface|enum|record)\\s+([A-Za-z_$][\\w$]*)");
+
+    /**
+     * The declaration of a main method.
+     */
+    private static final Pattern MAIN = Pattern.compile("\\bvoid\\s+main\\s*\\(");
+
+    /**
+     * A name which may be the qualified name of a type, like the ones of field accesses.
+     */
+    private static final Pattern QUALIFIED_NAME = Pattern.compile("[\\w$]+(?:\\.[\\w$]+)*");
+
+    /**
+     * A source file, with the package of the directory it is parsed from.
+     *
+     * @param root        the source root containing the file.
+     * @param packageName the directory of the file relative to the root, as package name.
+     * @param path        the path of the file.
+     */
+    private record Source(SourceRoot root, String packageName, Path path) {
+    }
+
+    /**
+     * The source files declaring a type, by the qualified name of the type. Nested types
+     * are indexed as if they were declared in the package, they are found by their outer type.
+     */
+    private final Map<String, List<Source>> types = new HashMap<>();
+
+    /**
+     * All source files of the project, in the order of their paths.
+     */
+    private final List<Source> sources = new ArrayList<>();
+
+    /**
+     * The source files declaring a main method, in the order of their paths.
+     */
+    private final List<Source> mains = new ArrayList<>();
+
+    /**
+     * The source files reached by {@link #parse()}.
+     */
+    private final Set<Source> reached = new LinkedHashSet<>();
+
+    /**
+     * Indexes the source files of a project by the types they declare, without parsing them.
+     *
+     * @param pr the project root, whose source roots are parsed by {@link #parse()}.
+     * @throws IOException if a source file could not be read.
+     */
+    public Reachability(final ProjectRoot pr) throws IOException {
+        for (SourceRoot sr : pr.getSourceRoots()) {
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(sr.getRoot())) {
+                files = walk.filter(p -> p.toString().endsWith(".java")).sorted().toList();
+            }
+            for (Path file : files) {
+                //only ascii characters are searched for, so the encoding does not matter
+                String code = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+                String directory = sr.getRoot().relativize(file.getParent()).toString();
+                Source source = new Source(sr, directory.replace(File.separatorChar, '.'), file);
+                sources.add(source);
+
+                Matcher packageName = PACKAGE.matcher(code);
+                String prefix = packageName.find() ? packageName.group(1) + "." : "";
+                Matcher type = TYPE.matcher(code);
+                while (type.find()) {
+                    types.computeIfAbsent(prefix + type.group(1), k -> new ArrayList<>()).add(source);
+                }
+                if (MAIN.matcher(code).find()) {
+                    mains.add(source);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the compilation units reachable from the first source file declaring a main method.
+     * The units are parsed by their source roots, so only they are saved by
+     * {@link prorunvis.instrument.Instrumenter#saveInstrumented}.
+     *
+     * @return the reachable compilation units, starting with the one of the main class.
+     * @throws IOException if a reachable source file could not be read or parsed.
+     */
+    public List<CompilationUnit> parse() throws IOException {
+        if (mains.isEmpty()) {
+            throw new RuntimeException("No main method found in the code. Cannot find the reachable code.");
+        }
+
+        List<CompilationUnit> cus = new ArrayList<>();
+        Deque<Source> pending = new ArrayDeque<>();
+        reached.add(mains.get(0));
+        pending.add(mains.get(0));
+        while (!pending.isEmpty()) {
+            Source source = pending.poll();
+            ParseResult<CompilationUnit> result = source.root().tryToParse(source.packageName(),
+                    source.path().getFileName().toString());
+            if (result.getResult().isEmpty()) {
+                throw new IOException("Error parsing " + source.path() + ": " + result.getProblems());
+            }
+            CompilationUnit cu = result.getResult().get();
+            cus.add(cu);
+
+            for (String type : referencedTypes(cu)) {
+                for (Source declaring : types.getOrDefault(type, List.of())) {
+                    if (reached.add(declaring)) {
+                        pending.add(declaring);
+                    }
+                }
+            }
+        }
+        return cus;
+    }
+
+    /**
+     * Returns the source files not reached by {@link #parse()}.
+     *
+     * @return the paths of the unreachable source files.
+     */
+    public List<Path> getUnreachable() {
+        return sources.stream().filter(source -> !reached.contains(source)).map(Source::path).toList();
+    }
+
+    /**
+     * Saves the source files not reached by {@link #parse()} into a directory, next to the
+     * instrumented code saved there. To be compiled with it, they are copied unchanged,
+     * otherwise copies left there by an earlier run are removed.
+     *
+     * @param outPath the directory the source roots are saved to.
+     * @param mode    what happens to the unreachable source files.
+     * @throws IOException if a source file could not be copied or removed.
+     */
+    public void saveUnreachable(final Path outPath, final Unreachable mode) throws IOException {
+        for (Source source : sources) {
+            if (!reached.contains(source)) {
+                Path target = outPath.resolve(source.root().getRoot().relativize(source.path()));
+                if (mode == Unreachable.COMPILE) {
+                    Files.createDirectories(target.getParent());
+                    Files.copy(source.path(), target, StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.deleteIfExists(target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the qualified names a compilation unit may refer to a type by. Every name
+     * which may start with a type is resolved against the package of the unit and its imports
+     * on demand, names of types imported by their single name are taken from the imports.
+     *
+     * @param cu the compilation unit.
+     * @return the qualified names of the types the unit may refer to, most of them not declared.
+     */
+    private static Set<String> referencedTypes(final CompilationUnit cu) {
+        List<String> prefixes = new ArrayList<>();
+        prefixes.add(cu.getPackageDeclaration().map(p -> p.getNameAsString() + ".").orElse(""));
+        Set<String> names = new HashSet<>();
+        for (ImportDeclaration declaration : cu.getImports()) {
+            if (declaration.isAsterisk()) {
+                //a static import on demand imports the members of a type, so it is a type as well
+                prefixes.add(declaration.getNameAsString() + ".");
+            }
+            addWithScopes(declaration.getNameAsString(), names);
+        }
+
+        Set<String> simpleNames = new HashSet<>();
+        cu.findAll(ClassOrInterfaceType.class).forEach(type -> simpleNames.add(type.getNameWithScope()));
+        cu.findAll(AnnotationExpr.class).forEach(annotation -> simpleNames.add(annotation.getNameAsString()));
+        //the scopes of static calls and field accesses
+        cu.findAll(NameExpr.class).forEach(name -> simpleNames.add(name.getNameAsString()));
+        cu.findAll(FieldAccessExpr.class).stream()
+                .map(FieldAccessExpr::toString)
+                .filter(name -> QUALIFIED_NAME.matcher(name).matches())
+                .forEach(simpleNames::add);
+
+        for (String name : simpleNames) {
+            //the name may be qualified, or start with a type of the package or imported on demand
+            addWithScopes(name, names);
+            int end = name.indexOf('.');
+            String first = end < 0 ? name : name.substring(0, end);
+            for (String prefix : prefixes) {
+                names.add(prefix + first);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Adds a dotted name and all of its scopes, e.g. {@code a.b.C.m}, {@code a.b.C},
+     * {@code a.b} and {@code a}, as the type may be any of them.
+     *
+     * @param name  the dotted name.
+     * @param names the set to add the names to.
+     */
+    private static void addWithScopes(final String name, final Set<String> names) {
+        for (int end = name.length(); end > 0; end = name.lastIndexOf('.', end - 1)) {
+            names.add(name.substring(0, end));
+        }
+    }
+}
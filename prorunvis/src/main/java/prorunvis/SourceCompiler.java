@@ -0,0 +1,206 @@
+package prorunvis;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * This utility class compiles java sources with the compiler of the running JDK,
+ * instead of starting javac in a process of its own. The sources are read from a directory
+ * or given as strings, like the instrumented code returned by
+ * {@link prorunvis.instrument.Instrumenter#getInstrumentedSources}, which then does not
+ * have to be saved. The classes are written to a directory or kept in memory.
+ */
+public final class SourceCompiler {
+
+    private SourceCompiler() {
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Compile all java files below a directory.
+     *
+     * @param options  the options passed to the compiler, like the ones of javac.
+     * @param sourceIn the directory containing the sources.
+     * @param classOut the directory the classes are written to.
+     * @throws CompilationException if the sources could not be compiled.
+     * @throws IOException          if a source could not be read or a class could not be written.
+     */
+    public static void compile(final List<String> options, final Path sourceIn, final Path classOut)
+            throws IOException {
+        List<Path> sources;
+        try (Stream<Path> files = Files.walk(sourceIn)) {
+            sources = files.filter(p -> p.toString().endsWith(".java")).toList();
+        }
+
+        JavaCompiler compiler = getCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null)) {
+            Files.createDirectories(classOut);
+            fileManager.setLocationFromPaths(StandardLocation.CLASS_OUTPUT, List.of(classOut));
+            run(compiler.getTask(null, fileManager, diagnostics, options, null,
+                    fileManager.getJavaFileObjectsFromPaths(sources)), diagnostics);
+        }
+    }
+
+    /**
+     * Compile sources given as strings.
+     *
+     * @param options  the options passed to the compiler, like the ones of javac.
+     * @param sources  the source code by the path of its file relative to the source root,
+     *                 e.g. {@code com/example/Main.java}.
+     * @param classOut the directory the classes are written to, or null to keep them in memory.
+     * @return the compiled classes by their binary name if they are kept in memory, otherwise an empty map.
+     * @throws CompilationException if the sources could not be compiled.
+     * @throws IOException          if a class could not be written.
+     */
+    public static Map<String, byte[]> compile(final List<String> options, final Map<String, String> sources,
+                                              final Path classOut) throws IOException {
+        List<JavaFileObject> units = new ArrayList<>();
+        sources.forEach((path, code) -> units.add(new SourceFile(path, code)));
+
+        JavaCompiler compiler = getCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        Map<String, byte[]> classes = new HashMap<>();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null)) {
+            JavaFileManager output = fileManager;
+            if (classOut != null) {
+                Files.createDirectories(classOut);
+                fileManager.setLocationFromPaths(StandardLocation.CLASS_OUTPUT, List.of(classOut));
+            } else {
+                output = new MemoryFileManager(fileManager, classes);
+            }
+            run(compiler.getTask(null, output, diagnostics, options, null, units), diagnostics);
+        }
+        return classes;
+    }
+
+    /**
+     * Gets the compiler of the running JDK.
+     *
+     * @return the compiler.
+     * @throws IOException if prorunvis does not run on a JDK.
+     */
+    private static JavaCompiler getCompiler() throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IOException("No java compiler found, prorunvis has to be run on a JDK.");
+        }
+        return compiler;
+    }
+
+    /**
+     * Runs a compilation task.
+     *
+     * @param task        the task.
+     * @param diagnostics the collector of the diagnostics reported by the task.
+     * @throws CompilationException if the task reported an error.
+     * @throws IOException          if a file could not be read or written.
+     */
+    private static void run(final JavaCompiler.CompilationTask task,
+                            final DiagnosticCollector<JavaFileObject> diagnostics) throws IOException {
+        boolean success;
+        try {
+            success = task.call();
+        } catch (RuntimeException e) {
+            //the compiler wraps the exceptions of the file manager
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        if (!success || diagnostics.getDiagnostics().stream()
+                .anyMatch(diagnostic -> diagnostic.getKind() == Diagnostic.Kind.ERROR)) {
+            throw new CompilationException(diagnostics.getDiagnostics());
+        }
+    }
+
+    /**
+     * A source file given as string.
+     */
+    private static final class SourceFile extends SimpleJavaFileObject {
+
+        /**
+         * The source code.
+         */
+        private final String code;
+
+        /**
+         * Creates a source file.
+         *
+         * @param path the path of the file relative to the source root, separated by '/'.
+         * @param code the source code.
+         */
+        SourceFile(final String path, final String code) {
+            super(URI.create("string:///" + path), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(final boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    /**
+     * A file manager keeping the compiled classes in memory.
+     */
+    private static final class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+        /**
+         * The compiled classes by their binary name.
+         */
+        private final Map<String, byte[]> classes;
+
+        /**
+         * Creates a file manager keeping the classes in memory and forwarding everything else to another one.
+         *
+         * @param fileManager the file manager finding the libraries.
+         * @param classes     the map the compiled classes are put into.
+         */
+        MemoryFileManager(final StandardJavaFileManager fileManager, final Map<String, byte[]> classes) {
+            super(fileManager);
+            this.classes = classes;
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(final Location location, final String className,
+                                                   final JavaFileObject.Kind kind, final FileObject sibling)
+                throws IOException {
+            if (kind != JavaFileObject.Kind.CLASS) {
+                return super.getJavaFileForOutput(location, className, kind, sibling);
+            }
+            return new SimpleJavaFileObject(URI.create("memory:///" + className.replace('.', '/') + ".class"),
+                    JavaFileObject.Kind.CLASS) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return new ByteArrayOutputStream() {
+                        @Override
+                        public void close() {
+                            classes.put(className, toByteArray());
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
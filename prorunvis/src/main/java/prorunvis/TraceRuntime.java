@@ -0,0 +1,105 @@
+package prorunvis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * This utility class locates the precompiled trace recorder {@link Trace} of the
+ * prorunvis-runtime module, so it can be put on the classpath of the instrumented
+ * code instead of being compiled with it.
+ */
+public final class TraceRuntime {
+
+    /**
+     * The prefix of the file name of the jar built by the prorunvis-runtime module.
+     */
+    private static final String RUNTIME_JAR = "prorunvis-runtime";
+
+    /**
+     * The classpath entry of the recorder, determined on first use.
+     */
+    private static Path classpath;
+
+    private TraceRuntime() {
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Gets the classpath entry containing the trace recorder. This is the
+     * class directory or jar of the prorunvis-runtime module. If the recorder
+     * has been bundled into another jar, its classes are extracted to a
+     * temporary directory once, so no other classes of that jar end up on
+     * the classpath of the traced program.
+     *
+     * @return the path of a directory or jar containing the trace recorder.
+     * @throws IOException if the classes of the recorder could not be extracted.
+     */
+    public static synchronized Path getClasspath() throws IOException {
+        if (classpath == null) {
+            Path location = locate();
+            if (location != null && (Files.isDirectory(location)
+                    || location.getFileName().toString().startsWith(RUNTIME_JAR))) {
+                classpath = location;
+            } else {
+                classpath = extract();
+            }
+        }
+        return classpath;
+    }
+
+    /**
+     * Gets the location from which the trace recorder has been loaded.
+     *
+     * @return the location as local path, null if it is not a local file.
+     */
+    private static Path locate() {
+        CodeSource source = Trace.class.getProtectionDomain().getCodeSource();
+        if (source == null) {
+            return null;
+        }
+        URL location = source.getLocation();
+        try {
+            return Paths.get(location.toURI());
+        } catch (URISyntaxException | FileSystemNotFoundException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Copies the class files of the trace recorder and its nested classes
+     * to a new temporary directory.
+     *
+     * @return the directory containing the copied classes.
+     * @throws IOException if a class file could not be read or written.
+     */
+    private static Path extract() throws IOException {
+        Path target = Files.createTempDirectory(RUNTIME_JAR);
+        Deque<Class<?>> classes = new ArrayDeque<>();
+        classes.push(Trace.class);
+        while (!classes.isEmpty()) {
+            Class<?> next = classes.pop();
+            String name = next.getName().replace('.', '/') + ".class";
+            try (InputStream in = Trace.class.getClassLoader().getResourceAsStream(name)) {
+                if (in == null) {
+                    throw new IOException("Could not find class file " + name);
+                }
+                Path file = target.resolve(name);
+                Files.createDirectories(file.getParent());
+                Files.copy(in, file);
+            }
+            for (Class<?> nested : next.getDeclaredClasses()) {
+                classes.push(nested);
+            }
+        }
+        return target;
+    }
+}
@@ -0,0 +1,677 @@
+package prorunvis;
+
+import prorunvis.trace.process.TraceFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A pool of worker JVMs running traced programs, each in a process separated from prorunvis
+ * without starting a new JVM for every program. The workers are started when they are first needed
+ * and kept for the following programs. They run {@link ProgramWorker}, which receives the programs
+ * over a connection on the loopback interface and runs them as {@link InProcessProgram} in a class
+ * loader of their own. A worker is replaced by a new one after a number of runs, after a program
+ * left threads running or ended the worker, e.g. by calling System.exit or running out of memory,
+ * so a program can not affect the programs run after it for long. If all workers are busy, a
+ * program waits for the next one to become idle.
+ */
+public final class WorkerPool implements Closeable {
+
+    /**
+     * The prefix of the file name of the jar built by the prorunvis module.
+     */
+    private static final String PRORUNVIS_JAR = "prorunvis";
+
+    /**
+     * The time a started worker is given to connect to the pool.
+     */
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * The time in milliseconds after which waiting for a worker checks whether it is still running,
+     * or whether the pool has been closed.
+     */
+    private static final int POLL_INTERVAL = 100;
+
+    /**
+     * The source of the tokens authenticating the connections of the workers.
+     */
+    private static final SecureRandom TOKENS = new SecureRandom();
+
+    /**
+     * The classpath of the workers, determined on first use.
+     */
+    private static Path classpath;
+
+    /**
+     * The workers waiting for a program.
+     */
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+
+    /**
+     * The maximum number of workers.
+     */
+    private final int size;
+
+    /**
+     * The number of workers started and not ended yet, guarded by this pool.
+     */
+    private int started;
+
+    /**
+     * The number of programs run by a worker before it is replaced.
+     */
+    private final int maxRuns;
+
+    /**
+     * The maximum heap size of a worker, e.g. 512m, null for the default of the JVM.
+     */
+    private final String maxMemory;
+
+    /**
+     * Whether the pool has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Creates a pool. No worker is started until the first program is run.
+     *
+     * @param size      the maximum number of workers, i.e. the number of programs run at the same time.
+     * @param maxRuns   the number of programs run by a worker before it is replaced.
+     * @param maxMemory the maximum heap size of a worker as passed to -Xmx, e.g. 512m, null for the
+     *                  default of the JVM.
+     */
+    public WorkerPool(final int size, final int maxRuns, final String maxMemory) {
+        if (size < 1 || maxRuns < 1) {
+            throw new IllegalArgumentException("A worker pool needs at least one worker and run per worker.");
+        }
+        this.size = size;
+        this.maxRuns = maxRuns;
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Runs a program by the next idle worker. If all workers are busy, a new one is started
+     * unless the pool has reached its size, otherwise the program waits for a worker to become idle.
+     *
+     * @param programClasspath the classpath of the program, including the trace recorder.
+     * @param classes          classes of the program which have been compiled in memory, by their binary name.
+     * @param mainClass        the fully qualified name of the main class.
+     * @param jvmArguments     system properties overriding the options of the recorder.
+     * @param directory        the directory the trace file is written to.
+     * @param timeout          the time after which the threads of the program are interrupted, null for no limit.
+     * @return the running program, which behaves like a {@link Process}.
+     * @throws IOException          if the pool has been closed or a worker could not be started.
+     * @throws InterruptedException if interrupted while waiting for an idle worker.
+     */
+    public Program start(final List<Path> programClasspath, final Map<String, byte[]> classes,
+                         final String mainClass, final List<String> jvmArguments, final Path directory,
+                         final Duration timeout) throws IOException, InterruptedException {
+        Worker worker = acquire();
+        Program program = new Program(worker);
+        Thread runner = new Thread(() -> {
+            boolean replace = true;
+            try {
+                worker.send(programClasspath, classes, mainClass, jvmArguments, directory, timeout);
+                Result result = worker.receive();
+                replace = result.exiting() || ++worker.runs >= maxRuns;
+                program.result.complete(result);
+            } catch (IOException e) {
+                //the worker ended without a result, as the program called System.exit or it has been destroyed
+                int exitCode = 1;
+                try {
+                    exitCode = worker.process.waitFor();
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                }
+                program.result.complete(new Result(exitCode, new byte[0],
+                        ("prorunvis: the worker running the program ended with exit code " + exitCode
+                                + " before reporting its result, e.g. as the program called System.exit.")
+                                .getBytes(StandardCharsets.UTF_8),
+                        directory.resolve(TraceFormat.FILE_NAME).toAbsolutePath().toString(), true));
+            } finally {
+                if (!program.result.isDone()) {
+                    program.result.completeExceptionally(new IOException("The worker failed to run the program."));
+                }
+                release(worker, replace);
+            }
+        }, "prorunvis-worker-" + worker.process.pid());
+        runner.setDaemon(true);
+        runner.start();
+        return program;
+    }
+
+    /**
+     * Takes an idle worker, starts a new one if the pool has not reached its size, or waits for one.
+     *
+     * @return the worker, which is busy until it is released.
+     * @throws IOException          if the pool has been closed or a worker could not be started.
+     * @throws InterruptedException if interrupted while waiting for an idle worker.
+     */
+    private Worker acquire() throws IOException, InterruptedException {
+        Worker worker = idle.poll();
+        while (worker == null) {
+            if (closed) {
+                throw new IOException("The worker pool has been closed.");
+            }
+            if (reserve()) {
+                try {
+                    return launch();
+                } catch (IOException e) {
+                    unreserve();
+                    throw e;
+                }
+            }
+            worker = idle.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        return worker;
+    }
+
+    /**
+     * Reserves a worker to be started, if the pool has not reached its size.
+     *
+     * @return true if a worker may be started.
+     */
+    private synchronized boolean reserve() {
+        if (started < size) {
+            started++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Releases a worker which has ended or could not be started, so another one may be started.
+     */
+    private synchronized void unreserve() {
+        started--;
+    }
+
+    /**
+     * Returns a worker to the pool after it ran a program, or replaces it by a new one.
+     *
+     * @param worker  the worker.
+     * @param replace whether the worker has to be replaced.
+     */
+    private void release(final Worker worker, final boolean replace) {
+        if (!replace && !closed) {
+            idle.add(worker);
+            if (closed && idle.remove(worker)) {
+                //the pool has been closed in the meantime
+                worker.close();
+                unreserve();
+            }
+            return;
+        }
+        worker.close();
+        if (!closed) {
+            try {
+                idle.add(launch());
+                return;
+            } catch (IOException e) {
+                //a worker is started again once the next program needs one
+                System.err.println("prorunvis: a worker could not be started: " + e.getMessage());
+            }
+        }
+        unreserve();
+    }
+
+    /**
+     * Starts a worker JVM and waits for it to connect. The worker receives a random token over its
+     * standard input, which is closed afterwards, and sends it back over a connection on the loopback
+     * interface, so no other process can take its place. The programs run by the worker can neither
+     * read the requests nor write to the results, as both are carried by this connection instead of
+     * the standard streams of the worker, which are inherited from this JVM.
+     *
+     * @return the connected worker.
+     * @throws IOException if the worker could not be started or did not connect in time.
+     */
+    private Worker launch() throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(POLL_INTERVAL);
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            if (maxMemory != null) {
+                command.add("-Xmx" + maxMemory);
+            }
+            //a worker running out of memory is replaced instead of running further programs
+            command.add("-XX:+ExitOnOutOfMemoryError");
+            command.add("-cp");
+            command.add(getClasspath().toAbsolutePath().toString());
+            command.add(ProgramWorker.class.getName());
+            command.add(String.valueOf(server.getLocalPort()));
+            Process process = new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+            byte[] bytes = new byte[16];
+            TOKENS.nextBytes(bytes);
+            String token = HexFormat.of().formatHex(bytes);
+            try (DataOutputStream input = new DataOutputStream(process.getOutputStream())) {
+                input.writeUTF(token);
+            } catch (IOException e) {
+                process.destroyForcibly();
+                throw new IOException("The worker ended before it connected.", e);
+            }
+
+            long deadline = System.nanoTime() + CONNECT_TIMEOUT.toNanos();
+            while (true) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException e) {
+                    if (!process.isAlive() || System.nanoTime() > deadline) {
+                        process.destroyForcibly();
+                        throw new IOException("The worker did not connect.");
+                    }
+                    continue;
+                }
+                try {
+                    socket.setSoTimeout((int) CONNECT_TIMEOUT.toMillis());
+                    if (token.equals(new DataInputStream(socket.getInputStream()).readUTF())) {
+                        socket.setSoTimeout(0);
+                        return new Worker(process, socket);
+                    }
+                } catch (IOException ignored) {
+                    //a connection of another process, which is refused
+                }
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Ends all idle workers by closing their connection. Busy workers end after their program.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Worker worker = idle.poll(); worker != null; worker = idle.poll()) {
+            worker.close();
+            unreserve();
+        }
+    }
+
+    /**
+     * Gets the classpath entry containing the worker. This is the class directory or jar of the
+     * prorunvis module. If the worker has been bundled into another jar, its classes are
+     * extracted to a temporary directory once, like {@link TraceRuntime} does for the recorder.
+     *
+     * @return the path of a directory or jar containing the worker.
+     * @throws IOException if the classes of the worker could not be extracted.
+     */
+    private static synchronized Path getClasspath() throws IOException {
+        if (classpath == null) {
+            Path location = null;
+            CodeSource source = ProgramWorker.class.getProtectionDomain().getCodeSource();
+            if (source != null) {
+                try {
+                    location = Paths.get(source.getLocation().toURI());
+                } catch (URISyntaxException | FileSystemNotFoundException | IllegalArgumentException ignored) {
+                }
+            }
+            if (location != null && (Files.isDirectory(location)
+                    || location.getFileName().toString().startsWith(PRORUNVIS_JAR))) {
+                classpath = location;
+            } else {
+                classpath = extract();
+            }
+        }
+        return classpath;
+    }
+
+    /**
+     * Copies the class files of the worker and the classes it uses to a new temporary directory.
+     *
+     * @return the directory containing the copied classes.
+     * @throws IOException if a class file could not be read or written.
+     */
+    private static Path extract() throws IOException {
+        Path target = Files.createTempDirectory("prorunvis-worker");
+        Deque<Class<?>> classes = new ArrayDeque<>(List.of(ProgramWorker.class, InProcessProgram.class));
+        while (!classes.isEmpty()) {
+            Class<?> next = classes.pop();
+            String name = next.getName().replace('.', '/') + ".class";
+            try (InputStream in = ProgramWorker.class.getClassLoader().getResourceAsStream(name)) {
+                if (in == null) {
+                    throw new IOException("Could not find class file " + name);
+                }
+                Path file = target.resolve(name);
+                Files.createDirectories(file.getParent());
+                Files.copy(in, file);
+            }
+            for (Class<?> nested : next.getDeclaredClasses()) {
+                classes.push(nested);
+            }
+        }
+        //anonymous classes are not declared classes
+        for (int i = 1; ; i++) {
+            String name = InProcessProgram.class.getName().replace('.', '/') + "$" + i + ".class";
+            try (InputStream in = ProgramWorker.class.getClassLoader().getResourceAsStream(name)) {
+                if (in == null) {
+                    break;
+                }
+                Files.copy(in, target.resolve(name));
+            }
+        }
+        return target;
+    }
+
+    /**
+     * The result of a program run by a worker.
+     *
+     * @param exitCode  the exit code of the program.
+     * @param output    the output of the program to System.out.
+     * @param errors    the output of the program to System.err.
+     * @param traceFile the path of the trace file.
+     * @param exiting   whether the worker exits after the program.
+     */
+    private record Result(int exitCode, byte[] output, byte[] errors, String traceFile, boolean exiting) {
+    }
+
+    /**
+     * A worker JVM and the connection to it.
+     */
+    private static final class Worker {
+
+        /**
+         * The process of the worker.
+         */
+        private final Process process;
+
+        /**
+         * The connection to the worker.
+         */
+        private final Socket socket;
+
+        /**
+         * The requests sent to the worker.
+         */
+        private final DataOutputStream requests;
+
+        /**
+         * The results received from the worker.
+         */
+        private final DataInputStream results;
+
+        /**
+         * The number of programs run by the worker.
+         */
+        private int runs;
+
+        /**
+         * Creates a worker.
+         *
+         * @param process the started process of the worker.
+         * @param socket  the connection of the worker.
+         * @throws IOException if the connection has been closed.
+         */
+        Worker(final Process process, final Socket socket) throws IOException {
+            this.process = process;
+            this.socket = socket;
+            this.requests = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.results = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        /**
+         * Sends a program to the worker, see {@link ProgramWorker} for the format.
+         *
+         * @param classpath    the classpath of the program.
+         * @param classes      the classes compiled in memory.
+         * @param mainClass    the main class.
+         * @param jvmArguments the options of the recorder.
+         * @param directory    the directory the trace file is written to.
+         * @param timeout      the time limit, null for none.
+         * @throws IOException if the worker ended.
+         */
+        void send(final List<Path> classpath, final Map<String, byte[]> classes, final String mainClass,
+                  final List<String> jvmArguments, final Path directory, final Duration timeout)
+                throws IOException {
+            //the worker may run in another working directory
+            requests.writeInt(classpath.size());
+            for (Path entry : classpath) {
+                requests.writeUTF(entry.toAbsolutePath().toString());
+            }
+            requests.writeInt(classes.size());
+            for (Map.Entry<String, byte[]> type : classes.entrySet()) {
+                requests.writeUTF(type.getKey());
+                ProgramWorker.writeBytes(requests, type.getValue());
+            }
+            requests.writeUTF(mainClass);
+            requests.writeInt(jvmArguments.size());
+            for (String argument : jvmArguments) {
+                requests.writeUTF(argument);
+            }
+            requests.writeUTF(directory.toAbsolutePath().toString());
+            requests.writeLong(timeout == null ? 0 : Math.max(1, timeout.toMillis()));
+            requests.flush();
+        }
+
+        /**
+         * Receives the result of the program sent last.
+         *
+         * @return the result.
+         * @throws IOException if the worker ended.
+         */
+        Result receive() throws IOException {
+            int exitCode = results.readInt();
+            byte[] output = ProgramWorker.readBytes(results);
+            byte[] errors = ProgramWorker.readBytes(results);
+            return new Result(exitCode, output, errors, results.readUTF(), results.readBoolean());
+        }
+
+        /**
+         * Ends the worker by closing its connection, or destroys it if it does not end.
+         */
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                if (!process.waitFor(1, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A program run by a worker. It behaves like a {@link Process}, so it can be waited for by
+     * {@link CompileAndRun#finish(Process)} and stream its trace to a
+     * {@link prorunvis.trace.process.TraceReceiver}.
+     */
+    public static final class Program extends Process {
+
+        /**
+         * The worker running the program.
+         */
+        private final Worker worker;
+
+        /**
+         * The result of the program, completed once it finished.
+         */
+        private final CompletableFuture<Result> result = new CompletableFuture<>();
+
+        /**
+         * Creates a program.
+         *
+         * @param worker the worker running the program.
+         */
+        private Program(final Worker worker) {
+            this.worker = worker;
+        }
+
+        /**
+         * Waits for the result of the program.
+         *
+         * @return the result.
+         * @throws InterruptedException if the waiting thread is interrupted.
+         */
+        private Result result() throws InterruptedException {
+            try {
+                return result.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        /**
+         * Gets the trace file written by the program, which is only known once it finished.
+         *
+         * @return the path of the trace file.
+         * @throws InterruptedException if the waiting thread is interrupted.
+         */
+        public Path getTraceFile() throws InterruptedException {
+            return Paths.get(result().traceFile());
+        }
+
+        /**
+         * @return an empty stream, the program can not read any input.
+         */
+        @Override
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+
+        /**
+         * @return the output of the program to System.out, which is available once it finished.
+         */
+        @Override
+        public InputStream getInputStream() {
+            return new FinishedStream(false);
+        }
+
+        /**
+         * @return the output of the program to System.err, which is available once it finished.
+         */
+        @Override
+        public InputStream getErrorStream() {
+            return new FinishedStream(true);
+        }
+
+        @Override
+        public int waitFor() throws InterruptedException {
+            return result().exitCode();
+        }
+
+        @Override
+        public boolean waitFor(final long timeout, final TimeUnit unit) throws InterruptedException {
+            try {
+                result.get(timeout, unit);
+                return true;
+            } catch (TimeoutException e) {
+                return false;
+            } catch (ExecutionException e) {
+                return true;
+            }
+        }
+
+        @Override
+        public int exitValue() {
+            if (!result.isDone()) {
+                throw new IllegalThreadStateException("The program has not finished.");
+            }
+            return result.join().exitCode();
+        }
+
+        @Override
+        public boolean isAlive() {
+            return !result.isDone();
+        }
+
+        /**
+         * Destroys the worker running the program, which is replaced by a new one.
+         */
+        @Override
+        public void destroy() {
+            worker.process.destroyForcibly();
+        }
+
+        /**
+         * A stream reading the captured output of the program once it finished.
+         */
+        private final class FinishedStream extends InputStream {
+
+            /**
+             * Whether the output to System.err is read instead of System.out.
+             */
+            private final boolean errors;
+
+            /**
+             * The stream reading the output, once the program finished.
+             */
+            private InputStream in;
+
+            /**
+             * Creates a stream.
+             *
+             * @param errors whether the output to System.err is read instead of System.out.
+             */
+            FinishedStream(final boolean errors) {
+                this.errors = errors;
+            }
+
+            /**
+             * @return the stream reading the output, after waiting for the program to finish.
+             * @throws IOException if the waiting thread is interrupted.
+             */
+            private InputStream in() throws IOException {
+                if (in == null) {
+                    try {
+                        Result finished = result();
+                        in = new ByteArrayInputStream(errors ? finished.errors() : finished.output());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the program.", e);
+                    }
+                }
+                return in;
+            }
+
+            @Override
+            public int read() throws IOException {
+                return in().read();
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                return in().read(b, off, len);
+            }
+        }
+    }
+}
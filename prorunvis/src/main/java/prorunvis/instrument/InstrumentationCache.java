@@ -0,0 +1,143 @@
+package prorunvis.instrument;
+
+import com.github.javaparser.ast.CompilationUnit;
+import prorunvis.trace.SiteTable;
+import prorunvis.trace.SourceEdits;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * A directory holding the instrumentation of compilation units, so the files which have not changed
+ * since the last run do not have to be instrumented again. An entry holds the trace sites of a file
+ * and the text inserted into it, with the ids of the sites counted from 0 within the file. It is
+ * stored under the hash of the content of the file, its name, the options it has been instrumented
+ * for and the {@link #VERSION} of the instrumentation, so an entry is only found for the same code
+ * instrumented the same way. Entries are never removed, the directory may be deleted at any time.
+ */
+public final class InstrumentationCache {
+
+    /**
+     * The version of the instrumentation, which has to be increased whenever the
+     * instrumented code or the saved sites change, so older entries are not used anymore.
+     */
+    private static final int VERSION = 7;
+
+    /**
+     * The first bytes of an entry.
+     */
+    private static final int MAGIC = 0x50525643;
+
+    /**
+     * The extension of the files of the entries.
+     */
+    private static final String EXTENSION = ".instrumented";
+
+    /**
+     * The directory of the entries.
+     */
+    private final Path directory;
+
+    /**
+     * Creates a cache stored in a directory, which is created when the first entry is stored.
+     *
+     * @param directory the directory of the entries.
+     */
+    public InstrumentationCache(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Computes the key of the entry of a compilation unit from the content of its source file.
+     *
+     * @param cu      the compilation unit, with a storage.
+     * @param options the options the compilation unit is instrumented for.
+     * @return the key of the entry, null if the source file could not be read.
+     */
+    String key(final CompilationUnit cu, final RecorderOptions options) {
+        CompilationUnit.Storage storage = cu.getStorage().get();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+            digest.update(Files.readAllBytes(storage.getPath()));
+        } catch (IOException e) {
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        String variant = VERSION + ":" + options.getOutputMode() + ":" + options.isExits() + ":"
+                + options.isCallSites() + ":" + options.isLoopSampling() + ":" + options.getFilter() + ":"
+                + storage.getEncoding().name() + ":" + storage.getFileName();
+        digest.update(variant.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Loads the entry of a compilation unit. The loaded edits are attached to the compilation unit
+     * with the key {@link SourceEdits#DATA_KEY}, as if it had been instrumented, while the
+     * compilation unit itself is left unchanged. A missing or unreadable entry is not found.
+     *
+     * @param key the key of the entry, see {@link #key}.
+     * @param cu  the compilation unit, which has not been instrumented.
+     * @return the table of the sites of the compilation unit, null if there is no entry.
+     */
+    SiteTable load(final String key, final CompilationUnit cu) {
+        Path entry = directory.resolve(key + EXTENSION);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            SiteTable sites = SiteTable.loadFile(in, cu);
+            cu.setData(SourceEdits.DATA_KEY, SourceEdits.load(in));
+            return sites;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("Ignoring the cached instrumentation " + entry + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores the entry of a compilation unit which has just been instrumented, before the ids
+     * of its sites have been shifted. The entry is written to a temporary file first, so
+     * an entry is either complete or missing, even if it is stored concurrently.
+     * A failure is reported, but only means that the entry is missing.
+     *
+     * @param key   the key of the entry, see {@link #key}.
+     * @param sites the table of the sites of the compilation unit alone.
+     * @param edits the edits recorded while the compilation unit was instrumented.
+     */
+    void store(final String key, final SiteTable sites, final SourceEdits edits) {
+        Path entry = directory.resolve(key + EXTENSION);
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, key, ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    sites.saveFile(out);
+                    edits.save(out);
+                }
+                Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not cache the instrumentation " + entry + ": " + e.getMessage());
+        }
+    }
+}
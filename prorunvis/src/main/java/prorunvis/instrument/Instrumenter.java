@@ -1,16 +1,42 @@
 package prorunvis.instrument;
 
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.Position;
 import com.github.javaparser.ast.CompilationUnit;
 import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.nodeTypes.NodeWithBody;
+import com.github.javaparser.ast.stmt.BlockStmt;
+import com.github.javaparser.ast.stmt.SwitchEntry;
+import com.github.javaparser.ast.stmt.TryStmt;
 import com.github.javaparser.utils.ProjectRoot;
+import com.github.javaparser.utils.SourceRoot;
+import prorunvis.agent.SiteLocations;
+import prorunvis.agent.TraceAgent;
+import prorunvis.trace.SiteTable;
+import prorunvis.trace.SourceEdits;
 import prorunvis.trace.TraceVisitor;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 public final class Instrumenter {
 
+    /**
+     * The name of the resource from which the trace recorder reads its options.
+     */
+    private static final String TRACE_CONFIGURATION = "trace.properties";
+
     private static File traceFile;
 
     private Instrumenter() {
@@ -40,63 +66,344 @@ public final class Instrumenter {
     }
 
     public static void saveInstrumented(final ProjectRoot pr, final String instrumentedOutPath) {
+        saveInstrumented(pr, instrumentedOutPath, new RecorderOptions());
+    }
+
+    /**
+     * Saves the instrumented compilation units together with the configuration
+     * of the trace recorder. The recorder itself is not saved, it is put on the
+     * classpath by {@link prorunvis.CompileAndRun}.
+     *
+     * @param pr                  the project root containing the instrumented compilation units.
+     * @param instrumentedOutPath the directory to save the instrumented project to.
+     * @param options             the options for the trace recorder.
+     */
+    public static void saveInstrumented(final ProjectRoot pr, final String instrumentedOutPath,
+                                        final RecorderOptions options) {
         File instrumented = new File(instrumentedOutPath);
         if (!instrumented.exists() && !instrumented.mkdirs()) {
             throw new RuntimeException("Could not create instrumented output directory: " + instrumentedOutPath);
         }
 
         // Save all compilation units to the specified directory
-        pr.getSourceRoots().forEach(sr -> sr.saveAll(Paths.get(instrumentedOutPath)));
+        pr.getSourceRoots().forEach(sr -> saveSources(sr, Paths.get(instrumentedOutPath)));
 
         File proRunVisDir = new File(instrumented, "prorunvis");
         if (!proRunVisDir.exists() && !proRunVisDir.mkdirs()) {
             throw new RuntimeException("Could not create prorunvis directory: " + proRunVisDir);
         }
 
+        //the recorder is precompiled in the runtime module, remove a source left by older versions
         File proRunVisClass = new File(proRunVisDir, "Trace.java");
         if (proRunVisClass.exists() && !proRunVisClass.delete()) {
             throw new RuntimeException("Could not delete existing Trace.java");
         }
 
+        saveOptions(proRunVisDir, options);
+    }
+
+    /**
+     * Saves the compilation units of a source root to a directory, with the source code created by
+     * {@link #instrumentedSource}. Like {@link SourceRoot#saveAll(Path)}, the storage of the
+     * compilation units is set to the saved files.
+     *
+     * @param sr      the source root containing the compilation units.
+     * @param outPath the directory to save the source root to.
+     */
+    private static void saveSources(final SourceRoot sr, final Path outPath) {
+        for (ParseResult<CompilationUnit> result : sr.getCache()) {
+            if (result.getResult().isEmpty()) {
+                continue;
+            }
+            CompilationUnit cu = result.getResult().get();
+            CompilationUnit.Storage storage = cu.getStorage().get();
+            Path target = outPath.resolve(sr.getRoot().relativize(storage.getPath()));
+            Charset encoding = storage.getEncoding();
+            try {
+                Files.createDirectories(target.getParent());
+                Files.writeString(target, instrumentedSource(sr, cu), encoding);
+            } catch (IOException e) {
+                throw new RuntimeException("Error saving " + target + ": " + e.getMessage(), e);
+            }
+            //the edits only apply to the original source file
+            cu.removeData(SourceEdits.DATA_KEY);
+            cu.setStorage(target, encoding);
+        }
+    }
+
+    /**
+     * Returns the instrumented source code of the compilation units of a project as
+     * {@link #saveInstrumented} saves it, without writing it, so it can be compiled in memory
+     * by {@link prorunvis.SourceCompiler}. The compilation units keep their storage.
+     *
+     * @param pr the project root containing the instrumented compilation units.
+     * @return the source code by the path of its file relative to its source root, separated by '/'.
+     */
+    public static Map<String, String> getInstrumentedSources(final ProjectRoot pr) {
+        Map<String, String> sources = new LinkedHashMap<>();
+        for (SourceRoot sr : pr.getSourceRoots()) {
+            for (ParseResult<CompilationUnit> result : sr.getCache()) {
+                if (result.getResult().isEmpty()) {
+                    continue;
+                }
+                CompilationUnit cu = result.getResult().get();
+                Path path = sr.getRoot().relativize(cu.getStorage().get().getPath());
+                try {
+                    sources.put(path.toString().replace(File.separatorChar, '/'), instrumentedSource(sr, cu));
+                } catch (IOException e) {
+                    throw new RuntimeException("Error reading " + path + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Creates the source code of an instrumented compilation unit, by inserting the text recorded
+     * in its {@link SourceEdits} into its source file, so only the instrumented code blocks are changed.
+     * Any other compilation unit, or one whose source file does not match the recorded text, is printed
+     * as by {@link SourceRoot#saveAll(Path)}.
+     *
+     * @param sr the source root containing the compilation unit.
+     * @param cu the compilation unit, with the storage it has been parsed from.
+     * @return the source code.
+     * @throws IOException if the source file could not be read.
+     */
+    private static String instrumentedSource(final SourceRoot sr, final CompilationUnit cu) throws IOException {
+        CompilationUnit.Storage storage = cu.getStorage().get();
+        if (cu.containsData(SourceEdits.DATA_KEY)) {
+            try {
+                return cu.getData(SourceEdits.DATA_KEY).apply(Files.readString(storage.getPath(),
+                        storage.getEncoding()));
+            } catch (IllegalStateException e) {
+                System.err.println("Printing " + storage.getPath() + " instead: " + e.getMessage());
+            }
+        }
+        return sr.getPrinter().apply(cu);
+    }
+
+    /**
+     * Saves the instrumented compilation units like {@link #saveInstrumented(ProjectRoot, String, RecorderOptions)},
+     * together with the table of their trace sites, so the traces of the instrumented
+     * code can be processed without instrumenting it again, see {@link #loadSites}.
+     *
+     * @param pr                  the project root containing the instrumented compilation units.
+     * @param sites               the table of the instrumented code blocks.
+     * @param instrumentedOutPath the directory to save the instrumented project to.
+     * @param options             the options for the trace recorder.
+     */
+    public static void saveInstrumented(final ProjectRoot pr, final SiteTable sites, final String instrumentedOutPath,
+                                        final RecorderOptions options) {
+        saveInstrumented(pr, instrumentedOutPath, options);
+        File siteTable = new File(new File(instrumentedOutPath, "prorunvis"), SiteTable.FILE_NAME);
         try {
-            if (!proRunVisClass.createNewFile()) {
-                throw new IOException("Could not create Trace.java file");
+            sites.save(siteTable.toPath(), pr.getRoot());
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing " + SiteTable.FILE_NAME + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Loads the table of trace sites saved together with the instrumented code.
+     * The table contains everything needed to process a trace, so the sources of
+     * the project are not parsed again, and they may even have been removed.
+     *
+     * @param instrumentedOutPath the directory the instrumented project has been saved to.
+     * @param rootDir             the root directory of the original project.
+     * @return the table of the instrumented code blocks.
+     * @throws IOException If no table has been saved or it could not be read.
+     */
+    public static SiteTable loadSites(final String instrumentedOutPath, final Path rootDir) throws IOException {
+        return SiteTable.load(Paths.get(instrumentedOutPath, "prorunvis", SiteTable.FILE_NAME), rootDir);
+    }
+
+    /**
+     * Saves the source positions of the instrumented code blocks for the
+     * {@link TraceAgent}, together with the configuration of the trace recorder,
+     * into the directory the program is compiled to. The trace calls are then
+     * injected into the compiled classes by the agent instead of being saved as
+     * instrumented source code.
+     *
+     * @param sites           the table of the instrumented code blocks.
+     * @param compiledOutPath the directory the program is compiled to.
+     * @param options         the options for the trace recorder.
+     */
+    public static void saveSites(final SiteTable sites, final String compiledOutPath,
+                                 final RecorderOptions options) {
+        File proRunVisDir = new File(compiledOutPath, "prorunvis");
+        if (!proRunVisDir.exists() && !proRunVisDir.mkdirs()) {
+            throw new RuntimeException("Could not create prorunvis directory: " + proRunVisDir);
+        }
+
+        SiteLocations locations = new SiteLocations(options.getOutputMode() == RecorderOptions.OutputMode.COUNTS);
+        for (int id = 0; id < sites.size(); id++) {
+            CompilationUnit cu = sites.getCompilationUnit(sites.getFile(id));
+            String source = cu.getPackageDeclaration()
+                    .map(declaration -> declaration.getNameAsString().replace('.', '/') + "/").orElse("")
+                    + cu.getStorage().get().getFileName();
+            if (sites.getKind(id) == SiteTable.Kind.CATCH) {
+                //the catch clauses are the sites following the one of their try statement
+                int tryStmt = sites.getEnclosing(id);
+                Position begin = sites.getBegin(tryStmt);
+                locations.addCatch(id, source, begin.line, begin.column, id - tryStmt - 1);
+                continue;
             }
+            Node start = startOf(sites.getNode(id));
+            if (start != null) {
+                locations.add(id, source, start.getBegin().get().line, start.getBegin().get().column);
+            }
+        }
+        try {
+            locations.save(new File(proRunVisDir, SiteLocations.FILE_NAME).toPath());
         } catch (IOException e) {
-            throw new RuntimeException("Error creating Trace.java: " + e.getMessage(), e);
+            throw new RuntimeException("Error writing " + SiteLocations.FILE_NAME + ": " + e.getMessage(), e);
+        }
+        saveOptions(proRunVisDir, options);
+    }
+
+    /**
+     * Gets the statement or block at which the compiled code of an instrumented code block
+     * starts, which is found in the compiled classes by its position. A catch clause is
+     * found by its try statement instead.
+     *
+     * @param node the AST node of an instrumented code block, as found in the {@link SiteTable}.
+     * @return the first statement or block of the code block, null if it has no statements.
+     */
+    private static Node startOf(final Node node) {
+        if (node instanceof MethodDeclaration method) {
+            return method.getBody().get();
+        } else if (node instanceof NodeWithBody<?> loop) {
+            return loop.getBody();
+        } else if (node instanceof TryStmt stmt) {
+            return stmt.getTryBlock();
+        } else if (node instanceof SwitchEntry entry) {
+            return entry.getStatements().isEmpty() ? null : entry.getStatement(0);
+        } else if (node instanceof BlockStmt block) {
+            return block;
         }
+        throw new IllegalArgumentException("The agent can not record " + node.getClass().getSimpleName() + " sites.");
+    }
+
+    /**
+     * Saves the configuration of the trace recorder next to the classes of a program, which has been
+     * compiled from the source code returned by {@link #getInstrumentedSources} instead of saved sources.
+     *
+     * @param compiledOutPath the directory the program is compiled to.
+     * @param options         the options for the trace recorder.
+     */
+    public static void saveOptions(final String compiledOutPath, final RecorderOptions options) {
+        File proRunVisDir = new File(compiledOutPath, "prorunvis");
+        if (!proRunVisDir.exists() && !proRunVisDir.mkdirs()) {
+            throw new RuntimeException("Could not create prorunvis directory: " + proRunVisDir);
+        }
+        saveOptions(proRunVisDir, options);
+    }
 
-        String content = "package prorunvis;\n" +
-                "import java.io.BufferedWriter;\n" +
-                "import java.io.FileWriter;\n" +
-                "import java.io.IOException;\n" +
-                "\n" +
-                "public final class Trace {\n" +
-                "    // These fields allow manual forcing of a trace\n" +
-                "    public static int[] trace = null;\n" +
-                "    public static int index = 0;\n" +
-                "\n" +
-                "    public static void next_elem(int num) {\n" +
-                "        if (trace != null && index < trace.length) {\n" +
-                "            num = trace[index];\n" +
-                "            index++;\n" +
-                "        }\n" +
-                "        try (BufferedWriter writer = new BufferedWriter(new FileWriter(\"Trace.tr\", true))) {\n" +
-                "            writer.write(\"\" + num + System.lineSeparator());\n" +
-                "        } catch (IOException e) {\n" +
-                "            throw new RuntimeException(e.getMessage());\n" +
-                "        }\n" +
-                "    }\n" +
-                "}\n";
-
-        try (BufferedWriter bf = new BufferedWriter(new FileWriter(proRunVisClass, false))) {
-            bf.write(content);
+    /**
+     * Saves the configuration of the trace recorder.
+     *
+     * @param proRunVisDir the directory the recorder reads its configuration from.
+     * @param options      the options for the trace recorder.
+     */
+    private static void saveOptions(final File proRunVisDir, final RecorderOptions options) {
+        File recorderConfiguration = new File(proRunVisDir, TRACE_CONFIGURATION);
+        try (BufferedWriter bf = new BufferedWriter(new FileWriter(recorderConfiguration, false))) {
+            options.toProperties().store(bf, "ProRunVis trace recorder options");
         } catch (IOException e) {
-            throw new RuntimeException("Error writing Trace.java: " + e.getMessage(), e);
+            throw new RuntimeException("Error writing " + TRACE_CONFIGURATION + ": " + e.getMessage(), e);
+        }
+    }
+
+    public static void run(final CompilationUnit cu, final SiteTable sites) {
+        new TraceVisitor().visit(cu, sites);
+    }
+
+    /**
+     * Instruments a compilation unit for the given recorder options. In
+     * {@link RecorderOptions.OutputMode#COUNTS} mode the code blocks only
+     * count their executions instead of recording a trace, otherwise their
+     * exits are recorded as well if {@link RecorderOptions#isExits()} is set,
+     * the sites of the method calls if {@link RecorderOptions#isCallSites()} is set,
+     * and the loops are framed for sampling if {@link RecorderOptions#isLoopSampling()} is set.
+     * The compilation unit is preprocessed while it is instrumented, it does not have
+     * to be preprocessed by {@link prorunvis.preprocess.Preprocessor} before.
+     *
+     * @param cu      the compilation unit to instrument.
+     * @param sites   the table to add the instrumented code blocks to.
+     * @param options the options for the trace recorder.
+     */
+    public static void run(final CompilationUnit cu, final SiteTable sites, final RecorderOptions options) {
+        newVisitor(options).visit(cu, sites);
+    }
+
+    public static void runAll(final List<CompilationUnit> cus, final SiteTable sites) {
+        runAll(cus, sites, new RecorderOptions());
+    }
+
+    /**
+     * Instruments all compilation units of a project in parallel, on the
+     * common {@link java.util.concurrent.ForkJoinPool}. Every compilation unit is instrumented
+     * with a table of its own, the tables are then appended to the given one in the order of
+     * the paths of their files, and the ids within the instrumented code are shifted to the
+     * block of ids its file has been given. The same project therefore always gets the same ids,
+     * regardless of the order in which its files have been parsed or instrumented.
+     *
+     * @param cus     the compilation units to instrument, with a storage.
+     * @param sites   the table to add the instrumented code blocks to.
+     * @param options the options for the trace recorder, see {@link #run(CompilationUnit, SiteTable, RecorderOptions)}.
+     */
+    public static void runAll(final List<CompilationUnit> cus, final SiteTable sites, final RecorderOptions options) {
+        runAll(cus, sites, options, null);
+    }
+
+    /**
+     * Instruments all compilation units of a project like {@link #runAll(List, SiteTable, RecorderOptions)},
+     * but reuses the instrumentation of the files which have not changed since they have been
+     * instrumented before. A compilation unit found in the cache is not changed, only the
+     * text to insert into its source file is attached to it, which is all that
+     * {@link #saveInstrumented} needs. The instrumentation of every other compilation unit
+     * is stored in the cache.
+     *
+     * @param cus     the compilation units to instrument, with a storage.
+     * @param sites   the table to add the instrumented code blocks to.
+     * @param options the options for the trace recorder, see {@link #run(CompilationUnit, SiteTable, RecorderOptions)}.
+     * @param cache   the cache of the instrumentation, null to instrument every compilation unit.
+     */
+    public static void runAll(final List<CompilationUnit> cus, final SiteTable sites, final RecorderOptions options,
+                              final InstrumentationCache cache) {
+        List<CompilationUnit> sorted = new ArrayList<>(cus);
+        sorted.sort(Comparator.comparing(cu -> cu.getStorage().get().getPath()));
+        SiteTable[] tables = new SiteTable[sorted.size()];
+        IntConsumer[] relocations = new IntConsumer[sorted.size()];
+        IntStream.range(0, sorted.size()).parallel().forEach(i -> {
+            CompilationUnit cu = sorted.get(i);
+            String key = cache == null ? null : cache.key(cu, options);
+            tables[i] = key == null ? null : cache.load(key, cu);
+            if (tables[i] != null) {
+                relocations[i] = cu.getData(SourceEdits.DATA_KEY)::relocate;
+                return;
+            }
+            tables[i] = new SiteTable();
+            TraceVisitor visitor = newVisitor(options);
+            visitor.visit(cu, tables[i]);
+            relocations[i] = visitor::relocate;
+            if (key != null) {
+                cache.store(key, tables[i], cu.getData(SourceEdits.DATA_KEY));
+            }
+        });
+        for (int i = 0; i < tables.length; i++) {
+            relocations[i].accept(sites.addAll(tables[i]));
         }
     }
 
-    public static void run(final CompilationUnit cu, final Map<Integer, Node> map) {
-        new TraceVisitor().visit(cu, map);
+    /**
+     * Creates the visitor instrumenting the code for the given recorder options.
+     *
+     * @param options the options for the trace recorder.
+     * @return the visitor.
+     */
+    private static TraceVisitor newVisitor(final RecorderOptions options) {
+        return new TraceVisitor(options.getOutputMode() == RecorderOptions.OutputMode.COUNTS, options.isExits(),
+                options.isCallSites(), options.isLoopSampling(), options.getFilter());
     }
 }
\ No newline at end of file
@@ -0,0 +1,389 @@
+package prorunvis.instrument;
+
+import prorunvis.trace.InstrumentationFilter;
+
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Options for the trace recorder added to an instrumented project.
+ * The options are saved as {@code prorunvis/trace.properties} next to the
+ * recorder by {@link Instrumenter#saveInstrumented} and read by the recorder
+ * when the traced program starts. Every option can also be overridden with a
+ * system property of the form {@code prorunvis.trace.<key>}.
+ */
+public class RecorderOptions {
+
+    /**
+     * The ways in which the recorder can write the trace.
+     */
+    public enum OutputMode {
+
+        /**
+         * Ids are buffered and written in blocks to a single trace file.
+         */
+        FILE,
+
+        /**
+         * Ids are written directly into a sequence of memory-mapped segment files,
+         * which survive a crash of the traced program.
+         */
+        MAPPED,
+
+        /**
+         * Ids are buffered and written in blocks to a connection on the loopback interface,
+         * which is processed while the program runs. The program has to be started with the
+         * arguments of a {@link prorunvis.trace.process.TraceReceiver}, which tell it where
+         * to connect and which save the trace next to the processing.
+         */
+        STREAM,
+
+        /**
+         * No trace is recorded, the instrumented code only counts how often every code block
+         * is executed. The counts are written to the trace file when the program exits.
+         * This requires the code to be instrumented with these options and the site count to be set.
+         */
+        COUNTS
+    }
+
+    /**
+     * The default size of a single memory-mapped segment in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The way in which the recorder writes the trace.
+     */
+    private OutputMode outputMode = OutputMode.FILE;
+
+    /**
+     * The size of a single segment file in {@link OutputMode#MAPPED} mode.
+     */
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    /**
+     * Whether the trace file is gzip compressed in {@link OutputMode#FILE} mode.
+     */
+    private boolean compressed = false;
+
+    /**
+     * The number of trace sites of the instrumented program, 0 if unknown.
+     */
+    private int siteCount = 0;
+
+    /**
+     * The number of iterations recorded in full at the start of every loop execution,
+     * negative if loops are not sampled.
+     */
+    private int loopHead = -1;
+
+    /**
+     * The number of iterations recorded in full at the end of every loop execution.
+     */
+    private int loopTail = 0;
+
+    /**
+     * The maximum number of ids recorded before the program is stopped, 0 if unlimited.
+     */
+    private long maxEvents = 0;
+
+    /**
+     * The maximum size of the trace in bytes before the program is stopped, 0 if unlimited.
+     */
+    private long maxBytes = 0;
+
+    /**
+     * Whether the time of every id is recorded in {@link OutputMode#FILE} mode.
+     */
+    private boolean timing = false;
+
+    /**
+     * Whether the instrumented code records the exits of the code blocks.
+     */
+    private boolean exits = false;
+
+    /**
+     * Whether the instrumented code records the sites of the method calls.
+     */
+    private boolean callSites = false;
+
+    /**
+     * Whether the trace calls are injected into the compiled classes by the agent.
+     */
+    private boolean agent = false;
+
+    /**
+     * The selection of the instrumented code.
+     */
+    private InstrumentationFilter filter = InstrumentationFilter.ALL;
+
+    /**
+     * @return the way in which the recorder writes the trace.
+     */
+    public OutputMode getOutputMode() {
+        return outputMode;
+    }
+
+    /**
+     * Sets the way in which the recorder writes the trace.
+     *
+     * @param outputMode the output mode to use.
+     */
+    public void setOutputMode(final OutputMode outputMode) {
+        this.outputMode = outputMode;
+    }
+
+    /**
+     * @return the size of a single segment file in bytes.
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets the size of a single segment file used in {@link OutputMode#MAPPED} mode.
+     *
+     * @param segmentSize the size in bytes, has to be positive.
+     */
+    public void setSegmentSize(final int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size has to be positive.");
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * @return whether the trace file is gzip compressed.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Sets whether the trace file written in {@link OutputMode#FILE} mode is gzip compressed.
+     * This reduces the size of the trace at the expense of the runtime of the traced program.
+     *
+     * @param compressed true to compress the trace file.
+     */
+    public void setCompressed(final boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * @return the number of trace sites of the instrumented program.
+     */
+    public int getSiteCount() {
+        return siteCount;
+    }
+
+    /**
+     * Sets the number of trace sites of the instrumented program, which is stored
+     * in the header of the trace file so the trace can be validated when it is read.
+     *
+     * @param siteCount the number of trace sites, 0 if unknown.
+     */
+    public void setSiteCount(final int siteCount) {
+        this.siteCount = siteCount;
+    }
+
+    /**
+     * @return whether the iterations of loops are sampled.
+     */
+    public boolean isLoopSampling() {
+        return loopHead >= 0;
+    }
+
+    /**
+     * @return the number of iterations recorded in full at the start of every loop execution.
+     */
+    public int getLoopHead() {
+        return loopHead;
+    }
+
+    /**
+     * @return the number of iterations recorded in full at the end of every loop execution.
+     */
+    public int getLoopTail() {
+        return loopTail;
+    }
+
+    /**
+     * Enables sampling of loops. Every execution of a loop records only its first and last
+     * iterations in full, the iterations in between are only counted. This bounds the size
+     * of the trace for programs with long-running loops. The loops are only framed for the
+     * recorder if this is set before the code is instrumented.
+     *
+     * @param head the number of iterations recorded at the start, not negative.
+     * @param tail the number of iterations recorded at the end, not negative.
+     */
+    public void setLoopSampling(final int head, final int tail) {
+        if (head < 0 || tail < 0) {
+            throw new IllegalArgumentException("The number of sampled iterations can not be negative.");
+        }
+        this.loopHead = head;
+        this.loopTail = tail;
+    }
+
+    /**
+     * @return the maximum number of ids recorded, 0 if unlimited.
+     */
+    public long getMaxEvents() {
+        return maxEvents;
+    }
+
+    /**
+     * @return the maximum size of the trace in bytes, 0 if unlimited.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the budget of the recorder. Once the traced program exceeds it, the recorder
+     * stops the program and ends the trace with a truncation record, which protects the
+     * disk from runaway programs. In {@link OutputMode#FILE} mode the size is measured
+     * before compression.
+     *
+     * @param maxEvents the maximum number of recorded ids, 0 if unlimited.
+     * @param maxBytes  the maximum size of the trace in bytes, 0 if unlimited.
+     */
+    public void setBudget(final long maxEvents, final long maxBytes) {
+        if (maxEvents < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("The budget of the trace can not be negative.");
+        }
+        this.maxEvents = maxEvents;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return whether the time of every id is recorded.
+     */
+    public boolean isTiming() {
+        return timing;
+    }
+
+    /**
+     * Sets whether the recorder stores the {@code System.nanoTime} of every id in
+     * {@link OutputMode#FILE} mode, from which the time spent in every code block
+     * is derived. This costs one clock read per recorded id and increases the size
+     * of the trace. It is ignored in the other modes.
+     *
+     * @param timing true to record the times of the ids.
+     */
+    public void setTiming(final boolean timing) {
+        this.timing = timing;
+    }
+
+    /**
+     * @return whether the instrumented code records the exits of the code blocks.
+     */
+    public boolean isExits() {
+        return exits;
+    }
+
+    /**
+     * Sets whether the code is instrumented to record the exit of every code block as well,
+     * in a finally block so it is recorded even if the code block is left by a jump or an
+     * exception. This makes the nesting of the code blocks explicit in the trace, so it can
+     * be processed without inspecting the code, at the expense of one additional event per
+     * code block. It is ignored in {@link OutputMode#COUNTS} mode.
+     * This requires the code to be instrumented with these options.
+     *
+     * @param exits true to record the exits of the code blocks.
+     */
+    public void setExits(final boolean exits) {
+        this.exits = exits;
+    }
+
+    /**
+     * @return whether the instrumented code records the sites of the method calls.
+     */
+    public boolean isCallSites() {
+        return callSites;
+    }
+
+    /**
+     * Sets whether the code is instrumented to record the site of every method call within
+     * a method before evaluating it. This links every call of a traced method directly to
+     * the code block of the method, instead of searching the code for a call with the same
+     * name, at the expense of one additional event per executed call. It is ignored in
+     * {@link OutputMode#COUNTS} mode.
+     * This requires the code to be instrumented with these options.
+     *
+     * @param callSites true to record the sites of the method calls.
+     */
+    public void setCallSites(final boolean callSites) {
+        this.callSites = callSites;
+    }
+
+    /**
+     * @return whether the trace calls are injected into the compiled classes by the agent.
+     */
+    public boolean isAgent() {
+        return agent;
+    }
+
+    /**
+     * Sets whether the trace calls are injected into the classes of the program by the
+     * {@link prorunvis.agent.TraceAgent} while they are loaded, instead of instrumenting
+     * its source code. The program is then compiled from its unchanged sources and can be
+     * traced again without compiling it. The agent neither supports the exits of the code
+     * blocks, the sites of the method calls nor the sampling of loops, and code blocks
+     * without statements are never recorded.
+     * The sites have to be saved with {@link Instrumenter#saveSites}.
+     *
+     * @param agent true to inject the trace calls with the agent.
+     */
+    public void setAgent(final boolean agent) {
+        this.agent = agent;
+    }
+
+    /**
+     * @return the selection of the instrumented code.
+     */
+    public InstrumentationFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Sets which code is instrumented, e.g. only the subsystem under investigation, which
+     * reduces both the overhead of the traced program and the size of its trace. A method
+     * which is not instrumented does not appear in the trace, the traced methods called by
+     * it are linked to its call instead. This requires the code to be instrumented with these options.
+     *
+     * @param filter the selection of the instrumented code.
+     */
+    public void setFilter(final InstrumentationFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Converts these options to the properties read by the recorder.
+     *
+     * @return the properties representing these options.
+     */
+    public Properties toProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("mode", outputMode.name().toLowerCase(Locale.ROOT));
+        properties.setProperty("segmentSize", String.valueOf(segmentSize));
+        properties.setProperty("compress", String.valueOf(compressed));
+        properties.setProperty("sites", String.valueOf(siteCount));
+        if (isLoopSampling()) {
+            properties.setProperty("loopHead", String.valueOf(loopHead));
+            properties.setProperty("loopTail", String.valueOf(loopTail));
+        }
+        if (maxEvents > 0) {
+            properties.setProperty("maxEvents", String.valueOf(maxEvents));
+        }
+        if (maxBytes > 0) {
+            properties.setProperty("maxBytes", String.valueOf(maxBytes));
+        }
+        if (timing) {
+            properties.setProperty("timing", "true");
+        }
+        if (exits) {
+            properties.setProperty("exits", "true");
+        }
+        return properties;
+    }
+}
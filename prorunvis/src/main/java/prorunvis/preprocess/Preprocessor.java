@@ -1,10 +1,7 @@
 package prorunvis.preprocess;
 
 import com.github.javaparser.ast.CompilationUnit;
-import prorunvis.preprocess.modifier.DoLoopPreprocessor;
-import prorunvis.preprocess.modifier.ForLoopPreprocessor;
-import prorunvis.preprocess.modifier.IfStatementPreprocessor;
-import prorunvis.preprocess.modifier.WhileLoopPreprocessor;
+import prorunvis.preprocess.modifier.BlockPreprocessor;
 
 /**
  * A preprocessor preparing a {@link CompilationUnit} for tracing.
@@ -26,9 +23,6 @@ public final class Preprocessor {
      * @param cu The compilation unit to process.
      */
     public static void run(final CompilationUnit cu) {
-        new IfStatementPreprocessor().visit(cu, null);
-        new ForLoopPreprocessor().visit(cu, null);
-        new WhileLoopPreprocessor().visit(cu, null);
-        new DoLoopPreprocessor().visit(cu, null);
+        new BlockPreprocessor().visit(cu, null);
     }
 }
@@ -0,0 +1,136 @@
+package prorunvis.preprocess.modifier;
+
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.stmt.BlockStmt;
+import com.github.javaparser.ast.stmt.DoStmt;
+import com.github.javaparser.ast.stmt.ForStmt;
+import com.github.javaparser.ast.stmt.IfStmt;
+import com.github.javaparser.ast.stmt.Statement;
+import com.github.javaparser.ast.stmt.WhileStmt;
+import com.github.javaparser.ast.visitor.ModifierVisitor;
+
+/**
+ * A Visitor used by {@link prorunvis.preprocess.Preprocessor}. It can be used to
+ * modify if-statements and for, while and do-while loops to follow common java
+ * conventions using curly braces. A single statement can also be modified by itself,
+ * which is done by {@link prorunvis.trace.TraceVisitor} right before instrumenting it,
+ * so the code is preprocessed and instrumented in the same traversal.
+ */
+public class BlockPreprocessor extends ModifierVisitor<Void> {
+
+    /**
+     * Modify if-statements, see {@link #toBlocks(IfStmt)}.
+     */
+    @Override
+    public IfStmt visit(final IfStmt stmt, final Void arg) {
+        toBlocks(stmt);
+        super.visit(stmt, arg);
+        return stmt;
+    }
+
+    /**
+     * Modify for loop-statements, see {@link #toBlocks(ForStmt)}.
+     */
+    @Override
+    public ForStmt visit(final ForStmt stmt, final Void arg) {
+        toBlocks(stmt);
+        super.visit(stmt, arg);
+        return stmt;
+    }
+
+    /**
+     * Modify while-statements, see {@link #toBlocks(WhileStmt)}.
+     */
+    @Override
+    public WhileStmt visit(final WhileStmt stmt, final Void arg) {
+        toBlocks(stmt);
+        super.visit(stmt, arg);
+        return stmt;
+    }
+
+    /**
+     * Modify dowhile-statements, see {@link #toBlocks(DoStmt)}.
+     */
+    @Override
+    public DoStmt visit(final DoStmt stmt, final Void arg) {
+        toBlocks(stmt);
+        super.visit(stmt, arg);
+        return stmt;
+    }
+
+    /**
+     * Replaces the then and/or else statement of an if-statement, if it is a single
+     * statement, with an equivalent block statement. An else-if is left as it is.
+     *
+     * @param stmt the statement to modify.
+     */
+    public static void toBlocks(final IfStmt stmt) {
+        if (!stmt.getThenStmt().isBlockStmt()) {
+            BlockStmt block = toBlock(stmt.getThenStmt());
+            stmt.setThenStmt(block);
+            block.getStatement(0).setParentNode(block);
+        }
+
+        if (stmt.getElseStmt().isPresent()) {
+            if (!stmt.getElseStmt().get().isBlockStmt()
+                && !stmt.getElseStmt().get().isIfStmt()) {
+                BlockStmt block = toBlock(stmt.getElseStmt().get());
+                stmt.setElseStmt(block);
+                block.getStatement(0).setParentNode(block);
+            }
+        }
+    }
+
+    /**
+     * Replaces the body of a for loop, if it is a single statement, with an equivalent block statement.
+     *
+     * @param stmt the statement to modify.
+     */
+    public static void toBlocks(final ForStmt stmt) {
+        if (!stmt.getBody().isBlockStmt()) {
+            BlockStmt block = toBlock(stmt.getBody());
+            stmt.setBody(block);
+            block.getStatement(0).setParentNode(block);
+        }
+    }
+
+    /**
+     * Replaces the body of a while loop, if it is a single statement, with an equivalent block statement.
+     *
+     * @param stmt the statement to modify.
+     */
+    public static void toBlocks(final WhileStmt stmt) {
+        if (!stmt.getBody().isBlockStmt()) {
+            BlockStmt block = toBlock(stmt.getBody());
+            stmt.setBody(block);
+            block.getStatement(0).setParentNode(block);
+        }
+    }
+
+    /**
+     * Replaces the body of a do-while loop, if it is a single statement, with an equivalent block statement.
+     *
+     * @param stmt the statement to modify.
+     */
+    public static void toBlocks(final DoStmt stmt) {
+        if (!stmt.getBody().isBlockStmt()) {
+            BlockStmt block = toBlock(stmt.getBody());
+            stmt.setBody(block);
+            block.getStatement(0).setParentNode(block);
+        }
+    }
+
+    /**
+     * Creates a block statement containing a single statement, with the range of the statement.
+     * The statement still has to be replaced by the block in its parent, after which
+     * the block has to be set as its parent again.
+     *
+     * @param stmt the statement.
+     * @return the block statement.
+     */
+    private static BlockStmt toBlock(final Statement stmt) {
+        BlockStmt block = new BlockStmt(new NodeList<>(stmt));
+        block.setRange(stmt.getRange().get());
+        return block;
+    }
+}
@@ -0,0 +1,80 @@
+package prorunvis.trace;
+
+import prorunvis.trace.process.JumpLink;
+
+/**
+ * This class represents the coverage of a single code block in a trace recorded in
+ * counting mode, containing the location of the code block and how often it has been
+ * executed. Unlike {@link TraceNode} it does not describe a single execution, so the
+ * coverage of a program run is an overlay on its source code rather than a tree.
+ */
+public class CoverageNode {
+
+    /**
+     * The ID that maps the node to an ASTNode.
+     */
+    private final String traceId;
+
+    /**
+     * The key of the code block, which unlike the id stays the same across edits
+     * of other code, see {@link SiteTable#getKey(int)}.
+     */
+    private final String siteKey;
+
+    /**
+     * The range of the code block and the file containing it.
+     */
+    private final JumpLink link;
+
+    /**
+     * The number of executions of the code block.
+     */
+    private final long hits;
+
+    /**
+     * Constructs a CoverageNode for a code block.
+     *
+     * @param traceId The id of the code block.
+     * @param siteKey The key of the code block.
+     * @param link    The range of the code block and the file containing it.
+     * @param hits    The number of executions of the code block.
+     */
+    public CoverageNode(final String traceId, final String siteKey, final JumpLink link, final long hits) {
+        this.traceId = traceId;
+        this.siteKey = siteKey;
+        this.link = link;
+        this.hits = hits;
+    }
+
+    /**
+     * Gets the id of the code block.
+     * @return The id as String.
+     */
+    public String getTraceID() {
+        return traceId;
+    }
+
+    /**
+     * Gets the key of the code block.
+     * @return The key as hexadecimal String.
+     */
+    public String getSiteKey() {
+        return siteKey;
+    }
+
+    /**
+     * Gets the location of the code block.
+     * @return The range of the code block and the file containing it.
+     */
+    public JumpLink getLink() {
+        return link;
+    }
+
+    /**
+     * Gets how often the code block has been executed.
+     * @return The number of executions, 0 if the code block has not been covered.
+     */
+    public long getHits() {
+        return hits;
+    }
+}
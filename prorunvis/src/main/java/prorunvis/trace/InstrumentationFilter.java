@@ -0,0 +1,207 @@
+package prorunvis.trace;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.CallableDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Selects the code instrumented by the {@link TraceVisitor}. Code is selected by
+ * the qualified name of the member containing it, made of the package, the names of the enclosing
+ * types and the name of the method or constructor, e.g. {@code com.example.util.Strings.Cache#get}.
+ * Code outside of methods and constructors, e.g. in initializers, has an empty member name, e.g.
+ * {@code com.example.Main#}.
+ * <p>
+ * A pattern without {@code #} selects a package or type including everything within it, e.g.
+ * {@code com.example.util} or {@code com.example.Main}, a pattern with {@code #} selects members,
+ * e.g. {@code com.example.Main#run}. A {@code *} in a pattern stands for any number of characters,
+ * e.g. {@code *#toString} or {@code com.example.*Helper}.
+ * If there are included patterns, only the code selected by one of them is instrumented, and the
+ * code selected by an excluded pattern is never instrumented. Sites of the excluded kinds are
+ * not instrumented in any code, catch clauses are only instrumented together with their try block.
+ */
+public final class InstrumentationFilter {
+
+    /**
+     * The filter instrumenting all code.
+     */
+    public static final InstrumentationFilter ALL = new InstrumentationFilter(List.of(), List.of(), Set.of());
+
+    /**
+     * The patterns of the included code, empty to include all code.
+     */
+    private final List<String> includes;
+
+    /**
+     * The patterns of the excluded code.
+     */
+    private final List<String> excludes;
+
+    /**
+     * The kinds of sites which are not instrumented.
+     */
+    private final Set<SiteTable.Kind> excludedKinds;
+
+    /**
+     * The included patterns combined to one expression, null if all code is included.
+     */
+    private final Pattern included;
+
+    /**
+     * The excluded patterns combined to one expression, null if no code is excluded.
+     */
+    private final Pattern excluded;
+
+    /**
+     * Creates a filter.
+     *
+     * @param includes      the patterns of the included code, empty to include all code.
+     * @param excludes      the patterns of the excluded code.
+     * @param excludedKinds the kinds of sites which are not instrumented.
+     * @throws IllegalArgumentException If a pattern is empty or the methods are excluded as a kind,
+     *                                  which would leave the trace without the calls linking its code blocks.
+     */
+    public InstrumentationFilter(final List<String> includes, final List<String> excludes,
+                                 final Set<SiteTable.Kind> excludedKinds) {
+        if (excludedKinds.contains(SiteTable.Kind.METHOD)) {
+            throw new IllegalArgumentException("Methods can only be excluded by their names.");
+        }
+        this.includes = List.copyOf(includes);
+        this.excludes = List.copyOf(excludes);
+        this.excludedKinds = excludedKinds.isEmpty()
+                ? Set.of() : Collections.unmodifiableSet(EnumSet.copyOf(excludedKinds));
+        this.included = compile(this.includes);
+        this.excluded = compile(this.excludes);
+    }
+
+    /**
+     * Creates a filter from comma separated lists, as given on the command line.
+     *
+     * @param includes      the patterns of the included code, null or empty to include all code.
+     * @param excludes      the patterns of the excluded code, null or empty to exclude none.
+     * @param excludedKinds the names of the kinds of sites which are not instrumented, e.g. {@code for,while},
+     *                      null or empty to exclude none.
+     * @return the filter.
+     * @throws IllegalArgumentException If a pattern or kind is invalid.
+     */
+    public static InstrumentationFilter parse(final String includes, final String excludes,
+                                              final String excludedKinds) {
+        Set<SiteTable.Kind> kinds = EnumSet.noneOf(SiteTable.Kind.class);
+        for (String kind : split(excludedKinds)) {
+            try {
+                kinds.add(SiteTable.Kind.valueOf(kind.toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown kind of site " + kind + ", expected one of "
+                        + Arrays.stream(SiteTable.Kind.values()).map(Enum::name)
+                        .map(name -> name.toLowerCase(Locale.ROOT)).collect(Collectors.joining(", ")) + ".");
+            }
+        }
+        return new InstrumentationFilter(split(includes), split(excludes), kinds);
+    }
+
+    /**
+     * Splits a comma separated list.
+     *
+     * @param list the list, may be null.
+     * @return the trimmed, non-empty elements of the list.
+     */
+    private static List<String> split(final String list) {
+        if (list == null) {
+            return List.of();
+        }
+        return Arrays.stream(list.split(",")).map(String::trim).filter(element -> !element.isEmpty()).toList();
+    }
+
+    /**
+     * Combines patterns to one regular expression.
+     *
+     * @param patterns the patterns.
+     * @return the expression matching the names selected by any of the patterns, null if there are none.
+     */
+    private static Pattern compile(final List<String> patterns) {
+        if (patterns.isEmpty()) {
+            return null;
+        }
+        return Pattern.compile(patterns.stream().map(pattern -> {
+            if (pattern.isBlank()) {
+                throw new IllegalArgumentException("A pattern of the instrumented code can not be empty.");
+            }
+            String expression = Arrays.stream(pattern.split("\\*", -1))
+                    .map(part -> part.isEmpty() ? "" : Pattern.quote(part)).collect(Collectors.joining(".*"));
+            //packages and types include everything within them
+            return pattern.contains("#") ? expression : expression + "(?:[.#].*)?";
+        }).collect(Collectors.joining("|", "(?:", ")")));
+    }
+
+    /**
+     * @return whether all code is instrumented.
+     */
+    public boolean isAll() {
+        return included == null && excluded == null && excludedKinds.isEmpty();
+    }
+
+    /**
+     * Checks whether the code of a member is instrumented.
+     *
+     * @param member the qualified name of the member, see {@link #memberOf(Node)}.
+     * @return true if the code is instrumented.
+     */
+    public boolean isIncluded(final String member) {
+        return (included == null || included.matcher(member).matches())
+                && (excluded == null || !excluded.matcher(member).matches());
+    }
+
+    /**
+     * Checks whether a site of the given kind is instrumented within the code of a member.
+     *
+     * @param node the node of the site.
+     * @param kind the kind of the site.
+     * @return true if the site is instrumented.
+     */
+    public boolean isIncluded(final Node node, final SiteTable.Kind kind) {
+        return !excludedKinds.contains(kind) && (included == null && excluded == null || isIncluded(memberOf(node)));
+    }
+
+    /**
+     * Gets the qualified name of the member containing a node, by which the code is selected.
+     *
+     * @param node the node.
+     * @return the name of the member, e.g. {@code com.example.Main#run}.
+     */
+    public static String memberOf(final Node node) {
+        String member = null;
+        Deque<String> names = new ArrayDeque<>();
+        for (Node parent = node; parent != null; parent = parent.getParentNode().orElse(null)) {
+            if (parent instanceof CallableDeclaration<?> callable && member == null) {
+                member = callable.getNameAsString();
+            } else if (parent instanceof TypeDeclaration<?> type) {
+                names.addFirst(type.getNameAsString());
+            } else if (parent instanceof CompilationUnit cu) {
+                cu.getPackageDeclaration().ifPresent(declaration -> names.addFirst(declaration.getNameAsString()));
+            }
+        }
+        return String.join(".", names) + "#" + (member == null ? "" : member);
+    }
+
+    /**
+     * Describes the filter, e.g. for the key of the cached instrumentation.
+     *
+     * @return the patterns and the excluded kinds.
+     */
+    @Override
+    public String toString() {
+        return "include=" + String.join(",", includes) + ";exclude=" + String.join(",", excludes)
+                + ";kinds=" + excludedKinds.stream().map(Enum::name).sorted().collect(Collectors.joining(","));
+    }
+}
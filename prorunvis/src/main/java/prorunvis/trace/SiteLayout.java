@@ -0,0 +1,527 @@
+package prorunvis.trace;
+
+import com.github.javaparser.Position;
+import com.github.javaparser.Range;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.nodeTypes.NodeWithBlockStmt;
+import com.github.javaparser.ast.nodeTypes.NodeWithBody;
+import com.github.javaparser.ast.nodeTypes.NodeWithOptionalBlockStmt;
+import com.github.javaparser.ast.nodeTypes.NodeWithSimpleName;
+import com.github.javaparser.ast.nodeTypes.NodeWithStatements;
+import com.github.javaparser.ast.stmt.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The parts of the code of a trace site needed to process a trace, taken from its AST node once,
+ * so a trace can be processed from a {@link SiteTable} without parsing the code again.
+ * It holds the statements directly within the code block of the site, for each of them its range,
+ * whether it is a code block of its own, whether it jumps out of the code block and the ranges of
+ * its parts which are always executed, like the condition of an if-statement. It further holds the
+ * update of a for loop, the method calls within the site and the range of the name of the method
+ * declared or called by the site. The ranges are stored as positions combined like the ones of the
+ * {@link SiteTable}.
+ */
+public final class SiteLayout {
+
+    /**
+     * The statements which jump out of the code block containing them.
+     */
+    public enum Jump {
+
+        /**
+         * A return statement, leaving the method.
+         */
+        RETURN,
+
+        /**
+         * A continue statement, leaving the body of a loop.
+         */
+        CONTINUE,
+
+        /**
+         * A break statement, leaving the body of a loop or a case of a switch statement.
+         */
+        BREAK,
+
+        /**
+         * A throw statement, leaving the code blocks up to a try statement catching the exception.
+         */
+        THROW
+    }
+
+    /**
+     * The types of the statements which are turned into their own trace nodes.
+     */
+    private static final Set<Class<? extends Node>> TRACED_TYPES =
+            Stream.of(TracedCode.values()).map(TracedCode::getType).collect(Collectors.toSet());
+
+    /**
+     * The flag of a statement which is turned into its own trace node.
+     */
+    private static final int TRACED = 8;
+
+    /**
+     * The mask of the jump of a statement, the ordinal of the {@link Jump} plus one, 0 for none.
+     */
+    private static final int JUMP = 7;
+
+    /**
+     * The begin and end of every statement.
+     */
+    private final long[] statements;
+
+    /**
+     * The type of every statement, made of the flag {@link #TRACED} and the {@link #JUMP}.
+     */
+    private final byte[] types;
+
+    /**
+     * The begins and ends of the parts of every statement which are always executed.
+     */
+    private final long[][] marks;
+
+    /**
+     * For every if-statement, the begins and ends of the then-block and the condition
+     * of each else-if-statement following it, in their order.
+     */
+    private final long[][] elseIfs;
+
+    /**
+     * The begins and ends of the update expressions of a for loop.
+     */
+    private final long[] updates;
+
+    /**
+     * The names of the method calls within the site, in post order.
+     */
+    private final String[] callNames;
+
+    /**
+     * The begin and end of every method call and of its name.
+     */
+    private final long[] calls;
+
+    /**
+     * The begin of the name of the method declared or called by the site, 0 for none.
+     */
+    private final long nameBegin;
+
+    /**
+     * The end of the name of the method declared or called by the site.
+     */
+    private final long nameEnd;
+
+    private SiteLayout(final long[] statements, final byte[] types, final long[][] marks, final long[][] elseIfs,
+                       final long[] updates, final String[] callNames, final long[] calls,
+                       final long nameBegin, final long nameEnd) {
+        this.statements = statements;
+        this.types = types;
+        this.marks = marks;
+        this.elseIfs = elseIfs;
+        this.updates = updates;
+        this.callNames = callNames;
+        this.calls = calls;
+        this.nameBegin = nameBegin;
+        this.nameEnd = nameEnd;
+    }
+
+    /**
+     * Takes the layout of a site from its AST node. The statements are the children of the
+     * block which is executed when the site is entered, e.g. the body of a loop or method.
+     *
+     * @param node the AST node of the site, with ranges.
+     * @return the layout of the site.
+     */
+    static SiteLayout of(final Node node) {
+        long nameBegin = 0;
+        long nameEnd = 0;
+        if (node instanceof NodeWithSimpleName<?> named && named.getName().getRange().isPresent()) {
+            Range name = named.getName().getRange().get();
+            nameBegin = SiteTable.position(name.begin);
+            nameEnd = SiteTable.position(name.end);
+        }
+        if (node instanceof MethodCallExpr) {
+            return new SiteLayout(new long[0], new byte[0], new long[0][], new long[0][], new long[0],
+                    new String[0], new long[0], nameBegin, nameEnd);
+        }
+
+        List<Node> children = childrenOf(node);
+        long[] statements = new long[children.size() * 2];
+        byte[] types = new byte[children.size()];
+        long[][] marks = new long[children.size()][];
+        long[][] elseIfs = new long[children.size()][];
+        for (int i = 0; i < children.size(); i++) {
+            Node child = children.get(i);
+            put(statements, i, child.getRange().get());
+            types[i] = (byte) ((TRACED_TYPES.contains(child.getClass()) ? TRACED : 0) | jumpOf(child));
+            marks[i] = ranges(marksOf(child));
+            if (child instanceof IfStmt ifStmt) {
+                List<Range> chain = new ArrayList<>();
+                while (ifStmt.getElseStmt().isPresent() && ifStmt.getElseStmt().get().isIfStmt()) {
+                    ifStmt = ifStmt.getElseStmt().get().asIfStmt();
+                    chain.add(ifStmt.getThenStmt().getRange().get());
+                    //a missing condition is stored as empty range
+                    chain.add(ifStmt.getCondition().getRange().orElse(null));
+                }
+                elseIfs[i] = ranges(chain);
+            }
+        }
+
+        List<Range> updates = new ArrayList<>();
+        if (node instanceof ForStmt forStmt) {
+            forStmt.getUpdate().forEach(update -> updates.add(update.getRange().get()));
+        }
+
+        List<MethodCallExpr> found = node.findAll(MethodCallExpr.class, Node.TreeTraversal.POSTORDER);
+        String[] callNames = new String[found.size()];
+        long[] calls = new long[found.size() * 4];
+        for (int i = 0; i < found.size(); i++) {
+            MethodCallExpr call = found.get(i);
+            callNames[i] = call.getNameAsString();
+            put(calls, 2 * i, call.getRange().get());
+            put(calls, 2 * i + 1, call.getName().getRange().get());
+        }
+        return new SiteLayout(statements, types, marks, elseIfs, ranges(updates), callNames, calls, nameBegin, nameEnd);
+    }
+
+    /**
+     * Gets the children of the block which is executed when a site is entered.
+     *
+     * @param node the AST node of the site.
+     * @return the children of the block, the children of the node itself if there is none.
+     */
+    private static List<Node> childrenOf(final Node node) {
+        if (node instanceof TryStmt tryStmt) {
+            return tryStmt.getTryBlock().getChildNodes();
+        } else if (node instanceof NodeWithBlockStmt<?> catchClause) {
+            return catchClause.getBody().getChildNodes();
+        } else if (node instanceof NodeWithStatements<?> block) {
+            //a block or a case of a switch statement
+            return new ArrayList<>(block.getStatements());
+        } else if (node instanceof NodeWithBody<?> loop && loop.getBody() instanceof BlockStmt body) {
+            return body.getChildNodes();
+        } else if (node instanceof NodeWithOptionalBlockStmt<?> method && method.getBody().isPresent()) {
+            return method.getBody().get().getChildNodes();
+        }
+        return node.getChildNodes();
+    }
+
+    /**
+     * Gets the parts of a statement which are always executed when the statement is executed.
+     *
+     * @param node the statement.
+     * @return the parts of the statement.
+     */
+    private static List<Range> marksOf(final Node node) {
+        List<Node> parts = new ArrayList<>();
+        if (node instanceof IfStmt ifStmt) {
+            parts.add(ifStmt.getCondition());
+        } else if (node instanceof ForStmt forStmt) {
+            parts.addAll(forStmt.getInitialization());
+            forStmt.getCompare().ifPresent(parts::add);
+        } else if (node instanceof WhileStmt whileStmt) {
+            parts.add(whileStmt.getCondition());
+        } else if (node instanceof ForEachStmt forEachStmt) {
+            parts.add(forEachStmt.getVariable());
+            parts.add(forEachStmt.getIterable());
+        } else if (node instanceof DoStmt doStmt) {
+            parts.add(doStmt.getCondition());
+        } else if (node instanceof TryStmt tryStmt) {
+            parts.addAll(tryStmt.getResources());
+        } else if (node instanceof SwitchStmt switchStmt) {
+            parts.add(switchStmt.getSelector());
+        }
+        return parts.stream().map(part -> part.getRange().get()).toList();
+    }
+
+    /**
+     * Gets the jump of a statement.
+     *
+     * @param node the statement.
+     * @return the ordinal of its {@link Jump} plus one, 0 if it does not jump.
+     */
+    private static int jumpOf(final Node node) {
+        Jump jump = null;
+        if (node instanceof ReturnStmt) {
+            jump = Jump.RETURN;
+        } else if (node instanceof ContinueStmt) {
+            jump = Jump.CONTINUE;
+        } else if (node instanceof BreakStmt) {
+            jump = Jump.BREAK;
+        } else if (node instanceof ThrowStmt) {
+            jump = Jump.THROW;
+        }
+        return jump == null ? 0 : jump.ordinal() + 1;
+    }
+
+    /**
+     * Stores ranges as begins and ends.
+     *
+     * @param ranges the ranges, null for an empty range.
+     * @return the begins and ends.
+     */
+    private static long[] ranges(final List<Range> ranges) {
+        long[] positions = new long[ranges.size() * 2];
+        for (int i = 0; i < ranges.size(); i++) {
+            if (ranges.get(i) != null) {
+                put(positions, i, ranges.get(i));
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Stores a range at an index of an array of begins and ends.
+     *
+     * @param positions the begins and ends.
+     * @param index     the index of the range.
+     * @param range     the range.
+     */
+    private static void put(final long[] positions, final int index, final Range range) {
+        positions[2 * index] = SiteTable.position(range.begin);
+        positions[2 * index + 1] = SiteTable.position(range.end);
+    }
+
+    /**
+     * Gets a range stored at an index of an array of begins and ends.
+     *
+     * @param positions the begins and ends.
+     * @param index     the index of the range.
+     * @return the range, null if it is empty.
+     */
+    private static Range get(final long[] positions, final int index) {
+        if (positions[2 * index] == 0) {
+            return null;
+        }
+        return new Range(SiteTable.toPosition(positions[2 * index]), SiteTable.toPosition(positions[2 * index + 1]));
+    }
+
+    /**
+     * @return the number of statements directly within the code block of the site.
+     */
+    public int getStatementCount() {
+        return types.length;
+    }
+
+    /**
+     * @param statement the index of a statement.
+     * @return the range of the statement.
+     */
+    public Range getRange(final int statement) {
+        return get(statements, statement);
+    }
+
+    /**
+     * @param statement the index of a statement.
+     * @return the begin of the statement.
+     */
+    public Position getBegin(final int statement) {
+        return SiteTable.toPosition(statements[2 * statement]);
+    }
+
+    /**
+     * @param statement the index of a statement.
+     * @return whether the statement is turned into its own trace node, see {@link TracedCode}.
+     */
+    public boolean isTraced(final int statement) {
+        return (types[statement] & TRACED) != 0;
+    }
+
+    /**
+     * @param statement the index of a statement.
+     * @return the jump of the statement, null if it does not jump out of the code block.
+     */
+    public Jump getJump(final int statement) {
+        int jump = types[statement] & JUMP;
+        return jump == 0 ? null : Jump.values()[jump - 1];
+    }
+
+    /**
+     * Gets the parts of a statement which are always executed, e.g. the condition of an if-statement,
+     * the initialization and comparison of a for loop or the resources of a try-statement.
+     *
+     * @param statement the index of a statement.
+     * @return the ranges of the parts.
+     */
+    public List<Range> getMarks(final int statement) {
+        List<Range> ranges = new ArrayList<>();
+        for (int i = 0; i < marks[statement].length / 2; i++) {
+            ranges.add(get(marks[statement], i));
+        }
+        return ranges;
+    }
+
+    /**
+     * @param statement the index of a statement.
+     * @return the number of else-if-statements following an if-statement, 0 for other statements.
+     */
+    public int getElseIfCount(final int statement) {
+        return elseIfs[statement] == null ? 0 : elseIfs[statement].length / 4;
+    }
+
+    /**
+     * @param statement the index of an if-statement.
+     * @param elseIf    the index of an else-if-statement following it.
+     * @return the range of the then-block of the else-if-statement.
+     */
+    public Range getElseIfThen(final int statement, final int elseIf) {
+        return get(elseIfs[statement], 2 * elseIf);
+    }
+
+    /**
+     * @param statement the index of an if-statement.
+     * @param elseIf    the index of an else-if-statement following it.
+     * @return the range of the condition of the else-if-statement, null if it has none.
+     */
+    public Range getElseIfCondition(final int statement, final int elseIf) {
+        return get(elseIfs[statement], 2 * elseIf + 1);
+    }
+
+    /**
+     * @return the ranges of the update expressions of a for loop, empty for other sites.
+     */
+    public List<Range> getUpdates() {
+        List<Range> ranges = new ArrayList<>();
+        for (int i = 0; i < updates.length / 2; i++) {
+            ranges.add(get(updates, i));
+        }
+        return ranges;
+    }
+
+    /**
+     * @return the number of method calls within the site.
+     */
+    public int getCallCount() {
+        return callNames.length;
+    }
+
+    /**
+     * @param call the index of a method call within the site, in post order.
+     * @return the name of the called method.
+     */
+    public String getCallName(final int call) {
+        return callNames[call];
+    }
+
+    /**
+     * @param call the index of a method call within the site, in post order.
+     * @return the range of the method call.
+     */
+    public Range getCallRange(final int call) {
+        return get(calls, 2 * call);
+    }
+
+    /**
+     * @param call the index of a method call within the site, in post order.
+     * @return the range of the name of the called method.
+     */
+    public Range getCallNameRange(final int call) {
+        return get(calls, 2 * call + 1);
+    }
+
+    /**
+     * @return the range of the name of the method declared or called by the site, null for other sites.
+     */
+    public Range getName() {
+        return nameBegin == 0 ? null : new Range(SiteTable.toPosition(nameBegin), SiteTable.toPosition(nameEnd));
+    }
+
+    /**
+     * Writes the layout.
+     *
+     * @param out the stream to write to.
+     * @throws IOException If the layout could not be written.
+     */
+    void write(final DataOutputStream out) throws IOException {
+        writeLongs(out, statements);
+        out.write(types);
+        for (int i = 0; i < types.length; i++) {
+            writeLongs(out, marks[i]);
+            out.writeBoolean(elseIfs[i] != null);
+            if (elseIfs[i] != null) {
+                writeLongs(out, elseIfs[i]);
+            }
+        }
+        writeLongs(out, updates);
+        out.writeInt(callNames.length);
+        for (String name : callNames) {
+            out.writeUTF(name);
+        }
+        writeLongs(out, calls);
+        out.writeLong(nameBegin);
+        out.writeLong(nameEnd);
+    }
+
+    /**
+     * Reads a layout written by {@link #write(DataOutputStream)}.
+     *
+     * @param in the stream to read from.
+     * @return the layout.
+     * @throws IOException If the layout could not be read or is malformed.
+     */
+    static SiteLayout read(final DataInputStream in) throws IOException {
+        long[] statements = readLongs(in);
+        byte[] types = new byte[statements.length / 2];
+        in.readFully(types);
+        long[][] marks = new long[types.length][];
+        long[][] elseIfs = new long[types.length][];
+        for (int i = 0; i < types.length; i++) {
+            marks[i] = readLongs(in);
+            if (in.readBoolean()) {
+                elseIfs[i] = readLongs(in);
+            }
+        }
+        long[] updates = readLongs(in);
+        String[] callNames = new String[in.readInt()];
+        for (int i = 0; i < callNames.length; i++) {
+            callNames[i] = in.readUTF();
+        }
+        long[] calls = readLongs(in);
+        if (calls.length != callNames.length * 4) {
+            throw new IOException("Malformed layout of a trace site");
+        }
+        return new SiteLayout(statements, types, marks, elseIfs, updates, callNames, calls, in.readLong(), in.readLong());
+    }
+
+    /**
+     * Writes an array of longs preceded by its length.
+     *
+     * @param out    the stream to write to.
+     * @param values the values.
+     * @throws IOException If the values could not be written.
+     */
+    private static void writeLongs(final DataOutputStream out, final long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    /**
+     * Reads an array of longs written by {@link #writeLongs}.
+     *
+     * @param in the stream to read from.
+     * @return the values.
+     * @throws IOException If the values could not be read or their number is odd.
+     */
+    private static long[] readLongs(final DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length % 2 != 0) {
+            throw new IOException("Malformed layout of a trace site");
+        }
+        long[] values = new long[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,916 @@
+package prorunvis.trace;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.JavaToken;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.Position;
+import com.github.javaparser.Range;
+import com.github.javaparser.TokenRange;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.CallableDeclaration;
+import com.github.javaparser.ast.body.FieldDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.nodeTypes.NodeWithSimpleName;
+import com.github.javaparser.ast.stmt.*;
+import com.github.javaparser.ast.type.Type;
+import com.google.common.hash.Hashing;
+import prorunvis.preprocess.Preprocessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * The table of all trace sites created by the {@link TraceVisitor}, indexed by their id.
+ * For every site it holds its kind, the id of its file, its range, the id of the site
+ * enclosing it, its key and, for methods, the name and signature, in primitive arrays,
+ * so the table stays small even for large programs.
+ * The ids are consecutive, as they index the counters and are written into the trace, so adding
+ * a code block renumbers the sites after it. The key of a site is derived from its place in the
+ * code instead, see {@link #getKey(int)}, and stays the same as long as the code of the site itself
+ * does not change, so it can be used to match the sites of different versions of a program.
+ * The AST of a site is not copied, instead one unchanged copy of every compilation unit
+ * is kept, in which the node of a site is looked up by its range when it is first needed.
+ * The table can be saved next to the instrumented code, so a trace can be processed
+ * without instrumenting the code again. The layout of every site, which holds the parts
+ * of its code needed to process a trace, is saved with it, so a loaded table parses
+ * a file only once the AST of one of its sites is needed for anything else.
+ */
+public final class SiteTable {
+
+    /**
+     * The kinds of trace sites, each created for one type of AST node.
+     */
+    public enum Kind {
+
+        /**
+         * The body of a method declaration.
+         */
+        METHOD(MethodDeclaration.class),
+
+        /**
+         * A block of an if-statement or the finally block of a try-statement.
+         */
+        BLOCK(BlockStmt.class),
+
+        /**
+         * The try block of a try-statement.
+         */
+        TRY(TryStmt.class),
+
+        /**
+         * A catch clause.
+         */
+        CATCH(CatchClause.class),
+
+        /**
+         * The body of a for loop.
+         */
+        FOR(ForStmt.class),
+
+        /**
+         * The body of a while loop.
+         */
+        WHILE(WhileStmt.class),
+
+        /**
+         * The body of a do loop.
+         */
+        DO(DoStmt.class),
+
+        /**
+         * A case of a switch statement.
+         */
+        CASE(SwitchEntry.class),
+
+        /**
+         * The site of a method call.
+         */
+        CALL(MethodCallExpr.class);
+
+        /**
+         * The type of the AST node of this kind.
+         */
+        private final Class<? extends Node> type;
+
+        Kind(final Class<? extends Node> type) {
+            this.type = type;
+        }
+
+        /**
+         * @return the type of the AST node of this kind.
+         */
+        public Class<? extends Node> getType() {
+            return type;
+        }
+
+        /**
+         * @return whether the sites of this kind are the bodies of loops.
+         */
+        public boolean isLoop() {
+            return this == FOR || this == WHILE || this == DO;
+        }
+
+        /**
+         * Gets the kind of site created for an AST node.
+         *
+         * @param node the AST node.
+         * @return the kind of the site.
+         * @throws IllegalArgumentException If no site is created for the type of the node.
+         */
+        public static Kind of(final Node node) {
+            for (Kind kind : values()) {
+                if (kind.type == node.getClass()) {
+                    return kind;
+                }
+            }
+            throw new IllegalArgumentException("No trace site is created for " + node.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * The name of the file the table is saved to, in the directory {@code prorunvis}
+     * next to the instrumented code.
+     */
+    public static final String FILE_NAME = "trace.sitetable";
+
+    /**
+     * The first bytes of a saved table.
+     */
+    private static final int MAGIC = 0x50525654;
+
+    /**
+     * The version of the format of a saved table.
+     */
+    private static final int VERSION = 5;
+
+    /**
+     * The number of sites the arrays are created for.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The kinds of the sites, as ordinal of {@link Kind}.
+     */
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+
+    /**
+     * The ids of the files of the sites.
+     */
+    private int[] files = new int[INITIAL_CAPACITY];
+
+    /**
+     * The begin of the ranges of the sites, see {@link #position(Position)}.
+     */
+    private long[] begins = new long[INITIAL_CAPACITY];
+
+    /**
+     * The end of the ranges of the sites, see {@link #position(Position)}.
+     */
+    private long[] ends = new long[INITIAL_CAPACITY];
+
+    /**
+     * The ids of the sites enclosing the sites, -1 for none.
+     */
+    private int[] enclosing = new int[INITIAL_CAPACITY];
+
+    /**
+     * The keys of the sites, see {@link #getKey(int)}.
+     */
+    private long[] keys = new long[INITIAL_CAPACITY];
+
+    /**
+     * The names of the methods declared or called by the sites, null for other sites.
+     */
+    private String[] names = new String[INITIAL_CAPACITY];
+
+    /**
+     * The signatures of the methods declared by the sites, null for other sites.
+     */
+    private String[] signatures = new String[INITIAL_CAPACITY];
+
+    /**
+     * The AST nodes of the sites which have already been looked up.
+     */
+    private Node[] nodes = new Node[INITIAL_CAPACITY];
+
+    /**
+     * The layouts of the sites which have already been taken from their AST nodes or have been loaded.
+     */
+    private SiteLayout[] layouts = new SiteLayout[INITIAL_CAPACITY];
+
+    /**
+     * The number of sites.
+     */
+    private int size;
+
+    /**
+     * The number of sites added so far for every file and key without its occurrence, see {@link #keyOf}.
+     */
+    private final Map<String, Integer> occurrences = new HashMap<>();
+
+    /**
+     * The ids of the sites by their keys, created when it is first needed.
+     */
+    private Map<Long, Integer> ids;
+
+    /**
+     * The names of the methods which have been left out by the {@link InstrumentationFilter}.
+     */
+    private final Set<String> untracedMethods = new HashSet<>();
+
+    /**
+     * The unchanged copies of the compilation units, by the id of their file,
+     * null for a file of a loaded table which has not been parsed yet.
+     */
+    private final List<CompilationUnit> units = new ArrayList<>();
+
+    /**
+     * The ids of the files whose copy has been preprocessed, see {@link #getCompilationUnit(int)}.
+     */
+    private final BitSet preprocessed = new BitSet();
+
+    /**
+     * The paths of the files, by their id.
+     */
+    private final List<Path> paths = new ArrayList<>();
+
+    /**
+     * Adds a file containing sites. The compilation unit is copied, so it has to be added
+     * before it is instrumented. It may or may not have been preprocessed, the copy is
+     * only preprocessed once it is needed.
+     *
+     * @param cu the compilation unit of the file, with a storage.
+     * @return the id of the file.
+     */
+    public int addFile(final CompilationUnit cu) {
+        units.add(cu.clone());
+        paths.add(cu.getStorage().get().getPath());
+        return units.size() - 1;
+    }
+
+    /**
+     * Adds a site with the next id.
+     *
+     * @param node      the AST node of the site, with a range.
+     * @param file      the id of the file containing the node.
+     * @param enclosing the id of the enclosing site, -1 for none.
+     * @return the id of the site.
+     */
+    public int add(final Node node, final int file, final int enclosing) {
+        if (size == kinds.length) {
+            grow();
+        }
+        Range range = node.getRange().get();
+        kinds[size] = (byte) Kind.of(node).ordinal();
+        files[size] = file;
+        begins[size] = position(range.begin);
+        ends[size] = position(range.end);
+        this.enclosing[size] = enclosing;
+        keys[size] = keyOf(node, file);
+        if (node instanceof MethodDeclaration method) {
+            names[size] = method.getNameAsString();
+            signatures[size] = signatureOf(method);
+        } else if (node instanceof MethodCallExpr call) {
+            names[size] = call.getNameAsString();
+        }
+        ids = null;
+        return size++;
+    }
+
+    /**
+     * Derives the key of a site from the path of its file within its package, the names of the types and
+     * members enclosing it, the types of the statements between the member and the site, its kind and,
+     * unless it is a method, whose name and parameters identify it already, a hash of its tokens without
+     * whitespace and comments. Sites which agree in all of these, e.g. two equal blocks in the same
+     * statement, are told apart by the number of such sites added before. The key therefore stays the same
+     * as long as the code of the site itself does not change, even if other code in its member does.
+     *
+     * @param node the AST node of the site.
+     * @param file the id of the file containing the node.
+     * @return the key of the site.
+     */
+    private long keyOf(final Node node, final int file) {
+        Deque<String> names = new ArrayDeque<>();
+        boolean member = false;
+        for (Node parent = node.getParentNode().orElse(null); parent != null;
+             parent = parent.getParentNode().orElse(null)) {
+            if (parent instanceof TypeDeclaration<?> type) {
+                names.addFirst(type.getNameAsString());
+                member = true;
+            } else if (parent instanceof CallableDeclaration<?> callable) {
+                names.addFirst(nameOf(callable));
+                member = true;
+            } else if (parent instanceof FieldDeclaration field) {
+                names.addFirst(field.getVariables().stream()
+                        .map(NodeWithSimpleName::getNameAsString).collect(Collectors.joining(",")));
+                member = true;
+            } else if (parent instanceof CompilationUnit cu) {
+                names.addFirst(cu.getPackageDeclaration().map(declaration -> declaration.getNameAsString().replace('.', '/') + "/")
+                        .orElse("") + cu.getStorage().map(CompilationUnit.Storage::getFileName).orElse(""));
+            } else if (!member && parent.getTokenRange().isPresent()) {
+                //the statements within the member, leaving out the blocks added by the preprocessor
+                names.addFirst(parent.getClass().getSimpleName());
+            }
+        }
+        String site = String.join("/", names) + "#" + Kind.of(node) + "#";
+        if (node instanceof CallableDeclaration<?> callable) {
+            site += nameOf(callable);
+        } else {
+            site += Hashing.murmur3_128().hashString(contentOf(node), StandardCharsets.UTF_8);
+        }
+        int occurrence = occurrences.merge(file + ":" + site, 1, Integer::sum) - 1;
+        return Hashing.murmur3_128().hashString(site + "#" + occurrence, StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * Gets the name of a method or constructor together with the types of its parameters.
+     *
+     * @param callable the declaration of the method or constructor.
+     * @return the name, e.g. {@code run(int[])}.
+     */
+    private static String nameOf(final CallableDeclaration<?> callable) {
+        return callable.getNameAsString() + callable.getParameters().stream()
+                .map(parameter -> parameter.getType().asString() + (parameter.isVarArgs() ? "..." : ""))
+                .collect(Collectors.joining(",", "(", ")"));
+    }
+
+    /**
+     * Gets the code of a node as it has been parsed, normalized to its tokens separated by single spaces,
+     * without whitespace and comments. A block added by the preprocessor has no tokens of its own, its
+     * code is the one of the statements it contains.
+     *
+     * @param node the AST node.
+     * @return the normalized code.
+     */
+    private static String contentOf(final Node node) {
+        Optional<TokenRange> tokens = node.getTokenRange();
+        if (tokens.isEmpty()) {
+            return node.getChildNodes().stream().map(SiteTable::contentOf).collect(Collectors.joining(" "));
+        }
+        StringBuilder content = new StringBuilder();
+        for (JavaToken token : tokens.get()) {
+            if (!token.getCategory().isWhitespaceOrComment()) {
+                content.append(token.getText()).append(' ');
+            }
+        }
+        return content.toString();
+    }
+
+    /**
+     * Adds the name of a method which has not been instrumented, see {@link #getUntracedMethods()}.
+     *
+     * @param name the name of the method.
+     */
+    public void addUntracedMethod(final String name) {
+        untracedMethods.add(name);
+    }
+
+    /**
+     * Gets the names of the methods which have been left out by the {@link InstrumentationFilter}.
+     * A traced method entered without a call of it in the code block containing it has been called
+     * by one of these methods, if the code block contains a call of them.
+     *
+     * @return the names of the methods.
+     */
+    public Set<String> getUntracedMethods() {
+        return Collections.unmodifiableSet(untracedMethods);
+    }
+
+    /**
+     * Appends all files and sites of another table, e.g. one filled for a single compilation
+     * unit, whose ids are shifted to follow the sites of this table.
+     *
+     * @param other the table to append.
+     * @return the id of the first appended site, by which the ids of the other table are shifted.
+     */
+    public int addAll(final SiteTable other) {
+        int base = size;
+        int fileBase = units.size();
+        while (kinds.length < size + other.size) {
+            grow();
+        }
+        System.arraycopy(other.kinds, 0, kinds, base, other.size);
+        System.arraycopy(other.begins, 0, begins, base, other.size);
+        System.arraycopy(other.ends, 0, ends, base, other.size);
+        System.arraycopy(other.keys, 0, keys, base, other.size);
+        System.arraycopy(other.names, 0, names, base, other.size);
+        System.arraycopy(other.signatures, 0, signatures, base, other.size);
+        System.arraycopy(other.nodes, 0, nodes, base, other.size);
+        System.arraycopy(other.layouts, 0, layouts, base, other.size);
+        for (int id = 0; id < other.size; id++) {
+            files[base + id] = other.files[id] + fileBase;
+            enclosing[base + id] = other.enclosing[id] < 0 ? -1 : other.enclosing[id] + base;
+        }
+        size += other.size;
+        ids = null;
+        other.preprocessed.stream().forEach(file -> preprocessed.set(fileBase + file));
+        units.addAll(other.units);
+        paths.addAll(other.paths);
+        untracedMethods.addAll(other.untracedMethods);
+        return base;
+    }
+
+    /**
+     * Doubles the capacity of the arrays.
+     */
+    private void grow() {
+        int capacity = kinds.length * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        files = Arrays.copyOf(files, capacity);
+        begins = Arrays.copyOf(begins, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        enclosing = Arrays.copyOf(enclosing, capacity);
+        names = Arrays.copyOf(names, capacity);
+        signatures = Arrays.copyOf(signatures, capacity);
+        nodes = Arrays.copyOf(nodes, capacity);
+        layouts = Arrays.copyOf(layouts, capacity);
+    }
+
+    /**
+     * @return the number of sites.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param id the id of a site.
+     * @return the kind of the site.
+     */
+    public Kind getKind(final int id) {
+        return Kind.values()[kinds[check(id)]];
+    }
+
+    /**
+     * @param id the id of a site.
+     * @return the id of the file containing the site.
+     */
+    public int getFile(final int id) {
+        return files[check(id)];
+    }
+
+    /**
+     * @param id the id of a site.
+     * @return the path of the file containing the site.
+     */
+    public Path getPath(final int id) {
+        return paths.get(getFile(id));
+    }
+
+    /**
+     * @param id the id of a site.
+     * @return the range of the AST node of the site.
+     */
+    public Range getRange(final int id) {
+        return new Range(getBegin(id), toPosition(ends[id]));
+    }
+
+    /**
+     * @param id the id of a site.
+     * @return the begin of the AST node of the site.
+     */
+    public Position getBegin(final int id) {
+        return toPosition(begins[check(id)]);
+    }
+
+    /**
+     * @param id the id of a site.
+     * @return the id of the site enclosing it, -1 if it is not enclosed by any site.
+     */
+    public int getEnclosing(final int id) {
+        return enclosing[check(id)];
+    }
+
+    /**
+     * Gets the key of a site, which stays the same across edits of the code which change the ids.
+     * It is derived from the path of the file within its package, the names of the types and
+     * members enclosing the site, e.g. {@code Main/run(int[])}, the types of the statements between
+     * the member and the site, the kind of the site and its code, not from its position. It changes
+     * only if the member is renamed or moved to another file, the site is moved to another statement,
+     * or the code of the site itself is changed. The key of a method does not depend on its code.
+     *
+     * @param id the id of a site.
+     * @return the key of the site.
+     */
+    public long getKey(final int id) {
+        return keys[check(id)];
+    }
+
+    /**
+     * Finds the site with a key, e.g. the site of an earlier version of the program.
+     *
+     * @param key the key of a site, see {@link #getKey(int)}.
+     * @return the id of the site, -1 if there is no site with the key.
+     */
+    public int getId(final long key) {
+        if (ids == null) {
+            ids = new HashMap<>(size * 2);
+            for (int id = 0; id < size; id++) {
+                ids.putIfAbsent(keys[id], id);
+            }
+        }
+        return ids.getOrDefault(key, -1);
+    }
+
+    /**
+     * @param id the id of a site.
+     * @return the name of the method declared or called by the site, null for other sites.
+     */
+    public String getName(final int id) {
+        return names[check(id)];
+    }
+
+    /**
+     * @param id the id of a site.
+     * @return the signature of the method declared by the site, null for other sites.
+     */
+    public String getSignature(final int id) {
+        return signatures[check(id)];
+    }
+
+    /**
+     * Checks whether the range of a site contains the one of another site.
+     * Only the ranges are compared, not the files of the sites.
+     *
+     * @param outer    the id of the outer site.
+     * @param inner    the id of the inner site.
+     * @param strictly true if the ranges of the sites may not share their begin or end.
+     * @return true if the range of the outer site contains the one of the inner site.
+     */
+    public boolean contains(final int outer, final int inner, final boolean strictly) {
+        check(outer);
+        check(inner);
+        if (strictly) {
+            return begins[outer] < begins[inner] && ends[outer] > ends[inner];
+        }
+        return begins[outer] <= begins[inner] && ends[outer] >= ends[inner];
+    }
+
+    /**
+     * Gets the AST node of a site within the unchanged copy of its compilation unit.
+     * The node is looked up by its range when it is first needed.
+     *
+     * @param id the id of a site.
+     * @return the AST node of the site.
+     */
+    public Node getNode(final int id) {
+        if (nodes[check(id)] == null) {
+            Node node = find(getCompilationUnit(files[id]), getKind(id).getType(), getRange(id));
+            if (node == null) {
+                throw new IllegalStateException("The AST node of trace site " + id + " could not be found.");
+            }
+            nodes[id] = node;
+        }
+        return nodes[id];
+    }
+
+    /**
+     * Gets the layout of a site, which contains all parts of its code needed to process a trace.
+     * It is taken from the AST node of the site when it is first needed, a loaded table contains
+     * the layouts of all its sites, so processing a trace does not parse the code again.
+     *
+     * @param id the id of a site.
+     * @return the layout of the site.
+     */
+    public SiteLayout getLayout(final int id) {
+        if (layouts[check(id)] == null) {
+            layouts[id] = SiteLayout.of(getNode(id));
+        }
+        return layouts[id];
+    }
+
+    /**
+     * Gets the unchanged copy of a compilation unit, preprocessed like the instrumented code.
+     * The copy is preprocessed the first time it is needed, the file of a loaded table is
+     * parsed before. Blocks added by the preprocessor before the copy has been made lose
+     * their range in the copy, it is restored from the statement they wrap.
+     *
+     * @param file the id of the file.
+     * @return the compilation unit as it has been before its instrumentation.
+     * @throws IllegalStateException If the file of a loaded table could not be parsed.
+     */
+    public CompilationUnit getCompilationUnit(final int file) {
+        if (!preprocessed.get(file)) {
+            CompilationUnit cu = units.get(file);
+            if (cu == null) {
+                ParseResult<CompilationUnit> result;
+                try {
+                    result = new JavaParser().parse(paths.get(file));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not read " + paths.get(file), e);
+                }
+                cu = result.getResult().filter(unit -> result.isSuccessful()).orElseThrow(() ->
+                        new IllegalStateException("Could not parse " + paths.get(file) + ": " + result.getProblems()));
+            }
+            Preprocessor.run(cu);
+            cu.findAll(BlockStmt.class).forEach(block -> {
+                if (block.getRange().isEmpty() && block.getStatements().size() == 1) {
+                    block.getStatement(0).getRange().ifPresent(block::setRange);
+                }
+            });
+            units.set(file, cu);
+            preprocessed.set(file);
+        }
+        return units.get(file);
+    }
+
+    /**
+     * Saves the table to a file. The paths of the files are saved relative to the
+     * root directory of the project, the ASTs are not saved, only the layouts of the sites.
+     *
+     * @param file    the file to write.
+     * @param rootDir the root directory of the project.
+     * @throws IOException If the file could not be written.
+     */
+    public void save(final Path file, final Path rootDir) throws IOException {
+        Path root = rootDir.toAbsolutePath();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(paths.size());
+            for (Path path : paths) {
+                out.writeUTF(root.relativize(path.toAbsolutePath()).toString().replace(File.separatorChar, '/'));
+            }
+            writeSites(out);
+        }
+    }
+
+    /**
+     * Loads a table saved by {@link #save(Path, Path)}.
+     *
+     * @param file    the file to read.
+     * @param rootDir the root directory of the project, against which the paths of its files are resolved.
+     * @return the loaded table.
+     * @throws IOException If the file could not be read or is no saved table.
+     */
+    public static SiteTable load(final Path file, final Path rootDir) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a table of trace sites: " + file);
+            }
+            SiteTable sites = new SiteTable();
+            int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                sites.paths.add(rootDir.toAbsolutePath().resolve(in.readUTF()).normalize());
+                sites.units.add(null);
+            }
+            sites.readSites(in, file.toString());
+            return sites;
+        }
+    }
+
+    /**
+     * Saves the sites of a table filled for a single compilation unit, e.g. by
+     * {@link prorunvis.instrument.Instrumenter#runAll}, without the path of its file.
+     * Together with the inserted code, this allows to reuse the instrumentation of
+     * an unchanged file instead of instrumenting it again.
+     *
+     * @param out the stream to write to.
+     * @throws IOException           If the sites could not be written.
+     * @throws IllegalStateException If the table contains more than one file.
+     */
+    public void saveFile(final DataOutputStream out) throws IOException {
+        if (units.size() != 1) {
+            throw new IllegalStateException("The table contains " + units.size() + " files instead of one.");
+        }
+        writeSites(out);
+    }
+
+    /**
+     * Loads the sites saved by {@link #saveFile(DataOutputStream)} for a compilation unit.
+     * The compilation unit is used as the unchanged copy of its file, it must not have
+     * been instrumented.
+     *
+     * @param in the stream to read from.
+     * @param cu the compilation unit of the file, with a storage.
+     * @return the table containing the file and its sites.
+     * @throws IOException If the sites could not be read.
+     */
+    public static SiteTable loadFile(final DataInputStream in, final CompilationUnit cu) throws IOException {
+        SiteTable sites = new SiteTable();
+        sites.units.add(cu);
+        sites.paths.add(cu.getStorage().get().getPath());
+        sites.readSites(in, cu.getStorage().get().getPath().toString());
+        return sites;
+    }
+
+    /**
+     * Writes the number of sites followed by the sites, including their layouts, and the names of the untraced methods.
+     *
+     * @param out the stream to write to.
+     * @throws IOException If the sites could not be written.
+     */
+    private void writeSites(final DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        for (int id = 0; id < size; id++) {
+            out.writeByte(kinds[id]);
+            out.writeInt(files[id]);
+            out.writeLong(begins[id]);
+            out.writeLong(ends[id]);
+            out.writeLong(keys[id]);
+            out.writeInt(enclosing[id]);
+            writeString(out, names[id]);
+            writeString(out, signatures[id]);
+            getLayout(id).write(out);
+        }
+        out.writeInt(untracedMethods.size());
+        for (String name : untracedMethods) {
+            out.writeUTF(name);
+        }
+    }
+
+    /**
+     * Reads the sites written by {@link #writeSites} into this table, whose files have already been added.
+     *
+     * @param in     the stream to read from.
+     * @param source the name of the source of the sites, for error messages.
+     * @throws IOException If the sites could not be read or do not belong to the files of the table.
+     */
+    private void readSites(final DataInputStream in, final String source) throws IOException {
+        int count = in.readInt();
+        for (int id = 0; id < count; id++) {
+            if (size == kinds.length) {
+                grow();
+            }
+            kinds[id] = in.readByte();
+            files[id] = in.readInt();
+            begins[id] = in.readLong();
+            ends[id] = in.readLong();
+            keys[id] = in.readLong();
+            enclosing[id] = in.readInt();
+            names[id] = readString(in);
+            signatures[id] = readString(in);
+            layouts[id] = SiteLayout.read(in);
+            if (kinds[id] < 0 || kinds[id] >= Kind.values().length
+                    || files[id] < 0 || files[id] >= units.size()
+                    || enclosing[id] < -1 || enclosing[id] >= count) {
+                throw new IOException("Malformed trace site " + id + " in " + source);
+            }
+            size++;
+        }
+        int untraced = in.readInt();
+        for (int i = 0; i < untraced; i++) {
+            untracedMethods.add(in.readUTF());
+        }
+    }
+
+    /**
+     * Writes a string which may be null.
+     *
+     * @param out    the stream to write to.
+     * @param string the string, or null.
+     * @throws IOException If the string could not be written.
+     */
+    private static void writeString(final DataOutputStream out, final String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    /**
+     * Reads a string written by {@link #writeString}.
+     *
+     * @param in the stream to read from.
+     * @return the string, or null.
+     * @throws IOException If the string could not be read.
+     */
+    private static String readString(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Searches the descendants of a node for the node of the given type and range.
+     * Only the children containing the range are searched.
+     *
+     * @param parent the node to search.
+     * @param type   the type of the searched node.
+     * @param range  the range of the searched node.
+     * @return the found node, null if there is none.
+     */
+    private static Node find(final Node parent, final Class<? extends Node> type, final Range range) {
+        for (Node child : parent.getChildNodes()) {
+            Optional<Range> childRange = child.getRange();
+            if (childRange.isPresent() && !childRange.get().contains(range)) {
+                continue;
+            }
+            if (child.getClass() == type && childRange.isPresent() && childRange.get().equals(range)) {
+                return child;
+            }
+            Node found = find(child, type, range);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks that an id belongs to a site.
+     *
+     * @param id the id.
+     * @return the id.
+     * @throws IndexOutOfBoundsException If there is no site with the id.
+     */
+    private int check(final int id) {
+        return Objects.checkIndex(id, size);
+    }
+
+    /**
+     * Combines the line and column of a position to one value, which is ordered like the positions.
+     *
+     * @param position the position.
+     * @return the combined value.
+     */
+    static long position(final Position position) {
+        return (long) position.line << 32 | position.column;
+    }
+
+    /**
+     * Splits a value combined by {@link #position(Position)}.
+     *
+     * @param position the combined value.
+     * @return the position.
+     */
+    static Position toPosition(final long position) {
+        return new Position((int) (position >>> 32), (int) position);
+    }
+
+    /**
+     * Creates the signature of a method, made of the name of its file, its name and the
+     * JVM descriptor of its parameters and return type, e.g. {@code Main.run:([I)I}.
+     *
+     * @param method the method declaration.
+     * @return the signature of the method.
+     */
+    private static String signatureOf(final MethodDeclaration method) {
+        //the name of the class is taken from the name of the file
+        String className = method.findCompilationUnit()
+                .flatMap(CompilationUnit::getStorage)
+                .map(CompilationUnit.Storage::getFileName)
+                .orElse("UnknownClass");
+        if (className.endsWith(".java")) {
+            className = className.substring(0, className.length() - ".java".length());
+        }
+
+        StringBuilder signature = new StringBuilder(className).append('.')
+                .append(method.getNameAsString()).append(":(");
+        method.getParameters().forEach(parameter -> signature.append(toJvmDescriptor(parameter.getType())));
+        return signature.append(')').append(toJvmDescriptor(method.getType())).toString();
+    }
+
+    /**
+     * Creates the JVM descriptor of a type as written in the source code. Class types are not
+     * resolved, they are written with the name used in the source, without type arguments.
+     *
+     * @param type the type.
+     * @return the descriptor, e.g. {@code [I} for {@code int[]}.
+     */
+    private static String toJvmDescriptor(final Type type) {
+        if (type.isArrayType()) {
+            return "[" + toJvmDescriptor(type.asArrayType().getComponentType());
+        }
+        if (type.isPrimitiveType()) {
+            switch (type.asPrimitiveType().asString()) {
+                case "boolean": return "Z";
+                case "byte":    return "B";
+                case "char":    return "C";
+                case "short":   return "S";
+                case "int":     return "I";
+                case "long":    return "J";
+                case "float":   return "F";
+                case "double":  return "D";
+                default:        break;
+            }
+        }
+        if (type.isVoidType()) {
+            return "V";
+        }
+        return "L" + type.asString().replaceAll("<.*>", "").replace('.', '/') + ";";
+    }
+}
@@ -0,0 +1,423 @@
+package prorunvis.trace;
+
+import com.github.javaparser.Position;
+import com.github.javaparser.ast.DataKey;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.expr.ArrayAccessExpr;
+import com.github.javaparser.ast.expr.FieldAccessExpr;
+import com.github.javaparser.ast.expr.IntegerLiteralExpr;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.expr.NameExpr;
+import com.github.javaparser.ast.expr.UnaryExpr;
+import com.github.javaparser.ast.stmt.ExpressionStmt;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The instrumentation of a compilation unit as text inserted into its source file, recorded
+ * by the {@link TraceVisitor} while it modifies the AST. The instrumented source file is written
+ * by copying the original file once, inserting the text at the recorded positions, instead of
+ * printing the whole AST. The code keeps its formatting and every inserted text stays on the
+ * line of the code it belongs to, so the code of the instrumented file is on the same lines
+ * as in the original file.
+ * The edits are attached to the visited compilation unit with the key {@link #DATA_KEY}.
+ * They can be saved and loaded again for the unchanged source file, with the ids of
+ * the trace sites as numbers which are shifted when the edits are loaded.
+ */
+public final class SourceEdits {
+
+    /**
+     * The key of the edits in the data of a compilation unit.
+     */
+    public static final DataKey<SourceEdits> DATA_KEY = new DataKey<>() { };
+
+    /**
+     * Where text is inserted relative to the range of a node.
+     */
+    enum Anchor {
+
+        /**
+         * Before the first character of the node.
+         */
+        BEFORE_BEGIN,
+
+        /**
+         * After the first character of the node, the opening brace of a block.
+         */
+        AFTER_BEGIN,
+
+        /**
+         * Before the last character of the node, the closing brace of a block.
+         */
+        BEFORE_END,
+
+        /**
+         * After the last character of the node.
+         */
+        AFTER_END;
+
+        /**
+         * @return whether the text is inserted at the end of the node, closing what has been opened at its begin.
+         */
+        boolean isClosing() {
+            return this == BEFORE_END || this == AFTER_END;
+        }
+    }
+
+    /**
+     * A text inserted into the source file.
+     */
+    private static final class Insertion {
+
+        /**
+         * The position of the character the text is inserted at, see {@link #position(Position)}.
+         */
+        private final long position;
+
+        /**
+         * Where the text is inserted relative to the character.
+         */
+        private final Anchor anchor;
+
+        /**
+         * The depth of the node the text belongs to in the AST, which orders texts inserted
+         * at the same offset, so the texts of a node enclose the texts of its descendants.
+         */
+        private final int depth;
+
+        /**
+         * The pieces of the text, either strings or inserted AST nodes,
+         * which are printed when the file is written.
+         */
+        private final Object[] pieces;
+
+        /**
+         * The offset of the text in the original file, set when the file is written.
+         */
+        private int offset;
+
+        Insertion(final long position, final Anchor anchor, final int depth, final Object[] pieces) {
+            this.position = position;
+            this.anchor = anchor;
+            this.depth = depth;
+            this.pieces = pieces;
+        }
+    }
+
+    /**
+     * The order in which texts are inserted. At the same offset the texts closing a node come before
+     * the texts opening one, the texts of outer nodes are opened first and closed last.
+     */
+    private static final Comparator<Insertion> ORDER = Comparator.comparingInt((Insertion insertion) -> insertion.offset)
+            .thenComparing(insertion -> !insertion.anchor.isClosing())
+            .thenComparingInt(insertion -> insertion.anchor.isClosing() ? -insertion.depth : insertion.depth);
+
+    /**
+     * The recorded insertions, in the order in which they have been recorded, which
+     * is kept for texts inserted at the same offset for nodes of the same depth.
+     */
+    private final List<Insertion> insertions = new ArrayList<>();
+
+    /**
+     * The literals of the ids within loaded insertions, which are shifted by {@link #relocate(int)}.
+     */
+    private final List<IntegerLiteralExpr> ids = new ArrayList<>();
+
+    /**
+     * Records a text to be inserted at a node of the original code.
+     *
+     * @param node   the node of the original code, with a range.
+     * @param anchor where the text is inserted relative to the node.
+     * @param depth  the depth of the node the text belongs to, see {@link #depth(Node)}.
+     * @param pieces the pieces of the text, either strings or inserted AST nodes.
+     */
+    void insert(final Node node, final Anchor anchor, final int depth, final Object... pieces) {
+        Position position = anchor == Anchor.BEFORE_BEGIN || anchor == Anchor.AFTER_BEGIN
+                ? node.getBegin().get() : node.getEnd().get();
+        insertions.add(new Insertion(position(position), anchor, depth, pieces));
+    }
+
+    /**
+     * Gets the depth of a node in its AST.
+     *
+     * @param node the node.
+     * @return the number of ancestors of the node.
+     */
+    static int depth(final Node node) {
+        int depth = 0;
+        for (Node parent = node.getParentNode().orElse(null); parent != null;
+             parent = parent.getParentNode().orElse(null)) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Saves the recorded insertions. The inserted AST nodes are saved as text, in which
+     * the literals of the ids, the only integer literals within inserted trace calls,
+     * are saved as numbers, so they can be shifted when the insertions are loaded.
+     *
+     * @param out the stream to write to.
+     * @throws IOException If the insertions could not be written.
+     */
+    public void save(final DataOutputStream out) throws IOException {
+        out.writeInt(insertions.size());
+        List<Object> pieces = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        for (Insertion insertion : insertions) {
+            out.writeLong(insertion.position);
+            out.writeByte(insertion.anchor.ordinal());
+            out.writeInt(insertion.depth);
+            pieces.clear();
+            text.setLength(0);
+            for (Object piece : insertion.pieces) {
+                if (piece instanceof Node node) {
+                    print(node, text, pieces);
+                } else {
+                    text.append((String) piece);
+                }
+            }
+            if (text.length() > 0) {
+                pieces.add(text.toString());
+            }
+            out.writeInt(pieces.size());
+            for (Object piece : pieces) {
+                if (piece instanceof IntegerLiteralExpr literal) {
+                    out.writeBoolean(true);
+                    out.writeInt(Integer.parseInt(literal.getValue()));
+                } else {
+                    out.writeBoolean(false);
+                    out.writeUTF((String) piece);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the insertions saved by {@link #save(DataOutputStream)}, which apply
+     * to the same source file as the saved ones.
+     *
+     * @param in the stream to read from.
+     * @return the loaded edits.
+     * @throws IOException If the insertions could not be read.
+     */
+    public static SourceEdits load(final DataInputStream in) throws IOException {
+        SourceEdits edits = new SourceEdits();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long position = in.readLong();
+            int anchor = in.readByte();
+            int depth = in.readInt();
+            if (anchor < 0 || anchor >= Anchor.values().length) {
+                throw new IOException("Malformed insertion " + i);
+            }
+            Object[] pieces = new Object[in.readInt()];
+            for (int j = 0; j < pieces.length; j++) {
+                if (in.readBoolean()) {
+                    IntegerLiteralExpr literal = new IntegerLiteralExpr(String.valueOf(in.readInt()));
+                    edits.ids.add(literal);
+                    pieces[j] = literal;
+                } else {
+                    pieces[j] = in.readUTF();
+                }
+            }
+            edits.insertions.add(new Insertion(position, Anchor.values()[anchor], depth, pieces));
+        }
+        return edits;
+    }
+
+    /**
+     * Shifts the ids within loaded insertions to the block of ids their file has been given.
+     * The ids within recorded insertions are shifted by {@link TraceVisitor#relocate(int)}.
+     *
+     * @param base the id of the first site of the file.
+     */
+    public void relocate(final int base) {
+        for (IntegerLiteralExpr literal : ids) {
+            literal.setValue(String.valueOf(Integer.parseInt(literal.getValue()) + base));
+        }
+    }
+
+    /**
+     * Writes the instrumented source file by copying the original file with the recorded texts
+     * inserted. A file without insertions is copied as it is.
+     *
+     * @param source   the original source file, which must not have changed since it has been parsed.
+     * @param target   the file to write.
+     * @param encoding the encoding of both files.
+     * @throws IOException           If a file could not be read or written.
+     * @throws IllegalStateException If the source file does not match the positions of the insertions,
+     *                               in which case nothing has been written.
+     */
+    public void write(final Path source, final Path target, final Charset encoding) throws IOException {
+        if (insertions.isEmpty()) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        Files.writeString(target, apply(Files.readString(source, encoding)), encoding);
+    }
+
+    /**
+     * Inserts the recorded texts into the text of the original source file, giving the
+     * instrumented source code without writing it.
+     *
+     * @param text the text of the original source file, which must not have changed since it has been parsed.
+     * @return the instrumented source code.
+     * @throws IllegalStateException If the text does not match the positions of the insertions.
+     */
+    public String apply(final String text) {
+        if (insertions.isEmpty()) {
+            return text;
+        }
+        int[] lines = lineOffsets(text);
+        for (Insertion insertion : insertions) {
+            insertion.offset = offset(text, lines, insertion);
+        }
+        List<Insertion> sorted = new ArrayList<>(insertions);
+        sorted.sort(ORDER);
+
+        StringBuilder out = new StringBuilder(text.length() + insertions.size() * 32);
+        int copied = 0;
+        for (Insertion insertion : sorted) {
+            out.append(text, copied, insertion.offset);
+            copied = insertion.offset;
+            for (Object part : insertion.pieces) {
+                if (part instanceof Node node) {
+                    print(node, out, null);
+                } else {
+                    out.append((String) part);
+                }
+            }
+        }
+        return out.append(text, copied, text.length()).toString();
+    }
+
+    /**
+     * Finds the offsets at which the lines of a text begin. Lines are terminated like
+     * in the parser, by a line feed, a carriage return or both.
+     *
+     * @param text the text.
+     * @return the offset of every line, by its index.
+     */
+    private static int[] lineOffsets(final String text) {
+        int[] lines = new int[64];
+        int count = 1;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                i++;
+            }
+            if (c == '\r' || c == '\n') {
+                if (count == lines.length) {
+                    lines = Arrays.copyOf(lines, count * 2);
+                }
+                lines[count++] = i + 1;
+            }
+        }
+        return Arrays.copyOf(lines, count);
+    }
+
+    /**
+     * Computes the offset of an insertion in the original text and checks that the text
+     * has the character expected at its anchor.
+     *
+     * @param text      the original text.
+     * @param lines     the offsets of the lines of the text.
+     * @param insertion the insertion.
+     * @return the offset in the text at which the insertion is inserted.
+     * @throws IllegalStateException If the text does not match the position of the insertion.
+     */
+    private static int offset(final String text, final int[] lines, final Insertion insertion) {
+        int line = (int) (insertion.position >>> 32);
+        int column = (int) insertion.position;
+        int offset = line <= lines.length ? lines[line - 1] + column - 1 : text.length();
+        if (offset >= text.length()) {
+            throw new IllegalStateException("Position " + line + ":" + column + " is not within the source file.");
+        }
+        char c = text.charAt(offset);
+        boolean matches = switch (insertion.anchor) {
+            case BEFORE_BEGIN -> true;
+            case AFTER_BEGIN -> c == '{';
+            case BEFORE_END -> c == '}';
+            case AFTER_END -> c == ';' || c == '}' || c == ')' || c == ':';
+        };
+        if (!matches) {
+            throw new IllegalStateException("Unexpected '" + c + "' at " + line + ":" + column + " of the source file.");
+        }
+        return insertion.anchor == Anchor.BEFORE_BEGIN || insertion.anchor == Anchor.BEFORE_END ? offset : offset + 1;
+    }
+
+    /**
+     * Prints an inserted AST node. The trace calls are printed directly, as they are needed for
+     * every instrumented code block, any other node is printed by its pretty printer.
+     *
+     * @param node   the node.
+     * @param out    the builder to append the code to.
+     * @param pieces null to print the ids into the code, otherwise the list to which the code
+     *               printed so far and then the literal is added at every id, see {@link #save}.
+     */
+    private static void print(final Node node, final StringBuilder out, final List<Object> pieces) {
+        if (node instanceof ExpressionStmt stmt) {
+            print(stmt.getExpression(), out, pieces);
+            out.append(';');
+        } else if (node instanceof MethodCallExpr call && call.getTypeArguments().isEmpty()) {
+            call.getScope().ifPresent(scope -> {
+                print(scope, out, pieces);
+                out.append('.');
+            });
+            out.append(call.getNameAsString()).append('(');
+            for (int i = 0; i < call.getArguments().size(); i++) {
+                if (i > 0) {
+                    out.append(", ");
+                }
+                print(call.getArgument(i), out, pieces);
+            }
+            out.append(')');
+        } else if (node instanceof FieldAccessExpr access && access.getTypeArguments().isEmpty()) {
+            print(access.getScope(), out, pieces);
+            out.append('.').append(access.getNameAsString());
+        } else if (node instanceof NameExpr name) {
+            out.append(name.getNameAsString());
+        } else if (node instanceof IntegerLiteralExpr literal) {
+            if (pieces == null) {
+                out.append(literal.getValue());
+            } else {
+                if (out.length() > 0) {
+                    pieces.add(out.toString());
+                    out.setLength(0);
+                }
+                pieces.add(literal);
+            }
+        } else if (node instanceof ArrayAccessExpr access) {
+            print(access.getName(), out, pieces);
+            out.append('[');
+            print(access.getIndex(), out, pieces);
+            out.append(']');
+        } else if (node instanceof UnaryExpr unary && unary.isPostfix()) {
+            print(unary.getExpression(), out, pieces);
+            out.append(unary.getOperator().asString());
+        } else {
+            out.append(node);
+        }
+    }
+
+    /**
+     * Combines the line and column of a position to a single value.
+     *
+     * @param position the position.
+     * @return the line in the upper and the column in the lower 32 bits.
+     */
+    private static long position(final Position position) {
+        return (long) position.line << 32 | position.column;
+    }
+}
@@ -59,10 +59,48 @@ public class TraceNode {
      */
     private Integer iteration;
 
+    /**
+     * The number of consecutive iterations of a sampled loop which are summarized
+     * by this node because they have only been counted, null for every other node.
+     */
+    private Long skippedIterations;
+
+    /**
+     * The index of the thread whose trace starts at this node, only set for the
+     * roots of additional threads of a multithreaded program run.
+     */
+    private Integer thread;
+
+    /**
+     * Set for the root and for every node which was still being executed when the
+     * recorder truncated the trace, so the rest of its execution is unknown, null
+     * for every other node.
+     */
+    private Boolean truncated;
+
+    /**
+     * The time in nanoseconds from entering this node until leaving it, including
+     * the time spent in its children, null if the trace has been recorded without timing.
+     */
+    private Long inclusiveTime;
+
+    /**
+     * The time in nanoseconds spent in this node itself, i.e. its inclusive time
+     * minus the inclusive times of its children, null if the trace has been
+     * recorded without timing.
+     */
+    private Long exclusiveTime;
+
     /**
      * The ID that maps the Node to an ASTNode.
      */
     private String traceId;
+
+    /**
+     * The key of the code block, which unlike the id stays the same across edits
+     * of other code, see {@link SiteTable#getKey(int)}.
+     */
+    private String siteKey;
     private String nodeMethodName;        // e.g. "myMethod"
     private String nodeMethodSignature;   // e.g. "MyClass.myMethod:([I)I"
 
@@ -231,6 +269,22 @@ public class TraceNode {
         return this.traceId;
     }
 
+    /**
+     * Gets the key of the code block of this node.
+     * @return The key as hexadecimal String, null for the root and thread nodes.
+     */
+    public String getSiteKey() {
+        return siteKey;
+    }
+
+    /**
+     * Sets the key of the code block of this node.
+     * @param siteKey The key as hexadecimal String
+     */
+    public void setSiteKey(final String siteKey) {
+        this.siteKey = siteKey;
+    }
+
     /**
      * Sets the iteration value of this node.
      * @param iteration The current iteration of the loop, so the number of times this TraceNode repeated itself so far
@@ -247,6 +301,86 @@ public class TraceNode {
         return iteration;
     }
 
+    /**
+     * Sets the number of iterations summarized by this node.
+     * @param skippedIterations The number of consecutive iterations of a loop which have only been counted.
+     */
+    public void setSkippedIterations(final Long skippedIterations) {
+        this.skippedIterations = skippedIterations;
+    }
+
+    /**
+     * Gets the number of iterations summarized by this node.
+     * @return The number of iterations, null if this node does not summarize skipped iterations.
+     */
+    public Long getSkippedIterations() {
+        return skippedIterations;
+    }
+
+    /**
+     * Sets the index of the thread whose trace starts at this node.
+     * @param thread The index of the thread in the order in which the threads started recording.
+     */
+    public void setThread(final Integer thread) {
+        this.thread = thread;
+    }
+
+    /**
+     * Gets the index of the thread whose trace starts at this node.
+     * @return The index of the thread, null if this node is not the root of a thread.
+     */
+    public Integer getThread() {
+        return thread;
+    }
+
+    /**
+     * Marks this node as cut off by the truncation of the trace.
+     * @param truncated True if the execution of this node has not been recorded completely.
+     */
+    public void setTruncated(final Boolean truncated) {
+        this.truncated = truncated;
+    }
+
+    /**
+     * Gets whether this node has been cut off by the truncation of the trace.
+     * @return True if the execution of this node has not been recorded completely, null otherwise.
+     */
+    public Boolean getTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Sets the time spent in this node including its children.
+     * @param inclusiveTime The time in nanoseconds.
+     */
+    public void setInclusiveTime(final Long inclusiveTime) {
+        this.inclusiveTime = inclusiveTime;
+    }
+
+    /**
+     * Gets the time spent in this node including its children.
+     * @return The time in nanoseconds, null if unknown.
+     */
+    public Long getInclusiveTime() {
+        return inclusiveTime;
+    }
+
+    /**
+     * Sets the time spent in this node excluding its children.
+     * @param exclusiveTime The time in nanoseconds.
+     */
+    public void setExclusiveTime(final Long exclusiveTime) {
+        this.exclusiveTime = exclusiveTime;
+    }
+
+    /**
+     * Gets the time spent in this node excluding its children.
+     * @return The time in nanoseconds, null if unknown.
+     */
+    public Long getExclusiveTime() {
+        return exclusiveTime;
+    }
+
     // *** CHANGED: Introduce the VarValue helper class for (iteration, value) pairs. ***
     // --- UPDATED VarValue Class ---
     public static class VarValue {
@@ -1,47 +1,248 @@
 package prorunvis.trace;
 
-import com.github.javaparser.StaticJavaParser;
+import com.github.javaparser.ast.CompilationUnit;
 import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.BodyDeclaration;
 import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.ArrayAccessExpr;
+import com.github.javaparser.ast.expr.AssignExpr;
+import com.github.javaparser.ast.expr.BooleanLiteralExpr;
+import com.github.javaparser.ast.expr.Expression;
+import com.github.javaparser.ast.expr.FieldAccessExpr;
+import com.github.javaparser.ast.expr.IntegerLiteralExpr;
+import com.github.javaparser.ast.expr.LambdaExpr;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.expr.NameExpr;
+import com.github.javaparser.ast.expr.UnaryExpr;
+import com.github.javaparser.ast.expr.VariableDeclarationExpr;
+import com.github.javaparser.ast.nodeTypes.NodeWithStatements;
 import com.github.javaparser.ast.stmt.*;
+import com.github.javaparser.ast.type.PrimitiveType;
 import com.github.javaparser.ast.visitor.ModifierVisitor;
+import com.github.javaparser.ast.visitor.Visitable;
+import prorunvis.preprocess.modifier.BlockPreprocessor;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 
 
 /**
  * This Visitor extends the standard ModifierVisitor and overwrites the visit methods for each codetype being traced
- * in order to instrument them with the needed trace call.
+ * in order to instrument them with the needed trace call. The code is preprocessed in the same traversal, every
+ * statement is modified by the {@link BlockPreprocessor} right before it is instrumented, so the compilation units
+ * do not have to be preprocessed before.
  */
-public class TraceVisitor extends ModifierVisitor<Map<Integer, Node>> {
+public class TraceVisitor extends ModifierVisitor<SiteTable> {
+
+    /**
+     * The ids of the visited loops which have not been wrapped in a loop frame yet.
+     * The loops are wrapped once the statements containing them have been visited.
+     * Loops are only remembered if {@link #loopFrames} is set.
+     */
+    private final Map<Statement, Integer> loopIds = new IdentityHashMap<>();
+
+    /**
+     * The ids of the visited method calls forming a whole expression statement, whose site
+     * is recorded by a statement inserted before them once the block containing them has been visited.
+     */
+    private final Map<Statement, Integer> callIds = new IdentityHashMap<>();
+
+    /**
+     * The names of the flags of the visited switch statements whose cases record their exits, which tell
+     * whether a case has been entered. The switch statements are wrapped together with their flag once the
+     * statements containing them have been visited.
+     */
+    private final Map<Statement, String> switchFlags = new IdentityHashMap<>();
+
+    /**
+     * The ids of the visited compilation units in the table of sites.
+     */
+    private final Map<CompilationUnit, Integer> files = new IdentityHashMap<>();
+
+    /**
+     * The ids of the sites created for the visited nodes, used to find the site enclosing a node.
+     */
+    private final Map<Node, Integer> siteIds = new IdentityHashMap<>();
+
+    /**
+     * The literals of the ids within the inserted trace calls, which are shifted by {@link #relocate(int)}
+     * once the sites of a table filled for a single compilation unit have been appended to another table.
+     */
+    private final List<IntegerLiteralExpr> idLiterals = new ArrayList<>();
+
+    /**
+     * The text inserted into the source file of the visited compilation unit,
+     * null if the visitor has not been started on a compilation unit.
+     */
+    private SourceEdits edits;
+
+    /**
+     * Whether the code blocks only increment their entry in the counter table of the
+     * recorder instead of recording their id.
+     */
+    private final boolean counting;
+
+    /**
+     * Whether the loops are wrapped in frames marking their begin and end, which the
+     * recorder needs to sample their iterations. Ignored when counting.
+     */
+    private final boolean loopFrames;
+
+    /**
+     * Whether the code blocks also record their exit, which is done in a finally block
+     * wrapping all statements of the code block after the trace call.
+     */
+    private final boolean exits;
+
+    /**
+     * Whether the method calls record their site, which links them to the code block of the called method.
+     */
+    private final boolean callSites;
+
+    /**
+     * The selection of the instrumented code.
+     */
+    private final InstrumentationFilter filter;
+
+    /**
+     * Constructs a visitor instrumenting the code to record the trace of executed code blocks.
+     */
+    public TraceVisitor() {
+        this(false);
+    }
+
+    /**
+     * Constructs a visitor instrumenting the code either to record the trace of executed
+     * code blocks or to only count how often every code block is executed.
+     *
+     * @param counting true to only count the executions of every code block.
+     */
+    public TraceVisitor(final boolean counting) {
+        this(counting, false);
+    }
+
+    /**
+     * Constructs a visitor instrumenting the code either to record the trace of executed
+     * code blocks, optionally including their exits, or to only count how often every
+     * code block is executed.
+     *
+     * @param counting true to only count the executions of every code block.
+     * @param exits    true to record the exits of the code blocks as well, ignored when counting.
+     */
+    public TraceVisitor(final boolean counting, final boolean exits) {
+        this(counting, exits, false);
+    }
+
+    /**
+     * Constructs a visitor instrumenting the code either to record the trace of executed
+     * code blocks, optionally including their exits and the sites of the method calls,
+     * or to only count how often every code block is executed.
+     *
+     * @param counting  true to only count the executions of every code block.
+     * @param exits     true to record the exits of the code blocks as well, ignored when counting.
+     * @param callSites true to record the sites of the method calls as well, ignored when counting.
+     */
+    public TraceVisitor(final boolean counting, final boolean exits, final boolean callSites) {
+        this(counting, exits, callSites, InstrumentationFilter.ALL);
+    }
+
+    /**
+     * Constructs a visitor like {@link #TraceVisitor(boolean, boolean, boolean)}, which only
+     * instruments the code selected by a filter. The names of the methods left out are added
+     * to the table of sites, so the traced methods called by them can be linked to their calls.
+     *
+     * @param counting  true to only count the executions of every code block.
+     * @param exits     true to record the exits of the code blocks as well, ignored when counting.
+     * @param callSites true to record the sites of the method calls as well, ignored when counting.
+     * @param filter    the selection of the instrumented code.
+     */
+    public TraceVisitor(final boolean counting, final boolean exits, final boolean callSites,
+                        final InstrumentationFilter filter) {
+        this(counting, exits, callSites, false, filter);
+    }
+
+    /**
+     * Constructs a visitor like {@link #TraceVisitor(boolean, boolean, boolean, InstrumentationFilter)},
+     * which optionally wraps the loops in frames, so the recorder can sample their iterations.
+     *
+     * @param counting   true to only count the executions of every code block.
+     * @param exits      true to record the exits of the code blocks as well, ignored when counting.
+     * @param callSites  true to record the sites of the method calls as well, ignored when counting.
+     * @param loopFrames true to wrap the loops in frames for sampling, ignored when counting.
+     * @param filter     the selection of the instrumented code.
+     */
+    public TraceVisitor(final boolean counting, final boolean exits, final boolean callSites,
+                        final boolean loopFrames, final InstrumentationFilter filter) {
+        this.counting = counting;
+        this.exits = exits && !counting;
+        this.callSites = callSites && !counting;
+        this.loopFrames = loopFrames && !counting;
+        this.filter = filter;
+    }
+
+    /**
+     * Add the visited compilation unit to the table of sites before any of its nodes is modified,
+     * so the table keeps a copy of the code as it has been parsed. The text inserted into its
+     * source file is recorded in the {@link SourceEdits} attached to it.
+     *
+     * @param cu the compilation unit to be instrumented
+     * @param sites the table to add the sites to
+     * @return the modified compilation unit
+     */
+    @Override
+    public Visitable visit(final CompilationUnit cu, final SiteTable sites) {
+        files.computeIfAbsent(cu, sites::addFile);
+        edits = new SourceEdits();
+        cu.setData(SourceEdits.DATA_KEY, edits);
+        return super.visit(cu, sites);
+    }
 
     /**
      * Add a trace call to every try statement. Trace call is added as the first line of the try statement body and to
      * the first line of the body of every corresponding catch statement.
      *
      * @param stmt the statement to be instrumented
-     * @param map  maps the current ID to this node
+     * @param sites the table to add the sites to
      * @return the modified statement
      */
-    public TryStmt visit(final TryStmt stmt, final Map<Integer, Node> map) {
+    public TryStmt visit(final TryStmt stmt, final SiteTable sites) {
 
-        int id = map.size();
-        createMapEntry(id, map, stmt);
-        stmt.getTryBlock().addStatement(0, traceEntryCreator(id));
+        boolean traced = filter.isIncluded(stmt, SiteTable.Kind.TRY);
+        //the catch clauses are found by the site of their try block
+        boolean catches = traced && filter.isIncluded(stmt, SiteTable.Kind.CATCH);
+        boolean tracedFinally = stmt.getFinallyBlock().isPresent()
+                && filter.isIncluded(stmt, SiteTable.Kind.BLOCK);
+        if (traced) {
+            int id = addSite(sites, stmt);
+            addTraceEntry(stmt.getTryBlock(), id);
+        }
 
-        for (CatchClause clause : stmt.getCatchClauses()) {
-            id = map.size();
-            createMapEntry(id, map, clause);
-            clause.getBody().addStatement(0, traceEntryCreator(id));
+        if (catches) {
+            for (CatchClause clause : stmt.getCatchClauses()) {
+                int id = addSite(sites, clause);
+                addTraceEntry(clause.getBody(), id);
+            }
         }
 
-        if (stmt.getFinallyBlock().isPresent()) {
-            id = map.size();
-            createMapEntry(id, map, stmt.getFinallyBlock().get());
-            stmt.getFinallyBlock().get().addStatement(0, traceEntryCreator(id));
+        if (tracedFinally) {
+            int id = addSite(sites, stmt.getFinallyBlock().get());
+            addTraceEntry(stmt.getFinallyBlock().get(), id);
         }
 
-        super.visit(stmt, map);
+        super.visit(stmt, sites);
+        if (traced) {
+            addExit(stmt.getTryBlock());
+        }
+        if (catches) {
+            stmt.getCatchClauses().forEach(clause -> addExit(clause.getBody()));
+        }
+        if (tracedFinally) {
+            addExit(stmt.getFinallyBlock().get());
+        }
         return stmt;
     }
 
@@ -49,16 +250,23 @@ public class TraceVisitor extends ModifierVisitor<Map<Integer, Node>> {
      * Add a trace call to every do loop body. Trace call is added as the first line of the loop body.
      *
      * @param stmt the statement to be instrumented
-     * @param map  maps the current ID to this node
+     * @param sites the table to add the sites to
      * @return the modified statement
      */
     @Override
-    public DoStmt visit(final DoStmt stmt, final Map<Integer, Node> map) {
+    public DoStmt visit(final DoStmt stmt, final SiteTable sites) {
 
-        int id = map.size();
-        createMapEntry(id, map, stmt);
-        stmt.getBody().asBlockStmt().addStatement(0, traceEntryCreator(id));
-        super.visit(stmt, map);
+        BlockPreprocessor.toBlocks(stmt);
+        if (!filter.isIncluded(stmt, SiteTable.Kind.DO)) {
+            addBraces(stmt.getBody());
+            super.visit(stmt, sites);
+            return stmt;
+        }
+        int id = addSite(sites, stmt);
+        addTraceEntry(stmt.getBody().asBlockStmt(), id);
+        putLoop(stmt, id);
+        super.visit(stmt, sites);
+        addExit(stmt.getBody().asBlockStmt());
         return stmt;
     }
 
@@ -66,16 +274,23 @@ public class TraceVisitor extends ModifierVisitor<Map<Integer, Node>> {
      * Add a trace call to every for loop body. Trace call is added as the first line of the loop body.
      *
      * @param stmt the statement to be instrumented
-     * @param map  maps the current ID to this node
+     * @param sites the table to add the sites to
      * @return the modified statement
      */
     @Override
-    public ForStmt visit(final ForStmt stmt, final Map<Integer, Node> map) {
+    public ForStmt visit(final ForStmt stmt, final SiteTable sites) {
 
-        int id = map.size();
-        createMapEntry(id, map, stmt);
-        stmt.getBody().asBlockStmt().addStatement(0, traceEntryCreator(id));
-        super.visit(stmt, map);
+        BlockPreprocessor.toBlocks(stmt);
+        if (!filter.isIncluded(stmt, SiteTable.Kind.FOR)) {
+            addBraces(stmt.getBody());
+            super.visit(stmt, sites);
+            return stmt;
+        }
+        int id = addSite(sites, stmt);
+        addTraceEntry(stmt.getBody().asBlockStmt(), id);
+        putLoop(stmt, id);
+        super.visit(stmt, sites);
+        addExit(stmt.getBody().asBlockStmt());
         return stmt;
     }
 
@@ -84,29 +299,38 @@ public class TraceVisitor extends ModifierVisitor<Map<Integer, Node>> {
      * the if-body and else-body if present.
      *
      * @param stmt the statement to be instrumented
-     * @param map  maps the current ID to this node
+     * @param sites the table to add the sites to
      * @return the modified statement
      */
     @Override
-    public IfStmt visit(final IfStmt stmt, final Map<Integer, Node> map) {
+    public IfStmt visit(final IfStmt stmt, final SiteTable sites) {
         //add a methodCall to proRunVisTrace to the then-block of stmt
 
-        int id = map.size();
-        createMapEntry(id, map, stmt.getThenStmt());
-        stmt.getThenStmt().asBlockStmt().addStatement(0, traceEntryCreator(id));
+        BlockPreprocessor.toBlocks(stmt);
+        if (!filter.isIncluded(stmt, SiteTable.Kind.BLOCK)) {
+            addBraces(stmt.getThenStmt());
+            stmt.getElseStmt().ifPresent(this::addBraces);
+            super.visit(stmt, sites);
+            return stmt;
+        }
+        int id = addSite(sites, stmt.getThenStmt());
+        addTraceEntry(stmt.getThenStmt().asBlockStmt(), id);
 
         //check if stmt has an else-block
         if (stmt.getElseStmt().isPresent()) {
-            id = map.size();
             //exclude cases with else-if statements since these will be visited by the
             //if-stmt visitor separately
             if (!stmt.getElseStmt().get().isIfStmt()) {
-                createMapEntry(id, map, stmt.getElseStmt().get());
-                stmt.getElseStmt().get().asBlockStmt().addStatement(0, traceEntryCreator(id));
+                id = addSite(sites, stmt.getElseStmt().get());
+                addTraceEntry(stmt.getElseStmt().get().asBlockStmt(), id);
             }
         }
 
-        super.visit(stmt, map);
+        super.visit(stmt, sites);
+        addExit(stmt.getThenStmt().asBlockStmt());
+        if (stmt.getElseStmt().isPresent() && !stmt.getElseStmt().get().isIfStmt()) {
+            addExit(stmt.getElseStmt().get().asBlockStmt());
+        }
         return stmt;
     }
 
@@ -115,40 +339,69 @@ public class TraceVisitor extends ModifierVisitor<Map<Integer, Node>> {
      * Trace call is added as the first line of the method body.
      *
      * @param decl the declaration to be instrumented
-     * @param map  maps the current ID to this node
+     * @param sites the table to add the sites to
      * @return the modified method
      */
     @Override
-    public MethodDeclaration visit(final MethodDeclaration decl, final Map<Integer, Node> map) {
+    public MethodDeclaration visit(final MethodDeclaration decl, final SiteTable sites) {
 
+        if (!filter.isIncluded(decl, SiteTable.Kind.METHOD)) {
+            //the traced methods called by this one are linked to its calls
+            decl.getBody().ifPresent(body -> sites.addUntracedMethod(decl.getNameAsString()));
+            super.visit(decl, sites);
+            return decl;
+        }
         if (decl.getBody().isPresent()) {
-            int id = map.size();
-            createMapEntry(id, map, decl);
-            decl.getBody().get().addStatement(0, traceEntryCreator(id));
+            int id = addSite(sites, decl);
+            addTraceEntry(decl.getBody().get(), id);
         }
 
-        super.visit(decl, map);
+        super.visit(decl, sites);
+        decl.getBody().ifPresent(this::addExit);
         return decl;
     }
 
     /**
      * Add a trace call to every case in a switch statement.
      * Trace call is added as the first line of the body of every case in the switch statement.
+     * The statements of a case are not wrapped to record its exit, as a local variable declared
+     * by one case may be used by the following ones. Instead, a case records the exit of the
+     * case falling through to it, and the switch statement records the exit of the last case
+     * entered, see {@link #wrapSwitches(NodeWithStatements)}.
      *
      * @param stmt the statement to be instrumented
-     * @param map  maps the current ID to this node
+     * @param sites the table to add the sites to
      * @return the modified statement
      */
     @Override
-    public SwitchStmt visit(final SwitchStmt stmt, final Map<Integer, Node> map) {
+    public SwitchStmt visit(final SwitchStmt stmt, final SiteTable sites) {
 
+        if (!filter.isIncluded(stmt, SiteTable.Kind.CASE)) {
+            super.visit(stmt, sites);
+            return stmt;
+        }
+        String flag = null;
+        if (exits && stmt.getEntries().isNonEmpty()) {
+            //a nested switch statement must not redeclare the flag of the enclosing one
+            int depth = 0;
+            for (Node parent = stmt.getParentNode().orElse(null); parent != null;
+                 parent = parent.getParentNode().orElse(null)) {
+                depth += parent instanceof SwitchStmt ? 1 : 0;
+            }
+            flag = "prorunvis$case" + depth;
+            switchFlags.put(stmt, flag);
+        }
         for (SwitchEntry entry : stmt.getEntries()) {
-            int id = map.size();
-            createMapEntry(id, map, entry);
-            entry.addStatement(0, traceEntryCreator(id));
+            int id = addSite(sites, entry);
+            addTraceEntry(entry, id, flag);
         }
 
-        super.visit(stmt, map);
+        super.visit(stmt, sites);
+        if (flag != null) {
+            for (SwitchEntry entry : stmt.getEntries()) {
+                addCaseExit(entry, flag);
+            }
+        }
         return stmt;
     }
 
@@ -156,20 +409,361 @@ public class TraceVisitor extends ModifierVisitor<Map<Integer, Node>> {
      * Add a trace call to every while loop body. Trace call is added as the first line of the loop body.
      *
      * @param stmt the statement to be instrumented
-     * @param map  maps the current ID to this node
+     * @param sites the table to add the sites to
      * @return the modified statement
      */
     @Override
-    public WhileStmt visit(final WhileStmt stmt, final Map<Integer, Node> map) {
+    public WhileStmt visit(final WhileStmt stmt, final SiteTable sites) {
 
-        int id = map.size();
-        createMapEntry(id, map, stmt);
-        stmt.getBody().asBlockStmt().addStatement(0, traceEntryCreator(id));
+        BlockPreprocessor.toBlocks(stmt);
+        if (!filter.isIncluded(stmt, SiteTable.Kind.WHILE)) {
+            addBraces(stmt.getBody());
+            super.visit(stmt, sites);
+            return stmt;
+        }
+        int id = addSite(sites, stmt);
+        addTraceEntry(stmt.getBody().asBlockStmt(), id);
+        putLoop(stmt, id);
 
-        super.visit(stmt, map);
+        super.visit(stmt, sites);
+        addExit(stmt.getBody().asBlockStmt());
         return stmt;
     }
 
+    /**
+     * Visit a block and wrap the loops directly contained in it in loop frames.
+     * The switch statements contained in it are wrapped to record the exit of their last case.
+     *
+     * @param block the block to be instrumented
+     * @param sites the table to add the sites to
+     * @return the modified block
+     */
+    @Override
+    public Visitable visit(final BlockStmt block, final SiteTable sites) {
+        super.visit(block, sites);
+        wrapLoops(block);
+        wrapSwitches(block);
+        addCallSites(block);
+        return block;
+    }
+
+    /**
+     * Visit a case of a switch statement and wrap the loops directly contained in it in loop frames.
+     * The switch statements contained in it are wrapped to record the exit of their last case.
+     *
+     * @param entry the case to be instrumented
+     * @param sites the table to add the sites to
+     * @return the modified case
+     */
+    @Override
+    public Visitable visit(final SwitchEntry entry, final SiteTable sites) {
+        super.visit(entry, sites);
+        wrapLoops(entry);
+        wrapSwitches(entry);
+        addCallSites(entry);
+        return entry;
+    }
+
+    /**
+     * Add the recording of its site to every method call within the body of a method, if enabled. A call forming a whole statement is preceded by a statement recording its
+     * site, any other call is wrapped in an expression recording its site before evaluating the call.
+     * Calls within lambdas and calls which might not return a value outside a block are left out.
+     *
+     * @param call the method call to be instrumented
+     * @param sites the table to add the sites to
+     * @return the modified method call, or the expression wrapping it
+     */
+    @Override
+    public Visitable visit(final MethodCallExpr call, final SiteTable sites) {
+        Node parent = call.getParentNode().orElse(null);
+        if (!callSites || !isTraced(call) || !filter.isIncluded(call, SiteTable.Kind.CALL) || parent instanceof ForStmt forStmt
+                && forStmt.getCompare().map(compare -> compare != call).orElse(true)) {
+            return super.visit(call, sites);
+        }
+
+        if (parent instanceof ExpressionStmt stmt) {
+            Node block = stmt.getParentNode().orElse(null);
+            if (!(block instanceof BlockStmt || block instanceof SwitchEntry entry
+                    && entry.getType() == SwitchEntry.Type.STATEMENT_GROUP)) {
+                return super.visit(call, sites);
+            }
+            callIds.put(stmt, addSite(sites, call));
+            return super.visit(call, sites);
+        }
+
+        MethodCallExpr site = traceCall("call_site", idLiteral(addSite(sites, call)));
+        if (edits != null) {
+            int depth = SourceEdits.depth(call);
+            edits.insert(call, SourceEdits.Anchor.BEFORE_BEGIN, depth, "prorunvis.Trace.call_value(", site, ", ");
+            edits.insert(call, SourceEdits.Anchor.AFTER_END, depth, ")");
+        }
+        super.visit(call, sites);
+        return traceCall("call_value", site, call);
+    }
+
+    /**
+     * Remembers a visited loop to be wrapped in a loop frame, if loops are sampled.
+     *
+     * @param loop the loop statement
+     * @param id   the id of the loop
+     */
+    private void putLoop(final Statement loop, final int id) {
+        if (loopFrames) {
+            loopIds.put(loop, id);
+        }
+    }
+
+    /**
+     * Wraps every visited loop among the given statements in a try statement marking the
+     * begin and, in its finally block, the end of the loop for the trace recorder. A labeled
+     * loop is wrapped together with its label, so that the label still refers to the loop.
+     *
+     * @param statements the node containing the statements
+     */
+    private void wrapLoops(final NodeWithStatements<?> statements) {
+        for (int i = 0; i < statements.getStatements().size(); i++) {
+            Statement statement = statements.getStatement(i);
+            Statement loop = statement;
+            while (loop instanceof LabeledStmt labeled) {
+                loop = labeled.getStatement();
+            }
+            Integer id = loopIds.remove(loop);
+            if (id != null) {
+                Statement begin = new ExpressionStmt(traceCall("loop_begin", idLiteral(id)));
+                Statement end = new ExpressionStmt(traceCall("loop_end", idLiteral(id)));
+                if (edits != null) {
+                    int depth = SourceEdits.depth(statement);
+                    edits.insert(statement, SourceEdits.Anchor.BEFORE_BEGIN, depth, "try { ", begin, " ");
+                    edits.insert(statement, SourceEdits.Anchor.AFTER_END, depth, " } finally { ", end, " }");
+                }
+                TryStmt frame = new TryStmt(new BlockStmt(new NodeList<>(begin)), new NodeList<>(),
+                        new BlockStmt(new NodeList<>(end)));
+                statements.setStatement(i, frame);
+                frame.getTryBlock().addStatement(statement);
+            }
+        }
+    }
+
+    /**
+     * Wraps every visited switch statement among the given statements, whose cases record their exits,
+     * in a block declaring its flag, set once a case has been entered, and a try statement recording the
+     * exit of the last case entered in its finally block. A labeled switch statement is wrapped together
+     * with its label, like a loop in {@link #wrapLoops(NodeWithStatements)}.
+     *
+     * @param statements the node containing the statements
+     */
+    private void wrapSwitches(final NodeWithStatements<?> statements) {
+        for (int i = 0; i < statements.getStatements().size(); i++) {
+            Statement statement = statements.getStatement(i);
+            Statement stmt = statement;
+            while (stmt instanceof LabeledStmt labeled) {
+                stmt = labeled.getStatement();
+            }
+            String flag = switchFlags.remove(stmt);
+            if (flag != null) {
+                Statement exit = new ExpressionStmt(traceCall("exit_elem"));
+                if (edits != null) {
+                    int depth = SourceEdits.depth(statement);
+                    edits.insert(statement, SourceEdits.Anchor.BEFORE_BEGIN, depth,
+                            "{ boolean " + flag + " = false; try { ");
+                    edits.insert(statement, SourceEdits.Anchor.AFTER_END, depth,
+                            " } finally { if (" + flag + ") { prorunvis.Trace.exit_elem(); } } }");
+                }
+                TryStmt frame = new TryStmt(new BlockStmt(), new NodeList<>(), new BlockStmt(new NodeList<>(
+                        new IfStmt(new NameExpr(flag), new BlockStmt(new NodeList<>(exit)), null))));
+                BlockStmt block = new BlockStmt(new NodeList<>(new ExpressionStmt(new VariableDeclarationExpr(
+                        new VariableDeclarator(PrimitiveType.booleanType(), flag, new BooleanLiteralExpr(false)))), frame));
+                statements.setStatement(i, block);
+                frame.getTryBlock().addStatement(statement);
+            }
+        }
+    }
+
+    /**
+     * Inserts the statements recording the site of the visited method calls forming a whole
+     * statement among the given statements before them.
+     *
+     * @param statements the node containing the statements
+     */
+    private void addCallSites(final NodeWithStatements<?> statements) {
+        for (int i = 0; i < statements.getStatements().size(); i++) {
+            Integer id = callIds.remove(statements.getStatement(i));
+            if (id != null) {
+                Statement site = new ExpressionStmt(traceCall("call_site", idLiteral(id)));
+                if (edits != null) {
+                    Statement statement = statements.getStatement(i);
+                    edits.insert(statement, SourceEdits.Anchor.BEFORE_BEGIN, SourceEdits.depth(statement), site, " ");
+                }
+                statements.addStatement(i++, site);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a method call gets its site recorded, which is the case for calls within the body of
+     * a method, but not within a lambda, a constructor, an initializer or a nested declaration.
+     * The calls to the recorder added by the instrumentation are left out as well.
+     *
+     * @param call the method call
+     * @return true if the site of the call is recorded
+     */
+    private static boolean isTraced(final MethodCallExpr call) {
+        if (call.getScope().filter(scope -> scope.toString().equals("prorunvis.Trace")).isPresent()) {
+            return false;
+        }
+        Node node = call.getParentNode().orElse(null);
+        while (node != null && !(node instanceof MethodDeclaration)) {
+            if (node instanceof LambdaExpr || node instanceof BodyDeclaration<?>) {
+                return false;
+            }
+            node = node.getParentNode().orElse(null);
+        }
+        return node != null;
+    }
+
+    /**
+     * Puts a block added by the preprocessor around a single statement into braces in the source file,
+     * for a code block which is not instrumented itself, but may contain instrumented code.
+     *
+     * @param body the body of the code block
+     */
+    private void addBraces(final Statement body) {
+        if (edits != null && body instanceof BlockStmt block && block.getTokenRange().isEmpty()) {
+            Statement statement = block.getStatement(0);
+            int depth = SourceEdits.depth(block);
+            edits.insert(statement, SourceEdits.Anchor.BEFORE_BEGIN, depth, "{ ");
+            edits.insert(statement, SourceEdits.Anchor.AFTER_END, depth, " }");
+        }
+    }
+
+    /**
+     * Wraps all statements of an instrumented code block following its trace call in a try
+     * statement recording the exit of the code block in its finally block, unless exits are
+     * not recorded. Called once the code block has been visited, so the added try statement
+     * is not instrumented itself.
+     *
+     * @param block the code block starting with its trace call
+     */
+    private void addExit(final NodeWithStatements<?> block) {
+        if (!exits) {
+            return;
+        }
+        Statement exit = new ExpressionStmt(traceCall("exit_elem"));
+        //nothing can be left early if the code block is empty
+        if (block.getStatements().size() <= 1) {
+            block.addStatement(exit);
+            return;
+        }
+        TryStmt frame = new TryStmt(new BlockStmt(), new NodeList<>(), new BlockStmt());
+        frame.getFinallyBlock().get().addStatement(exit);
+        while (block.getStatements().size() > 1) {
+            frame.getTryBlock().addStatement(block.getStatements().remove(1));
+        }
+        block.addStatement(frame);
+    }
+
+    /**
+     * Adds the trace call of a code block as its first statement. The text inserted into the
+     * source file for the code block is recorded at once, including the frame recording its exit,
+     * see {@link #addExit(NodeWithStatements)}, and the braces of a block added by the preprocessor,
+     * which are inserted around its only statement.
+     *
+     * @param block the code block
+     * @param id    the id of the code block
+     */
+    private void addTraceEntry(final BlockStmt block, final int id) {
+        Statement entry = traceEntryCreator(id);
+        if (edits != null) {
+            boolean empty = block.isEmpty();
+            int depth = SourceEdits.depth(block);
+            if (block.getTokenRange().isEmpty()) {
+                Statement statement = block.getStatement(0);
+                edits.insert(statement, SourceEdits.Anchor.BEFORE_BEGIN, depth, "{ ", entry, exitBegin(empty), " ");
+                edits.insert(statement, SourceEdits.Anchor.AFTER_END, depth, exitEnd(empty), " }");
+            } else {
+                edits.insert(block, SourceEdits.Anchor.AFTER_BEGIN, depth, " ", entry, exitBegin(empty), " ");
+                if (exits && !empty) {
+                    edits.insert(block, SourceEdits.Anchor.BEFORE_END, depth, exitEnd(false), " ");
+                }
+            }
+        }
+        block.addStatement(0, entry);
+    }
+
+    /**
+     * Adds the trace call of a case of a switch statement as its first statement, like
+     * {@link #addTraceEntry(BlockStmt, int)}. The statement of a case using an arrow is put
+     * into braces in the source file, so it can be preceded by the trace call. If the cases
+     * record their exits, the text inserted before the trace call also records the exit of the
+     * case falling through to this one, if any, and sets the flag of the switch statement,
+     * see {@link #addCaseExit(SwitchEntry, String)}.
+     *
+     * @param entry the case
+     * @param id    the id of the case
+     * @param flag  the name of the flag of the switch statement, null if the cases do not record their exits
+     */
+    private void addTraceEntry(final SwitchEntry entry, final int id, final String flag) {
+        Statement trace = traceEntryCreator(id);
+        if (edits != null) {
+            NodeList<Statement> statements = entry.getStatements();
+            int depth = SourceEdits.depth(entry);
+            //the exit of the case falling through to this one precedes the trace call
+            String close = flag == null ? "" : "if (" + flag + ") { prorunvis.Trace.exit_elem(); } " + flag + " = true; ";
+            if (entry.getType() != SwitchEntry.Type.STATEMENT_GROUP) {
+                edits.insert(statements.get(0), SourceEdits.Anchor.BEFORE_BEGIN, depth, "{ " + close, trace, " ");
+                edits.insert(statements.get(0), SourceEdits.Anchor.AFTER_END, depth, " }");
+            } else if (statements.isEmpty()) {
+                edits.insert(entry, SourceEdits.Anchor.AFTER_END, depth, " " + close, trace);
+            } else {
+                edits.insert(statements.get(0), SourceEdits.Anchor.BEFORE_BEGIN, depth, close, trace, " ");
+            }
+        }
+        entry.addStatement(0, trace);
+    }
+
+    /**
+     * Adds the statements recording the exit of the case falling through to a case of a switch statement
+     * and setting the flag of the switch statement before the trace call of the case. Called once the case
+     * has been visited, so the added if statement is not instrumented itself.
+     *
+     * @param entry the case starting with its trace call
+     * @param flag  the name of the flag of the switch statement
+     */
+    private void addCaseExit(final SwitchEntry entry, final String flag) {
+        entry.addStatement(0, new ExpressionStmt(new AssignExpr(new NameExpr(flag), new BooleanLiteralExpr(true),
+                AssignExpr.Operator.ASSIGN)));
+        entry.addStatement(0, new IfStmt(new NameExpr(flag),
+                new BlockStmt(new NodeList<>(new ExpressionStmt(traceCall("exit_elem")))), null));
+    }
+
+    /**
+     * Gets the text inserted into the source file after the trace call of a code block to record its exit,
+     * see {@link #addExit(NodeWithStatements)}.
+     *
+     * @param empty whether the code block has no statements
+     * @return the text, empty if exits are not recorded
+     */
+    private String exitBegin(final boolean empty) {
+        if (!exits) {
+            return "";
+        }
+        return empty ? " prorunvis.Trace.exit_elem();" : " try {";
+    }
+
+    /**
+     * Gets the text inserted into the source file after the last statement of a code block to record its exit,
+     * see {@link #addExit(NodeWithStatements)}.
+     *
+     * @param empty whether the code block has no statements
+     * @return the text, empty if exits are not recorded
+     */
+    private String exitEnd(final boolean empty) {
+        if (!exits || empty) {
+            return "";
+        }
+        return " } finally { prorunvis.Trace.exit_elem(); }";
+    }
+
     /**
      * A private method which collects the characteristics of the given statement into a new statement
      * containing the trace call, which can then be added to the original code.
@@ -178,19 +772,80 @@ public class TraceVisitor extends ModifierVisitor<Map<Integer, Node>> {
      * @return a statement containing the call to the trace methode with the characteristics of the given statement
      */
     private Statement traceEntryCreator(final int id) {
-        return StaticJavaParser.parseStatement("prorunvis.Trace.next_elem(" + id + ");");
+        if (counting) {
+            return new ExpressionStmt(new UnaryExpr(new ArrayAccessExpr(
+                    new FieldAccessExpr(traceClass(), "counts"), idLiteral(id)), UnaryExpr.Operator.POSTFIX_INCREMENT));
+        }
+        return new ExpressionStmt(traceCall("next_elem", idLiteral(id)));
+    }
+
+    /**
+     * Creates a call to a method of the trace recorder. The inserted trace calls are built
+     * directly instead of being parsed, as they are needed for every instrumented code block.
+     *
+     * @param name      the name of the method
+     * @param arguments the arguments of the call
+     * @return the expression of the call
+     */
+    private static MethodCallExpr traceCall(final String name, final Expression... arguments) {
+        return new MethodCallExpr(traceClass(), name, new NodeList<>(arguments));
+    }
+
+    /**
+     * Creates the expression naming the class of the trace recorder.
+     *
+     * @return the expression {@code prorunvis.Trace}
+     */
+    private static Expression traceClass() {
+        return new FieldAccessExpr(new NameExpr("prorunvis"), "Trace");
     }
 
     /**
-     * Creates a map entry with a clone of the given node while preserving its range.
+     * Creates the literal of an id within an inserted trace call, which is remembered to be relocated.
      *
-     * @param id   the key to map
-     * @param map  the map in which to put the entry
-     * @param node the value to map
+     * @param id the id
+     * @return the literal
      */
-    private void createMapEntry(final int id, final Map<Integer, Node> map, final Node node) {
-        Node entry = node.clone().setRange(node.getRange().get());
-        entry.setParentNode(node.findCompilationUnit().get().clone());
-        map.put(id, entry);
+    private IntegerLiteralExpr idLiteral(final int id) {
+        IntegerLiteralExpr literal = new IntegerLiteralExpr(String.valueOf(id));
+        idLiterals.add(literal);
+        return literal;
+    }
+
+    /**
+     * Shifts the ids within all trace calls inserted by this visitor. Used when the visitor has
+     * filled a table of its own, starting at id 0, whose sites have then been appended to another
+     * table by {@link SiteTable#addAll(SiteTable)}.
+     *
+     * @param base the id the first site of the visited table has been given
+     */
+    public void relocate(final int base) {
+        if (base == 0) {
+            return;
+        }
+        for (IntegerLiteralExpr literal : idLiterals) {
+            literal.setValue(String.valueOf(Integer.parseInt(literal.getValue()) + base));
+        }
+    }
+
+    /**
+     * Adds a site for the given node to the table. The compilation unit of the node is added
+     * to the table with its first site, before any of its nodes has been instrumented.
+     * The enclosing site is the one of the closest ancestor of the node having a site.
+     *
+     * @param sites the table to add the site to
+     * @param node  the node of the site
+     * @return the id of the site
+     */
+    private int addSite(final SiteTable sites, final Node node) {
+        int file = files.computeIfAbsent(node.findCompilationUnit().get(), sites::addFile);
+        int enclosing = -1;
+        for (Node parent = node.getParentNode().orElse(null); parent != null && enclosing < 0;
+             parent = parent.getParentNode().orElse(null)) {
+            enclosing = siteIds.getOrDefault(parent, -1);
+        }
+        int id = sites.add(node, file, enclosing);
+        siteIds.put(node, id);
+        return id;
     }
 }
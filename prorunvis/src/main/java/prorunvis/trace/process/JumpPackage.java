@@ -1,9 +1,9 @@
 package prorunvis.trace.process;
 
 import com.github.javaparser.Range;
-import com.github.javaparser.ast.Node;
+import prorunvis.trace.SiteTable;
 
-import java.util.List;
+import java.util.Set;
 
 /**
  * Objects of this class signify that a link is created from one {@link prorunvis.trace.TraceNode}
@@ -12,10 +12,10 @@ import java.util.List;
 public final class JumpPackage {
 
     /**
-     * List of NodeTypes this jump closes, used to determine to which
+     * The kinds of the sites this jump closes, used to determine to which
      * {@link prorunvis.trace.TraceNode} the jump should return to.
      */
-    private final List<Class<? extends Node>> jumpTo;
+    private final Set<SiteTable.Kind> jumpTo;
 
     /**
      * {@link Range} of the keyword which triggered the jump, so it can be set as the {@link Range} of the outLink.
@@ -29,23 +29,23 @@ public final class JumpPackage {
 
     /**
      * Creates a new {@link JumpPackage}, signaling that a jump has started.
-     * @param targets list of {@link Node}Types this jump closes.
+     * @param targets the kinds of the sites this jump closes.
      * @param link keyword which triggered the jump.
      * @param start {@link Range} of the keyword which triggered the jump.
      */
-    public JumpPackage(final List<Class<? extends Node>> targets, final Range link, final int start) {
+    public JumpPackage(final Set<SiteTable.Kind> targets, final Range link, final int start) {
         jumpTo = targets;
         jumpFrom = link;
         this.start = start;
     }
 
     /**
-     * Checks whether the current {@link Node} closes the current jump.
-     * @param node {@link Node} to test.
-     * @return true if {@link Node} closes the jump, false otherwise.
+     * Checks whether a site of the given kind closes the current jump.
+     * @param kind the kind of the site to test.
+     * @return true if the site closes the jump, false otherwise.
      */
-    public boolean isTarget(final Node node) {
-        return jumpTo.contains(node.getClass());
+    public boolean isTarget(final SiteTable.Kind kind) {
+        return jumpTo.contains(kind);
     }
 
     /**
@@ -1,39 +1,124 @@
 package prorunvis.trace.process;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
 
 /**
  * A Scanner used by {@link TraceProcessor} to convert a
- * trace file to a stack of trace id's for further
- * processing.
+ * trace file to a stream of trace id's for further
+ * processing. Binary traces written by the recorder are
+ * detected by their header, uncompressed fixed-size ids are read
+ * through memory mappings. Traces of multiple threads are split
+ * into one stream per thread. Any other file is read as a legacy text
+ * trace with one id per line. Traces written in counting mode
+ * contain no ids, their table of counts is read instead.
+ * Compact traces recorded with timing provide the time of every id.
+ * A compact trace can also be read from a stream while it is being recorded,
+ * in which case it is decoded by a background thread and its ids become
+ * available to the returned token streams block by block.
  */
 public class Scanner {
 
     /**
-     * The stream of tokens from the trace file.
+     * The largest region of a trace file mapped at once, aligned to whole ids.
      */
-    private final Stack<Integer> tokens;
+    private static final long MAX_MAPPING = 1L << 30;
 
     /**
-     * The path to the trace file read by this scanner.
+     * The size of the buffer used for reading compact traces.
+     */
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The path to the trace file read by this scanner, null if it reads a stream.
      */
     private final Path pathToTrace;
 
+    /**
+     * The stream of a trace being recorded read by this scanner, null if it reads a file.
+     */
+    private final InputStream source;
+
+    /**
+     * The thread decoding the blocks of {@link #source}, null until the stream is read.
+     */
+    private Thread decoder;
+
+    /**
+     * The error which stopped the decoding of {@link #source}, null if there was none.
+     */
+    private IOException failure;
+
+    /**
+     * The number of trace sites stored in the header of a compact trace,
+     * 0 if the trace did not provide this information.
+     */
+    private int siteCount;
+
+    /**
+     * The reason why the recorder truncated the trace, 0 if the trace is complete.
+     */
+    private int truncation;
+
+    /**
+     * The flags of the trace, see {@link TraceFormat#FLAG_EXITS}, 0 if the trace provides none.
+     */
+    private int flags;
+
+    /**
+     * The number of executions of every code block of a trace written in counting mode,
+     * null for traces containing the sequence of executed code blocks.
+     */
+    private long[] counts;
+
+    /**
+     * The times of the ids of a trace recorded with timing, one buffer per block
+     * indexed by thread, null for traces without times.
+     */
+    private List<List<LongBuffer>> times;
+
+    /**
+     * The time at which the traced program exited relative to the start of the
+     * recorder, -1 if unknown.
+     */
+    private long endTime = -1;
+
     /**
      * Constructs a scanner to read a token stream of trace ids.
      *
      * @param path The path to the trace file.
      */
     public Scanner(final String path) {
-        this.tokens = new Stack<>();
         this.pathToTrace = Paths.get(path);
+        this.source = null;
+    }
+
+    /**
+     * Constructs a scanner to read a compact trace from a stream while it is
+     * being recorded, e.g. one accepted by {@link TraceReceiver}.
+     *
+     * @param source The stream of the trace, closed once the trace has been read.
+     */
+    public Scanner(final InputStream source) {
+        this.pathToTrace = null;
+        this.source = source;
     }
 
     /**
-     * Reads the file specified by {@link #pathToTrace} to {@link #tokens}
+     * Reads the file specified by {@link #pathToTrace} to a stack
      * in reverse order.
      *
      * @return a stack of Integers containing the trace id's with the top element
@@ -42,20 +127,560 @@ public class Scanner {
      *                     opened for other reasons.
      */
     public Stack<Integer> readFile() throws IOException {
+        TokenStream stream = read();
+        int[] ids = new int[(int) stream.remaining()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = stream.pop();
+        }
 
-        try {
-            File traceFile = pathToTrace.toFile();
-            BufferedReader reader = new BufferedReader(new FileReader(traceFile));
-            List<String> temp = new ArrayList<>(reader.lines().toList());
-            //reverse the list before pushing on the stack to get the correct order
-            Collections.reverse(temp);
-            temp.forEach(x -> tokens.push(Integer.parseInt(x)));
-            //close reader
-            reader.close();
-        } catch (FileNotFoundException e) {
+        //push in reverse order to get the first id on top of the stack
+        Stack<Integer> tokens = new Stack<>();
+        tokens.ensureCapacity(ids.length);
+        for (int i = ids.length - 1; i >= 0; i--) {
+            tokens.push(ids[i]);
+        }
+        return tokens;
+    }
+
+    /**
+     * Opens the file specified by {@link #pathToTrace} as a stream of ids.
+     * For traces of multiple threads only the ids of the first recording
+     * thread, i.e. the one executing the main method, are returned.
+     *
+     * @return a stream of the trace id's in recorded order.
+     * @throws IOException If the file does not exist or could not be
+     *                     opened for other reasons.
+     */
+    public TokenStream read() throws IOException {
+        List<TokenStream> threads = readThreads();
+        return threads.isEmpty() ? new TokenStream(List.of()) : threads.get(0);
+    }
+
+    /**
+     * Opens the file specified by {@link #pathToTrace} as one stream of ids
+     * per recording thread.
+     *
+     * @return the streams of the trace id's in recorded order, indexed by the
+     * order in which the threads recorded their first id.
+     * @throws IOException If the file does not exist or could not be
+     *                     opened for other reasons.
+     */
+    public List<TokenStream> readThreads() throws IOException {
+        if (source != null) {
+            return readStream();
+        }
+        List<List<IntBuffer>> threads = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(pathToTrace, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(TraceFormat.HEADER_SIZE);
+            readFully(channel, header);
+            if (header.remaining() == TraceFormat.HEADER_SIZE && header.getInt() == TraceFormat.MAGIC) {
+                int version = header.getInt();
+                if (version == TraceFormat.VERSION_RAW) {
+                    chunksOf(threads, 0).addAll(map(channel, TraceFormat.HEADER_SIZE, channel.size()));
+                } else if (version == TraceFormat.VERSION_SEGMENTED) {
+                    mapSegments(threads);
+                    readSegmentedHeader(channel);
+                } else if (version == TraceFormat.VERSION_COMPACT) {
+                    ByteBuffer compactHeader = ByteBuffer.allocate(
+                            TraceFormat.COMPACT_HEADER_SIZE - TraceFormat.HEADER_SIZE);
+                    readFully(channel, compactHeader);
+                    if (compactHeader.remaining() < compactHeader.capacity()) {
+                        throw new IOException("Corrupted trace header.");
+                    }
+                    flags = compactHeader.getInt();
+                    siteCount = compactHeader.getInt();
+                    if ((flags & TraceFormat.FLAG_TIMES) != 0) {
+                        times = new ArrayList<>();
+                    }
+                    decodeCompact(Channels.newInputStream(channel), (thread, ids, blockTimes) -> {
+                        chunksOf(threads, thread).add(IntBuffer.wrap(ids));
+                        if (blockTimes != null) {
+                            chunksOf(times, thread).add(LongBuffer.wrap(blockTimes));
+                        }
+                    });
+                } else if (version == TraceFormat.VERSION_COUNTS) {
+                    readCounts(channel);
+                } else {
+                    throw new IOException("Unsupported trace format version " + version + ".");
+                }
+                List<TokenStream> streams = new ArrayList<>();
+                for (int i = 0; i < threads.size(); i++) {
+                    streams.add(new TokenStream(threads.get(i), times == null ? null : chunksOf(times, i)));
+                }
+                return streams;
+            }
+        } catch (NoSuchFileException e) {
             throw new IOException("Could not read file.", e);
         }
+        return List.of(new TokenStream(List.of(IntBuffer.wrap(readText()))));
+    }
+
+    /**
+     * Reads the header of the compact trace provided by {@link #source} and starts
+     * decoding its blocks in the background. The returned list initially contains the
+     * stream of the first recording thread, the streams of further threads are added
+     * as soon as their first block is received.
+     * The streams block while waiting for further ids and end with the trace, so
+     * {@link #finish()} has to be called to learn whether it has been read completely.
+     *
+     * @return the streams of the trace id's in recorded order, indexed by the
+     * order in which the threads recorded their first id.
+     * @throws IOException If the stream does not start with the header of a compact trace.
+     */
+    private List<TokenStream> readStream() throws IOException {
+        DataInputStream header = new DataInputStream(source);
+        int version;
+        try {
+            if (header.readInt() != TraceFormat.MAGIC) {
+                throw new IOException("Corrupted trace header.");
+            }
+            version = header.readInt();
+            flags = header.readInt();
+            siteCount = header.readInt();
+        } catch (EOFException e) {
+            throw new IOException("Corrupted trace header.", e);
+        }
+        if (version != TraceFormat.VERSION_COMPACT) {
+            throw new IOException("Unsupported trace format version " + version + " for streaming.");
+        }
 
-        return tokens;
+        boolean timed = (flags & TraceFormat.FLAG_TIMES) != 0;
+        List<TokenStream> streams = new CopyOnWriteArrayList<>();
+        streams.add(TokenStream.open(timed));
+        decoder = new Thread(() -> {
+            try {
+                decodeCompact(source, (thread, ids, blockTimes) -> {
+                    while (streams.size() <= thread) {
+                        streams.add(TokenStream.open(timed));
+                    }
+                    streams.get(thread).append(IntBuffer.wrap(ids),
+                            blockTimes == null ? null : LongBuffer.wrap(blockTimes));
+                });
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                //the truncation and end time have been read, so the streams can be ended
+                streams.forEach(TokenStream::close);
+            }
+        }, "prorunvis-trace-decoder");
+        decoder.setDaemon(true);
+        decoder.start();
+        return streams;
+    }
+
+    /**
+     * Waits until a trace read from a stream has been decoded completely. Returns
+     * immediately for trace files, which are read completely by {@link #readThreads()}.
+     *
+     * @throws IOException If the stream could not be read or is corrupted, or the
+     *                     waiting thread has been interrupted.
+     */
+    public void finish() throws IOException {
+        if (decoder == null) {
+            return;
+        }
+        try {
+            decoder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the trace.");
+        }
+        if (failure != null) {
+            throw new IOException("Could not read the streamed trace.", failure);
+        }
+    }
+
+    /**
+     * Gets the list of buffers for a thread, adding empty lists for all threads
+     * up to the given index if necessary.
+     *
+     * @param threads the buffers of all threads.
+     * @param thread  the index of the thread.
+     * @return the buffers of the thread.
+     */
+    private static <T> List<T> chunksOf(final List<List<T>> threads, final int thread) {
+        while (threads.size() <= thread) {
+            threads.add(new ArrayList<>());
+        }
+        return threads.get(thread);
+    }
+
+    /**
+     * Maps a region of a file containing whole ids to a list of buffers.
+     *
+     * @param channel the channel of the file to map.
+     * @param start   the offset of the first id.
+     * @param end     the end of the region, a trailing incomplete id is ignored.
+     * @return the views of the mapped region.
+     * @throws IOException If the file could not be mapped.
+     */
+    private static List<IntBuffer> map(final FileChannel channel, final long start, final long end)
+            throws IOException {
+        List<IntBuffer> chunks = new ArrayList<>();
+        long usableEnd = end - (end - start) % Integer.BYTES;
+        for (long position = start; position < usableEnd; position += MAX_MAPPING) {
+            long length = Math.min(MAX_MAPPING, usableEnd - position);
+            chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, position, length).asIntBuffer());
+        }
+        return chunks;
+    }
+
+    /**
+     * Maps the segment files written by the recorder in mapped mode. The segments
+     * are named after the trace file with an ascending index as extension, each
+     * one storing the number of ids it contains and the index of the recording
+     * thread in its header.
+     *
+     * @param threads the lists to add the views of the used part of all segments to,
+     *                indexed by thread.
+     * @throws IOException If a segment could not be mapped or is corrupted.
+     */
+    private void mapSegments(final List<List<IntBuffer>> threads) throws IOException {
+        for (int i = 0;; i++) {
+            Path segment = Paths.get(pathToTrace + "." + i);
+            if (!Files.exists(segment)) {
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        TraceFormat.SEGMENT_HEADER_SIZE);
+                if (header.getInt() != TraceFormat.MAGIC || header.getInt() != TraceFormat.VERSION_SEGMENTED) {
+                    throw new IOException("Corrupted trace segment " + segment + ".");
+                }
+                long end = TraceFormat.SEGMENT_HEADER_SIZE + (long) header.getInt() * Integer.BYTES;
+                int thread = header.getInt();
+                if (thread < 0) {
+                    throw new IOException("Corrupted trace segment " + segment + ".");
+                }
+                chunksOf(threads, thread).addAll(
+                        map(channel, TraceFormat.SEGMENT_HEADER_SIZE, Math.min(end, channel.size())));
+            }
+        }
+    }
+
+    /**
+     * Decodes the blocks of a compact trace following the header, according to {@link #flags}.
+     * The truncation record and the end time are stored in this scanner.
+     *
+     * @param in   the stream positioned after the header.
+     * @param sink the receiver of the decoded blocks.
+     * @throws IOException If the trace could not be read or is corrupted.
+     */
+    private void decodeCompact(final InputStream in, final BlockSink sink) throws IOException {
+        VarintReader reader = new VarintReader((flags & TraceFormat.FLAG_GZIP) != 0
+                ? new GZIPInputStream(in, READ_BUFFER_SIZE) : in);
+        boolean tagged = (flags & TraceFormat.FLAG_THREADS) != 0;
+        boolean timed = (flags & TraceFormat.FLAG_TIMES) != 0;
+        boolean exits = (flags & TraceFormat.FLAG_EXITS) != 0;
+        //threads whose last block ended with the marker of skipped iterations
+        Set<Integer> awaitingSkipCount = new HashSet<>();
+        while (!reader.atEnd()) {
+            int thread = tagged ? reader.next() : 0;
+            if (tagged && thread == TraceFormat.TRUNCATION_TAG) {
+                truncation = reader.next();
+                continue;
+            }
+            if (tagged && thread == TraceFormat.END_TAG) {
+                endTime = reader.nextLong();
+                continue;
+            }
+            int count = reader.next();
+            if (thread < 0) {
+                throw new IOException("Corrupted trace block of thread " + thread + ".");
+            }
+            if (count < 0 || count > TraceFormat.BLOCK_SIZE) {
+                throw new IOException("Corrupted trace block of size " + count + ".");
+            }
+            int[] ids = new int[count];
+            long[] blockTimes = timed ? new long[count] : null;
+            int previous = 0;
+            long previousTime = 0;
+            for (int i = 0; i < count; i++) {
+                int zigzag = reader.next();
+                if (timed) {
+                    long timeZigzag = reader.nextLong();
+                    previousTime += (timeZigzag >>> 1) ^ -(timeZigzag & 1);
+                    blockTimes[i] = previousTime;
+                }
+                if (exits && zigzag-- == 0) {
+                    ids[i] = TraceFormat.EXIT;
+                    continue;
+                }
+                previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                //the number of skipped iterations following a marker is not an id
+                boolean skipCount = i > 0 ? TraceFormat.isSkipMarker(ids[i - 1]) : awaitingSkipCount.contains(thread);
+                if (!skipCount) {
+                    int site = TraceFormat.isSkipMarker(previous) ? TraceFormat.skippedSite(previous) : previous;
+                    if (site < 0 || (siteCount > 0 && site >= siteCount)) {
+                        throw new IOException("Corrupted trace, unknown id " + previous + ".");
+                    }
+                }
+                ids[i] = previous;
+            }
+            if (count > 0 && TraceFormat.isSkipMarker(ids[count - 1])) {
+                awaitingSkipCount.add(thread);
+            } else if (count > 0) {
+                awaitingSkipCount.remove(thread);
+            }
+            sink.accept(thread, ids, blockTimes);
+        }
+    }
+
+    /**
+     * Gets the time at which the traced program exited, if the trace has been
+     * recorded with timing. Only available after the trace has been read, for a
+     * stream once its token streams ended.
+     *
+     * @return the time in nanoseconds relative to the start of the recorder,
+     * -1 if unknown.
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * Reads the table of a trace written in counting mode following the header.
+     *
+     * @param channel the channel positioned after the magic and version.
+     * @throws IOException If the file could not be read or is corrupted.
+     */
+    private void readCounts(final FileChannel channel) throws IOException {
+        ByteBuffer countsHeader = ByteBuffer.allocate(TraceFormat.COUNTS_HEADER_SIZE - TraceFormat.HEADER_SIZE);
+        readFully(channel, countsHeader);
+        if (countsHeader.remaining() < countsHeader.capacity()) {
+            throw new IOException("Corrupted trace header.");
+        }
+        countsHeader.getInt();
+        siteCount = countsHeader.getInt();
+        long expected = TraceFormat.COUNTS_HEADER_SIZE + (long) siteCount * Long.BYTES;
+        if (siteCount < 0 || channel.size() < expected) {
+            throw new IOException("Corrupted table of counts.");
+        }
+        counts = new long[siteCount];
+        channel.map(FileChannel.MapMode.READ_ONLY, TraceFormat.COUNTS_HEADER_SIZE, expected
+                - TraceFormat.COUNTS_HEADER_SIZE).asLongBuffer().get(counts);
+    }
+
+    /**
+     * Gets the number of executions of every code block if the trace has been written
+     * in counting mode, in which case the trace contains no ids. Only available after
+     * the trace has been read.
+     *
+     * @return the counts indexed by the id of the code block, null if the trace
+     * contains the sequence of executed code blocks.
+     */
+    public long[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * Reads the flags, the number of trace sites and the truncation record following the
+     * header of a trace written in mapped mode. Traces of older versions only contain the
+     * truncation record.
+     *
+     * @param channel the channel positioned after the header.
+     * @throws IOException If the file could not be read.
+     */
+    private void readSegmentedHeader(final FileChannel channel) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(4 * Integer.BYTES);
+        readFully(channel, record);
+        if (record.remaining() >= 2 * Integer.BYTES && record.getInt(0) != TraceFormat.TRUNCATION_TAG) {
+            flags = record.getInt();
+            siteCount = record.getInt();
+        }
+        if (record.remaining() >= 2 * Integer.BYTES && record.getInt() == TraceFormat.TRUNCATION_TAG) {
+            truncation = record.getInt();
+        }
+    }
+
+    /**
+     * Checks whether the trace contains the exits of the code blocks, see {@link TraceFormat#EXIT}.
+     * Only available after the trace has been read.
+     *
+     * @return true if every entered code block is followed by its exit.
+     */
+    public boolean hasExits() {
+        return (flags & TraceFormat.FLAG_EXITS) != 0;
+    }
+
+    /**
+     * Checks whether the recorder truncated the trace because it exceeded its budget.
+     * Only available after the trace has been read, for a stream once its token streams ended.
+     *
+     * @return true if the trace ends before the end of the program run.
+     */
+    public boolean isTruncated() {
+        return truncation != 0;
+    }
+
+    /**
+     * Gets the reason why the recorder truncated the trace, one of
+     * {@link TraceFormat#TRUNCATED_EVENTS} and {@link TraceFormat#TRUNCATED_BYTES}.
+     * Only available after the trace has been read.
+     *
+     * @return the reason, 0 if the trace is complete.
+     */
+    public int getTruncation() {
+        return truncation;
+    }
+
+    /**
+     * Gets the number of trace sites of the traced program as stored in the
+     * header of a compact trace. Only available after the trace has been read.
+     *
+     * @return the number of trace sites, 0 if unknown.
+     */
+    public int getSiteCount() {
+        return siteCount;
+    }
+
+    /**
+     * Fills the given buffer from the channel until it is full or the
+     * end of the file is reached and flips it for reading.
+     *
+     * @param channel the channel to read from.
+     * @param buffer  the buffer to fill.
+     * @throws IOException If the channel could not be read.
+     */
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            //keep reading until the buffer is full or the end is reached
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Reads a legacy text trace with one decimal id per line.
+     *
+     * @return the ids in recorded order.
+     * @throws IOException If the file could not be read.
+     */
+    private int[] readText() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(pathToTrace.toFile()))) {
+            return reader.lines().filter(line -> !line.isBlank())
+                    .mapToInt(line -> Integer.parseInt(line.trim())).toArray();
+        }
+    }
+
+    /**
+     * Receives the blocks decoded from a compact trace.
+     */
+    private interface BlockSink {
+
+        /**
+         * Receives a decoded block.
+         *
+         * @param thread the index of the thread which recorded the block.
+         * @param ids    the ids of the block.
+         * @param times  the times of the ids, null if the trace has been recorded without timing.
+         */
+        void accept(int thread, int[] ids, long[] times);
+    }
+
+    /**
+     * Reads unsigned varints from a stream through an internal buffer.
+     */
+    private static final class VarintReader {
+
+        /**
+         * The stream to read from.
+         */
+        private final InputStream in;
+
+        /**
+         * The buffered bytes of the stream.
+         */
+        private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+        /**
+         * The position of the next byte in {@link #buffer}.
+         */
+        private int position;
+
+        /**
+         * The number of valid bytes in {@link #buffer}.
+         */
+        private int limit;
+
+        /**
+         * Constructs a reader for the given stream.
+         *
+         * @param in the stream to read from.
+         */
+        VarintReader(final InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Checks whether the end of the stream has been reached.
+         *
+         * @return true if no further bytes are available.
+         * @throws IOException If the stream could not be read.
+         */
+        boolean atEnd() throws IOException {
+            return position == limit && !fill();
+        }
+
+        /**
+         * Reads the next varint.
+         *
+         * @return the decoded value.
+         * @throws IOException If the stream ends within the varint.
+         */
+        int next() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+                if (position == limit && !fill()) {
+                    throw new IOException("Unexpected end of trace.");
+                }
+                byte b = buffer[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupted varint in trace.");
+        }
+
+        /**
+         * Reads the next varint of up to 64 bits.
+         *
+         * @return the decoded value.
+         * @throws IOException If the stream ends within the varint.
+         */
+        long nextLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < Long.SIZE; shift += 7) {
+                if (position == limit && !fill()) {
+                    throw new IOException("Unexpected end of trace.");
+                }
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupted varint in trace.");
+        }
+
+        /**
+         * Refills the buffer from the stream.
+         *
+         * @return false if the end of the stream has been reached.
+         * @throws IOException If the stream could not be read.
+         */
+        private boolean fill() throws IOException {
+            int read = in.read(buffer, 0, buffer.length);
+            position = 0;
+            limit = Math.max(read, 0);
+            return read > 0;
+        }
     }
 }
@@ -0,0 +1,248 @@
+package prorunvis.trace.process;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.EmptyStackException;
+import java.util.List;
+
+/**
+ * A stream of trace ids as provided by {@link Scanner}. The ids are read
+ * directly from a sequence of buffers, which may be views of memory-mapped
+ * trace files, so no copy of the trace has to be created for processing.
+ * If the trace has been recorded with timing, the time of every id is
+ * available as well.
+ * A stream opened by {@link #open(boolean)} receives its buffers while it is
+ * being read, from a thread decoding a trace as it is recorded. Reading such a
+ * stream blocks until further ids are received or the stream is closed.
+ */
+public class TokenStream {
+
+    /**
+     * The buffers containing the ids in recorded order.
+     */
+    private final List<IntBuffer> chunks;
+
+    /**
+     * The buffers containing the times of the ids, parallel to {@link #chunks},
+     * null if the trace has been recorded without timing.
+     */
+    private final List<LongBuffer> times;
+
+    /**
+     * The time of the last consumed id.
+     */
+    private long lastTime;
+
+    /**
+     * The index of the buffer containing the next id.
+     */
+    private int chunk;
+
+    /**
+     * Whether further buffers may be received, only changed by the reading thread.
+     */
+    private boolean receiving;
+
+    /**
+     * The buffers of ids received but not yet taken over by the reading thread.
+     */
+    private final List<IntBuffer> received = new ArrayList<>();
+
+    /**
+     * The buffers of times received but not yet taken over by the reading thread.
+     */
+    private final List<LongBuffer> receivedTimes = new ArrayList<>();
+
+    /**
+     * Whether the stream is closed, so no further buffers will be received.
+     */
+    private boolean closed;
+
+    /**
+     * Constructs a token stream over the given buffers.
+     *
+     * @param chunks the buffers containing the ids, each positioned at
+     *               its first id.
+     */
+    public TokenStream(final List<IntBuffer> chunks) {
+        this(chunks, null);
+    }
+
+    /**
+     * Constructs a token stream over the given buffers of ids and their times.
+     *
+     * @param chunks the buffers containing the ids, each positioned at
+     *               its first id.
+     * @param times  the buffers containing the times of the ids in nanoseconds,
+     *               with the same sizes as the buffers of ids, null if unknown.
+     */
+    public TokenStream(final List<IntBuffer> chunks, final List<LongBuffer> times) {
+        this.chunks = chunks;
+        this.times = times;
+        this.chunk = 0;
+    }
+
+    /**
+     * Opens an initially empty stream, which receives its buffers by {@link #append}
+     * until it is {@link #close() closed}.
+     *
+     * @param timed whether the received ids come with their times.
+     * @return the opened stream.
+     */
+    static TokenStream open(final boolean timed) {
+        TokenStream stream = new TokenStream(new ArrayList<>(), timed ? new ArrayList<>() : null);
+        stream.receiving = true;
+        return stream;
+    }
+
+    /**
+     * Appends a buffer of ids to an opened stream, called by the thread providing the ids.
+     *
+     * @param ids     the received ids.
+     * @param idTimes the times of the received ids, null if the stream is not timed.
+     */
+    synchronized void append(final IntBuffer ids, final LongBuffer idTimes) {
+        received.add(ids);
+        if (times != null) {
+            receivedTimes.add(idTimes);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Closes an opened stream, after which it ends with the ids appended so far.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits until further buffers have been appended to an opened stream and
+     * takes them over.
+     *
+     * @return false if the stream has been closed without further buffers, or the
+     * waiting thread has been interrupted.
+     */
+    private synchronized boolean receive() {
+        while (received.isEmpty() && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                receiving = false;
+                return false;
+            }
+        }
+        if (received.isEmpty()) {
+            receiving = false;
+            return false;
+        }
+        chunks.addAll(received);
+        received.clear();
+        if (times != null) {
+            times.addAll(receivedTimes);
+            receivedTimes.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the times of the ids are known.
+     *
+     * @return true if the trace has been recorded with timing.
+     */
+    public boolean hasTimes() {
+        return times != null;
+    }
+
+    /**
+     * Checks whether all ids of this stream have been consumed.
+     *
+     * @return true if no further id is available, false otherwise.
+     */
+    public boolean empty() {
+        do {
+            while (chunk < chunks.size() && !chunks.get(chunk).hasRemaining()) {
+                chunk++;
+            }
+            if (chunk < chunks.size()) {
+                return false;
+            }
+        } while (receiving && receive());
+        return true;
+    }
+
+    /**
+     * Gets the next id without consuming it.
+     *
+     * @return the next id.
+     * @throws EmptyStackException if the stream has no further ids.
+     */
+    public int peek() {
+        if (empty()) {
+            throw new EmptyStackException();
+        }
+        IntBuffer current = chunks.get(chunk);
+        return current.get(current.position());
+    }
+
+    /**
+     * Consumes the next id.
+     *
+     * @return the consumed id.
+     * @throws EmptyStackException if the stream has no further ids.
+     */
+    public int pop() {
+        if (empty()) {
+            throw new EmptyStackException();
+        }
+        IntBuffer current = chunks.get(chunk);
+        if (times != null) {
+            lastTime = times.get(chunk).get(current.position());
+        }
+        return current.get();
+    }
+
+    /**
+     * Gets the time of the next id without consuming it.
+     *
+     * @return the time in nanoseconds relative to the start of the recorder,
+     * 0 if the times are unknown.
+     * @throws EmptyStackException if the stream has no further ids.
+     */
+    public long peekTime() {
+        if (empty()) {
+            throw new EmptyStackException();
+        }
+        if (times == null) {
+            return 0;
+        }
+        return times.get(chunk).get(chunks.get(chunk).position());
+    }
+
+    /**
+     * Gets the time of the last consumed id.
+     *
+     * @return the time in nanoseconds relative to the start of the recorder,
+     * 0 if the times are unknown or no id has been consumed.
+     */
+    public long lastTime() {
+        return lastTime;
+    }
+
+    /**
+     * Gets the number of ids which have not been consumed yet, for an opened
+     * stream the number of those received so far.
+     *
+     * @return the number of remaining ids.
+     */
+    public long remaining() {
+        long remaining = 0;
+        for (int i = chunk; i < chunks.size(); i++) {
+            remaining += chunks.get(i).remaining();
+        }
+        return remaining;
+    }
+}
@@ -0,0 +1,200 @@
+package prorunvis.trace.process;
+
+/**
+ * Constants describing the binary trace formats written by the
+ * {@code prorunvis.Trace} recorder. The values have to match
+ * the ones used in the recorder of the prorunvis-runtime module.
+ */
+public final class TraceFormat {
+
+    /**
+     * Marker at the start of every binary trace file ("PRVT").
+     */
+    public static final int MAGIC = 0x50525654;
+
+    /**
+     * Version of a trace file consisting of a header followed by
+     * plain 32-bit big-endian ids.
+     */
+    public static final int VERSION_RAW = 1;
+
+    /**
+     * Version of a trace file written in mapped mode. The file itself only
+     * consists of the header, optionally followed by the flags of the trace
+     * and the number of trace sites, the ids are stored in segment files named
+     * after the trace file with an ascending index as extension. Every
+     * segment belongs to the thread whose index is stored in its header.
+     */
+    public static final int VERSION_SEGMENTED = 2;
+
+    /**
+     * Version of a trace file in the compact format. The header is followed by
+     * blocks, each consisting of the number of ids in the block and the
+     * zigzag encoded deltas between consecutive ids, all stored as varints.
+     * The blocks are gzip compressed if {@link #FLAG_GZIP} is set.
+     */
+    public static final int VERSION_COMPACT = 3;
+
+    /**
+     * Version of a trace file written in counting mode. The header is followed by
+     * the number of executions of every code block as 64-bit big-endian values,
+     * indexed by the id of the code block.
+     */
+    public static final int VERSION_COUNTS = 4;
+
+    /**
+     * Flag in the header of a compact trace marking a gzip compressed body.
+     */
+    public static final int FLAG_GZIP = 1;
+
+    /**
+     * Flag in the header of a compact trace marking blocks which start with
+     * the index of the thread that recorded them.
+     */
+    public static final int FLAG_THREADS = 2;
+
+    /**
+     * Flag in the header of a compact trace marking blocks in which every id is
+     * followed by the zigzag encoded {@code System.nanoTime} delta to the previous
+     * id of the block, the first one relative to the start of the recorder. Such
+     * a trace ends with the record of the time at which the program exited.
+     */
+    public static final int FLAG_TIMES = 4;
+
+    /**
+     * Flag in the header of a trace containing the exits of the code blocks, see
+     * {@link #EXIT}. In the blocks of a compact trace the varint 0 then stands
+     * for an exit and every delta is stored incremented by one. Exits do not
+     * change the id to which the following delta refers.
+     */
+    public static final int FLAG_EXITS = 8;
+
+    /**
+     * The value representing the exit of the code block entered last and not exited yet.
+     * Exits are recorded by code instrumented with exits in a finally block, so every
+     * code block is exited even by return, break, continue or throw.
+     */
+    public static final int EXIT = Integer.MIN_VALUE;
+
+    /**
+     * Tag in place of the thread of a block marking the truncation record, which
+     * is followed by the reason of the truncation. In mapped mode the tag and the
+     * reason are appended to the header of the trace file as 32-bit values.
+     */
+    public static final int TRUNCATION_TAG = -1;
+
+    /**
+     * Tag in place of the thread of a block marking the record of the time at which
+     * the program exited, relative to the start of the recorder.
+     */
+    public static final int END_TAG = -2;
+
+    /**
+     * Reason of a truncation because the number of recorded ids exceeded the budget.
+     */
+    public static final int TRUNCATED_EVENTS = 1;
+
+    /**
+     * Reason of a truncation because the size of the trace exceeded the budget.
+     */
+    public static final int TRUNCATED_BYTES = 2;
+
+    /**
+     * The exit code of a program stopped because its trace exceeded its budget, which a run
+     * within the JVM of prorunvis reports as well.
+     */
+    public static final int TRUNCATED_EXIT_CODE = 86;
+
+    /**
+     * The maximum number of ids in a block of a compact trace.
+     */
+    public static final int BLOCK_SIZE = 8192;
+
+    /**
+     * The name of the trace file written by the recorder.
+     */
+    public static final String FILE_NAME = "Trace.trb";
+
+    /**
+     * The name of trace files in the legacy text format.
+     */
+    public static final String LEGACY_FILE_NAME = "Trace.tr";
+
+    /**
+     * Size of the header in bytes (magic and version).
+     */
+    public static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    /**
+     * Size of the header of a compact trace in bytes (magic, version, flags
+     * and the number of trace sites of the instrumented program).
+     */
+    public static final int COMPACT_HEADER_SIZE = 4 * Integer.BYTES;
+
+    /**
+     * Size of the header of a trace written in mapped mode in bytes, if it
+     * contains flags (magic, version, flags and the number of trace sites).
+     */
+    public static final int SEGMENTED_HEADER_SIZE = 4 * Integer.BYTES;
+
+    /**
+     * Size of the header of a trace written in counting mode in bytes (magic,
+     * version, flags and the number of trace sites of the instrumented program).
+     */
+    public static final int COUNTS_HEADER_SIZE = 4 * Integer.BYTES;
+
+    /**
+     * Size of the header of a segment file in bytes (magic, version,
+     * number of ids in the segment and the index of the recording thread).
+     */
+    public static final int SEGMENT_HEADER_SIZE = 4 * Integer.BYTES;
+
+    /**
+     * Creates the marker of a record for iterations of a sampled loop which have
+     * only been counted. The marker is followed by the number of skipped iterations,
+     * larger numbers are split into multiple consecutive records.
+     *
+     * @param site the id of the loop.
+     * @return the marker, a negative value.
+     */
+    public static int skipMarker(final int site) {
+        return -1 - site;
+    }
+
+    /**
+     * Checks whether a value in a trace is the marker of a record for skipped iterations.
+     *
+     * @param token the value read from the trace.
+     * @return true if the value is a marker, false if it is the id of a code block or an exit.
+     */
+    public static boolean isSkipMarker(final int token) {
+        return token < 0 && token != EXIT;
+    }
+
+    /**
+     * Checks whether a value in a trace is the exit of a code block.
+     *
+     * @param token the value read from the trace.
+     * @return true if the value is {@link #EXIT}.
+     */
+    public static boolean isExit(final int token) {
+        return token == EXIT;
+    }
+
+    /**
+     * Gets the id of the loop whose iterations have been skipped.
+     *
+     * @param marker the marker of a record for skipped iterations.
+     * @return the id of the loop.
+     */
+    public static int skippedSite(final int marker) {
+        return -1 - marker;
+    }
+
+    /**
+     * This class should not be instantiated.
+     */
+    private TraceFormat() {
+        throw new IllegalStateException();
+    }
+}
@@ -1,30 +1,28 @@
 package prorunvis.trace.process;
 
+import com.github.javaparser.Position;
 import com.github.javaparser.Range;
-import com.github.javaparser.ast.Node;
-import com.github.javaparser.ast.NodeList;
-import com.github.javaparser.ast.body.MethodDeclaration;
-import com.github.javaparser.ast.expr.MethodCallExpr;
-import com.github.javaparser.ast.expr.SimpleName;
-import com.github.javaparser.ast.nodeTypes.NodeWithStatements;
-import com.github.javaparser.ast.nodeTypes.NodeWithBody;
-import com.github.javaparser.ast.nodeTypes.NodeWithOptionalBlockStmt;
-import com.github.javaparser.ast.nodeTypes.NodeWithBlockStmt;
-import com.github.javaparser.ast.stmt.*;
 import com.google.common.collect.Iterables;
+import prorunvis.trace.CoverageNode;
+import prorunvis.trace.SiteLayout;
+import prorunvis.trace.SiteTable;
 import prorunvis.trace.TraceNode;
-import prorunvis.trace.TracedCode;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.stream.Stream;
 
 /**
  * This class is used to convert a previously generated id-trace
  * to a type of tree representation.
  * The resulting tree consists of {@link TraceNode} objects in a
  * list with index-based references to parents and children.
+ * If the trace contains the exits of the code blocks, the nesting
+ * of the nodes is taken from the trace instead of being derived
+ * from the ranges of the code blocks, in a single pass over the trace
+ * which keeps the entered code blocks on a stack.
+ * The code of the sites is taken from their {@link SiteLayout}, so
+ * the sources are not parsed again.
  */
 public class TraceProcessor {
 
@@ -34,10 +32,10 @@ public class TraceProcessor {
     private final List<TraceNode> nodeList;
 
     /**
-     * A map which contains the corresponding {@link Node} of
-     * the AST for every trace id.
+     * The table of the trace sites, which contains the kind, range and
+     * layout for every trace id.
      */
-    private final Map<Integer, Node> traceMap;
+    private final SiteTable sites;
 
     /**
      * The current trace node, serves as a global save state
@@ -46,9 +44,19 @@ public class TraceProcessor {
     private TraceNode current;
 
     /**
-     * The corresponding AST node for current.
+     * The index of current in {@link #nodeList}.
      */
-    private Node nodeOfCurrent;
+    private int currentIndex;
+
+    /**
+     * The trace id of current, -1 if current is no code block.
+     */
+    private int siteOfCurrent;
+
+    /**
+     * The layout of the site of current, null if current is no code block.
+     */
+    private SiteLayout layoutOfCurrent;
 
     /**
      * A scanner object used to convert the trace file
@@ -57,10 +65,10 @@ public class TraceProcessor {
     private final Scanner scanner;
 
     /**
-     * A stack containing the trace id's in correct
+     * A stream containing the trace id's in correct
      * order generated by {@link #scanner}.
      */
-    private Stack<Integer> tokens;
+    private TokenStream tokens;
 
     /**
      * A list that is used to track ranges of method-calls that
@@ -68,7 +76,60 @@ public class TraceProcessor {
      * multiple calls to a method in the same scope can be correctly
      * associated with the respective call-statement.
      */
-    private List<Range> methodCallRanges;
+    private Set<Range> methodCallRanges;
+
+    /**
+     * The number of iterations of every loop which are children of current, by trace id.
+     * Saved and restored together with current like {@link #methodCallRanges}.
+     */
+    private Map<String, Long> iterations;
+
+    /**
+     * The method calls found in the site of a trace id, in the order in which
+     * they are searched for the call of a method, cached for every trace id.
+     */
+    private final Map<Integer, List<Call>> callsOfNode;
+
+    /**
+     * The calls of methods which have not been traced found in the site of a trace id,
+     * cached for every trace id like {@link #callsOfNode}.
+     */
+    private final Map<Integer, List<Call>> untracedCallsOfNode;
+
+    /**
+     * The ids of the recorded sites of method calls within current which have not yet been
+     * linked to the method entered by them, the last recorded one first.
+     * Saved and restored together with current like {@link #methodCallRanges}.
+     */
+    private Deque<Integer> callSites;
+
+    /**
+     * The ranges of the method calls whose site is recorded, by the path of their file.
+     * Only the other calls have to be searched for the call of a method.
+     */
+    private final Map<Path, Set<Range>> recordedCalls;
+
+    /**
+     * The names of all traced methods, the sites of calls with other names are ignored.
+     */
+    private final Set<String> methodNames;
+
+    /**
+     * The keys of the sites as set on the trace nodes, by trace id, created when first needed.
+     */
+    private final String[] siteKeys;
+
+    /**
+     * The ranges of the sites as added to their trace nodes in a trace with exits, by trace id,
+     * created when first needed.
+     */
+    private final SiteRanges[] siteRanges;
+
+    /**
+     * Whether the trace contains the exits of the code blocks, which determine
+     * when a trace node is finished.
+     */
+    private boolean exits;
 
     /**
      * Object which is instantiated when a jump keyword
@@ -83,83 +144,149 @@ public class TraceProcessor {
      */
     private final Path rootDir;
 
+    /**
+     * Whether the recorder truncated the trace because it exceeded its budget.
+     */
+    private boolean truncated;
+
+    /**
+     * Whether the current stream of tokens has been recorded by the main thread,
+     * which is known to run until the program exits.
+     */
+    private boolean mainThread;
+
+    /**
+     * The coverage of every code block if the trace has been recorded in counting mode.
+     */
+    private final List<CoverageNode> coverage;
+
     /**
      * Constructs a TraceProcessor for the given parameters.
      *
-     * @param trace         A map containing all the possible trace-id's
+     * @param sites         The table of all the possible trace-id's
      *                      and their corresponding nodes in the AST.
      * @param traceFilePath A string representation of the path to
      *                      the trace file containing the actual
      *                      recorded trace.
      * @param rootDir       The path to the root directory of the original project.
      */
-    public TraceProcessor(final Map<Integer, Node> trace, final String traceFilePath, final Path rootDir) {
-        this.nodeList = new LinkedList<>();
-        this.traceMap = trace;
-        this.scanner = new Scanner(traceFilePath);
-        this.methodCallRanges = new ArrayList<>();
-        this.rootDir = rootDir.toAbsolutePath();
+    public TraceProcessor(final SiteTable sites, final String traceFilePath, final Path rootDir) {
+        this(sites, new Scanner(traceFilePath), rootDir);
     }
 
-    // -------------- Add this near the top of TraceProcessor (or as a private static method) --------------
-    private static String toJvmDescriptor(com.github.javaparser.ast.type.Type type) {
-        // For arrays, primitives, reference types, or void.
-        if (type.isArrayType()) {
-            // e.g. int[] => "[I"
-            // so we do "[" plus the component type
-            return "[" + toJvmDescriptor(type.asArrayType().getComponentType());
-        }
-        if (type.isPrimitiveType()) {
-            switch (type.asPrimitiveType().asString()) {
-                case "boolean": return "Z";
-                case "byte":    return "B";
-                case "char":    return "C";
-                case "short":   return "S";
-                case "int":     return "I";
-                case "long":    return "J";
-                case "float":   return "F";
-                case "double":  return "D";
+    /**
+     * Constructs a TraceProcessor reading the trace through the given scanner, e.g.
+     * one provided by {@link TraceReceiver#accept}, which processes the trace while
+     * it is being recorded.
+     *
+     * @param sites   The table of all the possible trace-id's
+     *                and their corresponding nodes in the AST.
+     * @param scanner The scanner reading the recorded trace.
+     * @param rootDir The path to the root directory of the original project.
+     */
+    public TraceProcessor(final SiteTable sites, final Scanner scanner, final Path rootDir) {
+        this.nodeList = new ArrayList<>();
+        this.sites = sites;
+        this.scanner = scanner;
+        this.methodCallRanges = new HashSet<>();
+        this.iterations = new HashMap<>();
+        this.callsOfNode = new HashMap<>();
+        this.untracedCallsOfNode = new HashMap<>();
+        this.callSites = new ArrayDeque<>();
+        this.recordedCalls = new HashMap<>();
+        this.methodNames = new HashSet<>();
+        this.siteKeys = new String[sites.size()];
+        this.siteRanges = new SiteRanges[sites.size()];
+        this.rootDir = rootDir.toAbsolutePath();
+        this.coverage = new ArrayList<>();
+
+        for (int id = 0; id < sites.size(); id++) {
+            if (sites.getKind(id) == SiteTable.Kind.CALL) {
+                recordedCalls.computeIfAbsent(sites.getPath(id), path -> new HashSet<>()).add(sites.getRange(id));
+            } else if (sites.getKind(id) == SiteTable.Kind.METHOD) {
+                methodNames.add(sites.getName(id));
             }
         }
-        if (type.isVoidType()) {
-            return "V";
-        }
-
-        // Otherwise, must be a Class/Interface type.
-        // We'll do "Lfully/qualified/ClassName;"
-        // e.g. "java.lang.String" => "Ljava/lang/String;"
-        // (Here we rely on type.asString() => "String" or "java.util.List", etc.)
-        String rawName = type.asString();
-        // if it's something like "String", we can’t know the package unless we do more resolution.
-        // But to keep it simple, let's assume the type is "java.lang.String" or the short name.
-        // We'll replace '.' or generics with '/', then wrap in L...;
-
-        // remove generics <...>, if any:
-        rawName = rawName.replaceAll("<.*>", "");
-        // replace '.' with '/' (if user wrote fully qualified types)
-        rawName = rawName.replace('.', '/');
-        // also replace package if we can’t find it, you might do partial.
-        // Minimal approach: just do "L" + rawName + ";"
-        return "L" + rawName.replaceAll("\\.", "/") + ";";
     }
 
     /**
      * Start the processor by creating the token stack and
-     * the root for the tree.
+     * the root for the tree. If the trace has been recorded by
+     * multiple threads, the trees of all threads but the first
+     * are added below the root as well. A trace recorded in counting mode
+     * only yields the coverage of every code block instead of a tree.
+     * The main thread is processed while a streamed trace is still being received,
+     * the other threads once it has been received completely.
      *
      * @throws IOException If the scanner can not open
      *                     or correctly read the trace file.
      */
     public void start() throws IOException {
 
-        //read tokens to stack
+        //open the streams of tokens, one for every recording thread
+        List<TokenStream> threads;
         try {
-            tokens = scanner.readFile();
+            threads = scanner.readThreads();
         } catch (IOException e) {
             throw new IOException("Could not read trace file.", e);
         }
 
+        if (scanner.getCounts() != null) {
+            createCoverage(scanner.getCounts());
+            return;
+        }
+
+        exits = scanner.hasExits();
+        tokens = threads.isEmpty() ? new TokenStream(List.of()) : threads.get(0);
+        //only the main thread is known to run until the program exits
+        mainThread = true;
         createRoot();
+        mainThread = false;
+
+        try {
+            scanner.finish();
+        } catch (IOException e) {
+            throw new IOException("Could not read trace file.", e);
+        }
+        truncated = scanner.isTruncated();
+        if (truncated) {
+            nodeList.get(0).setTruncated(true);
+        }
+
+        for (int thread = 1; thread < threads.size(); thread++) {
+            createThreadRoot(thread, threads.get(thread));
+        }
+    }
+
+    /**
+     * Creates the coverage of every code block from the number of its executions,
+     * without building a tree.
+     *
+     * @param counts the number of executions indexed by the id of the code block.
+     * @throws IOException If the counts do not match the instrumented code blocks.
+     */
+    private void createCoverage(final long[] counts) throws IOException {
+        if (counts.length != sites.size()) {
+            throw new IOException("The trace contains " + counts.length + " code blocks, but "
+                    + sites.size() + " have been instrumented.");
+        }
+        for (int id = 0; id < counts.length; id++) {
+            JumpLink link = new JumpLink(sites.getRange(id), rootDir.relativize(sites.getPath(id)).toString());
+            coverage.add(new CoverageNode(String.valueOf(id), siteKey(id), link, counts[id]));
+        }
+    }
+
+    /**
+     * Gets the key of a site as set on the trace nodes, see {@link SiteTable#getKey(int)}.
+     *
+     * @param site the id of the site.
+     * @return the key as hexadecimal String.
+     */
+    private String siteKey(final int site) {
+        if (siteKeys[site] == null) {
+            siteKeys[site] = HexFormat.of().toHexDigits(sites.getKey(site));
+        }
+        return siteKeys[site];
     }
 
     /**
@@ -170,19 +297,334 @@ public class TraceProcessor {
         TraceNode root = new TraceNode(null, "root");
         nodeList.add(root);
         current = root;
+        currentIndex = 0;
+        siteOfCurrent = -1;
+
+        //a truncated trace may even be empty, it is flagged as partial at its root once read
+        if (tokens.empty() && scanner.isTruncated()) {
+            return;
+        }
+
+        //the methods called by a main method which has not been traced follow each other
+        if (exits) {
+            processExits(!sites.getUntracedMethods().isEmpty());
+            return;
+        }
 
         //add the first node as child to root
         createNewTraceNode();
 
         //add a default link to the first trace node for identifying the entry point
-        TraceNode main = nodeList.get(current.getChildrenIndices().get(0));
-        Node mainNode = traceMap.get(Integer.parseInt(main.getTraceID()));
-        Path path = mainNode.findCompilationUnit().get()
-                .getStorage().get().getPath();
-        String file = rootDir.relativize(path).toString();
-        Range range = ((MethodDeclaration) mainNode).getName().getRange().get();
-        JumpLink link = new JumpLink(range, file);
-        main.setLink(link);
+        setEntryLink(nodeList.get(current.getChildrenIndices().get(0)));
+
+        //the methods called by a main method which has not been traced follow each other
+        if (!sites.getUntracedMethods().isEmpty()) {
+            createEntries();
+        }
+    }
+
+    /**
+     * Creates a node for an additional thread as child of the root, containing
+     * all the code blocks executed by that thread as its children.
+     *
+     * @param thread       the index of the thread.
+     * @param threadTokens the stream of trace ids recorded by the thread.
+     */
+    private void createThreadRoot(final int thread, final TokenStream threadTokens) {
+        TraceNode threadRoot = new TraceNode(0, "thread");
+        threadRoot.setThread(thread);
+        if (truncated) {
+            threadRoot.setTruncated(true);
+        }
+        nodeList.add(threadRoot);
+        nodeList.get(0).addChildIndex(nodeList.size() - 1);
+
+        //reset the state left behind by the previous thread
+        current = threadRoot;
+        currentIndex = nodeList.size() - 1;
+        siteOfCurrent = -1;
+        layoutOfCurrent = null;
+        tokens = threadTokens;
+        methodCallRanges = new HashSet<>();
+        iterations = new HashMap<>();
+        callSites = new ArrayDeque<>();
+        if (exits) {
+            processExits(true);
+        } else {
+            createEntries();
+        }
+    }
+
+    /**
+     * Adds all code blocks left in the current stream of tokens as children of current,
+     * each of which is an entry point, as no traced code block has entered it.
+     */
+    private void createEntries() {
+        while (!tokens.empty()) {
+            jumpPackage = null;
+            if (isCallSite(tokens.peek())) {
+                //calls left over by code blocks finished before being entered
+                tokens.pop();
+                continue;
+            }
+            if (TraceFormat.isSkipMarker(tokens.peek())) {
+                createSkippedTraceNode();
+                continue;
+            }
+            int index = nodeList.size();
+            createNewTraceNode();
+            setEntryLink(nodeList.get(index));
+        }
+        jumpPackage = null;
+    }
+
+    /**
+     * Adds the code blocks of the current stream of tokens below current in a trace with exits.
+     * Every code block entered before the exit of a trace node is one of its children, so the
+     * events open and close the nodes in a single pass, keeping the open nodes on a stack.
+     * The ranges of a node are the ranges of its site up to the statement at which it has been
+     * left, computed once per site, see {@link SiteRanges}.
+     *
+     * @param entries whether all code blocks entered outside of any traced code block are added
+     *                as entry points, otherwise only the first one is.
+     */
+    private void processExits(final boolean entries) {
+        Deque<Frame> stack = new ArrayDeque<>();
+        Frame root = new Frame(currentIndex, current, -1, 0, null);
+        stack.push(root);
+        enter(root);
+
+        while (!tokens.empty()) {
+            int token = tokens.peek();
+            Frame top = stack.peek();
+            if (TraceFormat.isExit(token)) {
+                //exits at the root are the ones of code blocks entered before the thread has been traced
+                tokens.pop();
+                if (top != root) {
+                    stack.pop();
+                    closeFrame(top, stack.peek(), tokens.lastTime(), false);
+                }
+            } else if (isCallSite(token)) {
+                tokens.pop();
+                if (top != root) {
+                    methodCallRanges.add(sites.getRange(token));
+                    recordCallSite(token);
+                }
+            } else if (top == root && !entries && !current.getChildrenIndices().isEmpty()) {
+                break;
+            } else if (TraceFormat.isSkipMarker(token)) {
+                jumpPackage = null;
+                createSkippedTraceNode();
+            } else {
+                stack.push(openFrame(top, top == root));
+            }
+        }
+
+        //the nodes left open have not been exited before the end of their thread
+        boolean cutOff = tokens.empty() && scanner.isTruncated();
+        while (stack.peek() != root) {
+            Frame frame = stack.pop();
+            if (cutOff) {
+                frame.node.setTruncated(true);
+            }
+            closeFrame(frame, stack.peek(), endOfNode(), cutOff);
+        }
+        jumpPackage = null;
+    }
+
+    /**
+     * Creates the trace node of the code block entered by the next token as child of current,
+     * which is the node on top of the stack of a trace with exits.
+     *
+     * @param parent the frame of current.
+     * @param entry  whether the code block is an entry point, as current is no code block.
+     * @return the frame of the new node, which becomes current.
+     */
+    private Frame openFrame(final Frame parent, final boolean entry) {
+        //a code block entered after a jump has been left by it, so the jump has been caught
+        jumpPackage = null;
+        int site = tokens.peek();
+        SiteTable.Kind kind = sites.getKind(site);
+        Call call = null;
+        Position position = null;
+        if (kind == SiteTable.Kind.METHOD) {
+            call = entry ? null : findCall(site);
+            if (call != null) {
+                methodCallRanges.add(call.range());
+                position = call.range().begin;
+            }
+        } else if (!entry && sites.getPath(site).equals(sites.getPath(parent.site))) {
+            position = sites.getBegin(site);
+        }
+        if (position != null) {
+            locateChild(parent, position);
+        }
+
+        tokens.pop();
+        String traceID = String.valueOf(site);
+        TraceNode traceNode = new TraceNode(currentIndex, traceID);
+        traceNode.setSiteKey(siteKey(site));
+        if (kind == SiteTable.Kind.METHOD) {
+            traceNode.setNodeMethodName(sites.getName(site));
+            traceNode.setNodeMethodSignature(sites.getSignature(site));
+        } else if (kind.isLoop()) {
+            traceNode.setIteration(Math.toIntExact(iterations.merge(traceID, 1L, Long::sum)));
+            traceNode.setLink(createLoopLink(site));
+        }
+        nodeList.add(traceNode);
+        current.addChildIndex(nodeList.size() - 1);
+        if (entry) {
+            setEntryLink(traceNode);
+        }
+
+        Frame frame = new Frame(nodeList.size() - 1, traceNode, site, tokens.lastTime(), call);
+        enter(frame);
+        return frame;
+    }
+
+    /**
+     * Finishes a trace node of a trace with exits, setting its ranges and links, and makes its
+     * parent current again.
+     *
+     * @param frame  the frame of the node, which is current.
+     * @param parent the frame of the parent of the node.
+     * @param end    the time at which the node ended.
+     * @param cutOff whether the rest of the execution of the node is unknown due to the truncation.
+     */
+    private void closeFrame(final Frame frame, final Frame parent, final long end, final boolean cutOff) {
+        TraceNode traceNode = frame.node;
+        SiteTable.Kind kind = sites.getKind(frame.site);
+        SiteRanges ranges = rangesOf(frame.site);
+
+        //a node left by a jump of one of its children ends at the statement containing the child,
+        //otherwise it ends at its first jumping statement from there on, or after its last statement
+        int last = Math.max(frame.statement, 0);
+        if (cutOff || jumpPackage != null || ranges.size() == 0) {
+            traceNode.setRanges(ranges.upTo(frame.statement));
+        } else {
+            int stop = ranges.stopOf(last);
+            traceNode.setRanges(ranges.upTo(stop));
+            if (ranges.jumps(stop)) {
+                jumpPackage = createJumpPackage(sites.getLayout(frame.site), stop, frame.index);
+            }
+        }
+        frame.conditions.forEach(traceNode::addRange);
+        if (kind == SiteTable.Kind.FOR && !cutOff && jumpPackage == null) {
+            ranges.updates.forEach(traceNode::addRange);
+        }
+
+        if (jumpPackage != null && jumpPackage.isTarget(kind)) {
+            JumpLink outLink = new JumpLink(jumpPackage.getJumpFrom(),
+                    rootDir.relativize(sites.getPath(frame.site)).toString());
+            if (kind == SiteTable.Kind.METHOD) {
+                traceNode.addOutLink(outLink);
+                jumpPackage = null;
+            } else if (kind == SiteTable.Kind.TRY) {
+                //the exception has been caught if a catch clause of the try-statement follows
+                if (!tokens.empty() && !TraceFormat.isExit(tokens.peek())
+                        && sites.contains(frame.site, siteOfToken(tokens.peek()), false)) {
+                    nodeList.get(jumpPackage.getStart()).addOutLink(outLink);
+                    nodeList.get(jumpPackage.getStart()).setOut(nodeList.size());
+                    jumpPackage = null;
+                }
+            } else {
+                jumpPackage = null;
+            }
+        }
+
+        if (frame.call != null) {
+            traceNode.setLink(new JumpLink(frame.call.nameRange(),
+                    rootDir.relativize(sites.getPath(frame.site)).toString()));
+            traceNode.addOutLink(new JumpLink(sites.getLayout(frame.site).getName(),
+                    rootDir.relativize(sites.getPath(parent.site)).toString()));
+            traceNode.setOut(traceNode.getParentIndex());
+        }
+
+        //the method calls made within a loop have been made by its parent as well
+        if (kind.isLoop()) {
+            parent.callRanges.addAll(frame.callRanges);
+        }
+
+        if (tokens.hasTimes()) {
+            setTimes(traceNode, frame.start, end);
+        }
+        enter(parent);
+    }
+
+    /**
+     * Determines the statement of the site of a frame containing a child, which the node of the
+     * frame has reached, and adds the conditions of the else-if-statements checked before the child.
+     * The statements are passed in their order, so every statement is passed at most once.
+     *
+     * @param frame    the frame of the parent of the child.
+     * @param position the position of the child within the site of the frame.
+     */
+    private void locateChild(final Frame frame, final Position position) {
+        SiteRanges ranges = rangesOf(frame.site);
+        while (frame.cursor < ranges.size() && ranges.ends[frame.cursor].isBefore(position)) {
+            frame.cursor++;
+        }
+        if (frame.cursor == ranges.size() || ranges.begins[frame.cursor].isAfter(position)) {
+            //the child lies outside of the statements, e.g. in the condition of a loop
+            return;
+        }
+        if (frame.statement != frame.cursor) {
+            frame.statement = frame.cursor;
+            frame.elseIfs = 0;
+        }
+        SiteLayout layout = sites.getLayout(frame.site);
+        for (; frame.elseIfs < layout.getElseIfCount(frame.statement)
+                && !layout.getElseIfThen(frame.statement, frame.elseIfs).begin.isAfter(position); frame.elseIfs++) {
+            Range condition = layout.getElseIfCondition(frame.statement, frame.elseIfs);
+            if (condition != null) {
+                frame.conditions.add(condition);
+            }
+        }
+    }
+
+    /**
+     * Makes the node of a frame current, with the state kept for it.
+     *
+     * @param frame the frame of the node.
+     */
+    private void enter(final Frame frame) {
+        current = frame.node;
+        currentIndex = frame.index;
+        siteOfCurrent = frame.site;
+        layoutOfCurrent = frame.site < 0 ? null : sites.getLayout(frame.site);
+        methodCallRanges = frame.callRanges;
+        iterations = frame.iterations;
+        callSites = frame.callSites;
+    }
+
+    /**
+     * Gets the ranges of a site as added to its trace nodes in a trace with exits.
+     *
+     * @param site a trace id.
+     * @return the ranges, computed when first needed.
+     */
+    private SiteRanges rangesOf(final int site) {
+        if (siteRanges[site] == null) {
+            siteRanges[site] = new SiteRanges(sites.getLayout(site));
+        }
+        return siteRanges[site];
+    }
+
+    /**
+     * Adds a link to the name of the method declaration of a trace node
+     * at which a thread started its execution, so it can be identified
+     * as entry point.
+     *
+     * @param entry the first trace node of a thread.
+     */
+    private void setEntryLink(final TraceNode entry) {
+        int site = Integer.parseInt(entry.getTraceID());
+        if (sites.getKind(site) != SiteTable.Kind.METHOD) {
+            return;
+        }
+        String file = rootDir.relativize(sites.getPath(site)).toString();
+        JumpLink link = new JumpLink(sites.getLayout(site).getName(), file);
+        entry.setLink(link);
     }
 
     /**
@@ -198,42 +640,93 @@ public class TraceProcessor {
             return false;
         }
 
-        Node node = traceMap.get(tokens.peek());
+        int token = tokens.peek();
+        //the sites of method calls are kept until the method entered by the call is found
+        while (isCallSite(token)) {
+            Range range = sites.getRange(token);
+            //a call which has already been made within current is made by a caller of it
+            if (!isWithinCurrent(token) || methodCallRanges.contains(range)) {
+                return false;
+            }
+            methodCallRanges.add(range);
+            recordCallSite(tokens.pop());
+            if (tokens.empty()) {
+                return false;
+            }
+            token = tokens.peek();
+        }
+        boolean skipped = TraceFormat.isSkipMarker(token);
+        int site = siteOfToken(token);
 
         //check if the node is a method declaration or not
-        if (node instanceof MethodDeclaration) {
+        if (sites.getKind(site) == SiteTable.Kind.METHOD) {
             return createMethodCallTraceNode();
-        } else {
-
-            Optional<Range> range = node.getRange();
-            Optional<Range> currentRange = nodeOfCurrent.getRange();
-
-            //check if the next traced node is located within the node
-            //of current
-            if (range.isPresent() && currentRange.isPresent()
-                && node.findCompilationUnit().get().getStorage().get().getFileName().equals(
-                   nodeOfCurrent.findCompilationUnit().get().getStorage().get().getFileName())) {
-                if (currentRange.get().strictlyContains(range.get())) {
-                    //create the new trace node
-                    createNewTraceNode();
-                    return true;
-                }
+        } else if (isWithinCurrent(site)) {
+            //create the new trace node, or the summary of skipped loop iterations
+            if (skipped) {
+                createSkippedTraceNode();
+            } else {
+                createNewTraceNode();
             }
+            return true;
         }
 
         return false;
     }
-    private String extractClassName(MethodDeclaration md) {
-        // Get the file name from the compilation unit’s storage.
-        String fileName = md.findCompilationUnit()
-                .flatMap(cu -> cu.getStorage())
-                .map(storage -> storage.getFileName())
-                .orElse("UnknownClass");
-        // Remove the ".java" suffix if present
-        if (fileName.endsWith(".java")) {
-            return fileName.substring(0, fileName.length() - 5);
+
+    /**
+     * Checks whether a trace site is located within the site of current.
+     *
+     * @param site the trace id of a value of the trace.
+     * @return true if the site lies in a file of the same name and within the range of the site of current.
+     */
+    private boolean isWithinCurrent(final int site) {
+        return sites.getPath(site).getFileName().equals(sites.getPath(siteOfCurrent).getFileName())
+                && sites.contains(siteOfCurrent, site, true);
+    }
+
+    /**
+     * Checks whether a value of the trace is the site of a method call.
+     *
+     * @param token the value of the trace.
+     * @return true if the value is the id of a method call.
+     */
+    private boolean isCallSite(final int token) {
+        return token >= 0 && sites.getKind(token) == SiteTable.Kind.CALL;
+    }
+
+    /**
+     * Keeps the site of a method call within current until the method entered by it is found.
+     * Calls of methods which have not been traced are dropped.
+     *
+     * @param token the id of the method call.
+     */
+    private void recordCallSite(final int token) {
+        if (methodNames.contains(sites.getName(token))) {
+            callSites.push(token);
+        }
+    }
+
+    /**
+     * Takes the recorded site of the method call which entered a method. This is the last call
+     * of a method with the same name recorded within current, the calls recorded after it have
+     * entered no traced method and are dropped.
+     *
+     * @param name the name of the entered method.
+     * @return the method call, null if no call of a method with this name has been recorded.
+     */
+    private Call takeCallSite(final String name) {
+        int depth = 0;
+        for (int site : callSites) {
+            depth++;
+            if (sites.getName(site).equals(name)) {
+                for (; depth > 0; depth--) {
+                    callSites.pop();
+                }
+                return new Call(name, sites.getRange(site), sites.getLayout(site).getName());
+            }
         }
-        return fileName;
+        return null;
     }
 
     /**
@@ -244,80 +737,57 @@ public class TraceProcessor {
     private void createNewTraceNode() {
         //create a new node and remove the token from the stack
         int tokenValue = tokens.pop();
+        long start = tokens.lastTime();
         String traceID = String.valueOf(tokenValue);
-        int parentIndex = nodeList.indexOf(current);
+        int parentIndex = currentIndex;
         TraceNode traceNode = new TraceNode(parentIndex, traceID);
+        traceNode.setSiteKey(siteKey(tokenValue));
 
         //add the node to the list and it's index as child of current
         nodeList.add(traceNode);
-        current.addChildIndex(nodeList.indexOf(traceNode));
+        current.addChildIndex(nodeList.size() - 1);
 
         //save the current state
         current = traceNode;
-        Node tempNodeOfCurrent = nodeOfCurrent;
-        List<Range> tempRanges = methodCallRanges;
-        nodeOfCurrent = traceMap.get(tokenValue);
-
-        // 1) If this is a method node, fill in methodName + signature
-        if (nodeOfCurrent instanceof MethodDeclaration md) {
-            // --- the simple method name, e.g. "main", "doSomething" ---
-            traceNode.setNodeMethodName(md.getNameAsString());
-
-            // We'll try to form "packageName.ClassName" from the compilation unit:
-            //   e.g. "my.pkg" + "." + "SnowWhite"
-            // or fallback "SnowWhite" if no package
-            // or fallback "UnknownClass" if we cannot find anything
-            String fullyQualifiedClass = extractClassName(md);
-
-            // 2) Build the JVM descriptor for param types + return
-            StringBuilder paramBuf = new StringBuilder("(");
-            md.getParameters().forEach(p -> {
-                paramBuf.append(toJvmDescriptor(p.getType()));
-            });
-            paramBuf.append(")");
-            String returnDesc = toJvmDescriptor(md.getType());
-
-            // 3) Combine => "my.pkg.SnowWhite.methodName:([I)I"
-            String signature = fullyQualifiedClass
-                    + "."
-                    + md.getNameAsString()
-                    + ":"
-                    + paramBuf.toString()
-                    + returnDesc;
-
-            traceNode.setNodeMethodSignature(signature);
-        }
-        methodCallRanges = new ArrayList<>();
-
-        fillRanges((getBlockStmt() == null)
-                ? nodeOfCurrent.getChildNodes()
-                : getBlockStmt().getChildNodes(), null);
+        currentIndex = nodeList.size() - 1;
+        int tempSiteOfCurrent = siteOfCurrent;
+        SiteLayout tempLayoutOfCurrent = layoutOfCurrent;
+        Set<Range> tempRanges = methodCallRanges;
+        Map<String, Long> tempIterations = iterations;
+        Deque<Integer> tempCallSites = callSites;
+        siteOfCurrent = tokenValue;
+        layoutOfCurrent = sites.getLayout(tokenValue);
+        SiteTable.Kind kind = sites.getKind(tokenValue);
+
+        if (kind == SiteTable.Kind.METHOD) {
+            traceNode.setNodeMethodName(sites.getName(tokenValue));
+            traceNode.setNodeMethodSignature(sites.getSignature(tokenValue));
+        }
+        methodCallRanges = new HashSet<>();
+        iterations = new HashMap<>();
+        callSites = new ArrayDeque<>();
+
+        fillRanges();
+
+        //the node ends once the next code block is entered
+        long end = endOfNode();
 
         //if current node is a loop: calculate and set iteration
-        if (nodeOfCurrent instanceof NodeWithBody<?>) {
-            int iteration = 0;
-            for (int i : nodeList.get(current.getParentIndex()).getChildrenIndices()) {
-                if (nodeList.get(i).getTraceID().equals(current.getTraceID())) {
-                    iteration++;
-                }
-            }
-            current.setIteration(iteration);
+        if (kind.isLoop()) {
+            current.setIteration(Math.toIntExact(tempIterations.merge(traceID, 1L, Long::sum)));
         }
 
-        if (jumpPackage != null && jumpPackage.isTarget(nodeOfCurrent)) {
+        if (jumpPackage != null && jumpPackage.isTarget(kind)) {
             //construct the out link
-            Path targetPath = nodeOfCurrent.findCompilationUnit().get()
-                    .getStorage().get().getPath();
-            targetPath = rootDir.relativize(targetPath);
+            Path targetPath = rootDir.relativize(sites.getPath(tokenValue));
             JumpLink outLink = new JumpLink(jumpPackage.getJumpFrom(), targetPath.toString());
 
-            if (nodeOfCurrent instanceof MethodDeclaration) {
+            if (kind == SiteTable.Kind.METHOD) {
 
                 current.addOutLink(outLink);
             }
-            if (nodeOfCurrent instanceof TryStmt) {
-                if (!tokens.empty()
-                        && nodeOfCurrent.getRange().get().contains(traceMap.get(tokens.peek()).getRange().get())) {
+            if (kind == SiteTable.Kind.TRY) {
+                if (!tokens.empty() && sites.contains(tokenValue, siteOfToken(tokens.peek()), false)) {
                     nodeList.get(jumpPackage.getStart()).addOutLink(outLink);
                     nodeList.get(jumpPackage.getStart()).setOut(nodeList.size());
                     jumpPackage = null;
@@ -330,147 +800,285 @@ public class TraceProcessor {
         //if node was a loop, add the executed method calls from inside the loop to the
         //executed calls of the previous node to prevent false positives in the
         //deep search
-        if (nodeOfCurrent instanceof NodeWithBody<?>) {
+        if (kind.isLoop()) {
             tempRanges.addAll(methodCallRanges);
-            String loopLink;
-            if (nodeOfCurrent instanceof WhileStmt) {
-                loopLink = "while";
-            } else if (nodeOfCurrent instanceof DoStmt) {
-                loopLink = "do";
-            } else {
-                loopLink = "for";
-            }
-            Range linkRange = new Range(nodeOfCurrent.getBegin().get(),
-                    nodeOfCurrent.getBegin().get().right(loopLink.length() - 1));
-            JumpLink link = new JumpLink(linkRange, null);
-            current.setLink(link);
+            current.setLink(createLoopLink(tokenValue));
+        }
+
+        if (tokens.hasTimes()) {
+            setTimes(traceNode, start, end);
         }
 
         //restore state
-        current = nodeList.get(traceNode.getParentIndex());
-        nodeOfCurrent = tempNodeOfCurrent;
+        current = nodeList.get(parentIndex);
+        currentIndex = parentIndex;
+        siteOfCurrent = tempSiteOfCurrent;
+        layoutOfCurrent = tempLayoutOfCurrent;
         methodCallRanges = tempRanges;
+        iterations = tempIterations;
+        callSites = tempCallSites;
     }
 
+    /**
+     * Creates a trace node summarizing the iterations of a sampled loop which have
+     * only been counted by the recorder, added as child to current. Consecutive
+     * records for the same loop are merged into one node.
+     */
+    private void createSkippedTraceNode() {
+        int marker = tokens.pop();
+        long start = tokens.lastTime();
+        long skipped = tokens.empty() ? 0 : tokens.pop();
+        //large numbers of iterations are split into consecutive records
+        while (!tokens.empty() && tokens.peek() == marker) {
+            tokens.pop();
+            skipped += tokens.empty() ? 0 : tokens.pop();
+        }
+
+        String traceID = String.valueOf(TraceFormat.skippedSite(marker));
+        TraceNode traceNode = new TraceNode(currentIndex, traceID);
+        traceNode.setSiteKey(siteKey(TraceFormat.skippedSite(marker)));
+        traceNode.setIteration(Math.toIntExact(iterations.getOrDefault(traceID, 0L) + 1));
+        iterations.merge(traceID, skipped, Long::sum);
+        traceNode.setSkippedIterations(skipped);
+        traceNode.setLink(createLoopLink(TraceFormat.skippedSite(marker)));
+        if (tokens.hasTimes()) {
+            setTimes(traceNode, start, endOfNode());
+        }
+
+        nodeList.add(traceNode);
+        current.addChildIndex(nodeList.size() - 1);
+    }
+
+    /**
+     * Gets the time at which a completely processed node ended, if the trace contains no
+     * exit for it. The node is then considered to end when the next code block is entered,
+     * or when its thread ends.
+     *
+     * @return the time in nanoseconds relative to the start of the recorder.
+     */
+    private long endOfNode() {
+        if (!tokens.empty()) {
+            return tokens.peekTime();
+        }
+        return mainThread ? Math.max(scanner.getEndTime(), tokens.lastTime()) : tokens.lastTime();
+    }
+
+    /**
+     * Sets the inclusive and exclusive time of a completely processed node.
+     *
+     * @param traceNode the node whose children have all been processed.
+     * @param start     the time at which the node has been entered.
+     * @param end       the time at which the node ended.
+     */
+    private void setTimes(final TraceNode traceNode, final long start, final long end) {
+        long inclusive = end - start;
+        long children = 0;
+        for (int i : traceNode.getChildrenIndices()) {
+            Long childTime = nodeList.get(i).getInclusiveTime();
+            children += childTime == null ? 0 : childTime;
+        }
+        traceNode.setInclusiveTime(inclusive);
+        traceNode.setExclusiveTime(inclusive - children);
+    }
+
+    /**
+     * Creates the link on the keyword of a loop, used to switch between its iterations.
+     *
+     * @param loop the trace id of the loop.
+     * @return the link covering the keyword of the loop.
+     */
+    private JumpLink createLoopLink(final int loop) {
+        String loopLink;
+        if (sites.getKind(loop) == SiteTable.Kind.WHILE) {
+            loopLink = "while";
+        } else if (sites.getKind(loop) == SiteTable.Kind.DO) {
+            loopLink = "do";
+        } else {
+            loopLink = "for";
+        }
+        Range linkRange = new Range(sites.getBegin(loop),
+                sites.getBegin(loop).right(loopLink.length() - 1));
+        return new JumpLink(linkRange, null);
+    }
+
+    /**
+     * Gets the trace site for a value of the trace, which is either the id of
+     * a code block or the marker of skipped iterations of a loop.
+     *
+     * @param token the value of the trace.
+     * @return the id of the corresponding code block.
+     */
+    private static int siteOfToken(final int token) {
+        return TraceFormat.isSkipMarker(token) ? TraceFormat.skippedSite(token) : token;
+    }
 
     /**
      * Create a new trace node explicitly for a method call. For that the method
-     * first checks within what type of node the call is located to get the
-     * correct {@link MethodCallExpr} and then creates the node with the correct
-     * link and out-link for that expression.
+     * finds the call within current which entered the method, see {@link #findCall(int)},
+     * and then creates the node with the correct link and out-link for that call.
      *
      * @return a boolean to indicate if current may have further children.
      * True if the node was created, false otherwise.
      */
     private boolean createMethodCallTraceNode() {
-        MethodDeclaration node = (MethodDeclaration) traceMap.get(tokens.peek());
-        SimpleName nameOfDeclaration = node.getName();
-        SimpleName nameOfCall;
-
-
-        List<MethodCallExpr> callExprs = new ArrayList<>();
-
-        //if the current statement is a statement-block, search statements individually for calls
-        if (nodeOfCurrent instanceof NodeWithStatements<?> block) {
-            for (Statement statement : block.getStatements()) {
-                //exempt return statements without expression, break and
-                //continue statements from method call deep search
-                if (!(statement instanceof ReturnStmt ret && ret.getExpression().isEmpty())
-                        && !(statement instanceof BreakStmt)
-                        && !(statement instanceof ContinueStmt)) {
-                    List<MethodCallExpr> foundCalls = statement.findAll(MethodCallExpr.class,
-                            Node.TreeTraversal.POSTORDER);
-                    if (!foundCalls.isEmpty()) {
-                        callExprs.addAll(foundCalls);
-                    }
+        int site = tokens.peek();
+        Call call = findCall(site);
+        if (call == null) {
+            return false;
+        }
+        createLinkedMethodTraceNode(call, sites.getLayout(site).getName());
+        return true;
+    }
+
+    /**
+     * Finds the call within current which entered a method, which is the recorded site of the call,
+     * or else the first call of the method within the site of current which has not entered it yet,
+     * or else the call of a method which has not been traced, see {@link #findUntracedCall()}.
+     *
+     * @param site the trace id of the entered method.
+     * @return the call, null if there is none.
+     */
+    private Call findCall(final int site) {
+        String name = sites.getName(site);
+        Call callSite = takeCallSite(name);
+        if (callSite != null) {
+            return callSite;
+        }
+        if (siteOfCurrent >= 0) {
+            for (Call call : callsOfNode.computeIfAbsent(siteOfCurrent, this::findCalls)) {
+                if (isValidCall(call, name)) {
+                    return call;
                 }
             }
-        } else {
-            callExprs = nodeOfCurrent.findAll(MethodCallExpr.class, Node.TreeTraversal.POSTORDER);
         }
+        return findUntracedCall();
+    }
 
-        for (MethodCallExpr expr : callExprs) {
-            if (isValidCall(expr, nameOfDeclaration)) {
-
-                methodCallRanges.add(expr.getRange().get());
-                nameOfCall = expr.getName();
-                createNewTraceNode();
+    /**
+     * Creates the trace node of a method entered by a call within current, with the link from
+     * the call and the out-link back to it.
+     *
+     * @param call              the call within current which entered the method, either directly
+     *                          or through methods which have not been traced.
+     * @param nameOfDeclaration the range of the name of the declaration of the entered method.
+     */
+    private void createLinkedMethodTraceNode(final Call call, final Range nameOfDeclaration) {
+        methodCallRanges.add(call.range());
+        createNewTraceNode();
 
-                //set link, out-link and index of out
-                int lastAddedIndex = current.getChildrenIndices()
-                        .get(current.getChildrenIndices().size() - 1);
-                TraceNode lastAdded = nodeList.get(lastAddedIndex);
+        //set link, out-link and index of out
+        int lastAddedIndex = current.getChildrenIndices()
+                .get(current.getChildrenIndices().size() - 1);
+        TraceNode lastAdded = nodeList.get(lastAddedIndex);
 
-                //check if ranges are present, should always be true due to preprocessing
-                if (nameOfCall.getRange().isPresent()
-                        && nameOfDeclaration.getRange().isPresent()) {
+        Path targetPath = rootDir.relativize(sites.getPath(Integer.parseInt(lastAdded.getTraceID())));
+        JumpLink link = new JumpLink(call.nameRange(), targetPath.toString());
 
-                    Path targetPath = traceMap.get(Integer.valueOf(lastAdded.getTraceID()))
-                            .findCompilationUnit().get().getStorage().get().getPath();
-                    targetPath = rootDir.relativize(targetPath);
-                    JumpLink link = new JumpLink(nameOfCall.getRange().get(), targetPath.toString());
+        Path sourcePath = rootDir.relativize(sites.getPath(siteOfCurrent));
+        JumpLink outLink = new JumpLink(nameOfDeclaration, sourcePath.toString());
 
-                    Path sourcePath = traceMap.get(Integer.valueOf(nodeList.get(lastAdded.getParentIndex())
-                                    .getTraceID()))
-                                    .findCompilationUnit().get().getStorage().get().getPath();
+        lastAdded.setLink(link);
+        lastAdded.addOutLink(outLink);
+        lastAdded.setOut(lastAdded.getParentIndex());
+    }
 
-                    sourcePath = rootDir.relativize(sourcePath);
-                    JumpLink outLink = new JumpLink(nameOfDeclaration.getRange().get(), sourcePath.toString());
+    /**
+     * Finds the call of a method which has not been traced within current, through which a traced
+     * method without a call in current has been entered. This is the first such call which has not
+     * entered a method yet, or the last one if all of them have, as an untraced method may call
+     * several traced methods.
+     *
+     * @return the call, null if current contains no call of an untraced method.
+     */
+    private Call findUntracedCall() {
+        if (siteOfCurrent < 0 || sites.getUntracedMethods().isEmpty()) {
+            return null;
+        }
+        List<Call> calls = untracedCallsOfNode.computeIfAbsent(siteOfCurrent, site ->
+                callsOf(site).stream()
+                        .filter(call -> sites.getUntracedMethods().contains(call.name()))
+                        .toList());
+        for (Call call : calls) {
+            if (!methodCallRanges.contains(call.range())) {
+                return call;
+            }
+        }
+        return calls.isEmpty() ? null : calls.get(calls.size() - 1);
+    }
 
-                    lastAdded.setLink(link);
-                    lastAdded.addOutLink(outLink);
-                }
-                lastAdded.setOut(lastAdded.getParentIndex());
+    /**
+     * Finds the method calls within the site of a trace id, leaving out the calls
+     * whose site is recorded.
+     *
+     * @param site a trace id.
+     * @return the method calls in post order.
+     */
+    private List<Call> findCalls(final int site) {
+        List<Call> calls = callsOf(site);
+        Set<Range> recorded = recordedCalls.get(sites.getPath(site));
+        if (recorded != null) {
+            calls.removeIf(call -> recorded.contains(call.range()));
+        }
+        return calls;
+    }
 
-                return true;
-            }
+    /**
+     * Gets all method calls within the site of a trace id from its layout.
+     *
+     * @param site a trace id.
+     * @return the method calls in post order.
+     */
+    private List<Call> callsOf(final int site) {
+        SiteLayout layout = sites.getLayout(site);
+        List<Call> calls = new ArrayList<>();
+        for (int i = 0; i < layout.getCallCount(); i++) {
+            calls.add(new Call(layout.getCallName(i), layout.getCallRange(i), layout.getCallNameRange(i)));
         }
-        return false;
+        return calls;
     }
 
     /**
-     * Advance through all parsable code of the current node and save ranges
+     * Advance through all statements of the current node and save ranges
      * which are not turned into their own tracenodes in a list,
      * while creating new child-tracenodes for specific codetypes.
-     *
-     * @param childrenOfCurrent the list of code blocks in the current node
-     * @param nextRangeToIgnore range of the next child tracenode, necessary in order to
-     *                          skip it while adding ranges
      */
-    @SuppressWarnings("checkstyle:FinalParameters")
-    private void fillRanges(final List<Node> childrenOfCurrent, Range nextRangeToIgnore) {
+    private void fillRanges() {
 
+        SiteLayout layout = layoutOfCurrent;
+        Range nextRangeToIgnore = null;
         boolean skipNext = false;
 
-        for (int i = 0; i < childrenOfCurrent.size();) {
+        for (int i = 0; i < layout.getStatementCount();) {
 
-            Node currentNode = childrenOfCurrent.get(i);
+            Range statementRange = layout.getRange(i);
 
             //determine the range of the next child
             if (nextRangeToIgnore == null) {
                 if (processChild()) {
                     TraceNode nextChild = nodeList.get(Iterables.getLast(current.getChildrenIndices()));
-                    nextRangeToIgnore =
-                            (traceMap.get(Integer.parseInt(nextChild.getTraceID())) instanceof MethodDeclaration)
+                    int nextSite = Integer.parseInt(nextChild.getTraceID());
+                    nextRangeToIgnore = sites.getKind(nextSite) == SiteTable.Kind.METHOD
                                     ? nextChild.getLink()
-                                    : traceMap.get(Integer.parseInt(nextChild.getTraceID())).getRange().get();
+                                    : sites.getRange(nextSite);
+                } else if (isCutOff()) {
+                    return;
                 } else {
-                    nextRangeToIgnore = new Range(nodeOfCurrent.getRange().get().end.nextLine(),
-                            nodeOfCurrent.getRange().get().end.nextLine());
+                    Range currentRange = sites.getRange(siteOfCurrent);
+                    nextRangeToIgnore = new Range(currentRange.end.nextLine(), currentRange.end.nextLine());
                 }
             }
 
             if (!skipNext) {
-                markStatementsInChild(currentNode, nextRangeToIgnore);
+                markStatementsInChild(i, nextRangeToIgnore);
             }
 
-            if (currentNode.getRange().get().contains(nextRangeToIgnore)) {
+            if (statementRange.contains(nextRangeToIgnore)) {
                 //current range is a child, let it resolve and wait for the next child
                 nextRangeToIgnore = null;
-                if ((traceMap.get(
-                        Integer.valueOf(nodeList.get(Iterables.getLast(current.getChildrenIndices())).getTraceID()))
-                        instanceof MethodDeclaration) && !current.getRanges().contains(currentNode.getRange().get())) {
-                    current.addRange(currentNode.getRange().get());
+                if (sites.getKind(Integer.parseInt(
+                        nodeList.get(Iterables.getLast(current.getChildrenIndices())).getTraceID()))
+                        == SiteTable.Kind.METHOD && !current.getRanges().contains(statementRange)) {
+                    current.addRange(statementRange);
                 }
                 if (jumpPackage != null) {
                     return;
@@ -482,12 +1090,10 @@ public class TraceProcessor {
                 if (skipNext) {
                     skipNext = false;
                 } else {
-                    if (!current.getRanges().contains(currentNode.getRange().get())
-                            && !Stream.of(TracedCode.values()).map(TracedCode::getType)
-                            .toList().contains(currentNode.getClass())) {
-                        current.addRange(currentNode.getRange().get());
+                    if (!current.getRanges().contains(statementRange) && !layout.isTraced(i)) {
+                        current.addRange(statementRange);
 
-                        if (checkForJumpOut(currentNode)) {
+                        if (checkForJumpOut(i)) {
                             return;
                         }
                     }
@@ -497,139 +1103,89 @@ public class TraceProcessor {
         }
 
         //if the current node is a forStmt, and it has iteration steps, add them to the ranges
-        if (nodeOfCurrent instanceof ForStmt forStmt) {
+        if (sites.getKind(siteOfCurrent) == SiteTable.Kind.FOR) {
             for (boolean cont = true; cont;) {
                 cont = processChild();
             }
-            forStmt.getUpdate().forEach(node -> current.addRange(node.getRange().get()));
+            if (isCutOff()) {
+                return;
+            }
+            layout.getUpdates().forEach(current::addRange);
         }
     }
 
     /**
-     * private method used by {@link #fillRanges} to determine whether the current statement
-     * is a child node in which certain codeblocks are always executed
-     * (like the condition in an if statement) in order to mark it.
+     * Checks whether all ids of a truncated trace have been processed, in which case
+     * the rest of the execution of the current node is unknown. The current node is
+     * then marked as truncated and closed without adding any further ranges.
      *
-     * @param currentNode Node currently being analyzed
-     * @param ifCheck used to determine which elif in an elif cascade is executed so that the conditions up to that
-     *                elif can be backfilled into the parents ranges
+     * @return true if the current node has been cut off by the truncation.
      */
-    private void markStatementsInChild(final Node currentNode, final Range ifCheck) {
-        if (currentNode instanceof IfStmt ifStmt) {
-            current.addRange(ifStmt.getCondition().getRange().get());
-            if (ifStmt.getRange().get().contains(ifCheck)) {
-                while (ifStmt.getElseStmt().isPresent() && ifStmt.getElseStmt().get().isIfStmt()
-                       && !ifStmt.getElseStmt().get().asIfStmt().getThenStmt().getRange().get().isAfter(ifCheck)) {
-                    ifStmt = ifStmt.getElseStmt().get().asIfStmt();
-                    if (ifStmt.getCondition().getRange().isPresent()) {
-                        current.addRange(ifStmt.getCondition().getRange().get());
-                    }
-                }
-            }
-        } else if (currentNode instanceof ForStmt forStmt) {
-            List<Node> inits = new ArrayList<>(forStmt.getInitialization());
-            inits.forEach(init -> current.addRange(init.getRange().get()));
-            if (forStmt.getCompare().isPresent()) {
-                current.addRange(forStmt.getCompare().get().getRange().get());
-            }
-        } else if (currentNode instanceof WhileStmt whileStmt) {
-            current.addRange(whileStmt.getCondition().getRange().get());
-        } else if (currentNode instanceof ForEachStmt forEachStmt) {
-            current.addRange(forEachStmt.getVariable().getRange().get());
-            current.addRange(forEachStmt.getIterable().getRange().get());
-        } else if (currentNode instanceof DoStmt doStmt) {
-            current.addRange(doStmt.getCondition().getRange().get());
-        } else if (currentNode instanceof TryStmt tryStmt) {
-            tryStmt.getResources().forEach(resource -> current.addRange(resource.getRange().get()));
-        } else if (currentNode instanceof SwitchStmt switchStmt) {
-            current.addRange(switchStmt.getSelector().getRange().get());
-        }
-    }
-
-    private boolean checkForJumpOut(final Node currentNode) {
-        if (currentNode instanceof ReturnStmt returnStmt) {
-            jumpPackage = new JumpPackage(List.of(MethodDeclaration.class),
-                    new Range(returnStmt.getBegin().get(),
-                            returnStmt.getBegin().get().right("return".length())),
-                    nodeList.indexOf(current));
-            return true;
-        } else if (currentNode instanceof ContinueStmt continueStmt) {
-            jumpPackage = new JumpPackage(List.of(ForStmt.class, WhileStmt.class,
-                    DoStmt.class, ForEachStmt.class),
-                    continueStmt.getRange().get(),
-                    nodeList.indexOf(current));
-            return true;
-        } else if (currentNode instanceof BreakStmt breakStmt) {
-            jumpPackage = new JumpPackage(List.of(ForStmt.class, WhileStmt.class,
-                    DoStmt.class, ForEachStmt.class, SwitchEntry.class),
-                    breakStmt.getRange().get(),
-                    nodeList.indexOf(current));
-            return true;
-        } else if (currentNode instanceof ThrowStmt throwStmt) {
-            jumpPackage = new JumpPackage(List.of(TryStmt.class),
-                    new Range(throwStmt.getBegin().get(),
-                            throwStmt.getBegin().get().right("throw".length())),
-                    nodeList.indexOf(current));
+    private boolean isCutOff() {
+        //the truncation is only known once all ids have been read
+        if (tokens.empty() && scanner.isTruncated()) {
+            current.setTruncated(true);
             return true;
         }
         return false;
     }
 
     /**
-     * Get the block-statement surrounding a call-expression.
-     * Should only be called from {@link #createMethodCallTraceNode()}.
+     * private method used by {@link #fillRanges} to determine whether the current statement
+     * is a child node in which certain codeblocks are always executed
+     * (like the condition in an if statement) in order to mark it.
      *
-     * @return A {@link BlockStmt} within which the call for the current
-     * AST node is located, null if none is found.
+     * @param statement the index of the statement currently being analyzed
+     * @param ifCheck used to determine which elif in an elif cascade is executed so that the conditions up to that
+     *                elif can be backfilled into the parents ranges
      */
-    private BlockStmt getBlockStmt() {
-        BlockStmt block = null;
-
-        //check if call is within a method
-        if (nodeOfCurrent instanceof NodeWithOptionalBlockStmt<?> method) {
-            if (method.getBody().isPresent()) {
-                block = method.getBody().get();
-            }
-        }
-
-        //check if call is in a statement, i.e. a then -or else clause
-        //or a finally-block
-        if (nodeOfCurrent instanceof Statement stmt) {
-            if (stmt instanceof BlockStmt b) {
-                block = b;
-            }
-        }
-
-        //check if call is in a loop
-        if (nodeOfCurrent instanceof NodeWithBody<?> loop) {
-            Statement body = loop.getBody();
-            if (body instanceof BlockStmt z) {
-                block = z;
+    private void markStatementsInChild(final int statement, final Range ifCheck) {
+        layoutOfCurrent.getMarks(statement).forEach(current::addRange);
+        if (layoutOfCurrent.getElseIfCount(statement) > 0 && layoutOfCurrent.getRange(statement).contains(ifCheck)) {
+            for (int elseIf = 0; elseIf < layoutOfCurrent.getElseIfCount(statement)
+                    && !layoutOfCurrent.getElseIfThen(statement, elseIf).isAfter(ifCheck); elseIf++) {
+                Range condition = layoutOfCurrent.getElseIfCondition(statement, elseIf);
+                if (condition != null) {
+                    current.addRange(condition);
+                }
             }
         }
+    }
 
-        //check if call is in a switch entry
-        if (nodeOfCurrent instanceof NodeWithStatements<?> switchCase) {
-            block = new BlockStmt();
-            NodeList<Statement> statements = switchCase.getStatements();
-            block.setStatements(statements);
-        }
-
-        //check if call is in a catch clause
-        if (nodeOfCurrent instanceof NodeWithBlockStmt<?> catchClause) {
-            block = catchClause.getBody();
-        }
-
-        if (nodeOfCurrent instanceof TryStmt tryStmt) {
-            block = tryStmt.getTryBlock();
+    private boolean checkForJumpOut(final int statement) {
+        SiteLayout.Jump jump = layoutOfCurrent.getJump(statement);
+        if (jump == null) {
+            return false;
         }
+        jumpPackage = createJumpPackage(layoutOfCurrent, statement, currentIndex);
+        return true;
+    }
 
-        return block;
+    /**
+     * Creates the package of a statement jumping out of the code block containing it.
+     *
+     * @param layout    the layout of the site containing the statement.
+     * @param statement the index of the jumping statement.
+     * @param start     the index of the trace node the jump starts from.
+     * @return the package, with the kinds of the sites closing the jump.
+     */
+    private static JumpPackage createJumpPackage(final SiteLayout layout, final int statement, final int start) {
+        Position begin = layout.getBegin(statement);
+        return switch (layout.getJump(statement)) {
+            case RETURN -> new JumpPackage(EnumSet.of(SiteTable.Kind.METHOD),
+                    new Range(begin, begin.right("return".length())), start);
+            case CONTINUE -> new JumpPackage(EnumSet.of(SiteTable.Kind.FOR, SiteTable.Kind.WHILE,
+                    SiteTable.Kind.DO), layout.getRange(statement), start);
+            case BREAK -> new JumpPackage(EnumSet.of(SiteTable.Kind.FOR, SiteTable.Kind.WHILE,
+                    SiteTable.Kind.DO, SiteTable.Kind.CASE), layout.getRange(statement), start);
+            case THROW -> new JumpPackage(EnumSet.of(SiteTable.Kind.TRY),
+                    new Range(begin, begin.right("throw".length())), start);
+        };
     }
 
-    private boolean isValidCall(final MethodCallExpr callExpr, final SimpleName name) {
-        return !methodCallRanges.contains(callExpr.getRange().get())
-                && callExpr.getName().equals(name);
+    private boolean isValidCall(final Call call, final String name) {
+        return !methodCallRanges.contains(call.range())
+                && call.name().equals(name);
     }
 
     /**
@@ -643,13 +1199,41 @@ public class TraceProcessor {
     }
 
     /**
-     * Convert the node list to a String representation.
+     * Gets the coverage of every code block, only available for traces
+     * recorded in counting mode.
+     *
+     * @return A List containing a {@link CoverageNode} for every code block
+     * ordered by id, empty if the trace has been processed to a tree.
+     */
+    public List<CoverageNode> getCoverage() {
+        return this.coverage;
+    }
+
+    /**
+     * Checks whether the processed trace has been truncated by the recorder, so the
+     * tree only covers the start of the program run.
+     *
+     * @return true if the tree is partial, false otherwise.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Convert the node list, or the coverage of a trace recorded
+     * in counting mode, to a String representation.
      *
      * @return A String containing a representation of
      * each node with the value for every field.
      */
     public String toString() {
         StringBuilder builder = new StringBuilder();
+        for (CoverageNode node : coverage) {
+            builder.append("TraceID: ").append(node.getTraceID())
+                    .append("\nLink: ").append(node.getLink())
+                    .append("\nHits: ").append(node.getHits())
+                    .append("\n\n");
+        }
         for (TraceNode node : nodeList) {
             nodeToString(builder, node);
             builder.append("\n\n");
@@ -673,5 +1257,207 @@ public class TraceProcessor {
                 .append("\nOut: ").append(node.getOutIndex())
                 .append("\nParent: ").append(node.getParentIndex())
                 .append("\nIteration: ").append(node.getIteration());
+        if (node.getSkippedIterations() != null) {
+            builder.append("\nSkipped: ").append(node.getSkippedIterations());
+        }
+        if (node.getThread() != null) {
+            builder.append("\nThread: ").append(node.getThread());
+        }
+        if (node.getTruncated() != null) {
+            builder.append("\nTruncated: ").append(node.getTruncated());
+        }
+        if (node.getInclusiveTime() != null) {
+            builder.append("\nInclusive: ").append(node.getInclusiveTime())
+                    .append("\nExclusive: ").append(node.getExclusiveTime());
+        }
+    }
+
+    /**
+     * A trace node which has been entered but not exited yet in a trace with exits,
+     * with the state kept for it while it is on the stack.
+     */
+    private static final class Frame {
+
+        /**
+         * The index of the node in {@link TraceProcessor#nodeList}.
+         */
+        private final int index;
+
+        /**
+         * The node.
+         */
+        private final TraceNode node;
+
+        /**
+         * The trace id of the node, -1 if it is no code block.
+         */
+        private final int site;
+
+        /**
+         * The time at which the node has been entered.
+         */
+        private final long start;
+
+        /**
+         * The call which entered the node of a method, null if there is none.
+         */
+        private final Call call;
+
+        /**
+         * The ranges of the method calls within the node which entered a method,
+         * see {@link TraceProcessor#methodCallRanges}.
+         */
+        private final Set<Range> callRanges = new HashSet<>();
+
+        /**
+         * The number of iterations of every loop which are children of the node, see {@link TraceProcessor#iterations}.
+         */
+        private final Map<String, Long> iterations = new HashMap<>();
+
+        /**
+         * The recorded sites of method calls within the node, see {@link TraceProcessor#callSites}.
+         */
+        private final Deque<Integer> callSites = new ArrayDeque<>();
+
+        /**
+         * The conditions of the else-if-statements checked before entering a child.
+         */
+        private final List<Range> conditions = new ArrayList<>();
+
+        /**
+         * The index of the statement containing the last located child, -1 if there is none.
+         */
+        private int statement = -1;
+
+        /**
+         * The index of the first statement which may still contain a child.
+         */
+        private int cursor;
+
+        /**
+         * The number of else-if-statements of {@link #statement} whose condition has been added.
+         */
+        private int elseIfs;
+
+        Frame(final int index, final TraceNode node, final int site, final long start, final Call call) {
+            this.index = index;
+            this.node = node;
+            this.site = site;
+            this.start = start;
+            this.call = call;
+        }
+    }
+
+    /**
+     * The ranges of a site as added to its trace nodes in a trace with exits, computed once from its
+     * {@link SiteLayout}. A node adds the ranges of its statements up to the one at which it has been
+     * left, so they are kept in order of the statements, with the parts of a statement which are
+     * always executed in place of a statement turned into its own trace node.
+     */
+    private static final class SiteRanges {
+
+        /**
+         * The ranges of all statements in their order.
+         */
+        private final List<Range> ranges = new ArrayList<>();
+
+        /**
+         * The number of ranges up to and including every statement.
+         */
+        private final int[] counts;
+
+        /**
+         * For every statement, the index of the first statement from there on which jumps out of the site,
+         * the last statement if there is none.
+         */
+        private final int[] stops;
+
+        /**
+         * Whether every statement jumps out of the site.
+         */
+        private final boolean[] jumping;
+
+        /**
+         * The begins of the statements.
+         */
+        private final Position[] begins;
+
+        /**
+         * The ends of the statements.
+         */
+        private final Position[] ends;
+
+        /**
+         * The ranges of the update expressions of a for loop.
+         */
+        private final List<Range> updates;
+
+        SiteRanges(final SiteLayout layout) {
+            int size = layout.getStatementCount();
+            counts = new int[size];
+            stops = new int[size];
+            jumping = new boolean[size];
+            begins = new Position[size];
+            ends = new Position[size];
+            for (int i = 0; i < size; i++) {
+                Range range = layout.getRange(i);
+                ranges.addAll(layout.getMarks(i));
+                if (!layout.isTraced(i)) {
+                    ranges.add(range);
+                }
+                counts[i] = ranges.size();
+                jumping[i] = layout.getJump(i) != null;
+                begins[i] = range.begin;
+                ends[i] = range.end;
+            }
+            for (int i = size - 1, stop = size - 1; i >= 0; i--) {
+                if (jumping[i]) {
+                    stop = i;
+                }
+                stops[i] = stop;
+            }
+            updates = layout.getUpdates();
+        }
+
+        /**
+         * @return the number of statements.
+         */
+        int size() {
+            return counts.length;
+        }
+
+        /**
+         * @param statement the index of a statement, -1 for none.
+         * @return a new list of the ranges up to and including the statement.
+         */
+        List<Range> upTo(final int statement) {
+            return new ArrayList<>(ranges.subList(0, statement < 0 ? 0 : counts[statement]));
+        }
+
+        /**
+         * @param statement the index of a statement.
+         * @return the index of the statement at which a node which reached the statement is left.
+         */
+        int stopOf(final int statement) {
+            return stops[statement];
+        }
+
+        /**
+         * @param statement the index of a statement.
+         * @return whether the statement jumps out of the site.
+         */
+        boolean jumps(final int statement) {
+            return jumping[statement];
+        }
+    }
+
+    /**
+     * A method call within a site, taken from the {@link SiteLayout} of the site.
+     *
+     * @param name      the name of the called method.
+     * @param range     the range of the call.
+     * @param nameRange the range of the name of the called method.
+     */
+    private record Call(String name, Range range, Range nameRange) {
     }
 }
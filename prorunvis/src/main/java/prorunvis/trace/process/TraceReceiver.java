@@ -0,0 +1,202 @@
+package prorunvis.trace.process;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Receives the trace of a program run with the recorder in stream mode, which
+ * connects to this receiver on the loopback interface instead of writing a
+ * trace file. The received trace can be processed while the program runs,
+ * and is saved to a trace file at the same time, so it does not have to be
+ * read back from disk.
+ * The program has to be started with the arguments of {@link #getJvmArguments()}.
+ */
+public class TraceReceiver implements Closeable {
+
+    /**
+     * The time in milliseconds after which waiting for the connection checks
+     * whether the program is still running.
+     */
+    private static final int ACCEPT_TIMEOUT = 100;
+
+    /**
+     * The size of the buffer used for saving the received trace.
+     */
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The socket the recorder connects to.
+     */
+    private final ServerSocket server;
+
+    /**
+     * The file the received trace is saved to.
+     */
+    private final Path traceFile;
+
+    /**
+     * Opens a receiver on a free port of the loopback interface.
+     *
+     * @param traceFile the file to save the received trace to.
+     * @throws IOException If no port could be opened.
+     */
+    public TraceReceiver(final Path traceFile) throws IOException {
+        this.traceFile = traceFile;
+        this.server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        this.server.setSoTimeout(ACCEPT_TIMEOUT);
+    }
+
+    /**
+     * @return the port the recorder has to connect to.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Gets the arguments for the JVM running the instrumented program, which
+     * override the options of the recorder to stream the trace to this receiver.
+     *
+     * @return the system properties to pass to the JVM.
+     */
+    public List<String> getJvmArguments() {
+        return List.of("-Dprorunvis.trace.mode=stream", "-Dprorunvis.trace.port=" + getPort());
+    }
+
+    /**
+     * Waits for the recorder of the given program to connect and returns a scanner
+     * reading the trace as it is received, for {@link TraceProcessor}. Every byte read
+     * by the scanner is saved to the trace file as well.
+     *
+     * @param program the running program.
+     * @return a scanner reading the received trace.
+     * @throws IOException If the program exits without connecting, or the trace file
+     *                     could not be created.
+     */
+    public Scanner accept(final Process program) throws IOException {
+        Socket socket = connect(program);
+        OutputStream file = new BufferedOutputStream(Files.newOutputStream(traceFile), WRITE_BUFFER_SIZE);
+        return new Scanner(new SavingInputStream(socket.getInputStream(), file));
+    }
+
+    /**
+     * Waits for the recorder of the given program to connect and saves the received
+     * trace to the trace file without decoding it, until the program closes the connection.
+     *
+     * @param program the running program.
+     * @throws IOException If the program exits without connecting, or the trace could
+     *                     not be saved.
+     */
+    public void save(final Process program) throws IOException {
+        try (Socket socket = connect(program)) {
+            Files.copy(socket.getInputStream(), traceFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Accepts the connection of the recorder. A program which connected before it
+     * exited is still accepted, as its connection is queued by the socket.
+     *
+     * @param program the running program.
+     * @return the connection.
+     * @throws IOException If the program exits without connecting.
+     */
+    private Socket connect(final Process program) throws IOException {
+        while (true) {
+            boolean exited = !program.isAlive();
+            try {
+                return server.accept();
+            } catch (SocketTimeoutException e) {
+                if (exited) {
+                    throw new IOException("The program exited without sending its trace.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the socket the recorder connects to, accepted connections stay open.
+     *
+     * @throws IOException If the socket could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    /**
+     * A stream writing every byte read from it to a file.
+     */
+    private static final class SavingInputStream extends FilterInputStream {
+
+        /**
+         * The file the read bytes are written to.
+         */
+        private final OutputStream file;
+
+        /**
+         * Constructs a stream saving the bytes read from the given stream.
+         *
+         * @param in   the stream to read from.
+         * @param file the file to write the read bytes to, closed with this stream.
+         */
+        SavingInputStream(final InputStream in, final OutputStream file) {
+            super(in);
+            this.file = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                file.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                file.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            //skipped bytes are read, so they are saved as well
+            return n <= 0 ? 0 : Math.max(read(new byte[(int) Math.min(n, WRITE_BUFFER_SIZE)]), 0);
+        }
+
+        /**
+         * Saves the bytes not read yet and closes both the stream and the file.
+         *
+         * @throws IOException If the stream could not be read or the file not written.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                in.transferTo(file);
+            } finally {
+                try {
+                    in.close();
+                } finally {
+                    file.close();
+                }
+            }
+        }
+    }
+}
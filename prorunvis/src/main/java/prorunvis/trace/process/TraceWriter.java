@@ -0,0 +1,289 @@
+package prorunvis.trace.process;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes trace ids to a file in the compact trace format, see
+ * {@link TraceFormat#VERSION_COMPACT}, with every block tagged by the
+ * index of the thread which recorded its ids. This can be used to store
+ * a trace in its smallest form, e.g. after it has been recorded.
+ * Traces with times, see {@link TraceFormat#FLAG_TIMES}, with exits, see
+ * {@link TraceFormat#FLAG_EXITS}, and the records of truncated traces are
+ * supported as well.
+ */
+public class TraceWriter implements Closeable {
+
+    /**
+     * The stream to which encoded blocks are written.
+     */
+    private final OutputStream out;
+
+    /**
+     * The ids of the current block.
+     */
+    private final int[] ids = new int[TraceFormat.BLOCK_SIZE];
+
+    /**
+     * The times of the ids of the current block, null if the trace has no times.
+     */
+    private final long[] times;
+
+    /**
+     * Whether the trace contains exits, which are encoded as varint 0.
+     */
+    private final boolean exits;
+
+    /**
+     * The encoded bytes of the current block, large enough for the
+     * maximum size of a varint for every id and its time, the thread and the block size.
+     */
+    private final byte[] block = new byte[(TraceFormat.BLOCK_SIZE + 2) * 5 + TraceFormat.BLOCK_SIZE * 10];
+
+    /**
+     * The number of ids in the current block.
+     */
+    private int size;
+
+    /**
+     * The index of the thread which recorded the ids of the current block.
+     */
+    private int thread;
+
+    /**
+     * The time at which the traced program exited, written when the file is closed, -1 if unknown.
+     */
+    private long endTime = -1;
+
+    /**
+     * The reason why the trace has been truncated, written when the file is closed, 0 if it is complete.
+     */
+    private int truncation;
+
+    /**
+     * Creates a new compact trace file, replacing any existing file.
+     *
+     * @param path       the path of the file to write.
+     * @param siteCount  the number of trace sites of the traced program, 0 if unknown.
+     * @param compressed whether the blocks should be gzip compressed.
+     * @throws IOException If the file could not be created.
+     */
+    public TraceWriter(final Path path, final int siteCount, final boolean compressed) throws IOException {
+        this(path, siteCount, compressed, 0);
+    }
+
+    /**
+     * Creates a new compact trace file, replacing any existing file.
+     *
+     * @param path       the path of the file to write.
+     * @param siteCount  the number of trace sites of the traced program, 0 if unknown.
+     * @param compressed whether the blocks should be gzip compressed.
+     * @param flags      the content of the trace, a combination of {@link TraceFormat#FLAG_TIMES}
+     *                   and {@link TraceFormat#FLAG_EXITS}.
+     * @throws IOException If the file could not be created.
+     */
+    public TraceWriter(final Path path, final int siteCount, final boolean compressed, final int flags)
+            throws IOException {
+        this.times = (flags & TraceFormat.FLAG_TIMES) != 0 ? new long[TraceFormat.BLOCK_SIZE] : null;
+        this.exits = (flags & TraceFormat.FLAG_EXITS) != 0;
+        OutputStream stream = new BufferedOutputStream(Files.newOutputStream(path), block.length);
+        ByteBuffer header = ByteBuffer.allocate(TraceFormat.COMPACT_HEADER_SIZE)
+                .putInt(TraceFormat.MAGIC)
+                .putInt(TraceFormat.VERSION_COMPACT)
+                .putInt(TraceFormat.FLAG_THREADS | (compressed ? TraceFormat.FLAG_GZIP : 0)
+                        | (flags & (TraceFormat.FLAG_TIMES | TraceFormat.FLAG_EXITS)))
+                .putInt(siteCount);
+        stream.write(header.array());
+        this.out = compressed ? new GZIPOutputStream(stream, block.length) : stream;
+    }
+
+    /**
+     * Appends an id to the trace of the first thread.
+     *
+     * @param id the id to append.
+     * @throws IOException If a full block could not be written.
+     */
+    public void write(final int id) throws IOException {
+        write(0, id);
+    }
+
+    /**
+     * Appends an id to the trace of the given thread.
+     *
+     * @param threadIndex the index of the thread which recorded the id.
+     * @param id          the id to append.
+     * @throws IOException If a full block could not be written.
+     */
+    public void write(final int threadIndex, final int id) throws IOException {
+        write(threadIndex, id, 0);
+    }
+
+    /**
+     * Appends an id and the time at which it has been recorded to the trace of the given thread.
+     *
+     * @param threadIndex the index of the thread which recorded the id.
+     * @param id          the id to append, or {@link TraceFormat#EXIT} if the trace contains exits.
+     * @param time        the time in nanoseconds relative to the start of the recorder,
+     *                    ignored if the trace has no times.
+     * @throws IOException If a full block could not be written.
+     */
+    public void write(final int threadIndex, final int id, final long time) throws IOException {
+        if (size > 0 && threadIndex != thread) {
+            flushBlock();
+        }
+        thread = threadIndex;
+        if (times != null) {
+            times[size] = time;
+        }
+        ids[size++] = id;
+        if (size == ids.length) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * Writes all remaining ids and closes the file.
+     *
+     * @throws IOException If the file could not be written.
+     */
+    /**
+     * Sets the time at which the traced program exited, written when the file is closed.
+     * Only used if the trace has times.
+     *
+     * @param time the time in nanoseconds relative to the start of the recorder, -1 if unknown.
+     */
+    public void setEndTime(final long time) {
+        this.endTime = time;
+    }
+
+    /**
+     * Marks the trace as truncated, which is recorded when the file is closed.
+     *
+     * @param reason the reason for the truncation, one of {@link TraceFormat#TRUNCATED_EVENTS}
+     *               and {@link TraceFormat#TRUNCATED_BYTES}, 0 if the trace is complete.
+     */
+    public void setTruncation(final int reason) {
+        this.truncation = reason;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (size > 0) {
+            flushBlock();
+        }
+        if (times != null && endTime >= 0) {
+            int length = putVarint(0, TraceFormat.END_TAG);
+            length = putVarlong(length, endTime);
+            out.write(block, 0, length);
+        }
+        if (truncation != 0) {
+            int length = putVarint(0, TraceFormat.TRUNCATION_TAG);
+            length = putVarint(length, truncation);
+            out.write(block, 0, length);
+        }
+        out.close();
+    }
+
+    /**
+     * Encodes and writes the current block.
+     *
+     * @throws IOException If the block could not be written.
+     */
+    private void flushBlock() throws IOException {
+        int length = putVarint(0, thread);
+        length = putVarint(length, size);
+        int previous = 0;
+        long previousTime = 0;
+        for (int i = 0; i < size; i++) {
+            if (exits && TraceFormat.isExit(ids[i])) {
+                length = putVarint(length, 0);
+            } else {
+                int delta = ids[i] - previous;
+                length = putVarint(length, ((delta << 1) ^ (delta >> 31)) + (exits ? 1 : 0));
+                previous = ids[i];
+            }
+            if (times != null) {
+                long timeDelta = times[i] - previousTime;
+                length = putVarlong(length, (timeDelta << 1) ^ (timeDelta >> 63));
+                previousTime = times[i];
+            }
+        }
+        out.write(block, 0, length);
+        size = 0;
+    }
+
+    /**
+     * Stores a value as unsigned varint in {@link #block}.
+     *
+     * @param start the position to store the value at.
+     * @param value the value to store.
+     * @return the position after the stored value.
+     */
+    private int putVarint(final int start, final int value) {
+        int position = start;
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            block[position++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        block[position++] = (byte) remaining;
+        return position;
+    }
+
+    /**
+     * Stores a value as unsigned varint of up to 64 bits in {@link #block}.
+     *
+     * @param start the position to store the value at.
+     * @param value the value to store.
+     * @return the position after the stored value.
+     */
+    private int putVarlong(final int start, final long value) {
+        int position = start;
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            block[position++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        block[position++] = (byte) remaining;
+        return position;
+    }
+
+    /**
+     * Reads a trace in any supported format and stores it as gzip compressed
+     * compact trace, keeping its times, exits and truncation. A trace written in
+     * counting mode contains no ids and is copied unchanged.
+     *
+     * @param source the path of the trace to read.
+     * @param target the path of the compressed trace to write.
+     * @throws IOException If the trace could not be read or written.
+     */
+    public static void compress(final Path source, final Path target) throws IOException {
+        Scanner scanner = new Scanner(source.toString());
+        List<TokenStream> threads = scanner.readThreads();
+        if (scanner.getCounts() != null) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        int flags = (!threads.isEmpty() && threads.get(0).hasTimes() ? TraceFormat.FLAG_TIMES : 0)
+                | (scanner.hasExits() ? TraceFormat.FLAG_EXITS : 0);
+        try (TraceWriter writer = new TraceWriter(target, scanner.getSiteCount(), true, flags)) {
+            for (int i = 0; i < threads.size(); i++) {
+                TokenStream tokens = threads.get(i);
+                while (!tokens.empty()) {
+                    int id = tokens.pop();
+                    writer.write(i, id, tokens.lastTime());
+                }
+            }
+            writer.setEndTime(scanner.getEndTime());
+            writer.setTruncation(scanner.getTruncation());
+        }
+    }
+}
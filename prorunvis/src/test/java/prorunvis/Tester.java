@@ -38,12 +38,22 @@ public class Tester {
                 throw new RuntimeException(e);
             }
         });
+        sortCompilationUnits(cus, projectRoot.getRoot());
+        return cus;
+    }
+
+    /**
+     * Sort a List of {@link CompilationUnit}s by the lexical order of their file names.
+     *
+     * @param cus  the List of {@link CompilationUnit}s to be sorted.
+     * @param root the root directory in which the files of the {@link CompilationUnit}s are located.
+     */
+    protected void sortCompilationUnits(final List<CompilationUnit> cus, final Path root) {
         /*
         sort the compilation units to prevent different tracing order due to
         different file systems
         */
-        cus.sort(new CompilationUnitComparator(projectRoot.getRoot()));
-        return cus;
+        cus.sort(new CompilationUnitComparator(root));
     }
 
     /**
@@ -1,22 +1,39 @@
 package prorunvis.compileandrun;
 
+import com.github.javaparser.StaticJavaParser;
 import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.ast.Node;
 import com.github.javaparser.symbolsolver.utils.SymbolSolverCollectionStrategy;
 import com.github.javaparser.utils.ProjectRoot;
 import org.junit.jupiter.api.Test;
+import prorunvis.CompilationException;
 import prorunvis.CompileAndRun;
+import prorunvis.Reachability;
+import prorunvis.SourceCompiler;
+import prorunvis.WorkerPool;
 import prorunvis.instrument.Instrumenter;
+import prorunvis.instrument.RecorderOptions;
+import prorunvis.trace.SiteTable;
+import prorunvis.trace.process.Scanner;
+import prorunvis.trace.process.TraceFormat;
 
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
 import java.io.*;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Stack;
 
 import prorunvis.Tester;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * This class is for testing the {@link CompileAndRun} class.
@@ -49,10 +66,314 @@ class CompileAndRunTest extends Tester {
                 testDir + "test2solution");
     }
 
+    /**
+     * Test 1 recorded into memory-mapped segments, using a segment size small
+     * enough to span the trace over multiple segment files.
+     */
+    @Test
+    void test1Mapped() {
+        RecorderOptions options = new RecorderOptions();
+        options.setOutputMode(RecorderOptions.OutputMode.MAPPED);
+        options.setSegmentSize(8 * Integer.BYTES);
+        compileAndRun(testDir + "test1",
+                testDir + "test1mappedresult",
+                testDir + "test1solution",
+                options);
+    }
+
+    /**
+     * Test 2 recorded as gzip compressed compact trace.
+     */
+    @Test
+    void test2Compressed() {
+        RecorderOptions options = new RecorderOptions();
+        options.setCompressed(true);
+        compileAndRun(testDir + "test2",
+                testDir + "test2compressedresult",
+                testDir + "test2solution",
+                options);
+    }
+
+    /**
+     * Test 1 with an additional file not reachable from the main class, which does not compile.
+     * It is skipped, so the program is compiled and traced as without it.
+     */
+    @Test
+    void test3Pruned() {
+        compileAndRun(testDir + "test3",
+                testDir + "test3result",
+                testDir + "test1solution",
+                new RecorderOptions(),
+                Reachability.Unreachable.SKIP);
+    }
+
+    /**
+     * Test 2 compiled from the instrumented source code in memory, without saving it.
+     */
+    @Test
+    void test2InMemory() {
+        ProjectRoot testProjectRoot =
+                new SymbolSolverCollectionStrategy().collect(Paths.get(testDir + "test2").toAbsolutePath());
+        List<CompilationUnit> cusResult = createCompilationUnits(testProjectRoot);
+        String compiledOutPath = testDir + "test2inmemoryresult";
+
+        SiteTable sites = new SiteTable();
+        File resultTrace = new File(compiledOutPath + "/Trace.trb");
+        Instrumenter.setupTrace(resultTrace);
+        cusResult.forEach(cu -> Instrumenter.run(cu, sites));
+        Map<String, String> sources = Instrumenter.getInstrumentedSources(testProjectRoot);
+        Instrumenter.saveOptions(compiledOutPath, new RecorderOptions());
+        assertFalse(new File(compiledOutPath, "Test2.java").exists());
+
+        Stack<Integer> result;
+        Stack<Integer> solution;
+        try {
+            CompileAndRun.finish(CompileAndRun.startFromSources(cusResult, sources, compiledOutPath, List.of()));
+            result = new Scanner(resultTrace.getPath()).readFile();
+            solution = new Scanner(testDir + "test2solution/TraceFile.tr").readFile();
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        assertIterableEquals(solution, result);
+    }
+
+    /**
+     * Test 2 compiled in memory and run within the JVM of the test, in a class loader of its own.
+     */
+    @Test
+    void test2InProcess() {
+        ProjectRoot testProjectRoot =
+                new SymbolSolverCollectionStrategy().collect(Paths.get(testDir + "test2").toAbsolutePath());
+        List<CompilationUnit> cusResult = createCompilationUnits(testProjectRoot);
+        String compiledOutPath = testDir + "test2inprocessresult";
+
+        SiteTable sites = new SiteTable();
+        File resultTrace = new File(compiledOutPath + "/Trace.trb");
+        Instrumenter.setupTrace(resultTrace);
+        cusResult.forEach(cu -> Instrumenter.run(cu, sites));
+        Map<String, String> sources = Instrumenter.getInstrumentedSources(testProjectRoot);
+        Instrumenter.saveOptions(compiledOutPath, new RecorderOptions());
+        assertTrue(CompileAndRun.canRunInProcess(cusResult));
+
+        Stack<Integer> result;
+        Stack<Integer> solution;
+        try {
+            Process program = CompileAndRun.startFromSourcesInProcess(cusResult, sources, compiledOutPath,
+                    List.of(), Duration.ofMinutes(1));
+            CompileAndRun.finish(program);
+            assertEquals(0, program.exitValue());
+            result = new Scanner(resultTrace.getPath()).readFile();
+            solution = new Scanner(testDir + "test2solution/TraceFile.tr").readFile();
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        assertIterableEquals(solution, result);
+    }
+
+    /**
+     * Test 2 run twice by a pool with a single worker JVM, which is replaced after every run.
+     */
+    @Test
+    void test2InPool() {
+        ProjectRoot testProjectRoot =
+                new SymbolSolverCollectionStrategy().collect(Paths.get(testDir + "test2").toAbsolutePath());
+        List<CompilationUnit> cusResult = createCompilationUnits(testProjectRoot);
+        String compiledOutPath = testDir + "test2poolresult";
+
+        SiteTable sites = new SiteTable();
+        File resultTrace = new File(compiledOutPath + "/Trace.trb");
+        Instrumenter.setupTrace(resultTrace);
+        cusResult.forEach(cu -> Instrumenter.run(cu, sites));
+        Map<String, String> sources = Instrumenter.getInstrumentedSources(testProjectRoot);
+        Instrumenter.saveOptions(compiledOutPath, new RecorderOptions());
+
+        try (WorkerPool pool = new WorkerPool(1, 1, "128m")) {
+            Stack<Integer> solution = new Scanner(testDir + "test2solution/TraceFile.tr").readFile();
+            for (int run = 0; run < 2; run++) {
+                resultTrace.delete();
+                Process program = CompileAndRun.startFromSourcesInPool(cusResult, sources, compiledOutPath,
+                        List.of(), Duration.ofMinutes(1), pool);
+                CompileAndRun.finish(program);
+                assertEquals(0, program.exitValue());
+                assertEquals(resultTrace.getAbsoluteFile().toPath(), ((WorkerPool.Program) program).getTraceFile());
+                assertIterableEquals(solution, new Scanner(resultTrace.getPath()).readFile());
+            }
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Test 2 recording more than its budget allows is stopped with the exit code of a truncated trace,
+     * in a JVM of its own as well as within the JVM of the test.
+     */
+    @Test
+    void test2Truncated() {
+        ProjectRoot testProjectRoot =
+                new SymbolSolverCollectionStrategy().collect(Paths.get(testDir + "test2").toAbsolutePath());
+        List<CompilationUnit> cusResult = createCompilationUnits(testProjectRoot);
+        String compiledOutPath = testDir + "test2truncatedresult";
+
+        SiteTable sites = new SiteTable();
+        Instrumenter.setupTrace(new File(compiledOutPath + "/Trace.trb"));
+        cusResult.forEach(cu -> Instrumenter.run(cu, sites));
+        Map<String, String> sources = Instrumenter.getInstrumentedSources(testProjectRoot);
+        RecorderOptions options = new RecorderOptions();
+        options.setBudget(1, 0);
+        Instrumenter.saveOptions(compiledOutPath, options);
+
+        try {
+            Process program = CompileAndRun.startFromSources(cusResult, sources, compiledOutPath, List.of());
+            assertTrue(CompileAndRun.finish(program, Paths.get(compiledOutPath, TraceFormat.FILE_NAME)));
+            assertEquals(TraceFormat.TRUNCATED_EXIT_CODE, program.exitValue());
+
+            program = CompileAndRun.startFromSourcesInProcess(cusResult, sources, compiledOutPath,
+                    List.of(), Duration.ofMinutes(1));
+            assertTrue(CompileAndRun.finish(program));
+            assertEquals(TraceFormat.TRUNCATED_EXIT_CODE, program.exitValue());
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A program exiting with the exit code of a truncated trace by itself is not taken as truncated,
+     * as its trace contains no truncation record.
+     */
+    @Test
+    void ownTruncatedExitCodeTest() {
+        Path directory = Paths.get(testDir + "ownexitresult");
+        try {
+            SourceCompiler.compile(List.of(), Map.of("Exit.java", "class Exit { public static void main(String[] args) { "
+                    + "System.exit(" + TraceFormat.TRUNCATED_EXIT_CODE + "); } }"), directory);
+            Path traceFile = directory.resolve(TraceFormat.FILE_NAME);
+            Instrumenter.setupTrace(traceFile.toFile());
+            Process program = new ProcessBuilder("java", "-cp", directory.toAbsolutePath().toString(), "Exit").start();
+            assertFalse(CompileAndRun.finish(program, traceFile));
+            assertEquals(TraceFormat.TRUNCATED_EXIT_CODE, program.exitValue());
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Test 2 compiled without -Xjcov is stopped by the agent, as its code blocks can not be located.
+     */
+    @Test
+    void test2AgentWithoutRanges() {
+        ProjectRoot testProjectRoot =
+                new SymbolSolverCollectionStrategy().collect(Paths.get(testDir + "test2").toAbsolutePath());
+        List<CompilationUnit> cusResult = createCompilationUnits(testProjectRoot);
+        String compiledOutPath = testDir + "test2agentresult";
+
+        SiteTable sites = new SiteTable();
+        RecorderOptions options = new RecorderOptions();
+        options.setAgent(true);
+        Instrumenter.setupTrace(new File(compiledOutPath + "/Trace.trb"));
+        Instrumenter.runAll(cusResult, sites, options);
+        Instrumenter.saveSites(sites, compiledOutPath, options);
+
+        try {
+            SourceCompiler.compile(List.of("-g"), Paths.get(testDir + "test2"), Paths.get(compiledOutPath));
+            Process program = CompileAndRun.restartWithAgent(cusResult, testDir + "test2", compiledOutPath, List.of());
+            assertEquals(1, program.waitFor());
+            assertTrue(new String(program.getErrorStream().readAllBytes()).contains("-Xjcov"));
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A program calling System.exit ends its worker without a result, which is reported as failed run,
+     * and the worker is replaced for the next program.
+     */
+    @Test
+    void workerExitTest() {
+        try (WorkerPool pool = new WorkerPool(1, 10, "64m")) {
+            Map<String, byte[]> exiting = SourceCompiler.compile(List.of(), Map.of("Exit.java",
+                    "class Exit { public static void main(String[] args) { System.exit(3); } }"), null);
+            Map<String, byte[]> printing = SourceCompiler.compile(List.of(), Map.of("Print.java",
+                    "class Print { public static void main(String[] args) { System.out.print(\"ok\"); } }"), null);
+            Path directory = Paths.get(testDir + "workerexitresult");
+
+            Process program = pool.start(List.of(), exiting, "Exit", List.of(), directory, null);
+            assertEquals(3, program.waitFor());
+            assertTrue(new String(program.getErrorStream().readAllBytes()).contains("System.exit"));
+
+            program = pool.start(List.of(), printing, "Print", List.of(), directory, null);
+            assertEquals(0, program.waitFor());
+            assertEquals("ok", new String(program.getInputStream().readAllBytes()));
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A program gets no input in a worker, and can not corrupt the results by writing to the
+     * standard output of the worker.
+     */
+    @Test
+    void workerInputTest() {
+        try (WorkerPool pool = new WorkerPool(1, 10, "64m")) {
+            Map<String, byte[]> reading = SourceCompiler.compile(List.of(), Map.of("Read.java",
+                    "import java.io.*; class Read { public static void main(String[] args) throws IOException {"
+                    + " new FileOutputStream(FileDescriptor.out).write(new byte[] {0, 0, 0, 7, '\\n'});"
+                    + " System.out.print(System.in.read() + \" \" + new FileInputStream(FileDescriptor.in).read());"
+                    + " } }"), null);
+            Map<String, byte[]> printing = SourceCompiler.compile(List.of(), Map.of("Print.java",
+                    "class Print { public static void main(String[] args) { System.out.print(\"ok\"); } }"), null);
+            Path directory = Paths.get(testDir + "workerinputresult");
+
+            Process program = pool.start(List.of(), reading, "Read", List.of(), directory, null);
+            assertEquals(0, program.waitFor());
+            assertEquals("-1 -1", new String(program.getInputStream().readAllBytes()));
+
+            program = pool.start(List.of(), printing, "Print", List.of(), directory, null);
+            assertEquals(0, program.waitFor());
+            assertEquals("ok", new String(program.getInputStream().readAllBytes()));
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Programs ending the JVM can not be run within the JVM of prorunvis.
+     */
+    @Test
+    void canRunInProcessTest() {
+        assertFalse(CompileAndRun.canRunInProcess(List.of(
+                StaticJavaParser.parse("class A { void m() { System.exit(1); } }"))));
+        assertFalse(CompileAndRun.canRunInProcess(List.of(
+                StaticJavaParser.parse("class A { void m() { Runtime.getRuntime().halt(1); } }"))));
+        assertFalse(CompileAndRun.canRunInProcess(List.of(
+                StaticJavaParser.parse("class A { void m() { Runtime rt = Runtime.getRuntime(); rt.halt(0); } }"))));
+        assertFalse(CompileAndRun.canRunInProcess(List.of(
+                StaticJavaParser.parse("import static java.lang.System.exit; class A { void m() { exit(1); } }"))));
+        assertFalse(CompileAndRun.canRunInProcess(List.of(StaticJavaParser.parse(
+                "class A { void m() throws Exception { System.class.getMethod(\"exit\", int.class); } }"))));
+        assertTrue(CompileAndRun.canRunInProcess(List.of(
+                StaticJavaParser.parse("class A { void exit(int code) { } void m() { exit(1); } }"))));
+    }
+
+    /**
+     * Compilation errors are reported with their position in the source code.
+     */
+    @Test
+    void compilationErrorTest() {
+        Map<String, String> sources = Map.of("testing/Broken.java",
+                "package testing;\nclass Broken {\n    int x = ;\n}\n");
+        CompilationException exception = assertThrows(CompilationException.class,
+                () -> SourceCompiler.compile(List.of(), sources, null));
+        Diagnostic<? extends JavaFileObject> diagnostic = exception.getDiagnostics().get(0);
+        assertEquals(Diagnostic.Kind.ERROR, diagnostic.getKind());
+        assertEquals(3, diagnostic.getLineNumber());
+        assertTrue(diagnostic.getSource().getName().endsWith("testing/Broken.java"));
+    }
+
     /**
      * Take a directory with a preprocessed(by the {@link Preprocessor}) java project.
      * Instrument it with the {@link Instrumenter}.
-     * Compile and run it with {@link CompileAndRun} and safe the result of the trace-file.
+     * Compile and run it with {@link CompileAndRun} and read the recorded trace-file with a {@link Scanner}.
      * Compare it to a given solution traceFile and assert any differences between the two.
      * @param preprocessedInPath the relative path of the directory where the preprocessed test-project is located.
      * Note: it shouldn't be instrumented yet so the absolute path can be set correctly.
@@ -61,17 +382,62 @@ class CompileAndRunTest extends Tester {
      * @param solutionPath the relative path of the directory where the solution trace-file is located.
      */
     void compileAndRun(final String preprocessedInPath, final String compiledOutPath, final String solutionPath) {
+        compileAndRun(preprocessedInPath, compiledOutPath, solutionPath, new RecorderOptions());
+    }
+
+    /**
+     * Same as {@link #compileAndRun(String, String, String)} with the given options for the recorder.
+     * @param preprocessedInPath the relative path of the directory where the preprocessed test-project is located.
+     * @param compiledOutPath the relative path of the directory where the results will be stored.
+     * @param solutionPath the relative path of the directory where the solution trace-file is located.
+     * @param options the options for the trace recorder.
+     */
+    void compileAndRun(final String preprocessedInPath, final String compiledOutPath, final String solutionPath,
+                       final RecorderOptions options) {
+        compileAndRun(preprocessedInPath, compiledOutPath, solutionPath, options, null);
+    }
+
+    /**
+     * Same as {@link #compileAndRun(String, String, String, RecorderOptions)}, only instrumenting
+     * the code reachable from the main class, see {@link Reachability}.
+     * @param preprocessedInPath the relative path of the directory where the preprocessed test-project is located.
+     * @param compiledOutPath the relative path of the directory where the results will be stored.
+     * @param solutionPath the relative path of the directory where the solution trace-file is located.
+     * @param options the options for the trace recorder.
+     * @param prune what happens to the unreachable code, or null to instrument all code.
+     */
+    void compileAndRun(final String preprocessedInPath, final String compiledOutPath, final String solutionPath,
+                       final RecorderOptions options, final Reachability.Unreachable prune) {
         //Setup CompilationUnits
         ProjectRoot testProjectRoot =
                 new SymbolSolverCollectionStrategy().collect(Paths.get(preprocessedInPath).toAbsolutePath());
-        List<CompilationUnit> cusResult = createCompilationUnits(testProjectRoot);
+        Reachability reachability = null;
+        List<CompilationUnit> cusResult;
+        if (prune != null) {
+            try {
+                reachability = new Reachability(testProjectRoot);
+                cusResult = new ArrayList<>(reachability.parse());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            sortCompilationUnits(cusResult, testProjectRoot.getRoot());
+        } else {
+            cusResult = createCompilationUnits(testProjectRoot);
+        }
 
         //Run Instrumenter
-        Map<Integer, Node> map = new HashMap<>();
-        File resultTrace = new File(compiledOutPath + "/TraceFile.tr");
+        SiteTable sites = new SiteTable();
+        File resultTrace = new File(compiledOutPath + "/Trace.trb");
         Instrumenter.setupTrace(resultTrace);
-        cusResult.forEach(cu -> Instrumenter.run(cu, map));
-        Instrumenter.saveInstrumented(testProjectRoot, compiledOutPath);
+        cusResult.forEach(cu -> Instrumenter.run(cu, sites));
+        Instrumenter.saveInstrumented(testProjectRoot, compiledOutPath, options);
+        if (reachability != null) {
+            try {
+                reachability.saveUnreachable(Paths.get(compiledOutPath), prune);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
         File solutionTrace = new File(solutionPath + "/TraceFile.tr");
 
 
@@ -89,27 +455,17 @@ class CompileAndRunTest extends Tester {
             throw new RuntimeException(e);
         }
 
-        //Setup readers for trace-files and read
-        FileReader rSolution;
-        FileReader rResult;
+        //Read both trace-files, the solution is stored as legacy text trace
+        Stack<Integer> result;
+        Stack<Integer> solution;
         try {
-            rSolution = new FileReader(solutionTrace);
-            rResult = new FileReader(resultTrace);
-        } catch (FileNotFoundException e) {
+            result = new Scanner(resultTrace.getPath()).readFile();
+            solution = new Scanner(solutionTrace.getPath()).readFile();
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        BufferedReader brSolution = new BufferedReader(rSolution);
-        BufferedReader brResult = new BufferedReader(rResult);
-        List<String> result = brResult.lines().toList();
-        List<String> solution = brSolution.lines().toList();
 
         //Evaluate result
         assertIterableEquals(solution, result);
-        try {
-            rSolution.close();
-            rResult.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
     }
 }
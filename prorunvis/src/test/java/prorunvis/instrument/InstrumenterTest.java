@@ -1,17 +1,23 @@
 package prorunvis.instrument;
 
+import com.github.javaparser.StaticJavaParser;
 import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.ast.Node;
+import com.github.javaparser.printer.DefaultPrettyPrinter;
+import com.github.javaparser.printer.Printer;
+import com.github.javaparser.printer.configuration.DefaultConfigurationOption;
+import com.github.javaparser.printer.configuration.DefaultPrinterConfiguration;
 import com.github.javaparser.symbolsolver.utils.SymbolSolverCollectionStrategy;
 import com.github.javaparser.utils.ProjectRoot;
 import org.junit.jupiter.api.Test;
 import prorunvis.Tester;
+import prorunvis.trace.InstrumentationFilter;
+import prorunvis.trace.SiteTable;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Paths;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -46,10 +52,110 @@ class InstrumenterTest extends Tester {
                 testDir + "test2solution");
     }
 
+    /**
+     * Tests that the keys of the sites stay the same when code is added before them,
+     * although their ids change, as long as the method containing them is not changed.
+     */
+    @Test
+    void keyTest() {
+        String unchanged = "void run(int[] a) { for (int i : a) { if (i > 0) { return; } } }";
+        SiteTable before = instrument("class Main { void first() { } " + unchanged + " }");
+        SiteTable after = instrument("class Main { void first() { if (true) { } } " + unchanged + " }");
+
+        assertEquals(before.size() + 1, after.size());
+        for (int id = 0; id < before.size(); id++) {
+            int moved = after.getId(before.getKey(id));
+            if (id == 0) {
+                //the changed method itself keeps its key
+                assertEquals(0, moved);
+            } else {
+                assertEquals(id + 1, moved);
+                assertEquals(before.getKind(id), after.getKind(moved));
+            }
+        }
+        assertEquals(-1, before.getId(after.getKey(1)));
+    }
+
+    /**
+     * Tests that the keys of the sites stay the same when code is added before them within the same
+     * method, and that equal sites are told apart by their code instead of their position.
+     */
+    @Test
+    void keyEditTest() {
+        String loop = "for (int i : a) { if (i > 0) { return; } } while (a.length > 0) { } ";
+        SiteTable before = instrument("class Main { void run(int[] a) { " + loop + "} }");
+        SiteTable after = instrument("class Main { void run(int[] a) { if (a == null) { } " + loop + "} }");
+
+        assertEquals(before.size() + 1, after.size());
+        assertEquals(0, after.getId(before.getKey(0)));
+        for (int id = 1; id < before.size(); id++) {
+            assertEquals(id + 1, after.getId(before.getKey(id)));
+        }
+        assertEquals(-1, before.getId(after.getKey(1)));
+
+        //equal blocks keep their keys when another block is moved between them
+        String block = "if (a.length > 1) { a[0] = 1; } ";
+        before = instrument("class Main { void run(int[] a) { if (a == null) { } " + block + block + "} }");
+        after = instrument("class Main { void run(int[] a) { " + block + "if (a == null) { } " + block + "} }");
+        assertEquals(before.size(), after.size());
+        assertEquals(2, after.getId(before.getKey(1)));
+        assertEquals(1, after.getId(before.getKey(2)));
+        assertEquals(3, after.getId(before.getKey(3)));
+    }
+
+    /**
+     * Tests that only the code selected by the filter is instrumented, and that the
+     * names of the methods left out are kept for linking the calls across them.
+     */
+    @Test
+    void filterTest() {
+        String code = "package app; class Main { void run() { for (;;) { if (true) { } } } "
+                + "void help() { while (true) { } } class Inner { void run() { } } }";
+        assertEquals(6, instrument(code, InstrumentationFilter.ALL).size());
+
+        SiteTable sites = instrument(code, InstrumentationFilter.parse("app.Main", "*#help,app.Main.Inner", "for"));
+        assertEquals(2, sites.size());
+        assertEquals(SiteTable.Kind.METHOD, sites.getKind(0));
+        assertEquals(SiteTable.Kind.BLOCK, sites.getKind(1));
+        assertEquals(Set.of("help", "run"), sites.getUntracedMethods());
+
+        assertEquals(0, instrument(code, InstrumentationFilter.parse("app.Mai", null, null)).size());
+        assertThrows(IllegalArgumentException.class, () -> InstrumentationFilter.parse(null, null, "method"));
+    }
+
+    /**
+     * Instruments a single compilation unit given as code.    /**
+     * Instruments a single compilation unit given as code.
+     *
+     * @param code the code of the compilation unit.
+     * @return the table of the instrumented sites.
+     */
+    private SiteTable instrument(final String code) {
+        return instrument(code, InstrumentationFilter.ALL);
+    }
+
+    /**
+     * Instruments the code of a single compilation unit selected by a filter.
+     *
+     * @param code   the code of the compilation unit.
+     * @param filter the selection of the instrumented code.
+     * @return the table of the instrumented sites.
+     */
+    private SiteTable instrument(final String code, final InstrumentationFilter filter) {
+        CompilationUnit cu = StaticJavaParser.parse(code);
+        cu.setStorage(Paths.get("Main.java"));
+        SiteTable sites = new SiteTable();
+        RecorderOptions options = new RecorderOptions();
+        options.setFilter(filter);
+        Instrumenter.run(cu, sites, options);
+        return sites;
+    }
+
     /**
      * Take a directory with a preprocessed(by the {@link Preprocessor}) java project.
      * Instrument it with the {@link Instrumenter} and safe the result.
      * Compare it to a given solution and assert any differences between the two.
+     * The saved files, into which the instrumentation is inserted as text, have to contain the same code.
      * @param preprocessedInPath the relative path of the directory
      *                           where the already preprocessed test-project is located.
      * @param instrumentedOutPath the relative path of the directory where the instrumented test-project will be stored.
@@ -67,15 +173,27 @@ class InstrumenterTest extends Tester {
         List<CompilationUnit> cusSolution = createCompilationUnits(solutionProjectRoot);
 
         //Run Instrumenter
-        Map<Integer, Node> map = new HashMap<>();
+        SiteTable sites = new SiteTable();
         File traceFile = new File(instrumentedOutPath + "/TraceFile.tr");
         Instrumenter.setupTrace(traceFile);
-        cusResult.forEach(cu -> Instrumenter.run(cu, map));
+        cusResult.forEach(cu -> Instrumenter.run(cu, sites));
 
         //Safe result
         Instrumenter.saveInstrumented(testProjectRoot, instrumentedOutPath);
 
         //Evaluate result
         assertIterableEquals(cusSolution, cusResult);
+
+        //Comments may be attributed to the inserted statements, so they are left out
+        Printer printer = new DefaultPrettyPrinter(new DefaultPrinterConfiguration().removeOption(
+                new DefaultConfigurationOption(DefaultPrinterConfiguration.ConfigOption.PRINT_COMMENTS)));
+        for (CompilationUnit cu : cusResult) {
+            try {
+                CompilationUnit saved = StaticJavaParser.parse(cu.getStorage().get().getPath());
+                assertEquals(printer.print(cu), printer.print(saved));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 }
@@ -1,22 +1,23 @@
 package prorunvis.trace.process;
 
 import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.ast.Node;
 import com.github.javaparser.symbolsolver.utils.SymbolSolverCollectionStrategy;
 import com.github.javaparser.utils.ProjectRoot;
 import org.junit.jupiter.api.Test;
 import prorunvis.CompileAndRun;
 import prorunvis.Tester;
+import prorunvis.instrument.InstrumentationCache;
 import prorunvis.instrument.Instrumenter;
-import prorunvis.preprocess.Preprocessor;
+import prorunvis.instrument.RecorderOptions;
+import prorunvis.trace.InstrumentationFilter;
+import prorunvis.trace.SiteTable;
+import prorunvis.trace.TraceNode;
 
 import java.io.*;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -57,6 +58,191 @@ class TraceProcessorTest extends Tester {
                 testDir + "throwtestsolution/expectedTracenodes.tr");
     }
 
+    /**
+     * Tests that the code executed by an additional thread is placed below its own
+     * thread node instead of being mixed into the trace of the main thread.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test
+    void threadTest() throws IOException, InterruptedException {
+        process(testDir + "threadtest/resources",
+                testDir + "threadtestsolution/expectedTraceNodes.tr");
+    }
+
+    /**
+     * Tests that sampled loops only contain their first and last iterations,
+     * with the iterations in between summarized by a single node.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test
+    void sampleTest() throws IOException, InterruptedException {
+        RecorderOptions options = new RecorderOptions();
+        options.setLoopSampling(2, 1);
+        process(testDir + "sampletest/resources",
+                testDir + "sampletestsolution/expectedTraceNodes.tr",
+                options);
+    }
+
+    /**
+     * Tests that a program exceeding the budget of the recorder is stopped and the
+     * nodes left open by the truncated trace are marked as truncated.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test
+    void truncateTest() throws IOException, InterruptedException {
+        RecorderOptions options = new RecorderOptions();
+        options.setBudget(20, 0);
+        process(testDir + "truncatetest/resources",
+                testDir + "truncatetestsolution/expectedTraceNodes.tr",
+                options);
+    }
+
+    /**
+     * Tests that a program instrumented for counting yields the number of
+     * executions of every code block, including the ones never executed.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test
+    void countTest() throws IOException, InterruptedException {
+        RecorderOptions options = new RecorderOptions();
+        options.setOutputMode(RecorderOptions.OutputMode.COUNTS);
+        process(testDir + "counttest/resources",
+                testDir + "counttestsolution/expectedCoverage.tr",
+                options);
+    }
+
+    /**
+     * Tests that a trace recorded with timing yields the same tree, with the time
+     * of every node but the root including the times of its children.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test
+    void timingTest() throws IOException, InterruptedException {
+        RecorderOptions options = new RecorderOptions();
+        options.setTiming(true);
+        TraceProcessor processor = process(testDir + "returntest/resources",
+                testDir + "returntestsolution/expectedTraceNodes.tr",
+                options);
+
+        List<TraceNode> nodes = processor.getNodeList();
+        assertNull(nodes.get(0).getInclusiveTime());
+        for (TraceNode node : nodes.subList(1, nodes.size())) {
+            assertNotNull(node.getInclusiveTime());
+            assertTrue(node.getExclusiveTime() >= 0);
+            assertTrue(node.getInclusiveTime() >= node.getExclusiveTime());
+        }
+    }
+
+    /**
+     * Tests that a trace recorded with block exits yields the same tree for blocks
+     * left by returns, breaks, continues and exceptions thrown across methods.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test
+    void exitTest() throws IOException, InterruptedException {
+        RecorderOptions options = new RecorderOptions();
+        options.setExits(true);
+        process(testDir + "exittest/resources",
+                testDir + "exittestsolution/expectedTraceNodes.tr",
+                options);
+    }
+
+    /**
+     * Tests that a trace recorded with call sites links every method call to the call actually
+     * made, for calls of the same method in one expression, nested calls and recursion.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test
+    void callSiteTest() throws IOException, InterruptedException {
+        RecorderOptions options = new RecorderOptions();
+        options.setCallSites(true);
+        process(testDir + "calltest/resources",
+                testDir + "calltestsolution/expectedTraceNodes.tr",
+                options);
+    }
+
+    /**
+     * Tests that a trace streamed by the running program yields the same tree, for the
+     * blocks of multiple threads, and is saved as trace file at the same time.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test
+    void streamTest() throws IOException, InterruptedException {
+        RecorderOptions options = new RecorderOptions();
+        options.setOutputMode(RecorderOptions.OutputMode.STREAM);
+        process(testDir + "threadtest/resources",
+                testDir + "threadtestsolution/expectedTraceNodes.tr",
+                options);
+    }
+
+    /**
+     * Tests that the trace calls injected by the agent into the compiled classes yield the same
+     * tree, including catch clauses without statements, and that the program can be traced again
+     * without compiling it.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test
+    void agentTest() throws IOException, InterruptedException {
+        RecorderOptions options = new RecorderOptions();
+        options.setAgent(true);
+        process(testDir + "throwtest/resources",
+                testDir + "throwtestsolution/expectedTracenodes.tr",
+                options);
+    }
+
+    /**
+     * Tests that the instrumentation taken from the cache, in which the ids of the sites of
+     * both files are shifted like in the instrumented code, yields the same tree. The first
+     * run fills the cache, unless it has been filled by an earlier test run.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test
+    void cacheTest() throws IOException, InterruptedException {
+        InstrumentationCache cache = new InstrumentationCache(Paths.get(testDir + "throwtest/resources/out/cache"));
+        process(testDir + "throwtest/resources",
+                testDir + "throwtestsolution/expectedTracenodes.tr",
+                new RecorderOptions(), cache);
+        process(testDir + "throwtest/resources",
+                testDir + "throwtestsolution/expectedTracenodes.tr",
+                new RecorderOptions(), cache);
+    }
+
+    /**
+     * Tests that a traced method called by a method which has not been instrumented, as it
+     * has been excluded by the filter, is linked to the call of the untraced method.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test
+    void filterTest() throws IOException, InterruptedException {
+        RecorderOptions options = new RecorderOptions();
+        options.setFilter(InstrumentationFilter.parse(null, "FilterTestUtil", null));
+        process(testDir + "filtertest/resources",
+                testDir + "filtertestsolution/expectedTracenodes.tr",
+                options);
+    }
+
     /**
      * Runs the program normally with the given input and compares the output to a
      * given expected result.
@@ -68,35 +254,107 @@ class TraceProcessorTest extends Tester {
      */
     private void process(final String resourcePath, final String solutionPath)
             throws IOException, InterruptedException {
+        process(resourcePath, solutionPath, new RecorderOptions());
+    }
+
+    /**
+     * Same as {@link #process(String, String)} with the given options for the recorder.
+     * The times of a trace recorded with timing are not compared, as they differ
+     * between runs. A streamed trace is processed while the program runs, the trace
+     * file saved next to it has to yield the same result. A program traced by the agent
+     * is run a second time without compiling it, which has to yield the same result.
+     *
+     * @param resourcePath the path in the testdirectory to the test-inputs to use
+     * @param solutionPath the path in the testdirectory to the expected solution
+     * @param options      the options for the trace recorder
+     * @return the processor used to create the compared result
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private TraceProcessor process(final String resourcePath, final String solutionPath,
+                                   final RecorderOptions options)
+            throws IOException, InterruptedException {
+        return process(resourcePath, solutionPath, options, null);
+    }
+
+    /**
+     * Same as {@link #process(String, String, RecorderOptions)}, reusing the instrumentation
+     * of the unchanged files from a cache.
+     *
+     * @param resourcePath the path in the testdirectory to the test-inputs to use
+     * @param solutionPath the path in the testdirectory to the expected solution
+     * @param options      the options for the trace recorder
+     * @param cache        the cache of the instrumentation, null to instrument every file
+     * @return the processor used to create the compared result
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private TraceProcessor process(final String resourcePath, final String solutionPath,
+                                   final RecorderOptions options, final InstrumentationCache cache)
+            throws IOException, InterruptedException {
 
         Path rootDir = Paths.get(resourcePath + "/in");
         ProjectRoot projectRoot = new SymbolSolverCollectionStrategy().
                 collect(rootDir.toAbsolutePath());
         List<CompilationUnit> cus = createCompilationUnits(projectRoot);
-        File traceFile = new File(resourcePath + "/traceFile.tr");
+        File traceFile = new File(resourcePath + "/out/compiled/Trace.trb");
 
         Instrumenter.setupTrace(traceFile);
 
-        Map<Integer, Node> map = new HashMap<>();
-        cus.forEach(cu -> {
-            Preprocessor.run(cu);
-            Instrumenter.run(cu, map);
-        });
+        SiteTable sites = new SiteTable();
+        Instrumenter.runAll(cus, sites, options, cache);
+        options.setSiteCount(sites.size());
 
-        Instrumenter.saveInstrumented(projectRoot, resourcePath + "/out/instrumented");
-        try {
-            CompileAndRun.run(cus, resourcePath + "/out/instrumented", resourcePath + "/out/compiled");
-        } catch (InterruptedException ignored) {
+        if (!options.isAgent()) {
+            Instrumenter.saveInstrumented(projectRoot, sites, resourcePath + "/out/instrumented", options);
         }
+        TraceProcessor processor;
+        if (options.isAgent()) {
+            Instrumenter.saveSites(sites, resourcePath + "/out/compiled", options);
+            CompileAndRun.finish(CompileAndRun.startWithAgent(cus, rootDir.toString(),
+                    resourcePath + "/out/compiled", List.of()));
+            processor = new TraceProcessor(sites, traceFile.getPath(), rootDir);
+            processor.start();
+
+            CompileAndRun.finish(CompileAndRun.restartWithAgent(cus, rootDir.toString(),
+                    resourcePath + "/out/compiled", List.of()));
+            TraceProcessor again = new TraceProcessor(sites, traceFile.getPath(), rootDir);
+            again.start();
+            assertEquals(processor.toString(), again.toString());
+        } else if (options.getOutputMode() == RecorderOptions.OutputMode.STREAM) {
+            try (TraceReceiver receiver = new TraceReceiver(traceFile.toPath())) {
+                Process program = CompileAndRun.start(cus, resourcePath + "/out/instrumented",
+                        resourcePath + "/out/compiled", receiver.getJvmArguments());
+                processor = new TraceProcessor(sites, receiver.accept(program), rootDir);
+                processor.start();
+                CompileAndRun.finish(program);
+            }
+            TraceProcessor saved = new TraceProcessor(sites, traceFile.getPath(), rootDir);
+            saved.start();
+            assertEquals(processor.toString(), saved.toString());
+        } else {
+            try {
+                CompileAndRun.run(cus, resourcePath + "/out/instrumented", resourcePath + "/out/compiled");
+            } catch (InterruptedException ignored) {
+            }
+            processor = new TraceProcessor(sites, traceFile.getPath(), rootDir);
+            processor.start();
 
-        TraceProcessor processor = new TraceProcessor(map, traceFile.getPath(), rootDir);
-        processor.start();
+            //the saved table of sites yields the same tree without instrumenting the code again
+            SiteTable loaded = Instrumenter.loadSites(resourcePath + "/out/instrumented", rootDir);
+            TraceProcessor again = new TraceProcessor(loaded, traceFile.getPath(), rootDir);
+            again.start();
+            assertEquals(processor.toString(), again.toString());
+        }
 
         BufferedReader solutionReader = new BufferedReader(new FileReader(solutionPath));
 
         List<String> expectedResult = solutionReader.lines().toList();
-        List<String> actualResult = Arrays.asList(processor.toString().split("\n"));
+        List<String> actualResult = Arrays.stream(processor.toString().split("\n"))
+                .filter(line -> !line.startsWith("Inclusive: ") && !line.startsWith("Exclusive: "))
+                .toList();
 
         assertIterableEquals(expectedResult, actualResult);
+        return processor;
     }
 }
@@ -0,0 +1,14 @@
+import testing.Test2;
+class Test1 {
+
+    public static void main(String[] args) {
+        Test2.foo();
+        int x = 0;
+        for (int i = 0; i < 7; i++) {
+            x--;
+        }
+        for (int i = 0; i < 7; i++) {
+            x--;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package testing;
+public class Test2 {
+
+    public static void foo() {
+        int x = 0;
+        for (int i = 0; i < 7; i++) {
+            x--;
+        }
+        for (int i = 0; i < 7; i++) {
+            x--;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package testing;
+public class Unused {
+
+    public static void bar() {
+        //does not compile, as Missing is not part of the project
+        Missing.run();
+    }
+}
@@ -0,0 +1,32 @@
+public class CallTest {
+
+    public static void main(String[] args) {
+        int a = twice(1) + twice(2);
+        int b = a > 100 ? twice(3) : twice(4);
+        int c = twice(wrap(5));
+        int d = fib(3);
+        print(a + b + c + d);
+    }
+
+    static int twice(int x) {
+        return 2 * x;
+    }
+
+    static int wrap(int x) {
+        if (x > 10) {
+            return twice(x);
+        }
+        return x;
+    }
+
+    static int fib(int n) {
+        if (n < 2) {
+            return n;
+        }
+        return fib(n - 1) + fib(n - 2);
+    }
+
+    static void print(int x) {
+        System.out.println(x);
+    }
+}
@@ -0,0 +1,25 @@
+public class CountTest {
+
+    public static void main(String[] args) {
+        int sum = 0;
+        for (int i = 0; i < 100000; i++) {
+            sum += classify(i);
+        }
+        if (sum < 0) {
+            System.out.println("unreachable");
+        } else {
+            System.out.println(sum);
+        }
+    }
+
+    static int classify(int value) {
+        switch (value % 3) {
+            case 0:
+                return 1;
+            case 1:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+public class ExitTest {
+
+    public static void main(String[] args) {
+        try {
+            find(3);
+        } catch (IllegalStateException e) {
+            int found = find(1);
+        }
+        try {
+            fail(1);
+        } catch (IllegalArgumentException e) {
+            int failed = 1;
+        }
+        for (int i = 0; i < 3; i++) {
+            if (i == 1) {
+                continue;
+            }
+            switch (i) {
+                case 0:
+                    int zero = 0;
+                    break;
+                case 2:
+                    int shared = i;
+                default:
+                    shared = 2;
+                    int other = shared;
+            }
+        }
+    }
+
+    static int find(int target) {
+        for (int i = 0; i < 3; i++) {
+            if (i == target) {
+                return i;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    static void fail(int reason) {
+        try {
+            if (reason == 1) {
+                throw new IllegalArgumentException();
+            }
+        } catch (IndexOutOfBoundsException e) {
+            reason = 0;
+        }
+        reason = 2;
+    }
+}
@@ -0,0 +1,16 @@
+public class FilterTest {
+    public static void main(String[] args) {
+        FilterTestUtil.help(3);
+        done();
+    }
+
+    static void work(int i) {
+        if (i > 1) {
+            System.out.println(i);
+        }
+    }
+
+    static void done() {
+        System.out.println("done");
+    }
+}
@@ -0,0 +1,6 @@
+public class FilterTestUtil {
+    static void help(int n) {
+        for (int i = 0; i < n; i++)
+            if (i >= 0) FilterTest.work(i);
+    }
+}
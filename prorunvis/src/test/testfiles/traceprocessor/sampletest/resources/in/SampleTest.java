@@ -0,0 +1,24 @@
+public class SampleTest {
+
+    public static void main(String[] args) {
+
+        int x = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (i % 100 == 0) {
+                x++;
+            }
+            int j = 0;
+            while (j < i) {
+                j += 400;
+            }
+        }
+        outer:
+        for (int i = 0; i < 5; i++) {
+            for (int k = 0; k < 5; k++) {
+                if (k == 3) {
+                    continue outer;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+public class ThreadTest {
+
+    public static void main(String[] args) throws InterruptedException {
+
+        Thread worker = new Thread(ThreadTest::work);
+        worker.start();
+        worker.join();
+        int x = 0;
+        for (int i = 0; i < 2; i++) {
+            x++;
+        }
+    }
+
+    public static void work() {
+
+        int y = 0;
+        for (int i = 0; i < 3; i++) {
+            if (i == 1) {
+                y++;
+            }
+        }
+    }
+}
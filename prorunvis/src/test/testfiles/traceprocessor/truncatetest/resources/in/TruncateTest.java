@@ -0,0 +1,16 @@
+public class TruncateTest {
+
+    public static void main(String[] args) {
+        int i = 0;
+        while (true) {
+            i = step(i);
+        }
+    }
+
+    static int step(int i) {
+        if (i % 2 == 0) {
+            return i + 1;
+        }
+        return i + 3;
+    }
+}
@@ -11,6 +11,8 @@ plugins {
 }
 
 rootProject.name = "ka"
+include("prorunvis-runtime")
+include("prorunvis-agent")
 include("prorunvis")
 include("prorunvis-api")
 include("frontend")